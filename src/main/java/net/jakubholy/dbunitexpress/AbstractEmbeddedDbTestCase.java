@@ -13,6 +13,8 @@ import java.sql.SQLException;
 
 import javax.sql.DataSource;
 
+import net.jakubholy.dbunitexpress.impl.DatabaseCostCollector;
+
 import org.dbunit.DBTestCase;
 import org.dbunit.DatabaseTestCase;
 import org.dbunit.DatabaseUnitRuntimeException;
@@ -153,6 +155,17 @@ public abstract class AbstractEmbeddedDbTestCase extends DBTestCase {
     	getEmbeddedDbTester().getEnhancedTester().clearTable(tableName);
     }
 
+    /**
+     * Removes all data from the given test tables, in any order.
+     * @throws SQLException
+     *
+     * @see IEnhancedDatabaseTester#clearTables(String[])
+     * @since 1.3.1
+     */
+    protected final void clearTables(final String[] tableNames) throws SQLException {
+    	getEmbeddedDbTester().getEnhancedTester().clearTables(tableNames);
+    }
+
 	/**
 	 * Returns the database tester used internally for all operations by this class
 	 * @throws Exception
@@ -195,4 +208,22 @@ public abstract class AbstractEmbeddedDbTestCase extends DBTestCase {
 		return getEmbeddedDbTester().getSqlConnection();
 	}
 
+	/**
+	 * Attributes the time spent in the database to this test and fails it if
+	 * it exceeds its budget.
+	 * @see DatabaseCostCollector
+	 * @since 1.3.1
+	 */
+	public void runBare() throws Throwable {
+		final DatabaseCostCollector costCollector = DatabaseCostCollector.getSharedInstance();
+		final String testName = getClass().getName() + "#" + getName();
+		costCollector.startTest(testName);
+		try {
+			super.runBare();
+		} finally {
+			costCollector.setCurrentTest(null);
+		}
+		costCollector.assertWithinBudget(testName);
+	}
+
 }
\ No newline at end of file
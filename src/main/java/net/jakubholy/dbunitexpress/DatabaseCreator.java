@@ -9,15 +9,35 @@ package net.jakubholy.dbunitexpress;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import net.jakubholy.dbunitexpress.impl.DatabaseCostCollector;
+import net.jakubholy.dbunitexpress.impl.FlightRecorderEvent;
+import net.jakubholy.dbunitexpress.operation.DirtyTablesRefreshOperation;
+import net.jakubholy.dbunitexpress.operation.ForeignKeyGraph;
+import net.jakubholy.dbunitexpress.operation.SnapshotRestoreOperation;
+import net.jakubholy.dbunitexpress.operation.UndoLogResetOperation;
+import net.jakubholy.dbunitexpress.util.MetadataSnapshot;
+import net.jakubholy.dbunitexpress.util.SchemaRenamer;
 
 import org.dbunit.DatabaseUnitRuntimeException;
 import org.dbunit.PropertiesBasedJdbcDatabaseTester;
@@ -47,8 +67,25 @@ public class DatabaseCreator {
 	/** Path to the DDL file, normally below {@link EmbeddedDbTester#TEST_DATA_FOLDER}. */
 	public static final String DDL_FILE_PATH = EmbeddedDbTester.TEST_DATA_FOLDER + File.separator + DDL_FILE_NAME;
 
+	/**
+	 * Name of the file recording that a database has been initialized by
+	 * {@link #initializeTestDbOnce(EmbeddedDbTester)}, stored in the directory
+	 * of the Derby database itself so that it goes away with the database.
+	 */
+	public static final String INITIALIZED_MARKER_FILE_NAME = "dbunit-express-initialized.properties";
+
+	private static final String DDL_CHECKSUM_MARKER = "ddlChecksum";
+
 	private static final Logger LOG = LoggerFactory.getLogger(DatabaseCreator.class);
 
+	private static final String[] TABLE_TYPES = new String[]{ "TABLE" };
+
+	/** Map&lt;String db URL, Object lock for initializing the db&gt; */
+	private static final Map initializationLocks = new HashMap();
+
+	/** URLs of the databases initialized (or found initialized) in this JVM. */
+	private static final Set initializedUrls = new HashSet();
+
     private static final DatabaseCreator defaultInstance = new DatabaseCreator();
 
     private URL ddlFile = fileToUrl(DDL_FILE_PATH);
@@ -122,24 +159,42 @@ public class DatabaseCreator {
 	private void executeDdl(final Connection connection, final String ddlStatements)
 			throws SQLException {
 
+		final Object jfrEvent = FlightRecorderEvent.DDL_EXECUTION.begin();
 		final java.sql.Statement ddlStmt = connection.createStatement();
+		final Object costTimer = DatabaseCostCollector.getSharedInstance().start();
 		try {
 	        final String[] statements = ddlStatements.split(";");
+	        int statementCount = 0;
 
 	        for (int i = 0; i < statements.length; i++) {
 	        	if (statements[i].trim().length() > 0) {
 		            LOG.info("createDbSchemaFromDdl: Adding batch stmt: " + statements[i]);
 		            ddlStmt.addBatch(statements[i]);
+		            statementCount++;
 	        	}
 	        }
 
 	        ddlStmt.executeBatch();
+	        if (jfrEvent != null) {
+	        	FlightRecorderEvent.DDL_EXECUTION.commit(jfrEvent, new Object[] {
+	        			new Integer(statementCount), FlightRecorderEvent.truncateSql(ddlStatements)});
+	        }
+	        // The schema has changed => the snapshot and metadata of the database are useless,
+	        // as is the tracking of tables in the changed schemas
+	        final String dbUrl = connection.getMetaData().getURL();
+	        final String[] changedSchemas = SchemaRenamer.findSchemas(ddlStatements);
+	        SnapshotRestoreOperation.discardSnapshot(dbUrl);
+	        DirtyTablesRefreshOperation.resetTracking(dbUrl, changedSchemas);
+	        UndoLogResetOperation.resetTracking(dbUrl, changedSchemas);
+	        ForeignKeyGraph.invalidate(dbUrl);
+	        MetadataSnapshot.invalidate(dbUrl);
 		} finally {
 			try {
 				ddlStmt.close();
 			} catch (SQLException e) {
 				LOG.warn("Failed to close the statement", e);
 			}
+			DatabaseCostCollector.getSharedInstance().stop(costTimer, DatabaseCostCollector.DB_CREATION);
 		}
 	} /* executeDdl */
 
@@ -237,6 +292,225 @@ public class DatabaseCreator {
     	}
 	} /* createAndInitializeTestDb */
 
+    /**
+     * Create a copy of the schemas used by the DDL, renamed by appending the
+     * suffix, unless they exist already; creates the database if it doesn't exist.
+     * @param schemaSuffix (required) appended to the schema names
+     * @return the renamer used to rewrite the DDL
+     * @see EmbeddedDbTester#PER_THREAD_SCHEMAS_PROPERTY
+     * @since 1.3.1
+     */
+	SchemaRenamer doCreateRenamedSchemas(final String schemaSuffix) throws Exception {	// NOPMD
+		final String sql = readDdlFromFile();
+		final SchemaRenamer renamer = new SchemaRenamer(SchemaRenamer.findSchemas(sql), schemaSuffix);
+        final IDatabaseConnection dbUnitConnection = produceDbCreatingConnection();
+    	try {
+    		final Connection connection = dbUnitConnection.getConnection();
+    		if (schemasExist(connection, renamer.getRenamedSchemas())) {
+    			LOG.info("createRenamedSchemas: The schemas of " + renamer + " exist already");
+    		} else {
+    			LOG.info("createRenamedSchemas: Going to create the schemas of " + renamer + "...");
+    			executeDdl(connection, renamer.rewriteSql(sql));
+    		}
+    	} finally {
+    		try {
+				dbUnitConnection.close();
+			} catch (SQLException e) {
+				LOG.warn("Failed to close the connection", e);
+			}
+    	}
+    	return renamer;
+	} /* doCreateRenamedSchemas */
+
+	private static boolean schemasExist(final Connection connection, final String[] schemas) throws SQLException {
+		final Set existingSchemas = new HashSet();
+		final ResultSet schemaRows = connection.getMetaData().getSchemas();
+		try {
+			while (schemaRows.next()) {
+				existingSchemas.add(schemaRows.getString(1).toUpperCase());
+			}
+		} finally {
+			schemaRows.close();
+		}
+		for (int i = 0; i < schemas.length; i++) {
+			if (!existingSchemas.contains(schemas[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+    /**
+     * Create and initialize the tester's database unless it has been initialized
+     * already, used by {@link EmbeddedDbTester#onSetup()} with autoInitializeDb.
+     * It is done only once per JVM and database URL even if called by many threads
+     * concurrently. The database is considered initialized if the schemas
+     * used by the DDL exist or, if the DDL uses none, there is any table; this
+     * is checked via JDBC metadata. The result is recorded in the file
+     * {@link #INITIALIZED_MARKER_FILE_NAME} in the database's directory together
+     * with the DDL's checksum so that later JVMs skip the check unless the DDL
+     * changes; only for Derby databases stored in a directory.
+     * @param embeddedDb (required) the tester whose database to initialize;
+     * 	its URL isn't modified
+     * @since 1.3.1
+     */
+	static void initializeTestDbOnce(final EmbeddedDbTester embeddedDb) throws Exception {	// NOPMD
+		final String url = embeddedDb.resolveConnectionProperty(PropertiesBasedJdbcDatabaseTester.DBUNIT_CONNECTION_URL);
+		final Object lock;
+		synchronized (initializationLocks) {
+			if (initializedUrls.contains(url)) {
+				return;
+			}
+			if (!initializationLocks.containsKey(url)) {
+				initializationLocks.put(url, new Object());
+			}
+			lock = initializationLocks.get(url);
+		}
+
+		synchronized (lock) {
+			synchronized (initializationLocks) {
+				if (initializedUrls.contains(url)) {
+					return;
+				}
+			}
+
+			final DatabaseCreator creator = new DatabaseCreator(embeddedDb.createCopy());
+			final String ddl = creator.readDdlFromFile();
+			final String checksum = computeChecksum(ddl);
+
+			if (checksum.equals(readInitializedMarker(url))) {
+				LOG.debug("initializeTestDbOnce: {} is marked as initialized with the current DDL", url);
+			} else {
+				if (isInitialized(creator.embeddedDb, SchemaRenamer.findSchemas(ddl))) {
+					LOG.info("initializeTestDbOnce: The database " + url + " is already initialized");
+				} else {
+					LOG.info("initializeTestDbOnce: Going to automatically create the test database " + url + "...");
+					creator.doCreateAndInitializeTestDb();
+				}
+				writeInitializedMarker(url, checksum);
+			}
+
+			synchronized (initializationLocks) {
+				initializedUrls.add(url);
+			}
+		}
+	} /* initializeTestDbOnce */
+
+	/**
+	 * Forget that the database has been initialized, e.g. because it has been
+	 * found to be missing, so that the next {@link #initializeTestDbOnce(EmbeddedDbTester)}
+	 * checks it again.
+	 * @since 1.3.1
+	 */
+	static void forgetInitialization(final String url) {
+		synchronized (initializationLocks) {
+			initializedUrls.remove(url);
+		}
+		final File markerFile = getInitializedMarkerFile(url);
+		if (markerFile != null && markerFile.isFile() && !markerFile.delete()) {
+			LOG.warn("forgetInitialization: Failed to delete the marker file " + markerFile);
+		}
+	}
+
+	/**
+	 * Check via JDBC metadata that the schemas exist or that there is any table.
+	 * @return false also if the database cannot be connected to, e.g. because it doesn't exist
+	 */
+	private static boolean isInitialized(final EmbeddedDbTester embeddedDb, final String[] schemas) {
+		try {
+			final IDatabaseConnection dbUnitConnection = embeddedDb.createAndInitDatabaseTester().getConnection();
+			try {
+				final Connection connection = dbUnitConnection.getConnection();
+				if (schemas.length > 0) {
+					return schemasExist(connection, schemas);
+				}
+				final ResultSet tables = connection.getMetaData().getTables(null, null, "%", TABLE_TYPES);
+				try {
+					return tables.next();
+				} finally {
+					tables.close();
+				}
+			} finally {
+				dbUnitConnection.close();
+			}
+		} catch (Exception e) {
+			LOG.debug("isInitialized: The database isn't accessible, assuming it doesn't exist; cause: " + e);
+			return false;
+		}
+	}
+
+	private static String computeChecksum(final String ddl) throws IOException {
+		final CRC32 checksum = new CRC32();
+		checksum.update(ddl.getBytes("UTF-8"));
+		return Long.toHexString(checksum.getValue());
+	}
+
+	/**
+	 * Returns the directory of a Derby database stored in the file system,
+	 * relative paths resolved against derby.system.home (the current directory by default).
+	 * @param url (required) JDBC URL such as jdbc:derby:testData/testDB;create=true
+	 * @return the absolute directory or null if not a Derby database in a directory
+	 * 	(e.g. in-memory, in a jar, or another database)
+	 */
+	static File getDerbyDatabaseDirectory(final String url) {
+		if (!url.startsWith("jdbc:derby:")) {
+			return null;
+		}
+		String path = url.substring("jdbc:derby:".length());
+		final int attributesStart = path.indexOf(';');
+		if (attributesStart >= 0) {
+			path = path.substring(0, attributesStart);
+		}
+		if (path.startsWith("directory:")) {
+			path = path.substring("directory:".length());
+		} else if (path.startsWith("//") || path.indexOf(':') > 1) {
+			return null;	// network client or a subsubprotocol such as memory:, jar:, classpath:
+		}
+
+		File directory = new File(path);
+		if (!directory.isAbsolute()) {
+			directory = new File(System.getProperty("derby.system.home", System.getProperty("user.dir")), path);
+		}
+		return directory.getAbsoluteFile();
+	}
+
+	/** @return the marker file in the database directory or null if not applicable */
+	private static File getInitializedMarkerFile(final String url) {
+		final File dbDirectory = getDerbyDatabaseDirectory(url);
+		return (dbDirectory == null)? null : new File(dbDirectory, INITIALIZED_MARKER_FILE_NAME);
+	}
+
+	/** Returns the DDL checksum recorded for the database or null. */
+	static String readInitializedMarker(final String url) throws IOException {
+		final File markerFile = getInitializedMarkerFile(url);
+		if (markerFile == null || !markerFile.isFile()) {
+			return null;
+		}
+		final Properties marker = new Properties();
+		final InputStream in = new FileInputStream(markerFile);
+		try {
+			marker.load(in);
+		} finally {
+			in.close();
+		}
+		return marker.getProperty(DDL_CHECKSUM_MARKER);
+	}
+
+	private static synchronized void writeInitializedMarker(final String url, final String checksum) throws IOException {
+		final File markerFile = getInitializedMarkerFile(url);
+		if (markerFile == null || !markerFile.getParentFile().isDirectory()) {
+			return;
+		}
+		final Properties marker = new Properties();
+		marker.setProperty(DDL_CHECKSUM_MARKER, checksum);
+		final OutputStream out = new FileOutputStream(markerFile);
+		try {
+			marker.store(out, "Initialized by DatabaseCreator from the DDL with the checksum; delete to re-check");
+		} finally {
+			out.close();
+		}
+	}
+
     /**
      * Modify the current embeddedDb's connection to automatically create the target databse if
      * it doesn't exist.
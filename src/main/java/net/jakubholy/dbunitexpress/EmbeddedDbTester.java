@@ -13,21 +13,56 @@ import java.io.InputStream;
 import java.io.StringWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.security.MessageDigest;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 import javax.sql.DataSource;
 
 import junit.framework.Assert;
+import junit.framework.AssertionFailedError;
+import net.jakubholy.dbunitexpress.assertion.CountChecker;
 import net.jakubholy.dbunitexpress.assertion.RowComparator;
+import net.jakubholy.dbunitexpress.assertion.ValueChecker;
 import net.jakubholy.dbunitexpress.exception.ExceptionInterpreterFactory;
 import net.jakubholy.dbunitexpress.exception.IExceptionInterpreter;
+import net.jakubholy.dbunitexpress.impl.BatchSizeTuner;
+import net.jakubholy.dbunitexpress.impl.BatchingStatementFactory;
+import net.jakubholy.dbunitexpress.impl.ConnectionPool;
+import net.jakubholy.dbunitexpress.impl.DatabaseCostCollector;
 import net.jakubholy.dbunitexpress.impl.EnhancedDatabaseTesterDecorator;
+import net.jakubholy.dbunitexpress.impl.FlightRecorderEvent;
+import net.jakubholy.dbunitexpress.impl.RollbackDatabaseTester;
+import net.jakubholy.dbunitexpress.impl.SetUpMetricsLogger;
+import net.jakubholy.dbunitexpress.impl.SetUpTimingListener;
+import net.jakubholy.dbunitexpress.impl.StreamingXmlDataSetLoader;
+import net.jakubholy.dbunitexpress.operation.BulkImportOperation;
+import net.jakubholy.dbunitexpress.operation.DatabaseOperationFactory;
+import net.jakubholy.dbunitexpress.operation.DirtyTablesRefreshOperation;
+import net.jakubholy.dbunitexpress.operation.MeasuredOperation;
+import net.jakubholy.dbunitexpress.operation.ParallelLoadOperation;
+import net.jakubholy.dbunitexpress.operation.SmartRefreshOperation;
+import net.jakubholy.dbunitexpress.operation.SnapshotRestoreOperation;
+import net.jakubholy.dbunitexpress.operation.TruncateTablesOperation;
+import net.jakubholy.dbunitexpress.operation.UndoLogResetOperation;
+import net.jakubholy.dbunitexpress.util.BinaryDataSet;
+import net.jakubholy.dbunitexpress.util.BinaryDataSetConverter;
+import net.jakubholy.dbunitexpress.util.CallStack;
+import net.jakubholy.dbunitexpress.util.DataSetCache;
 import net.jakubholy.dbunitexpress.util.DbUnitUtils;
+import net.jakubholy.dbunitexpress.util.MetadataSnapshot;
+import net.jakubholy.dbunitexpress.util.NPlusOneDetector;
+import net.jakubholy.dbunitexpress.util.SchemaRenamer;
+import net.jakubholy.dbunitexpress.util.SqlTrace;
 
 import org.dbunit.DatabaseUnitException;
 import org.dbunit.DatabaseUnitRuntimeException;
@@ -36,8 +71,10 @@ import org.dbunit.IOperationListener;
 import org.dbunit.PropertiesBasedJdbcDatabaseTester;
 import org.dbunit.database.DatabaseConfig;
 import org.dbunit.database.IDatabaseConnection;
+import org.dbunit.database.statement.IStatementFactory;
 import org.dbunit.dataset.DataSetException;
 import org.dbunit.dataset.IDataSet;
+import org.dbunit.dataset.ITable;
 import org.dbunit.dataset.NoSuchTableException;
 import org.dbunit.dataset.xml.XmlDataSet;
 import org.dbunit.operation.DatabaseOperation;
@@ -199,6 +236,12 @@ public class EmbeddedDbTester implements IDatabaseTester {
 
     private transient IDataSet testDataSet = null;
 
+    /** Set if the data shall be streamed from a file, see {@link #setStreamedDataSet(String)}. */
+    private transient StreamingXmlDataSetLoader streamingLoader = null;
+
+    /** The file of the data set if set by name, for the JFR events. */
+    private transient String dataSetName = null;
+
     /**
      * An optional file for defining other then the default connection to a test
      * database, it may include any of the following properties:
@@ -207,12 +250,171 @@ public class EmbeddedDbTester implements IDatabaseTester {
      * 	<li> {@link PropertiesBasedJdbcDatabaseTester#DBUNIT_DRIVER_CLASS}
      * 	<li> {@link PropertiesBasedJdbcDatabaseTester#DBUNIT_PASSWORD}
      * 	<li> {@link PropertiesBasedJdbcDatabaseTester#DBUNIT_USERNAME}
+     * 	<li> {@link #DATA_SET_CACHE_SIZE_PROPERTY}
+     * 	<li> {@link #SET_UP_OPERATION_PROPERTY}
+     * 	<li> {@link #ROLLBACK_ISOLATION_PROPERTY}
+     * 	<li> {@link #BATCH_SIZE_PROPERTY}
+     * 	<li> {@link #BULK_IMPORT_THRESHOLD_PROPERTY}
+     * 	<li> {@link #SET_UP_PARALLELISM_PROPERTY}
+     * 	<li> {@link #CONNECTION_POOL_SIZE_PROPERTY}
+     * 	<li> {@link #CONNECTION_POOL_IDLE_TIMEOUT_PROPERTY}
+     * 	<li> {@link #CONNECTION_VALIDATION_QUERY_PROPERTY}
+     * 	<li> {@link #PER_THREAD_DATABASE_PROPERTY}
+     * 	<li> {@link #PER_THREAD_SCHEMAS_PROPERTY}
+     * 	<li> {@link #LOG_SET_UP_METRICS_PROPERTY}
+     * 	<li> {@link #COST_REPORT_PROPERTY}
+     * 	<li> {@link #COST_BUDGET_PROPERTY}
+     * 	<li> {@link #N_PLUS_ONE_THRESHOLD_PROPERTY}
+     * 	<li> {@link #FAIL_ON_N_PLUS_ONE_PROPERTY}
      * </ul>
      * If a property isn't defined in the file then the value of the
      * appropriate DEFAULT_JDBC_* constant is taken.
      */
     public static final String CUSTOM_CONFIG_FILE = "dbunit-express.properties";
 
+    /**
+     * Property for {@link #CUSTOM_CONFIG_FILE} setting how many parsed data sets
+     * to keep in the JVM-wide {@link DataSetCache}; 0 disables the caching.
+     * Default: {@value DataSetCache#DEFAULT_MAX_SIZE}.
+     */
+    public static final String DATA_SET_CACHE_SIZE_PROPERTY = "dbunit-express.dataSetCacheSize";
+
+    /**
+     * Property for {@link #CUSTOM_CONFIG_FILE} selecting the set up operation by name,
+     * see {@link DatabaseOperationFactory#getOperation(String)}; for example
+     * {@value DatabaseOperationFactory#SNAPSHOT_RESTORE}. Default: CLEAN_INSERT.
+     * @see #setSetUpOperation(DatabaseOperation)
+     */
+    public static final String SET_UP_OPERATION_PROPERTY = "dbunit-express.setUpOperation";
+
+    /**
+     * Property for {@link #CUSTOM_CONFIG_FILE} enabling the transaction rollback
+     * isolation if set to true, see {@link #setRollbackIsolation(boolean)}.
+     */
+    public static final String ROLLBACK_ISOLATION_PROPERTY = "dbunit-express.rollbackIsolation";
+
+    /**
+     * Property for {@link #CUSTOM_CONFIG_FILE} setting the number of rows sent
+     * to the DB in one JDBC batch when loading data: either a positive number,
+     * 0 to disable batching, or "auto" to tune it from the observed rows per
+     * second, see {@link BatchSizeTuner}. Default: auto.
+     */
+    public static final String BATCH_SIZE_PROPERTY = "dbunit-express.batchSize";
+
+    /**
+     * Property for {@link #CUSTOM_CONFIG_FILE} enabling Derby's bulk import for
+     * tables with at least the given number of rows, see {@link BulkImportOperation};
+     * it is used both by {@link #onSetup()}, unless {@link #SET_UP_OPERATION_PROPERTY}
+     * is set, and by {@link IEnhancedDatabaseTester#replaceDatabase(IDataSet)}.
+     * Default: not set, i.e. disabled.
+     */
+    public static final String BULK_IMPORT_THRESHOLD_PROPERTY = "dbunit-express.bulkImportThreshold";
+
+    /**
+     * Property for {@link #CUSTOM_CONFIG_FILE} setting the number of connections
+     * used to load independent tables concurrently, see {@link #setSetUpParallelism(int)}.
+     * Default: 1, i.e. no parallel loading.
+     */
+    public static final String SET_UP_PARALLELISM_PROPERTY = "dbunit-express.setUpParallelism";
+
+    /**
+     * Property for {@link #CUSTOM_CONFIG_FILE} setting the max. number of idle
+     * connections kept open in the JVM-wide {@link ConnectionPool} shared by all
+     * testers with the same connection configuration; 0 disables pooling so that
+     * each {@link #getConnection()} opens a new JDBC connection.
+     * Default: {@value ConnectionPool#DEFAULT_MAX_IDLE}.
+     * @see #getConnectionPool()
+     */
+    public static final String CONNECTION_POOL_SIZE_PROPERTY = "dbunit-express.connectionPoolSize";
+
+    /**
+     * Property for {@link #CUSTOM_CONFIG_FILE} setting after how many seconds
+     * an idle pooled connection is closed. Default: 60.
+     */
+    public static final String CONNECTION_POOL_IDLE_TIMEOUT_PROPERTY = "dbunit-express.connectionPoolIdleTimeout";
+
+    /**
+     * Property for {@link #CUSTOM_CONFIG_FILE} setting a SQL query used to check
+     * that an idle pooled connection still works before it is reused, e.g.
+     * "VALUES 1" for Derby. Default: not set, only closed connections are detected.
+     */
+    public static final String CONNECTION_VALIDATION_QUERY_PROPERTY = "dbunit-express.connectionValidationQuery";
+
+    /**
+     * Property for {@link #CUSTOM_CONFIG_FILE} enabling the per-thread databases
+     * so that tests can run in parallel threads: the value is a name and each
+     * thread uses its own in-memory Derby database jdbc:derby:memory:&lt;name&gt;-&lt;n&gt;,
+     * n being the number of the thread, instead of the configured
+     * {@link PropertiesBasedJdbcDatabaseTester#DBUNIT_CONNECTION_URL URL}. The
+     * database is created by the {@link DatabaseCreator} from its default DDL
+     * the first time the thread uses it. A tester keeps using the database of the
+     * thread that has used it first. Default: not set, i.e. all threads share
+     * the one configured database.
+     * @see #getPerThreadDatabaseUrl(String)
+     */
+    public static final String PER_THREAD_DATABASE_PROPERTY = "dbunit-express.perThreadDatabase";
+
+    /**
+     * Property for {@link #CUSTOM_CONFIG_FILE} enabling the per-thread schemas
+     * if set to true, a lighter alternative to {@link #PER_THREAD_DATABASE_PROPERTY}:
+     * all threads share the one database but each of them uses its own copy of
+     * the schemas defined in the DatabaseCreator's default DDL, named
+     * &lt;schema&gt;_W&lt;n&gt;, n being the number of the thread. The copies are
+     * created the first time a thread uses the database. The tester rewrites
+     * the schemas in the table names of the data set loaded by {@link #onSetup()}
+     * and in the queries passed to {@link #createCheckerForSelect(String)};
+     * the code under test must use {@link #getWorkerSchemaName(String)}.
+     * Streamed data sets are not supported. A tester keeps using the schemas of the
+     * thread that has used it first. Default: false.
+     * @see SchemaRenamer
+     */
+    public static final String PER_THREAD_SCHEMAS_PROPERTY = "dbunit-express.perThreadSchemas";
+
+    /**
+     * Property for {@link #CUSTOM_CONFIG_FILE}: if true then the timings of each
+     * {@link #onSetup()} are logged at the INFO level by {@link SetUpMetricsLogger}.
+     * Default: false.
+     * @see #addSetUpListener(ISetUpListener)
+     */
+    public static final String LOG_SET_UP_METRICS_PROPERTY = "dbunit-express.logSetUpMetrics";
+
+    /**
+     * Property for {@link #CUSTOM_CONFIG_FILE}: the path, without the extension,
+     * of the report of the time each test spends in the database written at
+     * JVM exit into &lt;path&gt;.json and &lt;path&gt;.txt, e.g.
+     * target/dbunit-express-costs. Default: none, no report.
+     * @see DatabaseCostCollector
+     */
+    public static final String COST_REPORT_PROPERTY = "dbunit-express.costReport";
+
+    /**
+     * Property for {@link #CUSTOM_CONFIG_FILE}: the max. time in ms a test may
+     * spend in the database, otherwise it fails; the property suffixed with
+     * ".&lt;test class&gt;" or ".&lt;test class&gt;#&lt;method&gt;" sets the budget
+     * of the class' tests or of the one test. Only tests using {@link EmbeddedDbTesterRule}
+     * or {@link AbstractEmbeddedDbTestCase} are checked. Default: none.
+     * @see DatabaseCostCollector
+     */
+    public static final String COST_BUDGET_PROPERTY = "dbunit-express.costBudgetMillis";
+
+    /**
+     * Property for {@link #CUSTOM_CONFIG_FILE} enabling the detection of N+1
+     * queries executed by the code under test via {@link #getDataSource()} or
+     * {@link #getSqlConnection()}: a query executed with at least this many
+     * different values is reported by {@link EmbeddedDbTesterRule} after the
+     * test, see {@link #FAIL_ON_N_PLUS_ONE_PROPERTY}. Default: none, disabled.
+     * @see NPlusOneDetector
+     * @see #assertNoNPlusOneQueries(int)
+     */
+    public static final String N_PLUS_ONE_THRESHOLD_PROPERTY = "dbunit-express.nPlusOneThreshold";
+
+    /**
+     * Property for {@link #CUSTOM_CONFIG_FILE}: if true then the N+1 queries
+     * detected per {@link #N_PLUS_ONE_THRESHOLD_PROPERTY} fail the test,
+     * otherwise they are logged as a warning. Default: false.
+     */
+    public static final String FAIL_ON_N_PLUS_ONE_PROPERTY = "dbunit-express.failOnNPlusOne";
+
     private String customConfigFile = CUSTOM_CONFIG_FILE;
 
     private Properties connectionProps;	// NOPMD
@@ -223,8 +425,73 @@ public class EmbeddedDbTester implements IDatabaseTester {
 
 	private IExceptionInterpreter exceptionInterpreter;
 
+    private boolean rollbackIsolation;
+
+    private int setUpParallelism;
+
+    /** Null if the bulk import isn't enabled via the properties. */
+    private final BulkImportOperation bulkImportOperation;
+
+    /** Null if batching is disabled. */
+    private final BatchingStatementFactory batchingStatementFactory;
+
     private final boolean autoInitializeDb;
-    private static boolean autoInitializeDbDone = false;
+
+    /**
+     * Results of looking up config files on the classpath, i.e.
+     * Map&lt;String file name, class loader and callers, URL or String failure message&gt;.
+     * The map is never modified, only replaced by an updated copy, so that it
+     * can be read without locking.
+     */
+    private static volatile Map classpathLookups = Collections.EMPTY_MAP;
+    private static final Object classpathLookupsLock = new Object();
+
+    /** Map&lt;String connection configuration, ConnectionPool&gt; shared by all testers. */
+    private static final Map connectionPools = new HashMap();
+
+    /** Null unless each thread uses its own database, see {@link #PER_THREAD_DATABASE_PROPERTY}. */
+    private final String perThreadDatabaseName;
+
+    private static int perThreadDatabaseCount = 0;
+
+    /** The number of the current thread's database. */
+    private static final ThreadLocal perThreadDatabaseNumber = new ThreadLocal() {
+    	protected Object initialValue() {
+    		synchronized (EmbeddedDbTester.class) {
+    			return new Integer(++perThreadDatabaseCount);
+    		}
+    	}
+    };
+
+    /** URLs of the per-thread databases created already. */
+    private static final Set createdPerThreadDatabases = Collections.synchronizedSet(new HashSet());
+
+    private final boolean perThreadSchemas;
+
+    /** Renames the schemas to those of the thread; set together with the tester if {@link #perThreadSchemas}. */
+    private transient SchemaRenamer schemaRenamer;
+
+    /** Map&lt;String db URL|schema suffix, SchemaRenamer&gt; of the schema copies created already. */
+    private static final Map workerSchemaRenamers = new HashMap();
+
+    /** List&lt;ISetUpListener&gt; */
+    private final List setUpListeners = new ArrayList();
+
+    /** How long it took to load the configuration, reported by the first set up; -1 afterwards. */
+    private long configLoadMillis;
+
+    /** How long the last setDataSet(String) took, reported by the next set up; -1 afterwards. */
+    private long dataSetLoadMillis = -1;
+
+    private SetUpMetrics lastSetUpMetrics;
+
+    /** Measures the connection phase and passes the events on to the user's listener. */
+    private final SetUpTimingListener setUpTimingListener = new SetUpTimingListener();
+
+    /** Null unless enabled via {@link #N_PLUS_ONE_THRESHOLD_PROPERTY}. */
+    private final NPlusOneDetector nPlusOneDetector;
+
+    private final boolean failOnNPlusOne;
 
     /**
      * Create an instance reading DB connection and other properties from the given file instead of the default one.
@@ -241,14 +508,112 @@ public class EmbeddedDbTester implements IDatabaseTester {
             this.customConfigFile = configProperties;
         }
 
+        final long configLoadStart = System.currentTimeMillis();
+        connectionProps = loadConnectionConfig();
+        configLoadMillis = System.currentTimeMillis() - configLoadStart;
+        exceptionInterpreter = ExceptionInterpreterFactory.getDefaultInterpreter();
+
+        autoInitializeDb = Boolean.valueOf(connectionProps.getProperty("dbunit-express.autoInitializeDb", "false"));
+
+        perThreadDatabaseName = connectionProps.getProperty(PER_THREAD_DATABASE_PROPERTY);
+        if (perThreadDatabaseName != null && connectionProps.remove(
+        		PropertiesBasedJdbcDatabaseTester.DBUNIT_CONNECTION_URL) != null) {
+        	LOG.info("The configured connection URL is ignored because each thread uses its own database");
+        }
+
+        perThreadSchemas = Boolean.valueOf(connectionProps.getProperty(PER_THREAD_SCHEMAS_PROPERTY, "false"));
+
+        rollbackIsolation = Boolean.valueOf(connectionProps.getProperty(ROLLBACK_ISOLATION_PROPERTY, "false"));
+
+        setUpParallelism = parseIntProperty(SET_UP_PARALLELISM_PROPERTY
+        		, connectionProps.getProperty(SET_UP_PARALLELISM_PROPERTY, "1"));
+
+        final String bulkImportThreshold = connectionProps.getProperty(BULK_IMPORT_THRESHOLD_PROPERTY);
+        bulkImportOperation = (bulkImportThreshold == null)? null
+        		: new BulkImportOperation(parseIntProperty(BULK_IMPORT_THRESHOLD_PROPERTY, bulkImportThreshold));
+
+        final String setUpOperationName = connectionProps.getProperty(SET_UP_OPERATION_PROPERTY);
+        if (setUpOperationName != null) {
+            setUpOperation = DatabaseOperationFactory.getOperation(setUpOperationName);
+        } else if (bulkImportOperation != null) {
+            setUpOperation = bulkImportOperation;
+        }
+
+        batchingStatementFactory = createBatchingStatementFactory(
+        		connectionProps.getProperty(BATCH_SIZE_PROPERTY, "auto").trim());
+
+        final String dataSetCacheSize = connectionProps.getProperty(DATA_SET_CACHE_SIZE_PROPERTY);
+        if (dataSetCacheSize != null) {
+            DataSetCache.getSharedInstance().setMaxSize(parseIntProperty(DATA_SET_CACHE_SIZE_PROPERTY, dataSetCacheSize));
+        }
+
+        if (Boolean.valueOf(connectionProps.getProperty(LOG_SET_UP_METRICS_PROPERTY, "false"))) {
+            addSetUpListener(new SetUpMetricsLogger());
+        }
+
+        configureCostCollector(DatabaseCostCollector.getSharedInstance());
+
+        final String nPlusOneThreshold = connectionProps.getProperty(N_PLUS_ONE_THRESHOLD_PROPERTY);
+        nPlusOneDetector = (nPlusOneThreshold == null)? null
+        		: new NPlusOneDetector(parseIntProperty(N_PLUS_ONE_THRESHOLD_PROPERTY, nPlusOneThreshold));
+        failOnNPlusOne = Boolean.valueOf(connectionProps.getProperty(FAIL_ON_N_PLUS_ONE_PROPERTY, "false"));
+
         if (xmlFileName != null) {
             setDataSet(xmlFileName);
         }
+    }
 
-        connectionProps = loadConnectionConfig();
-        exceptionInterpreter = ExceptionInterpreterFactory.getDefaultInterpreter();
+    private void configureCostCollector(final DatabaseCostCollector costCollector) {
+    	final String costReport = connectionProps.getProperty(COST_REPORT_PROPERTY);
+    	if (costReport != null) {
+    		costCollector.writeReportAtExit(costReport.trim());
+    	}
 
-        autoInitializeDb = Boolean.valueOf(connectionProps.getProperty("dbunit-express.autoInitializeDb", "false"));
+    	for (final Iterator iterator = connectionProps.keySet().iterator(); iterator.hasNext();) {
+    		final String property = (String) iterator.next();
+    		if (property.equals(COST_BUDGET_PROPERTY)) {
+    			costCollector.setBudget(null, parseLongProperty(property, connectionProps.getProperty(property)));
+    		} else if (property.startsWith(COST_BUDGET_PROPERTY + ".")) {
+    			costCollector.setBudget(property.substring(COST_BUDGET_PROPERTY.length() + 1)
+    					, parseLongProperty(property, connectionProps.getProperty(property)));
+    		}
+    	}
+    }
+
+    private static BatchingStatementFactory createBatchingStatementFactory(final String batchSize) {
+    	if ("auto".equalsIgnoreCase(batchSize)) {
+    		return new BatchingStatementFactory(BatchSizeTuner.getSharedInstance());
+    	}
+
+    	final int fixedBatchSize = parseIntProperty(BATCH_SIZE_PROPERTY, batchSize);
+    	if (fixedBatchSize == 0) {
+    		return null;
+    	}
+    	return new BatchingStatementFactory(new BatchSizeTuner(fixedBatchSize));
+    }
+
+    /**
+     * @param property (required) the name of the property, for the error message
+     * @param value (required) the value to parse
+     * @throws IllegalArgumentException naming the property if the value isn't an integer
+     */
+    private static int parseIntProperty(final String property, final String value) throws IllegalArgumentException {
+    	try {
+    		return Integer.parseInt(value.trim());
+    	} catch (NumberFormatException e) {
+    		throw new IllegalArgumentException("The property '" + property +
+    				"' must be an integer, is: '" + value + "'");
+    	}
+    }
+
+    /** @see #parseIntProperty(String, String) */
+    private static long parseLongProperty(final String property, final String value) throws IllegalArgumentException {
+    	try {
+    		return Long.parseLong(value.trim());
+    	} catch (NumberFormatException e) {
+    		throw new IllegalArgumentException("The property '" + property +
+    				"' must be an integer, is: '" + value + "'");
+    	}
     }
 
     /**
@@ -330,6 +695,16 @@ public class EmbeddedDbTester implements IDatabaseTester {
 		return (String) connectionProps.setProperty(key, value);
 	}
 
+	/**
+	 * Returns a new tester with the same configuration, whose connection
+	 * properties may be modified without affecting this one.
+	 */
+	final EmbeddedDbTester createCopy() {
+		final EmbeddedDbTester copy = new EmbeddedDbTester(customConfigFile, null);
+		copy.connectionProps = (Properties) connectionProps.clone();
+		return copy;
+	}
+
 	/**
 	 * Returns the value of the given connection property that would be used
 	 * when creating a new database tester via {@link #createAndInitDatabaseTester()}.
@@ -349,7 +724,8 @@ public class EmbeddedDbTester implements IDatabaseTester {
 			if (PropertiesBasedJdbcDatabaseTester.DBUNIT_DRIVER_CLASS.equals(key)) {
 				value = DEFAULT_JDBC_DRIVER;
 			} else if (PropertiesBasedJdbcDatabaseTester.DBUNIT_CONNECTION_URL.equals(key)) {
-				value = DEFAULT_JDBC_URL;
+				value = (perThreadDatabaseName == null)? DEFAULT_JDBC_URL
+						: getPerThreadDatabaseUrl(perThreadDatabaseName);
 			} else if (PropertiesBasedJdbcDatabaseTester.DBUNIT_USERNAME.equals(key)) {
 				value = DEFAULT_JDBC_USERNAME;
 			} else if (PropertiesBasedJdbcDatabaseTester.DBUNIT_PASSWORD.equals(key)) {
@@ -376,6 +752,94 @@ public class EmbeddedDbTester implements IDatabaseTester {
      * constants like {@link #DEFAULT_JDBC_URL} if the methods return null.
      */
 	protected final IEnhancedDatabaseTester createAndInitDatabaseTester() {
+		final IEnhancedDatabaseTester enhancedTester =
+			new EnhancedDatabaseTesterDecorator(createActualDatabaseTester());
+		if (bulkImportOperation != null) {
+			enhancedTester.setReplaceOperation(bulkImportOperation);
+		}
+		return enhancedTester;
+	} /* createDatabaseTester */
+
+	/**
+	 * Returns the URL of the in-memory database of the current thread.
+	 * @param name (required) the name shared by the databases of all threads
+	 * @see #PER_THREAD_DATABASE_PROPERTY
+	 * @since 1.3.1
+	 */
+	public static String getPerThreadDatabaseUrl(final String name) {
+		return "jdbc:derby:memory:" + name + "-" + perThreadDatabaseNumber.get();
+	}
+
+	/**
+	 * Create the current thread's database unless created already.
+	 * @see #PER_THREAD_DATABASE_PROPERTY
+	 */
+	private void createPerThreadDatabase() {
+		final String url = getPerThreadDatabaseUrl(perThreadDatabaseName);
+		if (createdPerThreadDatabases.contains(url)) {
+			return;
+		}
+
+		LOG.info("createPerThreadDatabase: Going to create the database " + url + " of the current thread...");
+		try {
+			// A copy because the creator modifies its URL
+			final EmbeddedDbTester creatorTester = createCopy();
+			creatorTester.setConnectionProperty(PropertiesBasedJdbcDatabaseTester.DBUNIT_CONNECTION_URL, url);
+			new DatabaseCreator(creatorTester).doCreateAndInitializeTestDb();
+		} catch (Exception e) {
+			throw new DatabaseUnitRuntimeException("Failed to create the per-thread database " + url, e);
+		}
+		createdPerThreadDatabases.add(url);
+	}
+
+	/**
+	 * Returns the renamer of the current thread's schemas, creating the schemas
+	 * unless created already.
+	 * @see #PER_THREAD_SCHEMAS_PROPERTY
+	 */
+	private SchemaRenamer createWorkerSchemas() {
+		final String suffix = "_W" + perThreadDatabaseNumber.get();
+		final String key = resolveConnectionProperty(PropertiesBasedJdbcDatabaseTester.DBUNIT_CONNECTION_URL) +
+			"|" + suffix;
+		synchronized (workerSchemaRenamers) {
+			SchemaRenamer renamer = (SchemaRenamer) workerSchemaRenamers.get(key);
+			if (renamer == null) {
+				try {
+					// A copy because the creator modifies its URL
+					renamer = new DatabaseCreator(createCopy()).doCreateRenamedSchemas(suffix);
+				} catch (Exception e) {
+					throw new DatabaseUnitRuntimeException("Failed to create the schemas with the suffix " +
+							suffix, e);
+				}
+				workerSchemaRenamers.put(key, renamer);
+			}
+			return renamer;
+		}
+	}
+
+	/**
+	 * Returns the name of the given schema as used by this tester, i.e. the
+	 * name of the current thread's copy of the schema if the per-thread
+	 * schemas are enabled, otherwise the schema itself.
+	 * @param schema (required) a schema defined in the DDL, in any case
+	 * @see #PER_THREAD_SCHEMAS_PROPERTY
+	 * @since 1.3.1
+	 */
+	public String getWorkerSchemaName(final String schema) {
+		getWrappedTester();
+		return (schemaRenamer == null)? schema : schemaRenamer.renameSchema(schema);
+	}
+
+	/** @see #createAndInitDatabaseTester() */
+	private IDatabaseTester createActualDatabaseTester() {
+		// DbUnit's tester reads the connection properties from the system ones,
+		// which must not be changed by another thread in the meantime
+		synchronized (EmbeddedDbTester.class) {
+			return createActualDatabaseTesterFromSystemProperties();
+		}
+	}
+
+	private IDatabaseTester createActualDatabaseTesterFromSystemProperties() {
 
         final String driverClassName = resolveConnectionProperty(
         		PropertiesBasedJdbcDatabaseTester.DBUNIT_DRIVER_CLASS);
@@ -400,35 +864,44 @@ public class EmbeddedDbTester implements IDatabaseTester {
 					driverClassName + "' cannot be found.");
 		}
 
-		IDatabaseTester actualTester;
 		try {
-			actualTester = new QualifiedNamesPropertiesTester(exceptionInterpreter);
+			return new QualifiedNamesPropertiesTester(exceptionInterpreter, batchingStatementFactory
+					, getConnectionPool());
 		} catch (Exception e) {
 			throw new RuntimeException("Error in constructor", e);
 		}
-
-		return new EnhancedDatabaseTesterDecorator(actualTester);
-	} /* createDatabaseTester */
+	}
 
 	/**
 	 * A DatabaseTester that expects table names to be fully qualified, i.e.
 	 * including a schema name. This makes it possible to use tables from
 	 * different schemas in the same test.
+	 * It also loads data in JDBC batches unless the statement factory is null
+	 * and takes the connections from the pool unless it is null.
 	 */
 	private static final class QualifiedNamesPropertiesTester extends
 			PropertiesBasedJdbcDatabaseTester {
 
 		private final IExceptionInterpreter exceptionInterpreter;
+		private final IStatementFactory statementFactory;
+		private final ConnectionPool connectionPool;
 
-		public QualifiedNamesPropertiesTester(final IExceptionInterpreter exceptionInterpreter) throws Exception {
+		public QualifiedNamesPropertiesTester(final IExceptionInterpreter exceptionInterpreter
+				, final IStatementFactory statementFactory, final ConnectionPool connectionPool) throws Exception {
 			super();
 			this.exceptionInterpreter = exceptionInterpreter;
+			this.statementFactory = statementFactory;
+			this.connectionPool = connectionPool;
 		}
 
 		public IDatabaseConnection getConnection() throws Exception { // NOPMD
 			try {
+				if (connectionPool != null) {
+					// Configured once for each physical connection
+					return connectionPool.getConnection();
+				}
 		        final IDatabaseConnection conn = super.getConnection();
-		        conn.getConfig().setProperty(DatabaseConfig.FEATURE_QUALIFIED_TABLE_NAMES, Boolean.TRUE);
+		        configureConnection(conn, statementFactory);
 		        return conn;
 			} catch (SQLException e) {
 
@@ -444,24 +917,147 @@ public class EmbeddedDbTester implements IDatabaseTester {
 
 	} /* class QualifiedNamesPropertiesTester */
 
+	private static void configureConnection(final IDatabaseConnection conn, final IStatementFactory statementFactory) {
+        conn.getConfig().setProperty(DatabaseConfig.FEATURE_QUALIFIED_TABLE_NAMES, Boolean.TRUE);
+        if (statementFactory != null) {
+        	conn.getConfig().setProperty(DatabaseConfig.FEATURE_BATCHED_STATEMENTS, Boolean.TRUE);
+        	conn.getConfig().setProperty(DatabaseConfig.PROPERTY_STATEMENT_FACTORY, statementFactory);
+        }
+	}
+
+	/**
+	 * Returns the JVM-wide pool of connections for this tester's connection
+	 * configuration, e.g. to check its statistics.
+	 * The pool settings (size, idle timeout, validation query) are applied when
+	 * the pool is created; testers with other settings get the same pool
+	 * unchanged and a warning is logged.
+	 * @return the pool or null if pooling is disabled
+	 * @throws IllegalArgumentException if a pool setting isn't a valid number
+	 * @see #CONNECTION_POOL_SIZE_PROPERTY
+	 * @since 1.3.1
+	 */
+	public final ConnectionPool getConnectionPool() throws IllegalArgumentException {
+		final int poolSize = parseIntProperty(CONNECTION_POOL_SIZE_PROPERTY, connectionProps.getProperty(
+				CONNECTION_POOL_SIZE_PROPERTY, String.valueOf(ConnectionPool.DEFAULT_MAX_IDLE)));
+		if (poolSize == 0) {
+			return null;
+		}
+		final long idleTimeoutMillis = 1000 * parseLongProperty(CONNECTION_POOL_IDLE_TIMEOUT_PROPERTY
+				, connectionProps.getProperty(CONNECTION_POOL_IDLE_TIMEOUT_PROPERTY, "60"));
+		final String validationQuery = connectionProps.getProperty(CONNECTION_VALIDATION_QUERY_PROPERTY);
+
+		final String url = resolveConnectionProperty(PropertiesBasedJdbcDatabaseTester.DBUNIT_CONNECTION_URL);
+		final String username = resolveConnectionProperty(PropertiesBasedJdbcDatabaseTester.DBUNIT_USERNAME);
+		final String password = resolveConnectionProperty(PropertiesBasedJdbcDatabaseTester.DBUNIT_PASSWORD);
+		// The connections are configured when created => different settings need a different pool.
+		// Different passwords need one too, the key holds only a digest of the password.
+		final String key = url + "|" + username + "|" + digest(password) + "|" +
+			((batchingStatementFactory == null)? "0" : connectionProps.getProperty(BATCH_SIZE_PROPERTY, "auto").trim());
+
+		synchronized (connectionPools) {
+			ConnectionPool pool = (ConnectionPool) connectionPools.get(key);
+			if (pool == null) {
+				final IStatementFactory statementFactory = batchingStatementFactory;
+				pool = new ConnectionPool(url, username, password, poolSize) {
+					protected void initConnection(final IDatabaseConnection connection) {
+						configureConnection(connection, statementFactory);
+					}
+				};
+				pool.setIdleTimeoutMillis(idleTimeoutMillis);
+				pool.setValidationQuery(validationQuery);
+				connectionPools.put(key, pool);
+			} else if (pool.getMaxIdle() != poolSize || pool.getIdleTimeoutMillis() != idleTimeoutMillis
+					|| !String.valueOf(validationQuery).equals(String.valueOf(pool.getValidationQuery()))) {
+				LOG.warn("getConnectionPool: The shared pool for " + url + " keeps its settings (size " +
+						pool.getMaxIdle() + ", idle timeout " + pool.getIdleTimeoutMillis() + " ms, validation query " +
+						pool.getValidationQuery() + "), ignoring the conflicting settings of this tester (size " +
+						poolSize + ", idle timeout " + idleTimeoutMillis + " ms, validation query " +
+						validationQuery + ")");
+			}
+			return pool;
+		}
+	}
+
+	/** Returns the hex SHA-256 digest of the value or "" if null. */
+	private static String digest(final String value) {
+		if (value == null) {
+			return "";
+		}
+		try {
+			final byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes("UTF-8"));
+			final StringBuffer hex = new StringBuffer(2 * digest.length);
+			for (int i = 0; i < digest.length; i++) {
+				hex.append(Integer.toHexString((digest[i] & 0xff) | 0x100).substring(1));
+			}
+			return hex.toString();
+		} catch (Exception e) {
+			throw new DatabaseUnitRuntimeException("Failed to compute the SHA-256 digest", e);	// shouldn't happen...
+		}
+	}
+
 	/**
 	 * Get the internally used tester implementation instance, if it is not
 	 * set yet it will be created first.
 	 * @see #createAndInitDatabaseTester
+	 * @see #setRollbackIsolation(boolean)
 	 */
 	protected final IEnhancedDatabaseTester getWrappedTester() {
 		if (tester == null) {
-			tester = createAndInitDatabaseTester();
+			if (perThreadDatabaseName != null) {
+				createPerThreadDatabase();
+			}
+			if (perThreadSchemas) {
+				schemaRenamer = createWorkerSchemas();
+			}
+			if (rollbackIsolation) {
+				tester = new EnhancedDatabaseTesterDecorator(
+						new RollbackDatabaseTester(createActualDatabaseTester()));
+			} else {
+				tester = createAndInitDatabaseTester();
+			}
+			tester.setOperationListener(setUpTimingListener);
 		}
 		return tester;
 	}
 
+	/**
+	 * Enable or disable the transaction rollback isolation: the data set is
+	 * loaded only by the first {@link #onSetup()} of this tester, afterwards each
+	 * test runs in a transaction on a single shared connection that
+	 * {@link #onTearDown()} (or the next onSetup) rolls back. This is much faster
+	 * than re-loading the data but the code under test may not rely on committing
+	 * its changes - commit() and close() on the connections are ignored.
+	 * All the connections and data sources obtained from this tester are the
+	 * same, shared connection.
+	 * <p>
+	 * Must be set before the first use of the tester; it can also be enabled by
+	 * the property {@link #ROLLBACK_ISOLATION_PROPERTY}. It cannot be combined
+	 * with {@link #setStreamedDataSet(String) streamed data sets}.
+	 *
+	 * @throws DatabaseUnitRuntimeException If enabled while a streamed data set is set
+	 * @see RollbackDatabaseTester
+	 * @since 1.3.1
+	 */
+	public void setRollbackIsolation(final boolean rollbackIsolation) {
+		if (rollbackIsolation && streamingLoader != null) {
+			throw new DatabaseUnitRuntimeException("The rollback isolation is not supported with the " +
+					"streamed data set " + dataSetName + ", which would be re-loaded for each set up");
+		}
+		if (this.rollbackIsolation != rollbackIsolation) {
+			this.rollbackIsolation = rollbackIsolation;
+			this.tester = null;
+		}
+	}
+
 	/**
 	 * With this method a subclass may replace the internally used wrapper
 	 * by calling it e.g. in the constructor.
 	 */
 	protected final void setWrappedTester(final IEnhancedDatabaseTester actualTester) {
 		this.tester = actualTester;
+		if (actualTester != null) {
+			actualTester.setOperationListener(setUpTimingListener);
+		}
 	}
 
 	/**
@@ -489,18 +1085,37 @@ public class EmbeddedDbTester implements IDatabaseTester {
     /**
      * Create a data set from the given XML file stored either in the default
      * location of {@value #TEST_DATA_FOLDER} or anywhere on the classpath.
+     * <p>
+     * Parsed data sets are shared via the JVM-wide {@link DataSetCache} so
+     * the same, unchanged file is parsed only once; the data set returned is
+     * therefore read-only.
+     * <p>
+     * If there is an up-to-date binary version of the file next to it,
+     * produced by the {@link BinaryDataSetConverter}, then it is loaded
+     * instead, which is much faster than parsing the XML.
+     *
      * @param xmlFileName (required) a XML file defining DbUnit data set
      * 	either in the testData folder or anywhere on the classpath
-     * @return a new data set created from that file
+     * @return a read-only data set created from that file
      * @throws DatabaseUnitRuntimeException If the file cannot be found
      * @throws DataSetException If there is a problem with the data set format
+     *
+     * @see #DATA_SET_CACHE_SIZE_PROPERTY
+     * @see BinaryDataSet#findBinaryFile(URL)
      */
     public final IDataSet createDataSetFromFile(final String xmlFileName)
     throws DatabaseUnitRuntimeException, DataSetException {
 
-        InputStream dataSetStream = findConfigFileStream(xmlFileName);
-
-    	final XmlDataSet result = new XmlDataSet(dataSetStream);
+        final URL dataSetUrl = findConfigFile(xmlFileName);
+        final URL binaryDataSetUrl = BinaryDataSet.findBinaryFile(dataSetUrl);
+
+    	final IDataSet result;
+    	if (binaryDataSetUrl == null) {
+    		result = DataSetCache.getSharedInstance().getXmlDataSet(dataSetUrl);
+    	} else {
+    		LOG.info("createDataSetFromFile: Using the binary data set {}", binaryDataSetUrl);
+    		result = DataSetCache.getSharedInstance().getBinaryDataSet(binaryDataSetUrl);
+    	}
 
     	// Log the data set
     	if ("true".equalsIgnoreCase(System.getProperty("dbunit.embeddeddb.dumpDataSet"))) {
@@ -523,6 +1138,9 @@ public class EmbeddedDbTester implements IDatabaseTester {
      * <p>
      *     Usually used to locate a data set file.
      * </p>
+     * <p>
+     *     Classpath lookups are cached, see {@link #clearConfigFileCache()}.
+     * </p>
      * @param xmlFileName (required)
      * @return URL for the file
      * @trows DatabaseUnitRuntimeException when not found
@@ -570,19 +1188,47 @@ public class EmbeddedDbTester implements IDatabaseTester {
 
     /**
 	 * Find a data set file on the class-path or fail..
+	 * @see #findOnClasspath(String, String, List)
+	 */
+	private static URL findOnClasspath(final String xmlFileName, final String defaultPath)
+			throws DatabaseUnitRuntimeException {
+		return findOnClasspath(xmlFileName, defaultPath
+				, extractCallStackClassNames(CallStack.getClassNames()));
+	}
+
+	/**
+	 * Find a data set file in the package of one of the callers or on the
+	 * class-path or fail.
+	 * The results are cached per the file name, the context class loader and
+	 * the callers because a relative name resolves to a different file for a
+	 * caller in another package. See {@link #clearConfigFileCache()}.
 	 * @param xmlFileName (required) the file to search for
 	 * @param defaultPath (required) the location where the file was looked for
 	 * 	originally (for logging)
+	 * @param callerNames (required) names of the classes on the call stack
+	 * 	whose packages to search first
 	 * @return URL of the resource found (never null)
 	 * @throws DatabaseUnitRuntimeException If the file cannot be found or opened
 	 */
-	private static URL findOnClasspath(final String xmlFileName, final String defaultPath)
+	static URL findOnClasspath(final String xmlFileName, final String defaultPath, final List callerNames)
 			throws DatabaseUnitRuntimeException {
 
+		final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+		final String cacheKey = xmlFileName + "|" + System.identityHashCode(contextClassLoader)
+				+ "|" + callerNames;
+
+		final Object cached = classpathLookups.get(cacheKey);
+		if (cached instanceof URL) {
+			return (URL) cached;
+		} else if (cached != null) {
+			LOG.warn("findOnClasspath: " + cached + " (cached)");
+			throw new DatabaseUnitRuntimeException((String) cached);
+		}
+
 		URL dataSetOnCpUrl = null;
 
 		// Try callers' classpath
-		final List callers = extractCallStackClasses(new Exception().getStackTrace());
+		final List callers = loadClasses(callerNames, contextClassLoader);
 		for (final Iterator iterator = callers.iterator(); iterator.hasNext();) {
 			final Class clazz = (Class) iterator.next();
 			if ((dataSetOnCpUrl = clazz.getResource(xmlFileName)) != null) {
@@ -592,8 +1238,7 @@ public class EmbeddedDbTester implements IDatabaseTester {
 
 		// Try system classpath (not within a class' package)
 		if (dataSetOnCpUrl == null) {
-			dataSetOnCpUrl = Thread.currentThread().getContextClassLoader()
-				.getResource(xmlFileName);
+			dataSetOnCpUrl = contextClassLoader.getResource(xmlFileName);
 		}
 
 		if (dataSetOnCpUrl == null) {
@@ -605,49 +1250,85 @@ public class EmbeddedDbTester implements IDatabaseTester {
 				"the folder where you execute the tests from. Mavenists: " +
 				"don't forget that non-java files uch as .xml are ignored " +
 				"under /src/*/java/ and must be under src/*/resources/.";
+			cacheClasspathLookup(cacheKey, msg);
 			LOG.warn("findOnClasspath: " + msg);
 			throw new DatabaseUnitRuntimeException(msg);
 		} else {
+			cacheClasspathLookup(cacheKey, dataSetOnCpUrl);
 			return dataSetOnCpUrl;
 		}
 	}
 
+	private static void cacheClasspathLookup(final String key, final Object result) {
+		synchronized (classpathLookupsLock) {
+			final Map updated = new HashMap(classpathLookups);
+			updated.put(key, result);
+			classpathLookups = updated;
+		}
+	}
+
+	/**
+	 * Forget the cached locations of files found on the classpath and of
+	 * those not found, e.g. after a file has been added to the classpath
+	 * at runtime. Files in the {@value #TEST_DATA_FOLDER} folder are always
+	 * looked up anew.
+	 * @see #findConfigFile(String)
+	 * @since 1.3.1
+	 */
+	public static void clearConfigFileCache() {
+		synchronized (classpathLookupsLock) {
+			classpathLookups = Collections.EMPTY_MAP;
+		}
+	}
+
 	/**
-	 * Returns a list of classes in the order they're in the provided call stack.
-	 * Classes that cannot be loaded (due to class loader isolation) are skipped
-	 * and no class is added more than once.
+	 * Returns a list of the names of the classes in the order they're in the
+	 * provided call stack. No class is added more than once.
 	 * Also this class itself, java.lang.*, sun.reflect.*, and junit.framework.*
 	 * classes are skipped.
-	 * @param callStack (required) a call stack obtained e.g. via
-	 * 	<code>new {@link Exception#getStackTrace()}</code>
-	 * @return a non-null list of classes on the call stack that we can access
+	 * @param callStack (required) class names of a call stack obtained via
+	 * 	{@link CallStack#getClassNames()}
+	 * @return a non-null list of class names on the call stack
 	 */
-	private static List extractCallStackClasses(final StackTraceElement[] callStack) {
+	private static List extractCallStackClassNames(final List callStack) {
 
 		if (callStack == null) {
-			throw new IllegalArgumentException("The argument StackTraceElement[] callStack may not be null");
+			throw new IllegalArgumentException("The argument List callStack may not be null");
 		}
 
-		final List classes = new LinkedList();
+		final List classNames = new ArrayList();
+		final Set seen = new HashSet();
 
-		for (int i = 0; i < callStack.length; i++) {
-			final String clazzName = callStack[i].getClassName();
+		for (final Iterator iterator = callStack.iterator(); iterator.hasNext();) {
+			final String clazzName = (String) iterator.next();
 			if (!(
 					clazzName.startsWith(EmbeddedDbTester.class.getPackage().getName())
 					|| clazzName.startsWith("java.lang.")
 					|| clazzName.startsWith("sun.reflect.")
 					|| clazzName.startsWith("junit.framework.")
-				)) {
-				try {
-					final Class clazz = Thread.currentThread().getContextClassLoader().loadClass(clazzName);
-					if (!classes.contains(clazz)) {
-						classes.add(clazz);
-					}
-				} catch (ClassNotFoundException e) {
-					LOG.debug("extractCallStackClasses: the class '{}' on the " +
-							"call stack couldn't be accessed from here, skipping; cause: {}"
-							, clazzName, e);
-				}
+				) && seen.add(clazzName)) {
+				classNames.add(clazzName);
+			}
+		}
+
+		return classNames;
+	}
+
+	/**
+	 * Load the named classes, skipping those that cannot be loaded (due to class loader isolation).
+	 * @return a non-null list of classes that we can access, in the original order
+	 */
+	private static List loadClasses(final List classNames, final ClassLoader classLoader) {
+		final List classes = new ArrayList(classNames.size());
+
+		for (final Iterator iterator = classNames.iterator(); iterator.hasNext();) {
+			final String clazzName = (String) iterator.next();
+			try {
+				classes.add(classLoader.loadClass(clazzName));
+			} catch (ClassNotFoundException e) {
+				LOG.debug("loadClasses: the class '{}' on the " +
+						"call stack couldn't be accessed from here, skipping; cause: {}"
+						, clazzName, e);
 			}
 		}
 
@@ -675,6 +1356,78 @@ public class EmbeddedDbTester implements IDatabaseTester {
 		return getWrappedTester().getSqlConnection();
 	}
 
+	/**
+	 * Returns the record of the SQL statements executed via {@link #getDataSource()}
+	 * and {@link #getSqlConnection()} since the last {@link #onSetup()}.
+	 * A shortcut for {@link IEnhancedDatabaseTester#getSqlTrace()}.
+	 * @since 1.3.1
+	 */
+	public SqlTrace getSqlTrace() {
+		return getWrappedTester().getSqlTrace();
+	}
+
+	/**
+	 * Check the number of SQL statements executed by the code under test since
+	 * the last {@link #onSetup()}, e.g. <code>assertStatementCount(CountChecker.atMost(3))</code>.
+	 * @param expectedCount (required) usually a {@link CountChecker}
+	 * @throws AssertionFailedError listing the statements if not as expected
+	 * @see #getSqlTrace()
+	 * @since 1.3.1
+	 */
+	public void assertStatementCount(final ValueChecker expectedCount) throws AssertionFailedError {
+		getSqlTrace().assertStatementCount(expectedCount);
+	}
+
+	/**
+	 * Check the number of SQL statements of the type referring to the table
+	 * executed by the code under test since the last {@link #onSetup()}, e.g.
+	 * <code>assertStatementCount("SELECT", "my_schema.my_table", CountChecker.exactly(1))</code>.
+	 * @param type (optional) the first keyword of the SQL such as SELECT; null for any
+	 * @param tableName (optional) [schema.]table; null for any
+	 * @param expectedCount (required) usually a {@link CountChecker}
+	 * @throws AssertionFailedError listing the statements if not as expected
+	 * @see SqlTrace#getStatementCount(String, String)
+	 * @since 1.3.1
+	 */
+	public void assertStatementCount(final String type, final String tableName, final ValueChecker expectedCount)
+			throws AssertionFailedError {
+		getSqlTrace().assertStatementCount(type, tableName, expectedCount);
+	}
+
+	/**
+	 * Check that the code under test hasn't executed any N+1 queries since
+	 * the last {@link #onSetup()}, i.e. no query with threshold or more
+	 * different values.
+	 * @param threshold (&gt; 1)
+	 * @throws AssertionFailedError describing the repeated queries
+	 * @see NPlusOneDetector
+	 * @since 1.3.1
+	 */
+	public void assertNoNPlusOneQueries(final int threshold) throws AssertionFailedError {
+		new NPlusOneDetector(threshold).assertNone(getSqlTrace());
+	}
+
+	/**
+	 * Report the N+1 queries executed by the test if enabled via {@link #N_PLUS_ONE_THRESHOLD_PROPERTY}.
+	 * @param testName (required) for the report
+	 * @throws AssertionFailedError if any found and {@link #FAIL_ON_N_PLUS_ONE_PROPERTY} is set
+	 */
+	void checkNPlusOneQueries(final String testName) throws AssertionFailedError {
+		if (nPlusOneDetector == null) {
+			return;
+		}
+		final List repeated = nPlusOneDetector.detect(getSqlTrace());
+		if (repeated.isEmpty()) {
+			return;
+		}
+
+		final String report = testName + ": " + nPlusOneDetector.describe(repeated);
+		if (failOnNPlusOne) {
+			throw new AssertionFailedError(report);
+		}
+		LOG.warn(report);
+	}
+
 	/**
 	 * Create a new RowComparator for comparing results of a SQL select over
 	 * the test database with your expectations. See an example of usage in
@@ -690,7 +1443,9 @@ public class EmbeddedDbTester implements IDatabaseTester {
 	 */
 	public RowComparator createCheckerForSelect(final String sqlSelect) throws DatabaseUnitRuntimeException {
         try {
-            return new RowComparator(getWrappedTester(), sqlSelect);
+            final IEnhancedDatabaseTester databaseTester = getWrappedTester();
+            return new RowComparator(databaseTester
+            		, (schemaRenamer == null)? sqlSelect : schemaRenamer.rewriteSql(sqlSelect));
         } catch (SQLException e) {
             throw new DatabaseUnitRuntimeException("RowComparator creation failed for sql " + sqlSelect
                     , e);
@@ -726,33 +1481,77 @@ public class EmbeddedDbTester implements IDatabaseTester {
      * @see org.dbunit.DatabaseTestCase#setUp()
      */
     public void onSetup() throws Exception {	// NOPMD
+        final DatabaseCostCollector costCollector = DatabaseCostCollector.getSharedInstance();
+        final Object costTimer = costCollector.start();
+        try {
+            setUpDatabase();
+        } finally {
+            costCollector.stop(costTimer, DatabaseCostCollector.SET_UP);
+        }
+    }
 
-        if (autoInitializeDb && !autoInitializeDbDone) {
-            boolean dbExists;
-            try {
-                createCheckerForSelect("select * from sys.SYSSCHEMAS where SCHEMANAME='noSuchSchema'")
-                    .assertRowCount(0); // should fail because of non-exist. table if DB not initialized
-                dbExists = true;
-            } catch (Exception e) {
-                dbExists = false;
-            }
+    private void setUpDatabase() throws Exception {	// NOPMD
+
+        final Object jfrEvent = FlightRecorderEvent.SET_UP.begin();
+        final long setUpStart = System.currentTimeMillis();
+        final SetUpMetrics metrics = (setUpListeners.isEmpty())? null : new SetUpMetrics();
+        if (metrics != null && configLoadMillis >= 0) {
+            metrics.addPhase(SetUpMetrics.CONFIG_LOAD, configLoadMillis);
+        }
+        configLoadMillis = -1;
+        if (metrics != null && dataSetLoadMillis >= 0) {
+            metrics.addPhase(SetUpMetrics.DATA_SET, dataSetLoadMillis);
+        }
+        dataSetLoadMillis = -1;
+        MetadataSnapshot.checkForChangesOnNextUse();
 
-            if (!dbExists) {
-                LOG.info("Going to automatically create the test database ...");
-                DatabaseCreator.createAndInitializeTestDb();
+        if (autoInitializeDb && perThreadDatabaseName == null && !perThreadSchemas) {
+            DatabaseCreator.initializeTestDbOnce(this);
+            if (metrics != null) {
+                metrics.addPhase(SetUpMetrics.DB_INITIALIZATION, System.currentTimeMillis() - setUpStart);
             }
-            
-            autoInitializeDbDone = true;
         }
 
 
+        if (streamingLoader != null && !StreamingXmlDataSetLoader.isSupported(setUpOperation)) {
+            throw new IllegalArgumentException("The set up operation " + setUpOperation +
+                    " isn't supported with the streamed data set " + dataSetName +
+                    "; use CLEAN_INSERT, INSERT, UPDATE, or REFRESH");
+        }
+
         try {
             final IDatabaseTester databaseTester = getWrappedTester();
             Assert.assertNotNull( "DatabaseTester is not set", databaseTester );
-            databaseTester.setSetUpOperation( setUpOperation );
-            databaseTester.setDataSet( getDataSet() );
-            databaseTester.onSetup();
+            if (streamingLoader == null) {
+                final DatabaseOperation effectiveSetUpOperation = createEffectiveSetUpOperation(databaseTester);
+                final long dataSetStart = System.currentTimeMillis();
+                databaseTester.setDataSet( (schemaRenamer == null)? getDataSet()
+                		: schemaRenamer.renameTables(getDataSet()) );
+                if (metrics == null) {
+                    databaseTester.setSetUpOperation(effectiveSetUpOperation);
+                } else {
+                    metrics.addPhase(SetUpMetrics.DATA_SET, System.currentTimeMillis() - dataSetStart);
+                    databaseTester.setSetUpOperation(new MeasuredOperation(effectiveSetUpOperation, metrics));
+                    setUpTimingListener.startTiming(metrics);
+                }
+                try {
+                    databaseTester.onSetup();
+                } finally {
+                    setUpTimingListener.stopTiming();
+                }
+            } else {
+                final long loadStart = System.currentTimeMillis();
+                streamingLoader.load(databaseTester, setUpOperation);
+                if (metrics != null) {
+                    metrics.addPhase(SetUpMetrics.LOAD, System.currentTimeMillis() - loadStart);
+                }
+            }
         } catch (NoSuchTableException e) {
+            if (autoInitializeDb) {
+                // Perhaps the DB has been deleted since marked as initialized
+                DatabaseCreator.forgetInitialization(resolveConnectionProperty(
+                        PropertiesBasedJdbcDatabaseTester.DBUNIT_CONNECTION_URL));
+            }
             String currentDir = System.getProperty("user.dir");
             throw new DatabaseUnitException("No such table exception - " +
             		"have you created & initialized the embedded DB? " +
@@ -779,26 +1578,100 @@ public class EmbeddedDbTester implements IDatabaseTester {
         				, e);
         	}
         }
+
+        getWrappedTester().getSqlTrace().reset();	// only the test's statements are of interest
+
+        if (FlightRecorderEvent.SET_UP.shouldCommit(jfrEvent)) {
+            FlightRecorderEvent.SET_UP.commit(jfrEvent, describeDataSetForEvent());
+        }
+        if (metrics != null) {
+            metrics.setTotalMillis(System.currentTimeMillis() - setUpStart);
+            lastSetUpMetrics = metrics;
+            for (final Iterator iterator = setUpListeners.iterator(); iterator.hasNext();) {
+                ((ISetUpListener) iterator.next()).setUpFinished(metrics);
+            }
+        }
+	}
+
+	/** Returns the values of the fields of the {@link FlightRecorderEvent#SET_UP} event. */
+	private Object[] describeDataSetForEvent() throws DataSetException {
+		if (streamingLoader != null) {
+			return new Object[] {dataSetName, new Integer(-1), new Integer(-1)};
+		}
+
+		final IDataSet dataSet = getDataSet();
+		final ITable[] tables = dataSet.getTables();
+		int rowCount = 0;
+		for (int i = 0; i < tables.length; i++) {
+			rowCount += tables[i].getRowCount();
+		}
+		return new Object[] {(dataSetName == null)? dataSet.getClass().getName() : dataSetName
+				, new Integer(tables.length), new Integer(rowCount)};
+	}
+
+	/**
+	 * Register a listener to be notified with the timings of each following
+	 * successful {@link #onSetup()}, to find out where the set up time goes.
+	 * The timings are only collected when there is a listener.
+	 * @param listener (required)
+	 * @see #LOG_SET_UP_METRICS_PROPERTY
+	 * @see #getLastSetUpMetrics()
+	 * @since 1.3.1
+	 */
+	public void addSetUpListener(final ISetUpListener listener) {
+		if (listener == null) {
+			throw new IllegalArgumentException("The argument listener may not be null");
+		}
+		setUpListeners.add(listener);
 	}
 
 	/**
-     * As of now this method doesn't do anything and so you can ignore it.
+	 * Returns the timings of the last successful {@link #onSetup()} or null
+	 * if there has been none since a listener was registered.
+	 * @see #addSetUpListener(ISetUpListener)
+	 * @since 1.3.1
+	 */
+	public SetUpMetrics getLastSetUpMetrics() {
+		return lastSetUpMetrics;
+	}
+
+	/**
+     * As of now this method doesn't do anything and so you can ignore it
+     * - unless you use {@link #setRollbackIsolation(boolean) the rollback isolation},
+     * where it rolls back the changes done by the test.
 	 */
 	public void onTearDown() throws Exception {	// NOPMD
-		getWrappedTester().setTearDownOperation(tearDownOperation);
-		getWrappedTester().onTearDown();
+		final DatabaseCostCollector costCollector = DatabaseCostCollector.getSharedInstance();
+		final Object costTimer = costCollector.start();
+		try {
+			getWrappedTester().setTearDownOperation(tearDownOperation);
+			getWrappedTester().onTearDown();
+		} finally {
+			costCollector.stop(costTimer, DatabaseCostCollector.TEAR_DOWN);
+		}
 	}
 
 	/**
 	 * Get the test data set used for (re-)initializing the test DB.
 	 * If none has been set via {@link #setDataSet(IDataSet)} then a default
 	 * D.S. is created.
+	 * <p>
+	 * In the {@link #setStreamedDataSet(String) streaming mode} the file is read
+	 * fully into memory each time (and not cached) so avoid it for huge data sets.
 	 * @return the testDataSet
 	 *
 	 * @see IDatabaseTester#getDataSet()
 	 * @throws DatabaseUnitRuntimeException Failure creating the data set
 	 */
 	public IDataSet getDataSet() throws DatabaseUnitRuntimeException {
+		if (streamingLoader != null) {
+			try {
+				return streamingLoader.readFully();
+			} catch (DataSetException e) {
+				throw new DatabaseUnitRuntimeException(
+						"Failed to read the streamed data set " + dataSetName, e);
+			}
+		}
 		if (testDataSet == null) {
 			try {
 				testDataSet = createDefaultDataSet();
@@ -825,6 +1698,8 @@ public class EmbeddedDbTester implements IDatabaseTester {
 					+ DbUnitUtils.describe(testDataSet));
 		}
 		this.testDataSet = testDataSet;
+		this.streamingLoader = null;
+		this.dataSetName = null;
 	}
 
 	/**
@@ -847,8 +1722,11 @@ public class EmbeddedDbTester implements IDatabaseTester {
 	 */
 	final public void setDataSet(final String xmlFileName) throws DatabaseUnitRuntimeException {
 		try {
+			final long loadStart = System.currentTimeMillis();
 			setDataSet(
 					createDataSetFromFile(xmlFileName));
+			this.dataSetName = xmlFileName;
+			this.dataSetLoadMillis = System.currentTimeMillis() - loadStart;
 		} catch (DataSetException e) {
 			throw new DatabaseUnitRuntimeException("Failed to create a " +
 					"data set from the file '" +  xmlFileName +
@@ -857,6 +1735,42 @@ public class EmbeddedDbTester implements IDatabaseTester {
 		}
 	}
 
+	/**
+	 * Load the data from the given file in the streaming mode: the rows are
+	 * read from the XML and inserted into the database one by one so that the
+	 * memory consumption stays the same no matter how large the file is. Use it
+	 * for huge data sets, for normal ones {@link #setDataSet(String)} is faster
+	 * because it parses the file only once.
+	 * <p>
+	 * The data set must be in the {@link XmlDataSet} format and the set up
+	 * operation must be either the default CLEAN_INSERT, which is executed in two
+	 * passes over the file, or one that only needs a single forward pass over the
+	 * data such as INSERT, UPDATE, or REFRESH. Setting another data set via one of
+	 * the setDataSet methods ends the streaming mode. Other operations are rejected
+	 * with an IllegalArgumentException during {@link #onSetup()}.
+	 *
+	 * @param xmlFileName (required) a XML file defining DbUnit data set
+	 * 	either in the testData folder or anywhere on the classpath
+	 * @throws DatabaseUnitRuntimeException If the file cannot be found
+	 * 	or the per-thread schemas or the rollback isolation are enabled
+	 *
+	 * @see StreamingXmlDataSetLoader
+	 * @since 1.3.1
+	 */
+	final public void setStreamedDataSet(final String xmlFileName) throws DatabaseUnitRuntimeException {
+		if (perThreadSchemas) {
+			throw new DatabaseUnitRuntimeException("Streamed data sets are not supported with " +
+					PER_THREAD_SCHEMAS_PROPERTY + " because their table names cannot be rewritten");
+		}
+		if (rollbackIsolation) {
+			throw new DatabaseUnitRuntimeException("Streamed data sets are not supported with the rollback " +
+					"isolation because a new data set is streamed for each set up and thus always re-loaded");
+		}
+		this.streamingLoader = new StreamingXmlDataSetLoader(findConfigFile(xmlFileName));
+		this.testDataSet = null;
+		this.dataSetName = xmlFileName;
+	}
+
 	/**
 	 * This method is meaningless for this particular tester and thus throws
 	 * an exception. Notice that if necessary you may still use unqualified names,
@@ -880,12 +1794,45 @@ public class EmbeddedDbTester implements IDatabaseTester {
 	/**
 	 * Normally you shouldn't need this.
 	 * {@inheritDoc}
+	 * <p>
+	 * For large data sets you may want to try the {@link SnapshotRestoreOperation}
+	 * or the {@link DirtyTablesRefreshOperation}, which reloads only the modified tables,
+	 * or the {@link UndoLogResetOperation}, which undoes only the modified rows.
+	 * If consecutive tests use nearly identical data sets then the
+	 * {@link SmartRefreshOperation} writes only the rows that differ.
+	 * Huge tables load faster via Derby's bulk import, see {@link BulkImportOperation}.
+	 * Big tables are cleaned faster via TRUNCATE, see {@link TruncateTablesOperation#TRUNCATE_INSERT}.
 	 * @see org.dbunit.IDatabaseTester#setSetUpOperation(org.dbunit.operation.DatabaseOperation)
+	 * @see #SET_UP_OPERATION_PROPERTY
 	 */
 	public void setSetUpOperation(final DatabaseOperation setUpOperation) {
 		this.setUpOperation = setUpOperation;
 	}
 
+	/**
+	 * Set how many connections to use for loading the data set with CLEAN_INSERT:
+	 * with more than 1 the tables that don't depend on each other via foreign keys
+	 * are cleaned and inserted concurrently, see {@link ParallelLoadOperation}.
+	 * It has no effect with other set up operations, streamed data sets or
+	 * the rollback isolation, where all connections are the same.
+	 * @param setUpParallelism (&gt; 0) 1 to disable parallel loading
+	 * @see #SET_UP_PARALLELISM_PROPERTY
+	 * @since 1.3.1
+	 */
+	public void setSetUpParallelism(final int setUpParallelism) {
+		if (setUpParallelism <= 0) {
+			throw new IllegalArgumentException("The parallelism must be positive, is: " + setUpParallelism);
+		}
+		this.setUpParallelism = setUpParallelism;
+	}
+
+	private DatabaseOperation createEffectiveSetUpOperation(final IDatabaseTester databaseTester) {
+		if (setUpParallelism > 1 && setUpOperation == DatabaseOperation.CLEAN_INSERT && !rollbackIsolation) {
+			return new ParallelLoadOperation(databaseTester, setUpParallelism);
+		}
+		return setUpOperation;
+	}
+
 	/**
 	 * Normally you shouldn't need this.
 	 * {@inheritDoc}
@@ -901,7 +1848,7 @@ public class EmbeddedDbTester implements IDatabaseTester {
      * @since 2.4.4
 	 */
 	public void setOperationListener(final IOperationListener operationListener) {
-		getWrappedTester().setOperationListener(operationListener);
+		setUpTimingListener.setDelegate(operationListener);
 	}
 
 	/*
@@ -1,5 +1,7 @@
 package net.jakubholy.dbunitexpress;
 
+import net.jakubholy.dbunitexpress.impl.DatabaseCostCollector;
+
 import org.dbunit.DatabaseUnitRuntimeException;
 import org.junit.rules.ExternalResource;
 import org.junit.rules.MethodRule;
@@ -40,10 +42,14 @@ public class EmbeddedDbTesterRule extends EmbeddedDbTester implements TestRule {
                 EmbeddedDbTesterRule.this.onSetup();
         };
 
-        /*@Override
+        @Override
         protected void after() {
-                myServer.disconnect();
-        };*/
+                try {
+                    EmbeddedDbTesterRule.this.onTearDown();
+                } catch (Exception e) {
+                    throw new DatabaseUnitRuntimeException("The tear down of the test database failed", e);
+                }
+        };
     }
 
     private DbInitializer initializer = new DbInitializer();
@@ -71,8 +77,28 @@ public class EmbeddedDbTesterRule extends EmbeddedDbTester implements TestRule {
         super(xmlFileName);
     }
 
-    /** Ignore - for internal use by JUnit's Rule handling. */
+    /**
+     * Ignore - for internal use by JUnit's Rule handling. Attributes the time
+     * spent in the database to the test and fails it if it exceeds its budget,
+     * see {@link DatabaseCostCollector}, and reports its N+1 queries, see
+     * {@link #N_PLUS_ONE_THRESHOLD_PROPERTY}.
+     */
     public final Statement apply(Statement statement, Description description) {
-        return initializer.apply(statement, description);
+        final Statement initializingStatement = initializer.apply(statement, description);
+        final String testName = description.getClassName() + "#" + description.getMethodName();
+        return new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                final DatabaseCostCollector costCollector = DatabaseCostCollector.getSharedInstance();
+                costCollector.startTest(testName);
+                try {
+                    initializingStatement.evaluate();
+                } finally {
+                    costCollector.setCurrentTest(null);
+                }
+                costCollector.assertWithinBudget(testName);
+                checkNPlusOneQueries(testName);
+            }
+        };
     }
 }
@@ -13,6 +13,8 @@ import java.sql.SQLException;
 
 import javax.sql.DataSource;
 
+import net.jakubholy.dbunitexpress.util.SqlTrace;
+
 import org.dbunit.DatabaseTestCase;
 import org.dbunit.DatabaseUnitRuntimeException;
 import org.dbunit.IDatabaseTester;
@@ -20,6 +22,7 @@ import org.dbunit.database.IDatabaseConnection;
 import org.dbunit.dataset.DataSetException;
 import org.dbunit.dataset.IDataSet;
 import org.dbunit.dataset.xml.XmlDataSet;
+import org.dbunit.operation.DatabaseOperation;
 
 /**
  * The actual manager of the test database with useful methods for accessing it
@@ -93,6 +96,16 @@ public interface IEnhancedDatabaseTester extends IDatabaseTester {
 	 */
 	void replaceDatabase(final IDataSet newDataSet) throws DatabaseUnitRuntimeException;
 
+	/**
+	 * Set the operation used by {@link #replaceDatabase(IDataSet)} to load the
+	 * new data. The default is CLEAN_INSERT; with nearly identical data sets
+	 * the {@link net.jakubholy.dbunitexpress.operation.SmartRefreshOperation}
+	 * is much faster.
+	 * @param replaceOperation (required)
+	 * @since 1.3.1
+	 */
+	void setReplaceOperation(final DatabaseOperation replaceOperation);
+
 	/**
 	 * Remove all data from the given test table.
 	 * This is useful e.g. if you want to verify that your code behaves correctly
@@ -104,6 +117,19 @@ public interface IEnhancedDatabaseTester extends IDatabaseTester {
 	 */
 	void clearTable(final String tableName) throws SQLException;
 
+	/**
+	 * Remove all data from the given test tables in one go, using TRUNCATE
+	 * where possible and in the order given by their foreign keys, so
+	 * they may be listed in any order.
+	 * Identity columns are reset to their start values (Derby only) - unlike
+	 * {@link #clearTable(String)}, which only deletes the rows.
+	 * @param tableNames (required) table names as for {@link #clearTable(String)}
+	 * @throws SQLException E.g. if a table that isn't being cleared references one of them
+	 * @see net.jakubholy.dbunitexpress.operation.TruncateTablesOperation
+	 * @since 1.3.1
+	 */
+	void clearTables(final String[] tableNames) throws SQLException;
+
 	/**
 	 * Returns a data source connected to the test database configured for
 	 * this DbUnit test. This is an alternative of {@link #getConnection()}
@@ -111,14 +137,19 @@ public interface IEnhancedDatabaseTester extends IDatabaseTester {
 	 * that need a DataSource instead of a Connection
 	 * (which is often the case when using Spring).
 	 * <p>
-	 * The data source uses this database tester underneath.
+	 * The data source uses this database tester underneath. Since 1.3.1 the
+	 * same instance is returned each time, it's a
+	 * {@link net.jakubholy.dbunitexpress.util.DbUnitAsDataSourceAdapter}
+	 * with statistics of the connections obtained from it, recording the
+	 * statements executed in {@link #getSqlTrace()}.
 	 *
 	 * @throws DatabaseUnitRuntimeException
 	 */
 	DataSource getDataSource() throws DatabaseUnitRuntimeException;
 
 	/**
-	 * Creates a connection to the underlying test database.
+	 * Creates a connection to the underlying test database. Since 1.3.1 the
+	 * statements executed via it are recorded in {@link #getSqlTrace()}.
 	 * @throws SQLException
 	 * @throws DatabaseUnitRuntimeException
 	 *
@@ -127,4 +158,13 @@ public interface IEnhancedDatabaseTester extends IDatabaseTester {
 	 */
 	Connection getSqlConnection() throws SQLException, DatabaseUnitRuntimeException;
 
+	/**
+	 * Returns the record of the SQL statements executed via the connections
+	 * from {@link #getDataSource()} and {@link #getSqlConnection()}, i.e.
+	 * by the code under test, to check e.g. how many queries it runs.
+	 * The operations of DbUnit itself aren't recorded.
+	 * @since 1.3.1
+	 */
+	SqlTrace getSqlTrace();
+
 }
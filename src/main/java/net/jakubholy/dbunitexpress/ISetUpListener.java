@@ -0,0 +1,26 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress;
+
+/**
+ * Notified after each successful {@link EmbeddedDbTester#onSetup()} with the
+ * timings of its phases and the tables loaded, to find out where the set up
+ * time goes.
+ *
+ * @see EmbeddedDbTester#addSetUpListener(ISetUpListener)
+ * @see net.jakubholy.dbunitexpress.impl.SetUpMetricsLogger
+ * @since 1.3.1
+ */
+public interface ISetUpListener {
+
+	/**
+	 * @param metrics (required) the timings of the set up just finished
+	 */
+	void setUpFinished(SetUpMetrics metrics);
+
+}
@@ -0,0 +1,157 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Timings of one {@link EmbeddedDbTester#onSetup()}: how long each of its
+ * phases took, in ms, and how many rows were inserted into each table how fast.
+ * A phase that didn't happen in the set up (e.g. the configuration is loaded
+ * only by the first one) is missing.
+ * <p>
+ * The clean and insert phases and the table timings are only known for the
+ * CLEAN_INSERT set up operation; any other operation is reported as the load phase
+ * and its table timings as not available, see {@link #isTablesMeasured()}.
+ *
+ * @see ISetUpListener
+ * @since 1.3.1
+ */
+public class SetUpMetrics {
+
+	/** Loading the configuration properties, when the tester is created. */
+	public static final String CONFIG_LOAD = "configLoad";
+	/** Creating the test database with autoInitializeDb, if needed. */
+	public static final String DB_INITIALIZATION = "dbInitialization";
+	/**
+	 * Resolving, reading and parsing the data set (unless cached); done by
+	 * setDataSet(String) before the set up and reported by the next one.
+	 */
+	public static final String DATA_SET = "dataSet";
+	/** Creating the DbUnit tester (once) and obtaining a connection. */
+	public static final String CONNECTION = "connection";
+	/** Deleting the rows of the data set's tables. */
+	public static final String CLEAN = "clean";
+	/** Inserting the data set's rows. */
+	public static final String INSERT = "insert";
+	/** Executing a set up operation other than CLEAN_INSERT or loading a streamed data set. */
+	public static final String LOAD = "load";
+
+	/** Map&lt;String phase, Long ms&gt; in the order of execution */
+	private final Map phases = new LinkedHashMap();
+	/** List&lt;TableLoad&gt; */
+	private final List tables = new ArrayList();
+	private long totalMillis;
+	private boolean tablesMeasured;
+
+	/** Record the duration of a phase, added to any recorded before. */
+	public synchronized void addPhase(final String phase, final long millis) {
+		phases.put(phase, new Long(getPhaseMillis(phase) + millis));
+	}
+
+	/** Record the rows inserted into a table. */
+	public synchronized void addTable(final String tableName, final int rowCount, final long millis) {
+		tables.add(new TableLoad(tableName, rowCount, millis));
+	}
+
+	/** Returns the duration of the phase in ms or 0 if it didn't happen. */
+	public synchronized long getPhaseMillis(final String phase) {
+		final Long millis = (Long) phases.get(phase);
+		return (millis == null)? 0 : millis.longValue();
+	}
+
+	/** Returns Map&lt;String phase, Long ms&gt; in the order of execution. */
+	public synchronized Map getPhases() {
+		return Collections.unmodifiableMap(new LinkedHashMap(phases));
+	}
+
+	/** Set whether the rows inserted into each table have been measured. */
+	public synchronized void setTablesMeasured(final boolean tablesMeasured) {
+		this.tablesMeasured = tablesMeasured;
+	}
+
+	/**
+	 * True if the table timings are known, i.e. the data has been loaded by
+	 * CLEAN_INSERT; otherwise {@link #getTables()} is empty even though
+	 * rows may have been loaded.
+	 */
+	public synchronized boolean isTablesMeasured() {
+		return tablesMeasured;
+	}
+
+	/** Returns List&lt;{@link TableLoad}&gt; in the order of loading. */
+	public synchronized List getTables() {
+		return Collections.unmodifiableList(new ArrayList(tables));
+	}
+
+	/** The duration of the whole set up, in ms. */
+	public synchronized long getTotalMillis() {
+		return totalMillis;
+	}
+
+	synchronized void setTotalMillis(final long totalMillis) {
+		this.totalMillis = totalMillis;
+	}
+
+	/** A multi-line summary of the timings. */
+	public synchronized String toString() {
+		final StringBuffer summary = new StringBuffer("set up took " + totalMillis + " ms:");
+		for (final Iterator iterator = phases.entrySet().iterator(); iterator.hasNext();) {
+			final Map.Entry phase = (Map.Entry) iterator.next();
+			summary.append(' ').append(phase.getKey()).append('=').append(phase.getValue()).append("ms");
+		}
+		if (!tablesMeasured) {
+			summary.append("\n  tables: n/a (only measured for CLEAN_INSERT)");
+		}
+		for (final Iterator iterator = tables.iterator(); iterator.hasNext();) {
+			summary.append("\n  ").append(iterator.next());
+		}
+		return summary.toString();
+	}
+
+	/** The rows inserted into one table. */
+	public static final class TableLoad {
+
+		private final String tableName;
+		private final int rowCount;
+		private final long millis;
+
+		TableLoad(final String tableName, final int rowCount, final long millis) {
+			this.tableName = tableName;
+			this.rowCount = rowCount;
+			this.millis = millis;
+		}
+
+		public String getTableName() {
+			return tableName;
+		}
+
+		public int getRowCount() {
+			return rowCount;
+		}
+
+		public long getMillis() {
+			return millis;
+		}
+
+		/** Rows per second; a duration below 1 ms is counted as 1 ms. */
+		public long getRowsPerSecond() {
+			return rowCount * 1000L / Math.max(millis, 1);
+		}
+
+		public String toString() {
+			return tableName + ": " + rowCount + " rows in " + millis + " ms (" + getRowsPerSecond() + " rows/s)";
+		}
+	}
+
+}
@@ -0,0 +1,79 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+package net.jakubholy.dbunitexpress.assertion;
+
+import junit.framework.AssertionFailedError;
+
+/**
+ * A {@link ValueChecker} of a number within the given bounds, for checking
+ * counts such as the number of statements executed.
+ *
+ * <h4>Example</h4>
+ * <pre><code>
+ * import static net.jakubholy.dbunitexpress.assertion.CountChecker.atMost;
+ * // ...
+ * testDb.getSqlTrace().assertStatementCount(atMost(3));
+ * </code></pre>
+ *
+ * @see net.jakubholy.dbunitexpress.util.SqlTrace
+ * @since 1.3.1
+ */
+public final class CountChecker implements ValueChecker {
+
+	private final long min;
+	private final long max;
+
+	private CountChecker(final long min, final long max) {
+		if (min > max) {
+			throw new IllegalArgumentException("The min. count " + min + " may not be greater than the max. " + max);
+		}
+		this.min = min;
+		this.max = max;
+	}
+
+	public static CountChecker atMost(final long max) {
+		return new CountChecker(Long.MIN_VALUE, max);
+	}
+
+	public static CountChecker atLeast(final long min) {
+		return new CountChecker(min, Long.MAX_VALUE);
+	}
+
+	public static CountChecker exactly(final long count) {
+		return new CountChecker(count, count);
+	}
+
+	/** Between min and max, inclusive. */
+	public static CountChecker between(final long min, final long max) {
+		return new CountChecker(min, max);
+	}
+
+	/**
+	 * @param actual (required) a Number
+	 */
+	public void assertAcceptable(final Object actual) throws AssertionFailedError {
+		if (!(actual instanceof Number)) {
+			throw new AssertionFailedError("Expected a count " + this + " but got " + actual);
+		}
+		final long count = ((Number) actual).longValue();
+		if (count < min || count > max) {
+			throw new AssertionFailedError("Expected a count " + this + " but was " + count);
+		}
+	}
+
+	public String toString() {
+		if (min == max) {
+			return "of exactly " + min;
+		} else if (min == Long.MIN_VALUE) {
+			return "of at most " + max;
+		} else if (max == Long.MAX_VALUE) {
+			return "of at least " + min;
+		}
+		return "between " + min + " and " + max;
+	}
+
+}
@@ -15,6 +15,8 @@ import junit.framework.Assert;
 import junit.framework.AssertionFailedError;
 import net.jakubholy.dbunitexpress.exception.ExceptionInterpreterFactory;
 import net.jakubholy.dbunitexpress.exception.IExceptionInterpreter;
+import net.jakubholy.dbunitexpress.impl.DatabaseCostCollector;
+import net.jakubholy.dbunitexpress.impl.FlightRecorderEvent;
 
 import org.dbunit.Assertion;
 import org.dbunit.DBTestCase;
@@ -148,9 +150,15 @@ public class RowComparator {
 					"instantiate the appropriate ExceptionInterpreter.", e);
 		}
 
+		final Object costTimer = DatabaseCostCollector.getSharedInstance().start();
 		try {
+			final Object jfrEvent = FlightRecorderEvent.ROW_COMPARATOR_QUERY.begin();
 			final ITable resultTable = getConnection(databaseTester).
 				createQueryTable("rowComparatorTbl", sql);
+			if (jfrEvent != null) {
+				FlightRecorderEvent.ROW_COMPARATOR_QUERY.commit(jfrEvent, new Object[] {
+						FlightRecorderEvent.truncateSql(sql), new Integer(resultTable.getRowCount())});
+			}
 			initResultTableAndColumns(resultTable);
 		} catch (Exception e) {
 			final String explanation = exceptionInterpreter.explain(e);
@@ -159,6 +167,8 @@ public class RowComparator {
 			} else {
 				throw new DatabaseUnitRuntimeException(explanation, e);
 			}
+		} finally {
+			DatabaseCostCollector.getSharedInstance().stop(costTimer, DatabaseCostCollector.QUERY);
 		}
 
 	} /* initResultTableAndColumns(String) */
@@ -0,0 +1,139 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Provides the JDBC batch size for loading data, either a fixed one or one
+ * tuned automatically from the observed throughput (rows per second) of
+ * full batches: starting with {@value #INITIAL_SIZE}, it keeps doubling
+ * (or halving) the size while the throughput improves and settles on the
+ * best size found once it gets worse.
+ * <p>
+ * The throughput is measured over at least {@value #SAMPLE_ROWS} rows for
+ * each size. Small data sets, whose tables don't fill a batch, don't
+ * contribute because the batch size doesn't matter for them.
+ *
+ * @see BatchingStatementFactory
+ * @since 1.3.1
+ */
+public final class BatchSizeTuner {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BatchSizeTuner.class);
+
+	public static final int INITIAL_SIZE = 100;
+	public static final int MIN_SIZE = 10;
+	public static final int MAX_SIZE = 10000;
+	public static final int SAMPLE_ROWS = 5000;
+
+	/** Required improvement of the throughput to keep going, to ignore noise. */
+	private static final double MIN_IMPROVEMENT = 1.05;
+
+	private static final BatchSizeTuner sharedInstance = new BatchSizeTuner();
+
+	private final boolean automatic;
+	private int batchSize;
+
+	private boolean converged = false;
+	/** 2 = growing, 0.5 = shrinking */
+	private double direction = 2;
+	private int previousSize = 0;
+	private double previousThroughput = 0;
+	private long sampleRows = 0;
+	private long sampleMillis = 0;
+
+	/** Create a tuner tuning the batch size automatically. */
+	public BatchSizeTuner() {
+		this.automatic = true;
+		this.batchSize = INITIAL_SIZE;
+	}
+
+	/**
+	 * Create a tuner that always returns the given size.
+	 * @param fixedBatchSize &gt; 0
+	 */
+	public BatchSizeTuner(final int fixedBatchSize) {
+		if (fixedBatchSize <= 0) {
+			throw new IllegalArgumentException("The batch size must be positive, is: " + fixedBatchSize);
+		}
+		this.automatic = false;
+		this.batchSize = fixedBatchSize;
+	}
+
+	/** Returns the JVM-wide automatic tuner so that the knowledge is shared among testers. */
+	public static BatchSizeTuner getSharedInstance() {
+		return sharedInstance;
+	}
+
+	public synchronized int getBatchSize() {
+		return batchSize;
+	}
+
+	public synchronized boolean isConverged() {
+		return !automatic || converged;
+	}
+
+	/**
+	 * Record the execution of a batch.
+	 * @param rows the number of rows in the batch
+	 * @param millis how long it took to execute it
+	 */
+	public synchronized void recordBatch(final int rows, final long millis) {
+		if (!automatic || converged || rows < batchSize) {
+			return;
+		}
+
+		sampleRows += rows;
+		sampleMillis += millis;
+		if (sampleRows < SAMPLE_ROWS) {
+			return;
+		}
+
+		// Avoid division by zero for very fast batches
+		final double throughput = sampleRows / (double) Math.max(sampleMillis, 1);
+		sampleRows = 0;
+		sampleMillis = 0;
+
+		if (previousSize == 0 || throughput > previousThroughput * MIN_IMPROVEMENT) {
+			moveTo((int) (batchSize * direction), throughput);
+		} else if (direction > 1 && previousSize == INITIAL_SIZE) {
+			// Growing from the initial size didn't help, try shrinking from it
+			direction = 0.5;
+			batchSize = INITIAL_SIZE;
+			moveTo((int) (INITIAL_SIZE * direction), previousThroughput);
+		} else {
+			settle(previousSize);
+		}
+	}
+
+	private void moveTo(final int newSize, final double throughput) {
+		final int boundedSize = Math.max(MIN_SIZE, Math.min(MAX_SIZE, newSize));
+		if (boundedSize == batchSize) {
+			settle(batchSize);
+			return;
+		}
+		LOG.debug("recordBatch: " + throughput + " rows/ms with the batch size " + batchSize +
+				", trying " + boundedSize);
+		previousSize = batchSize;
+		previousThroughput = throughput;
+		batchSize = boundedSize;
+	}
+
+	private void settle(final int size) {
+		batchSize = size;
+		converged = true;
+		LOG.info("recordBatch: The batch size has been tuned to " + size);
+	}
+
+	public String toString() {
+		return "BatchSizeTuner(" + (automatic? "auto" : "fixed") + ", size=" + getBatchSize() + ")";
+	}
+
+}
@@ -0,0 +1,207 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.impl;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.dbunit.database.DatabaseConfig;
+import org.dbunit.database.IDatabaseConnection;
+import org.dbunit.database.statement.IBatchStatement;
+import org.dbunit.database.statement.IPreparedBatchStatement;
+import org.dbunit.database.statement.IStatementFactory;
+import org.dbunit.database.statement.PreparedStatementFactory;
+import org.dbunit.dataset.ITable;
+import org.dbunit.dataset.datatype.DataType;
+import org.dbunit.dataset.datatype.TypeCastException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A DbUnit statement factory ({@link DatabaseConfig#PROPERTY_STATEMENT_FACTORY})
+ * whose prepared statements, used for inserting/updating the data set's rows,
+ * send the rows in JDBC batches of the size given by a {@link BatchSizeTuner}
+ * and report the execution times back to it.
+ * <p>
+ * If a batch fails then its rows that haven't been executed are re-executed
+ * one by one so that the exception reports which row has failed and its values.
+ *
+ * @since 1.3.1
+ */
+public class BatchingStatementFactory implements IStatementFactory {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BatchingStatementFactory.class);
+
+	private final IStatementFactory defaultFactory = new PreparedStatementFactory();
+	private final BatchSizeTuner batchSizeTuner;
+
+	/**
+	 * @param batchSizeTuner (required) provides the batch size
+	 */
+	public BatchingStatementFactory(final BatchSizeTuner batchSizeTuner) {
+		if (batchSizeTuner == null) {
+			throw new IllegalArgumentException("The argument BatchSizeTuner batchSizeTuner may not be null");
+		}
+		this.batchSizeTuner = batchSizeTuner;
+	}
+
+	/** Used for DELETE_ALL etc., delegates to DbUnit's default factory. */
+	public IBatchStatement createBatchStatement(final IDatabaseConnection connection) throws SQLException {
+		return defaultFactory.createBatchStatement(connection);
+	}
+
+	public IPreparedBatchStatement createPreparedBatchStatement(final String sql
+			, final IDatabaseConnection connection) throws SQLException {
+		return new ReportingPreparedBatchStatement(sql, connection.getConnection()
+				, batchSizeTuner.getBatchSize());
+	}
+
+	public BatchSizeTuner getBatchSizeTuner() {
+		return batchSizeTuner;
+	}
+
+	public String toString() {
+		return "BatchingStatementFactory(" + batchSizeTuner + ")";
+	}
+
+	/**
+	 * Remembers the values of the rows in the current batch to be able to
+	 * re-execute them one by one upon a failure.
+	 */
+	private final class ReportingPreparedBatchStatement implements IPreparedBatchStatement {
+
+		private final String sql;
+		private final PreparedStatement statement;
+		private final int batchSize;
+
+		/** List&lt;Object[] {Object value, DataType type}[]&gt; */
+		private final List batchRows = new ArrayList();
+		/** List&lt;Object[] {Object value, DataType type}&gt; */
+		private final List currentRow = new ArrayList();
+		private int updateCount = 0;
+
+		ReportingPreparedBatchStatement(final String sql, final Connection connection, final int batchSize)
+				throws SQLException {
+			this.sql = sql;
+			this.statement = connection.prepareStatement(sql);
+			this.batchSize = batchSize;
+		}
+
+		public void addValue(final Object value, final DataType dataType) throws TypeCastException, SQLException {
+			currentRow.add(new Object[]{ value, dataType });
+			setValue(currentRow.size(), value, dataType);
+		}
+
+		private void setValue(final int index, final Object value, final DataType dataType)
+				throws TypeCastException, SQLException {
+			if (value == null || value == ITable.NO_VALUE) {
+				statement.setNull(index, dataType.getSqlType());
+			} else {
+				dataType.setSqlValue(value, index, statement);
+			}
+		}
+
+		public void addBatch() throws SQLException {
+			statement.addBatch();
+			batchRows.add(currentRow.toArray());
+			currentRow.clear();
+			if (batchRows.size() >= batchSize) {
+				flush();
+			}
+		}
+
+		public int executeBatch() throws SQLException {
+			flush();
+			final int result = updateCount;
+			updateCount = 0;
+			return result;
+		}
+
+		private void flush() throws SQLException {
+			if (batchRows.isEmpty()) {
+				return;
+			}
+
+			final long start = System.currentTimeMillis();
+			try {
+				final int[] results = statement.executeBatch();
+				for (int i = 0; i < results.length; i++) {
+					updateCount += Math.max(results[i], 0);
+				}
+				batchSizeTuner.recordBatch(batchRows.size(), System.currentTimeMillis() - start);
+			} catch (BatchUpdateException e) {
+				LOG.debug("flush: The batch failed, re-executing its rows one by one to find the failed one", e);
+				executeSingleRows(e.getUpdateCounts(), e);
+			} finally {
+				batchRows.clear();
+			}
+		}
+
+		/**
+		 * Re-execute the rows that haven't been executed successfully: those
+		 * marked as failed and those after the last update count (the driver
+		 * may stop at the first failure).
+		 */
+		private void executeSingleRows(final int[] batchUpdateCounts, final BatchUpdateException cause)
+				throws SQLException {
+			statement.clearBatch();
+			final int[] updateCounts = (batchUpdateCounts == null)? new int[0] : batchUpdateCounts;
+
+			for (int row = 0; row < batchRows.size(); row++) {
+				if (row < updateCounts.length && updateCounts[row] != Statement.EXECUTE_FAILED) {
+					updateCount += Math.max(updateCounts[row], 0);
+					continue;
+				}
+
+				final Object[] values = (Object[]) batchRows.get(row);
+				try {
+					for (int i = 0; i < values.length; i++) {
+						final Object[] valueAndType = (Object[]) values[i];
+						setValue(i + 1, valueAndType[0], (DataType) valueAndType[1]);
+					}
+					updateCount += statement.executeUpdate();
+				} catch (SQLException e) {
+					final SQLException failure = new SQLException("Failed to execute '" + sql +
+							"' for the row with the values " + describe(values) + ": " + e.getMessage()
+							, e.getSQLState(), e.getErrorCode());
+					failure.initCause(e);
+					failure.setNextException(cause);
+					throw failure;
+				} catch (TypeCastException e) {
+					throw new SQLException("Failed to set the values " + describe(values) +
+							" for '" + sql + "': " + e);
+				}
+			}
+		}
+
+		private String describe(final Object[] values) {
+			final Object[] plainValues = new Object[values.length];
+			for (int i = 0; i < values.length; i++) {
+				plainValues[i] = ((Object[]) values[i])[0];
+			}
+			return Arrays.asList(plainValues).toString();
+		}
+
+		public void clearBatch() throws SQLException {
+			statement.clearBatch();
+			batchRows.clear();
+			currentRow.clear();
+		}
+
+		public void close() throws SQLException {
+			statement.close();
+		}
+	}
+
+}
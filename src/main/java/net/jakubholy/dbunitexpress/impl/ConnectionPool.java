@@ -0,0 +1,512 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import net.jakubholy.dbunitexpress.util.DbUnitUtils;
+import net.jakubholy.dbunitexpress.util.MetadataSnapshot;
+
+import org.dbunit.DatabaseUnitException;
+import org.dbunit.database.DatabaseConfig;
+import org.dbunit.database.DatabaseConnection;
+import org.dbunit.database.IDatabaseConnection;
+import org.dbunit.dataset.IDataSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A simple pool of DbUnit connections so that a new JDBC connection isn't
+ * opened for every {@link org.dbunit.IDatabaseTester#getConnection()}, which
+ * happens several times per test.
+ * <p>
+ * Each {@link #getConnection()} returns a new IDatabaseConnection with its own
+ * copy of the {@link DatabaseConfig}. Closing it - either the IDatabaseConnection
+ * or its JDBC connection - returns the physical connection to the pool, rolling
+ * back any uncommitted changes and restoring auto-commit; neither may be used afterwards.
+ * The pool never blocks: if there is no idle connection then a new one is
+ * opened and when more than maxIdle connections are returned then the extra
+ * ones are closed. Connections idle longer than the idle timeout are closed
+ * (evicted) whenever the pool is used and a connection is validated before it
+ * is handed out again - it may not be closed (e.g. because the database has been
+ * shut down) and the optional validation query must succeed.
+ * <p>
+ * {@link #initConnection(IDatabaseConnection)} is called only once for each
+ * physical connection, subclasses can use it to set the {@link DatabaseConfig}
+ * copied to the connections handed out.
+ * The data set returned by {@link IDatabaseConnection#createDataSet()} serves
+ * the table metadata from the shared {@link MetadataSnapshot} and is forgotten
+ * when the connection is returned, tests may change the schema.
+ * <p>
+ * When the database is going to be shut down (e.g. to restore it from a backup)
+ * then all pools connected to it must be told so via
+ * {@link #invalidateConnections(String)} and connections still in use may be
+ * re-opened via {@link #reconnect(IDatabaseConnection)}.
+ *
+ * @see net.jakubholy.dbunitexpress.EmbeddedDbTester#CONNECTION_POOL_SIZE_PROPERTY
+ * @since 1.3.1
+ */
+public class ConnectionPool {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ConnectionPool.class);
+
+	/** The default max. number of idle connections. */
+	public static final int DEFAULT_MAX_IDLE = 4;
+
+	/** The default idle time after which a connection is closed, in ms. */
+	public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60 * 1000;
+
+	/** All pools created in this JVM, see {@link #invalidateConnections(String)}; Map&lt;ConnectionPool, null&gt;. */
+	private static final Map allPools = new WeakHashMap();
+
+	private final String url;
+	private final String username;
+	private final String password;
+
+	private int maxIdle;
+	private long idleTimeoutMillis;
+	private String validationQuery;
+
+	/** Idle PooledConnections, the most recently returned first. */
+	private final LinkedList idleConnections = new LinkedList();
+
+	/** Incremented by {@link #invalidate()}; connections of an older generation aren't reused. */
+	private int generation = 0;
+
+	private long createdCount = 0;
+	private long reusedCount = 0;
+	private long evictedCount = 0;
+	private long invalidCount = 0;
+	private int activeCount = 0;
+
+	/**
+	 * @param url (required) the JDBC URL
+	 * @param username (optional) null to connect without credentials
+	 * @param password (optional)
+	 * @param maxIdle (&gt;= 0) max. number of idle connections kept open
+	 */
+	public ConnectionPool(final String url, final String username, final String password, final int maxIdle) {
+		if (url == null) {
+			throw new IllegalArgumentException("The argument String url may not be null");
+		}
+		this.url = url;
+		this.username = username;
+		this.password = password;
+		this.idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+		setMaxIdle(maxIdle);
+		synchronized (allPools) {
+			allPools.put(this, null);
+		}
+	}
+
+	/**
+	 * Returns an idle valid connection or opens a new one.
+	 * @throws SQLException If a new connection cannot be opened
+	 */
+	public IDatabaseConnection getConnection() throws SQLException, DatabaseUnitException {
+		PooledConnection connection;
+		while ((connection = takeIdleConnection()) != null) {
+			if (isValid(connection)) {
+				synchronized (this) {
+					reusedCount++;
+					activeCount++;
+				}
+				return connection.checkOut();
+			}
+			closeQuietly(connection);
+			synchronized (this) {
+				invalidCount++;
+			}
+		}
+
+		connection = new PooledConnection(openPhysicalConnection());
+		initConnection(connection);
+		synchronized (this) {
+			createdCount++;
+			activeCount++;
+		}
+		return connection.checkOut();
+	}
+
+	private Connection openPhysicalConnection() throws SQLException {
+		return (username == null)
+			? DriverManager.getConnection(url)
+			: DriverManager.getConnection(url, username, password);
+	}
+
+	/**
+	 * Called once for each new physical connection before it is handed out.
+	 * Does nothing by default.
+	 */
+	protected void initConnection(final IDatabaseConnection connection) throws SQLException {
+		// Nothing to do by default
+	}
+
+	private synchronized PooledConnection takeIdleConnection() {
+		evictExpired();
+		return idleConnections.isEmpty()? null : (PooledConnection) idleConnections.removeFirst();
+	}
+
+	private boolean isValid(final PooledConnection connection) {
+		try {
+			final Connection physicalConnection = connection.physicalConnection;
+			if (physicalConnection.isClosed()) {
+				return false;
+			}
+			if (validationQuery != null) {
+				final Statement statement = physicalConnection.createStatement();
+				try {
+					statement.execute(validationQuery);
+				} finally {
+					statement.close();
+				}
+			}
+			return true;
+		} catch (SQLException e) {
+			LOG.debug("isValid: The idle connection is invalid, discarding it; cause: " + e);
+			return false;
+		}
+	}
+
+	/** Called when a checked-out connection is closed. */
+	private void release(final PooledConnection connection) {
+		boolean reusable;
+		try {
+			final Connection physicalConnection = connection.physicalConnection;
+			if (!physicalConnection.getAutoCommit()) {
+				physicalConnection.rollback();
+				physicalConnection.setAutoCommit(true);
+			}
+			reusable = !physicalConnection.isClosed();
+		} catch (SQLException e) {
+			LOG.debug("release: Failed to reset the returned connection, discarding it; cause: " + e);
+			reusable = false;
+		}
+
+		synchronized (this) {
+			activeCount--;
+			reusable = reusable && connection.generation == generation;
+			if (reusable && idleConnections.size() < maxIdle) {
+				connection.lastUsed = System.currentTimeMillis();
+				idleConnections.addFirst(connection);
+				return;
+			}
+			if (reusable) {
+				evictedCount++;
+			} else {
+				invalidCount++;
+			}
+		}
+		closeQuietly(connection);
+	}
+
+	/** Close the connections idle for longer than the idle timeout. */
+	public void evictIdleConnections() {
+		synchronized (this) {
+			evictExpired();
+		}
+	}
+
+	/** Must be called with the lock held. */
+	private void evictExpired() {
+		final long oldestAllowed = System.currentTimeMillis() - idleTimeoutMillis;
+		// The least recently used connections are at the end
+		while (!idleConnections.isEmpty()
+				&& ((PooledConnection) idleConnections.getLast()).lastUsed < oldestAllowed) {
+			closeQuietly((PooledConnection) idleConnections.removeLast());
+			evictedCount++;
+		}
+	}
+
+	/**
+	 * Close all idle connections and make sure that the connections currently in
+	 * use are closed when returned instead of being reused, because they have been
+	 * (or are going to be) broken e.g. by a shut down of the database.
+	 * The pool remains usable.
+	 */
+	public void invalidate() {
+		synchronized (this) {
+			for (final Iterator iterator = idleConnections.iterator(); iterator.hasNext();) {
+				closeQuietly((PooledConnection) iterator.next());
+				invalidCount++;
+			}
+			idleConnections.clear();
+			generation++;
+		}
+	}
+
+	/**
+	 * {@link #invalidate() Invalidate} all pools connected to the given database,
+	 * to be called before it is shut down.
+	 * @param baseUrl (required) the JDBC URL of the database without any
+	 * 	connection attributes (such as ";create=true")
+	 */
+	public static void invalidateConnections(final String baseUrl) {
+		final List pools;
+		synchronized (allPools) {
+			pools = new ArrayList(allPools.keySet());
+		}
+		for (final Iterator iterator = pools.iterator(); iterator.hasNext();) {
+			final ConnectionPool pool = (ConnectionPool) iterator.next();
+			if (baseUrl.equals(DbUnitUtils.toBaseUrl(pool.url))) {
+				LOG.debug("invalidateConnections: Invalidating {}", pool);
+				pool.invalidate();
+			}
+		}
+	}
+
+	/**
+	 * Replace the physical connection of a connection obtained from a pool with
+	 * a newly opened one, e.g. after the database has been restarted. The
+	 * connection remains checked out.
+	 * @param connection (required) a connection, possibly not from a pool
+	 * @return false if the connection isn't from a pool and thus couldn't be reopened
+	 * @throws SQLException If a new connection cannot be opened
+	 */
+	public static boolean reconnect(final IDatabaseConnection connection) throws SQLException {
+		if (!(connection instanceof CheckedOutConnection)) {
+			return false;
+		}
+		((CheckedOutConnection) connection).reconnect();
+		return true;
+	}
+
+	/** Close all idle connections; connections in use are closed when returned. */
+	public void close() {
+		synchronized (this) {
+			for (final Iterator iterator = idleConnections.iterator(); iterator.hasNext();) {
+				closeQuietly((PooledConnection) iterator.next());
+			}
+			idleConnections.clear();
+			maxIdle = 0;
+		}
+	}
+
+	private static void closeQuietly(final PooledConnection connection) {
+		try {
+			connection.physicalConnection.close();
+		} catch (SQLException e) {
+			LOG.debug("closeQuietly: Failed to close the connection: " + e);
+		}
+	}
+
+	/**
+	 * A physical connection with the DbUnit connection built on it, whose
+	 * configuration is copied to the connections handed out. Never handed out itself.
+	 */
+	private final class PooledConnection extends DatabaseConnection {
+
+		/** Replaced by {@link #reconnect()}, the handles always delegate to the current one. */
+		private volatile Connection physicalConnection;
+		private int generation;
+		private long lastUsed;
+
+		PooledConnection(final Connection physicalConnection) throws DatabaseUnitException {
+			super(physicalConnection);
+			this.physicalConnection = physicalConnection;
+			synchronized (ConnectionPool.this) {
+				this.generation = ConnectionPool.this.generation;
+			}
+		}
+
+		void reconnect() throws SQLException {
+			final Connection newConnection = openPhysicalConnection();
+			closeQuietly(this);
+			physicalConnection = newConnection;
+			synchronized (ConnectionPool.this) {
+				generation = ConnectionPool.this.generation;
+			}
+		}
+
+		/** Create a new connection for a user, backed by this one until closed. */
+		IDatabaseConnection checkOut() throws SQLException {
+			final ReturningHandler returningHandler = new ReturningHandler(this);
+			final Connection handle = (Connection) Proxy.newProxyInstance(
+					Connection.class.getClassLoader()
+					, new Class[]{ Connection.class }
+					, returningHandler);
+			try {
+				final CheckedOutConnection connection = new CheckedOutConnection(handle, returningHandler);
+				DbUnitUtils.copyConfig(getConfig(), connection.getConfig());
+				return connection;
+			} catch (DatabaseUnitException e) {
+				handle.close();
+				throw new SQLException("Failed to create the DbUnit connection: " + e);
+			}
+		}
+
+		public String toString() {
+			return "PooledConnection(" + physicalConnection + ")";
+		}
+	}
+
+	/** The connection of a single user of a pooled connection; unusable once closed. */
+	private static final class CheckedOutConnection extends DatabaseConnection {
+
+		private final Connection handle;
+		private final ReturningHandler returningHandler;
+		private IDataSet dataSet;
+
+		CheckedOutConnection(final Connection handle, final ReturningHandler returningHandler)
+				throws DatabaseUnitException {
+			super(handle);
+			this.handle = handle;
+			this.returningHandler = returningHandler;
+		}
+
+		void reconnect() throws SQLException {
+			returningHandler.connection.reconnect();
+			dataSet = null;
+		}
+
+		public Connection getConnection() throws SQLException {
+			if (returningHandler.closed) {
+				throw new SQLException("The connection has already been returned to the pool");
+			}
+			return handle;
+		}
+
+		public void close() throws SQLException {
+			handle.close();
+		}
+
+		/** Cached for this user of the connection, tests may change the schema. */
+		public IDataSet createDataSet() throws SQLException {
+			if (dataSet == null) {
+				dataSet = MetadataSnapshot.createDataSet(this);
+			}
+			return dataSet;
+		}
+
+		public String toString() {
+			return "PooledConnectionHandle(" + returningHandler.connection.physicalConnection
+				+ (returningHandler.closed? ", closed)" : ")");
+		}
+	}
+
+	/** Returns the connection to the pool on close() instead of closing it. */
+	private final class ReturningHandler implements InvocationHandler {
+
+		private final PooledConnection connection;
+		private volatile boolean closed = false;
+
+		ReturningHandler(final PooledConnection connection) {
+			this.connection = connection;
+		}
+
+		public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+			final String name = method.getName();
+
+			if ("close".equals(name)) {
+				if (!closed) {
+					closed = true;
+					release(connection);
+				}
+				return null;
+			} else if ("isClosed".equals(name)) {
+				return Boolean.valueOf(closed || connection.physicalConnection.isClosed());
+			} else if ("equals".equals(name)) {
+				return Boolean.valueOf(proxy == args[0]);
+			} else if ("hashCode".equals(name)) {
+				return new Integer(System.identityHashCode(proxy));
+			} else if ("toString".equals(name)) {
+				return "PooledConnectionHandle(" + connection.physicalConnection + (closed? ", closed)" : ")");
+			} else if (closed) {
+				throw new SQLException("The connection has already been returned to the pool");
+			}
+
+			try {
+				return method.invoke(connection.physicalConnection, args);
+			} catch (InvocationTargetException e) {
+				throw e.getTargetException();
+			}
+		}
+	}
+
+	// ####################################################### SETTINGS AND STATISTICS
+
+	/** Set the max. number of idle connections kept open; 0 disables pooling. */
+	public synchronized void setMaxIdle(final int maxIdle) {
+		if (maxIdle < 0) {
+			throw new IllegalArgumentException("The max. number of idle connections may not be negative, is: " + maxIdle);
+		}
+		this.maxIdle = maxIdle;
+	}
+
+	public synchronized int getMaxIdle() {
+		return maxIdle;
+	}
+
+	/** Set the time after which an idle connection is closed, in ms. */
+	public synchronized void setIdleTimeoutMillis(final long idleTimeoutMillis) {
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	public synchronized long getIdleTimeoutMillis() {
+		return idleTimeoutMillis;
+	}
+
+	/** Set a query executed to check an idle connection before it is handed out; null for none. */
+	public synchronized void setValidationQuery(final String validationQuery) {
+		this.validationQuery = validationQuery;
+	}
+
+	public synchronized String getValidationQuery() {
+		return validationQuery;
+	}
+
+	/** Number of physical connections opened. */
+	public synchronized long getCreatedCount() {
+		return createdCount;
+	}
+
+	/** Number of times an idle connection has been handed out instead of opening a new one. */
+	public synchronized long getReusedCount() {
+		return reusedCount;
+	}
+
+	/** Number of connections closed because they were idle for too long or there were too many idle ones. */
+	public synchronized long getEvictedCount() {
+		return evictedCount;
+	}
+
+	/** Number of connections discarded because they were found invalid. */
+	public synchronized long getInvalidCount() {
+		return invalidCount;
+	}
+
+	/** Number of connections currently idle in the pool. */
+	public synchronized int getIdleCount() {
+		return idleConnections.size();
+	}
+
+	/** Number of connections currently handed out and not returned. */
+	public synchronized int getActiveCount() {
+		return activeCount;
+	}
+
+	public synchronized String toString() {
+		return "ConnectionPool(" + url + ": " + idleConnections.size() + " idle, " + activeCount +
+				" active, " + createdCount + " created, " + reusedCount + " reused, " + evictedCount +
+				" evicted, " + invalidCount + " invalid)";
+	}
+
+}
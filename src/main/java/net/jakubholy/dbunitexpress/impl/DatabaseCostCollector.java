@@ -0,0 +1,455 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.impl;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.AssertionFailedError;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects how much time each test spends in the test database - in
+ * EmbeddedDbTester.onSetup/onTearDown, in DatabaseCreator's DDL and in RowComparator
+ * queries - to find the few fixtures that cost most of the build time.
+ * Optionally it writes a JSON and a text report, sorted by the total time, at
+ * JVM exit and fails the tests that exceed their time budget.
+ * <p>
+ * The time of a measurement doesn't include the time of the measurements
+ * nested in it on the same thread, e.g. the set up time doesn't include the
+ * database creation triggered by it, so that the costs add up.
+ * <p>
+ * The costs are attributed to the test "&lt;class&gt;#&lt;method&gt;" started via
+ * {@link #startTest(String)}, which EmbeddedDbTesterRule and AbstractEmbeddedDbTestCase
+ * do, and only cover its last run; otherwise to {@link #UNKNOWN_TEST}.
+ * <p>
+ * Nothing is measured until the collector is enabled by
+ * {@link #writeReportAtExit(String)}, {@link #setBudget(String, long)} or
+ * {@link #setEnabled(boolean)}.
+ *
+ * @see net.jakubholy.dbunitexpress.EmbeddedDbTester#COST_REPORT_PROPERTY
+ * @see net.jakubholy.dbunitexpress.EmbeddedDbTester#COST_BUDGET_PROPERTY
+ * @since 1.3.1
+ */
+public final class DatabaseCostCollector {
+
+	private static final Logger LOG = LoggerFactory.getLogger(DatabaseCostCollector.class);
+
+	/** EmbeddedDbTester.onSetup */
+	public static final String SET_UP = "setUp";
+	/** EmbeddedDbTester.onTearDown */
+	public static final String TEAR_DOWN = "tearDown";
+	/** DatabaseCreator executing the DDL to create the database or schemas */
+	public static final String DB_CREATION = "dbCreation";
+	/** RowComparator executing its query */
+	public static final String QUERY = "query";
+
+	private static final String[] CATEGORIES = new String[] {SET_UP, TEAR_DOWN, DB_CREATION, QUERY};
+
+	/** The name the costs are attributed to when the test cannot be determined. */
+	public static final String UNKNOWN_TEST = "(unknown test)";
+
+	private static final DatabaseCostCollector sharedInstance = new DatabaseCostCollector();
+
+	private volatile boolean enabled = false;
+
+	/** Map&lt;String test name, TestCost&gt; */
+	private final Map costs = new HashMap();
+
+	/** Map&lt;String test or class name, Long budget ms&gt; */
+	private final Map budgets = new HashMap();
+
+	/** -1 if none */
+	private long defaultBudget = -1;
+
+	/** Null unless the report shall be written at exit. */
+	private String reportBasePath;
+
+	/** Name of the test running on the thread (String) */
+	private final ThreadLocal currentTest = new ThreadLocal();
+
+	/** The running measurements of the thread: LinkedList&lt;long[] {start ms, nested ms}&gt; */
+	private final ThreadLocal runningTimers = new ThreadLocal() {
+		protected Object initialValue() {
+			return new LinkedList();
+		}
+	};
+
+	/**
+	 * Create a new, independent collector. Normally you want to use the
+	 * {@link #getSharedInstance() shared one} instead.
+	 */
+	public DatabaseCostCollector() {}
+
+	/** Returns the JVM-wide collector used by DbUnit Express. */
+	public static DatabaseCostCollector getSharedInstance() {
+		return sharedInstance;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/** Start or stop measuring, e.g. to only collect the costs programmatically. */
+	public void setEnabled(final boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Enable the collector and write the report at JVM exit into
+	 * &lt;basePath&gt;.json and &lt;basePath&gt;.txt.
+	 * @param basePath (required) the report files' path without the extension,
+	 * 	e.g. target/dbunit-express-costs
+	 */
+	public synchronized void writeReportAtExit(final String basePath) {
+		if (reportBasePath == null) {
+			Runtime.getRuntime().addShutdownHook(new Thread("dbunit-express-cost-report") {
+				public void run() {
+					try {
+						writeReport(getReportBasePath());
+					} catch (IOException e) {
+						LOG.error("Failed to write the database cost report to " + getReportBasePath(), e);
+					}
+				}
+			});
+		}
+		reportBasePath = basePath;
+		enabled = true;
+	}
+
+	private synchronized String getReportBasePath() {
+		return reportBasePath;
+	}
+
+	/**
+	 * Enable the collector and set the max. time a test may spend in the database.
+	 * @param testName (optional) "&lt;test class&gt;#&lt;method&gt;" or "&lt;test class&gt;"
+	 * 	for all its tests; null for the default of all tests
+	 * @param millis the budget, ms
+	 * @see #assertWithinBudget(String)
+	 */
+	public synchronized void setBudget(final String testName, final long millis) {
+		if (testName == null) {
+			defaultBudget = millis;
+		} else {
+			budgets.put(testName, new Long(millis));
+		}
+		enabled = true;
+	}
+
+	/**
+	 * Returns the budget of the test - its own, its class', or the default one;
+	 * -1 if none.
+	 */
+	public synchronized long getBudget(final String testName) {
+		Long budget = (Long) budgets.get(testName);
+		final int methodSeparator = testName.indexOf('#');
+		if (budget == null && methodSeparator > 0) {
+			budget = (Long) budgets.get(testName.substring(0, methodSeparator));
+		}
+		return (budget == null)? defaultBudget : budget.longValue();
+	}
+
+	/**
+	 * Attribute the costs measured by the current thread to the given test,
+	 * forgetting those of its previous runs so that each run is checked against
+	 * the budget on its own.
+	 * @param testName (required) "&lt;test class&gt;#&lt;method&gt;"
+	 * @see #setCurrentTest(String)
+	 */
+	public void startTest(final String testName) {
+		if (testName == null) {
+			throw new IllegalArgumentException("The argument String testName may not be null");
+		}
+		synchronized (this) {
+			costs.remove(testName);
+		}
+		currentTest.set(testName);
+	}
+
+	/**
+	 * Attribute the costs measured by the current thread to the given test,
+	 * adding them to those collected for it so far.
+	 * @param testName (optional) "&lt;test class&gt;#&lt;method&gt;"; null
+	 * 	for {@link #UNKNOWN_TEST}, e.g. when the test has finished
+	 * @see #startTest(String)
+	 */
+	public void setCurrentTest(final String testName) {
+		currentTest.set(testName);
+	}
+
+	/**
+	 * Start a measurement on the current thread; it must be always finished
+	 * by {@link #stop(Object, String)}, typically in a finally block.
+	 * @return the timer to pass to stop; null if not enabled
+	 */
+	public Object start() {
+		if (!enabled) {
+			return null;
+		}
+		final long[] timer = new long[] {System.currentTimeMillis(), 0};
+		((LinkedList) runningTimers.get()).addLast(timer);
+		return timer;
+	}
+
+	/**
+	 * Finish the measurement and add its time, without that of the nested
+	 * measurements, to the cost of the current test.
+	 * @param timer (optional) as returned by {@link #start()}; nothing is done if null
+	 * @param category (required) what has been measured, e.g. {@link #SET_UP}
+	 */
+	public void stop(final Object timer, final String category) {
+		if (timer == null) {
+			return;
+		}
+		final long[] finished = (long[]) timer;
+		final long millis = System.currentTimeMillis() - finished[0];
+
+		final LinkedList timers = (LinkedList) runningTimers.get();
+		while (!timers.isEmpty() && timers.removeLast() != finished) {
+			LOG.debug("stop: a nested measurement hasn't been stopped");
+		}
+		if (!timers.isEmpty()) {
+			((long[]) timers.getLast())[1] += millis;
+		}
+
+		add(getCurrentTest(), category, millis - finished[1]);
+	}
+
+	private synchronized void add(final String testName, final String category, final long millis) {
+		TestCost cost = (TestCost) costs.get(testName);
+		if (cost == null) {
+			cost = new TestCost(testName);
+			costs.put(testName, cost);
+		}
+		cost.add(category, millis);
+	}
+
+	/** The test set for the thread or {@link #UNKNOWN_TEST}. */
+	private String getCurrentTest() {
+		final String testName = (String) currentTest.get();
+		return (testName == null)? UNKNOWN_TEST : testName;
+	}
+
+	/**
+	 * Fail if the test has spent more time in the database than its budget.
+	 * @throws AssertionFailedError if over budget
+	 * @see #setBudget(String, long)
+	 */
+	public synchronized void assertWithinBudget(final String testName) throws AssertionFailedError {
+		final long budget = getBudget(testName);
+		final long totalMillis = getTotalMillis(testName);
+		if (budget >= 0 && totalMillis > budget) {
+			throw new AssertionFailedError("The test " + testName + " has spent " + totalMillis +
+					" ms in the test database, over its budget of " + budget + " ms: " + costs.get(testName));
+		}
+	}
+
+	/** The total time spent by the test in the database so far, ms. */
+	public synchronized long getTotalMillis(final String testName) {
+		final TestCost cost = (TestCost) costs.get(testName);
+		return (cost == null)? 0 : cost.getTotalMillis();
+	}
+
+	/** The time spent by the test in the given category so far, ms. */
+	public synchronized long getMillis(final String testName, final String category) {
+		final TestCost cost = (TestCost) costs.get(testName);
+		return (cost == null)? 0 : cost.getMillis(category);
+	}
+
+	/** Forget all the costs collected so far. */
+	public synchronized void reset() {
+		costs.clear();
+	}
+
+	/**
+	 * Write the report into &lt;basePath&gt;.json and &lt;basePath&gt;.txt:
+	 * the costs of each test and of each test class, the most expensive first.
+	 */
+	public void writeReport(final String basePath) throws IOException {
+		final List tests;
+		synchronized (this) {
+			tests = new ArrayList(costs.values());
+		}
+		final List classes = sumByClass(tests);
+		final File jsonFile = new File(basePath + ".json");
+		final File textFile = new File(basePath + ".txt");
+		if (jsonFile.getAbsoluteFile().getParentFile() != null) {
+			jsonFile.getAbsoluteFile().getParentFile().mkdirs();
+		}
+
+		final Writer json = new FileWriter(jsonFile);
+		try {
+			writeJson(json, tests, classes);
+		} finally {
+			json.close();
+		}
+		final Writer text = new FileWriter(textFile);
+		try {
+			writeText(text, tests, classes);
+		} finally {
+			text.close();
+		}
+		LOG.info("writeReport: The database costs of " + tests.size() + " tests written to " + textFile);
+	}
+
+	/** Returns List&lt;TestCost&gt; of the classes, sorted; sorts the tests. */
+	private List sumByClass(final List tests) {
+		final Map classes = new HashMap();
+		for (final Iterator iterator = tests.iterator(); iterator.hasNext();) {
+			final TestCost test = (TestCost) iterator.next();
+			final int methodSeparator = test.name.indexOf('#');
+			final String className = (methodSeparator < 0)? test.name : test.name.substring(0, methodSeparator);
+			TestCost classCost = (TestCost) classes.get(className);
+			if (classCost == null) {
+				classCost = new TestCost(className);
+				classes.put(className, classCost);
+			}
+			classCost.addAll(test);
+		}
+
+		final Comparator mostExpensiveFirst = new Comparator() {
+			public int compare(final Object first, final Object second) {
+				final long difference = ((TestCost) second).getTotalMillis() - ((TestCost) first).getTotalMillis();
+				return (difference == 0)? ((TestCost) first).name.compareTo(((TestCost) second).name)
+						: ((difference > 0)? 1 : -1);
+			}
+		};
+		Collections.sort(tests, mostExpensiveFirst);
+		final List sortedClasses = new ArrayList(classes.values());
+		Collections.sort(sortedClasses, mostExpensiveFirst);
+		return sortedClasses;
+	}
+
+	private void writeJson(final Writer out, final List tests, final List classes) throws IOException {
+		out.write("{\n  \"tests\": [");
+		for (final Iterator iterator = tests.iterator(); iterator.hasNext();) {
+			final TestCost test = (TestCost) iterator.next();
+			out.write("\n    {\"test\": " + quote(test.name) + test.toJsonFields() +
+					", \"budgetMillis\": " + getBudget(test.name) + "}" + (iterator.hasNext()? "," : ""));
+		}
+		out.write("\n  ],\n  \"classes\": [");
+		for (final Iterator iterator = classes.iterator(); iterator.hasNext();) {
+			final TestCost testClass = (TestCost) iterator.next();
+			out.write("\n    {\"testClass\": " + quote(testClass.name) + testClass.toJsonFields() + "}" +
+					(iterator.hasNext()? "," : ""));
+		}
+		out.write("\n  ]\n}\n");
+	}
+
+	private void writeText(final Writer out, final List tests, final List classes) throws IOException {
+		out.write("Time spent in the test database, ms (count)\n\nBy test:\n");
+		for (final Iterator iterator = tests.iterator(); iterator.hasNext();) {
+			final TestCost test = (TestCost) iterator.next();
+			final long budget = getBudget(test.name);
+			out.write(test + ((budget >= 0 && test.getTotalMillis() > budget)?
+					"  OVER BUDGET " + budget + " ms" : "") + "\n");
+		}
+		out.write("\nBy test class:\n");
+		for (final Iterator iterator = classes.iterator(); iterator.hasNext();) {
+			out.write(iterator.next() + "\n");
+		}
+	}
+
+	private static String quote(final String value) {
+		final StringBuffer quoted = new StringBuffer(value.length() + 2).append('"');
+		for (int i = 0; i < value.length(); i++) {
+			final char character = value.charAt(i);
+			if (character == '"' || character == '\\') {
+				quoted.append('\\').append(character);
+			} else if (character < ' ') {
+				final String hex = Integer.toHexString(character);
+				quoted.append("\\u").append("0000".substring(hex.length())).append(hex);
+			} else {
+				quoted.append(character);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+
+	public String toString() {
+		return "DatabaseCostCollector(enabled=" + enabled + ", tests=" + costs.size() + ")";
+	}
+
+	/** The costs of one test or test class. */
+	private static final class TestCost {
+
+		private final String name;
+		private final long[] millis = new long[CATEGORIES.length];
+		private final int[] counts = new int[CATEGORIES.length];
+
+		TestCost(final String name) {
+			this.name = name;
+		}
+
+		void add(final String category, final long categoryMillis) {
+			final int index = indexOf(category);
+			millis[index] += categoryMillis;
+			counts[index]++;
+		}
+
+		void addAll(final TestCost other) {
+			for (int i = 0; i < CATEGORIES.length; i++) {
+				millis[i] += other.millis[i];
+				counts[i] += other.counts[i];
+			}
+		}
+
+		long getMillis(final String category) {
+			return millis[indexOf(category)];
+		}
+
+		long getTotalMillis() {
+			long total = 0;
+			for (int i = 0; i < millis.length; i++) {
+				total += millis[i];
+			}
+			return total;
+		}
+
+		private static int indexOf(final String category) {
+			for (int i = 0; i < CATEGORIES.length; i++) {
+				if (CATEGORIES[i].equals(category)) {
+					return i;
+				}
+			}
+			throw new IllegalArgumentException("Unknown category " + category);
+		}
+
+		String toJsonFields() {
+			final StringBuffer fields = new StringBuffer(", \"totalMillis\": ").append(getTotalMillis());
+			for (int i = 0; i < CATEGORIES.length; i++) {
+				fields.append(", \"").append(CATEGORIES[i]).append("Millis\": ").append(millis[i])
+					.append(", \"").append(CATEGORIES[i]).append("Count\": ").append(counts[i]);
+			}
+			return fields.toString();
+		}
+
+		public String toString() {
+			final StringBuffer summary = new StringBuffer().append(getTotalMillis()).append('\t').append(name);
+			for (int i = 0; i < CATEGORIES.length; i++) {
+				summary.append((i == 0)? "  [" : ", ").append(CATEGORIES[i]).append('=').append(millis[i])
+					.append(" (").append(counts[i]).append(')');
+			}
+			return summary.append(']').toString();
+		}
+	}
+
+}
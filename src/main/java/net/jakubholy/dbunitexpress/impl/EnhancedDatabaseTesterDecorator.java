@@ -12,12 +12,16 @@ import java.io.FileNotFoundException;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
 
 import javax.sql.DataSource;
 
 import net.jakubholy.dbunitexpress.IEnhancedDatabaseTester;
+import net.jakubholy.dbunitexpress.operation.TruncateTablesOperation;
 import net.jakubholy.dbunitexpress.util.DbUnitAsDataSourceAdapter;
 import net.jakubholy.dbunitexpress.util.DbUnitUtils;
+import net.jakubholy.dbunitexpress.util.SqlTrace;
 
 import org.dbunit.DatabaseUnitRuntimeException;
 import org.dbunit.IDatabaseTester;
@@ -43,10 +47,18 @@ public class EnhancedDatabaseTesterDecorator implements IEnhancedDatabaseTester
 
 	private final transient IDatabaseTester actualTester;
 
+	/** Created lazily by {@link #getDataSource()}. */
+	private transient DbUnitAsDataSourceAdapter dataSource;
+
+	/** Records the statements executed via {@link #getDataSource()} and {@link #getSqlConnection()}. */
+	private final transient SqlTrace sqlTrace = new SqlTrace();
+
 	public static final String SVN_ID = "$Id: EnhancedDatabaseTesterDecorator.java 85 2010-03-09 13:55:25Z malyvelky $";
 
 	private static final Logger LOG = LoggerFactory.getLogger(EnhancedDatabaseTesterDecorator.class);
 
+	private DatabaseOperation replaceOperation = DatabaseOperation.CLEAN_INSERT;
+
 	/**
 	 * Create a new enhanced tester that delegates all default operations
 	 * to the provided actual tester.
@@ -84,7 +96,7 @@ public class EnhancedDatabaseTesterDecorator implements IEnhancedDatabaseTester
 		// Clean and load the database
 		try {
 		    final IDatabaseTester databaseTester = getActualTester();
-		    databaseTester.setSetUpOperation( DatabaseOperation.CLEAN_INSERT );
+		    databaseTester.setSetUpOperation( replaceOperation );
 		    databaseTester.setDataSet( newDataSet );
 		    databaseTester.onSetup();
 		} catch (Exception e) {
@@ -108,6 +120,17 @@ public class EnhancedDatabaseTesterDecorator implements IEnhancedDatabaseTester
 		}
 	} /* replaceDatabase(IDataSet) */
 
+	/*
+	 * (non-Javadoc)
+	 * @see net.jakubholy.dbunitexpress.IEnhancedDatabaseTester#setReplaceOperation(org.dbunit.operation.DatabaseOperation)
+	 */
+	public void setReplaceOperation(final DatabaseOperation replaceOperation) {
+		if (replaceOperation == null) {
+			throw new IllegalArgumentException("The argument DatabaseOperation replaceOperation may not be null");
+		}
+		this.replaceOperation = replaceOperation;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see net.jakubholy.dbunitexpress.IEnhancedDatabaseTester#clearTable(java.lang.String)
@@ -134,14 +157,40 @@ public class EnhancedDatabaseTesterDecorator implements IEnhancedDatabaseTester
 		}
 	} /* clearTable */
 
+	/*
+	 * (non-Javadoc)
+	 * @see net.jakubholy.dbunitexpress.IEnhancedDatabaseTester#clearTables(java.lang.String[])
+	 */
+	public void clearTables(final String[] tableNames) throws SQLException {
+		final List tableList = Arrays.asList(tableNames);
+		IDatabaseConnection connection = null;
+		try {
+			connection = getActualTester().getConnection();
+			new TruncateTablesOperation().clearTables(connection, tableNames);
+		} catch (Exception e) {
+			LOG.error("clearTables: Failure to delete rows from the tables " + tableList, e);
+			throw new SQLException("Failure to delete rows from the tables " +
+					tableList + ", reason:" + e);
+		} finally {
+			if (connection != null) {
+				connection.close();
+			}
+		}
+	} /* clearTables */
+
 	/*
 	 * (non-Javadoc)
 	 * @see net.jakubholy.dbunitexpress.IEnhancedDatabaseTester#getDataSource()
 	 */
-	public DataSource getDataSource() throws DatabaseUnitRuntimeException {
+	public synchronized DataSource getDataSource() throws DatabaseUnitRuntimeException {
+		// Shared so that its connection statistics cover the whole test
+		if (dataSource != null) {
+			return dataSource;
+		}
 		try {
-			return new DbUnitAsDataSourceAdapter(
-					getActualTester());
+			dataSource = new DbUnitAsDataSourceAdapter(
+					getActualTester(), sqlTrace);
+			return dataSource;
 		} catch (Exception e) {
 			throw new DatabaseUnitRuntimeException("Failed to create a " + IDatabaseTester.class +
 					" for this DbUnit test, please check check your environment " +
@@ -230,12 +279,20 @@ public class EnhancedDatabaseTesterDecorator implements IEnhancedDatabaseTester
 	 */
 	public Connection getSqlConnection() throws SQLException, DatabaseUnitRuntimeException {
 		try {
-			return actualTester.getConnection().getConnection();
+			return sqlTrace.wrap(actualTester.getConnection().getConnection());
 		} catch (Exception e) {
 			throw new DatabaseUnitRuntimeException(e);
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * @see net.jakubholy.dbunitexpress.IEnhancedDatabaseTester#getSqlTrace()
+	 */
+	public SqlTrace getSqlTrace() {
+		return sqlTrace;
+	}
+
 	public void setOperationListener(final IOperationListener operationListener) {
 		getActualTester().setOperationListener(operationListener);
 	}
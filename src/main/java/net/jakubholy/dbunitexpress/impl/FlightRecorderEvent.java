@@ -0,0 +1,298 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.impl;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A custom Java Flight Recorder event type emitted by DbUnit Express so that
+ * the database set up, DDL execution and verification queries of a test run
+ * recorded with JFR can be correlated with GC, lock contention etc. Each event
+ * has the duration between {@link #begin()} and {@link #commit(Object, Object[])}
+ * and the fields of its type.
+ * <p>
+ * As the library is compiled for old JVMs, the events are defined at runtime
+ * via JFR's EventFactory through reflection. Without JFR (before Java 11) or
+ * unless a recording enables the event, {@link #begin()} only checks a flag
+ * and returns null and the commit does nothing. Whether the event is enabled is
+ * cached and only checked again after a recording has changed its state
+ * (started, stopped, ...), which JFR reports to a listener. The events are in the
+ * category "DbUnit Express", named net.jakubholy.dbunitexpress.&lt;name&gt;.
+ *
+ * @since 1.3.1
+ */
+public final class FlightRecorderEvent {
+
+	private static final Logger LOG = LoggerFactory.getLogger(FlightRecorderEvent.class);
+
+	/** SQL texts longer than this are truncated. */
+	public static final int MAX_SQL_LENGTH = 1000;
+
+	private static final String NAME_PREFIX = "net.jakubholy.dbunitexpress.";
+
+	private static final Class[] NO_PARAMETERS = new Class[0];
+	private static final Object[] NO_ARGUMENTS = new Object[0];
+
+	// Null if JFR isn't available; must be initialized before the event types
+	private static final Method newEventMethod;
+	private static final Method isEnabledMethod;
+	private static final Method beginMethod;
+	private static final Method setMethod;
+	private static final Method commitMethod;
+	private static final Method shouldCommitMethod;
+
+	/** Changed whenever a recording changes its state so that the enabled flags are checked again. */
+	private static volatile int recordingStateVersion;
+	/** False if the recording state cannot be listened to and the enabled flag must always be checked. */
+	private static final boolean listeningToRecordings;
+
+	static {
+		Method newEvent = null;
+		Method isEnabled = null;
+		Method begin = null;
+		Method set = null;
+		Method commit = null;
+		Method shouldCommit = null;
+		try {
+			final Class eventClass = Class.forName("jdk.jfr.Event");
+			newEvent = Class.forName("jdk.jfr.EventFactory").getMethod("newEvent", NO_PARAMETERS);
+			isEnabled = Class.forName("jdk.jfr.EventType").getMethod("isEnabled", NO_PARAMETERS);
+			begin = eventClass.getMethod("begin", NO_PARAMETERS);
+			set = eventClass.getMethod("set", new Class[] {int.class, Object.class});
+			commit = eventClass.getMethod("commit", NO_PARAMETERS);
+			shouldCommit = eventClass.getMethod("shouldCommit", NO_PARAMETERS);
+		} catch (ClassNotFoundException e) {
+			LOG.debug("Java Flight Recorder isn't available, no JFR events will be emitted");
+		} catch (Exception e) {
+			LOG.warn("Failed to access the Java Flight Recorder API, no JFR events will be emitted", e);
+		}
+		newEventMethod = newEvent;
+		isEnabledMethod = isEnabled;
+		beginMethod = begin;
+		setMethod = set;
+		commitMethod = commit;
+		shouldCommitMethod = shouldCommit;
+		listeningToRecordings = (newEventMethod != null) && listenToRecordings();
+	}
+
+	/**
+	 * Register a jdk.jfr.FlightRecorderListener that changes the
+	 * {@link #recordingStateVersion} whenever a recording changes its state.
+	 * @return false if it failed
+	 */
+	private static boolean listenToRecordings() {
+		try {
+			final Class listenerClass = Class.forName("jdk.jfr.FlightRecorderListener");
+			final Object listener = Proxy.newProxyInstance(FlightRecorderEvent.class.getClassLoader()
+					, new Class[] {listenerClass}
+					, new InvocationHandler() {
+						public Object invoke(final Object proxy, final Method method, final Object[] args) {
+							final String methodName = method.getName();
+							if ("equals".equals(methodName)) {
+								return Boolean.valueOf(proxy == args[0]);
+							} else if ("hashCode".equals(methodName)) {
+								return new Integer(System.identityHashCode(proxy));
+							} else if ("toString".equals(methodName)) {
+								return "FlightRecorderEvent.RecordingListener";
+							}
+							synchronized (FlightRecorderEvent.class) {
+								++recordingStateVersion;	// recordingStateChanged or recorderInitialized
+							}
+							return null;
+						}
+					});
+			Class.forName("jdk.jfr.FlightRecorder").getMethod("addListener", new Class[] {listenerClass})
+					.invoke(null, new Object[] {listener});
+			return true;
+		} catch (Exception e) {
+			LOG.debug("Failed to listen to JFR recordings, the JFR events' state will be checked every time", e);
+			return false;
+		}
+	}
+
+	/** EmbeddedDbTester.onSetup; fields: dataSet, tableCount, rowCount (-1 if unknown). */
+	public static final FlightRecorderEvent SET_UP = new FlightRecorderEvent("SetUp", "Database Set Up"
+			, "Cleaning and loading the test data set"
+			, new String[] {"dataSet", "tableCount", "rowCount"}
+			, new Class[] {String.class, int.class, int.class});
+
+	/** DatabaseCreator executing DDL; fields: statementCount, sql (truncated). */
+	public static final FlightRecorderEvent DDL_EXECUTION = new FlightRecorderEvent("DdlExecution", "DDL Execution"
+			, "Creating the test database schema"
+			, new String[] {"statementCount", "sql"}
+			, new Class[] {int.class, String.class});
+
+	/** RowComparator executing its query; fields: sql (truncated), rowCount. */
+	public static final FlightRecorderEvent ROW_COMPARATOR_QUERY = new FlightRecorderEvent("RowComparatorQuery"
+			, "RowComparator Query", "Reading the rows to verify"
+			, new String[] {"sql", "rowCount"}
+			, new Class[] {String.class, int.class});
+
+	private final String name;
+
+	/** jdk.jfr.EventFactory, null if JFR isn't available. */
+	private final Object eventFactory;
+
+	/** jdk.jfr.EventType, null if JFR isn't available. */
+	private final Object eventType;
+
+	/** The cached result of {@link #isEnabled()}, valid for {@link #checkedVersion}. */
+	private volatile boolean enabled;
+	/** The {@link #recordingStateVersion} when {@link #enabled} was checked; -1 if never. */
+	private volatile int checkedVersion = -1;
+
+	private FlightRecorderEvent(final String name, final String label, final String description
+			, final String[] fieldNames, final Class[] fieldTypes) {
+		this.name = NAME_PREFIX + name;
+
+		Object factory = null;
+		Object type = null;
+		if (newEventMethod != null) {
+			try {
+				factory = createEventFactory(label, description, fieldNames, fieldTypes);
+				type = factory.getClass().getMethod("getEventType", NO_PARAMETERS).invoke(factory, NO_ARGUMENTS);
+			} catch (Exception e) {
+				LOG.warn("Failed to define the JFR event " + this.name + ", it will not be emitted", e);
+				factory = null;
+				type = null;
+			}
+		}
+		this.eventFactory = factory;
+		this.eventType = type;
+	}
+
+	private Object createEventFactory(final String label, final String description
+			, final String[] fieldNames, final Class[] fieldTypes) throws Exception {	// NOPMD
+		final Class annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+		final Constructor annotationElement = annotationElementClass.getConstructor(
+				new Class[] {Class.class, Object.class});
+		final List annotations = new ArrayList();
+		annotations.add(annotationElement.newInstance(new Object[] {Class.forName("jdk.jfr.Name"), name}));
+		annotations.add(annotationElement.newInstance(new Object[] {Class.forName("jdk.jfr.Label"), label}));
+		annotations.add(annotationElement.newInstance(new Object[] {Class.forName("jdk.jfr.Description")
+				, description}));
+		annotations.add(annotationElement.newInstance(new Object[] {Class.forName("jdk.jfr.Category")
+				, new String[] {"DbUnit Express"}}));
+
+		final Constructor valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(
+				new Class[] {Class.class, String.class});
+		final List fields = new ArrayList();
+		for (int i = 0; i < fieldNames.length; i++) {
+			fields.add(valueDescriptor.newInstance(new Object[] {fieldTypes[i], fieldNames[i]}));
+		}
+
+		return Class.forName("jdk.jfr.EventFactory").getMethod("create", new Class[] {List.class, List.class})
+				.invoke(null, new Object[] {annotations, fields});
+	}
+
+	/**
+	 * True if JFR is available and a running recording has enabled this event.
+	 * Checked again only after a recording has changed its state; settings
+	 * changed on a running recording are noticed when the next one starts or stops.
+	 */
+	public boolean isEnabled() {
+		if (eventType == null) {
+			return false;
+		}
+		final int version = recordingStateVersion;
+		if (listeningToRecordings && version == checkedVersion) {
+			return enabled;
+		}
+		try {
+			enabled = ((Boolean) isEnabledMethod.invoke(eventType, NO_ARGUMENTS)).booleanValue();
+		} catch (Exception e) {
+			LOG.debug("isEnabled: failed for " + name, e);
+			enabled = false;
+		}
+		checkedVersion = version;
+		return enabled;
+	}
+
+	/**
+	 * Start timing a new event.
+	 * @return the event to pass to {@link #commit(Object, Object[])} or null
+	 * 	if it isn't {@link #isEnabled() enabled}
+	 */
+	public Object begin() {
+		if (!isEnabled()) {
+			return null;
+		}
+		try {
+			final Object event = newEventMethod.invoke(eventFactory, NO_ARGUMENTS);
+			beginMethod.invoke(event, NO_ARGUMENTS);
+			return event;
+		} catch (Exception e) {
+			LOG.debug("begin: failed for " + name, e);
+			return null;
+		}
+	}
+
+	/**
+	 * True if the event would be recorded, i.e. it isn't null and the recording
+	 * is still running and its duration is over the threshold; check it before
+	 * computing expensive field values.
+	 * @param event (optional) as returned by {@link #begin()}
+	 */
+	public boolean shouldCommit(final Object event) {
+		if (event == null) {
+			return false;
+		}
+		try {
+			return ((Boolean) shouldCommitMethod.invoke(event, NO_ARGUMENTS)).booleanValue();
+		} catch (Exception e) {
+			LOG.debug("shouldCommit: failed for " + name, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Set the fields of the event and record it, ending its timing.
+	 * @param event (optional) as returned by {@link #begin()}; nothing is done if null
+	 * @param values (required) values of the fields in the order of their definition,
+	 * 	Integer for the int ones
+	 */
+	public void commit(final Object event, final Object[] values) {
+		if (event == null) {
+			return;
+		}
+		try {
+			for (int i = 0; i < values.length; i++) {
+				setMethod.invoke(event, new Object[] {new Integer(i), values[i]});
+			}
+			commitMethod.invoke(event, NO_ARGUMENTS);
+		} catch (Exception e) {
+			LOG.debug("commit: failed for " + name, e);
+		}
+	}
+
+	/** Returns the SQL shortened to at most {@link #MAX_SQL_LENGTH} characters. */
+	public static String truncateSql(final String sql) {
+		if (sql == null || sql.length() <= MAX_SQL_LENGTH) {
+			return sql;
+		}
+		return sql.substring(0, MAX_SQL_LENGTH - 3) + "...";
+	}
+
+	/** The full name of the JFR event type. */
+	public String getName() {
+		return name;
+	}
+
+	public String toString() {
+		return "FlightRecorderEvent(" + name + ", available=" + (eventType != null) + ")";
+	}
+
+}
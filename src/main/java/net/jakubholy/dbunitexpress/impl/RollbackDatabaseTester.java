@@ -0,0 +1,231 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+
+import net.jakubholy.dbunitexpress.util.DbUnitUtils;
+
+import org.dbunit.IDatabaseTester;
+import org.dbunit.IOperationListener;
+import org.dbunit.database.DatabaseConnection;
+import org.dbunit.database.IDatabaseConnection;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.operation.DatabaseOperation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A tester decorator that isolates tests by rolling back a transaction instead
+ * of re-loading the data: the data set is loaded (and committed) only during
+ * the first {@link #onSetup()}, afterwards all the work happens on one shared
+ * connection with auto-commit off and {@link #onTearDown()} rolls it back and
+ * closes the connection; the next set up starts a new transaction.
+ * <p>
+ * All connections handed out - via {@link #getConnection()} and thus also the
+ * SQL connections and data sources of the {@link EnhancedDatabaseTesterDecorator} -
+ * are the same connection, wrapped so that the code under test cannot commit
+ * or close it. Its rollback() only rolls back to the start of the current test.
+ * <p>
+ * If a different data set is set up later (e.g. via
+ * {@link EnhancedDatabaseTesterDecorator#replaceDatabase(IDataSet)}) then it is
+ * loaded within the transaction and thus also rolled back at the end of the test.
+ *
+ * @since 1.3.1
+ */
+public class RollbackDatabaseTester implements IDatabaseTester {
+
+	private static final Logger LOG = LoggerFactory.getLogger(RollbackDatabaseTester.class);
+
+	private final IDatabaseTester actualTester;
+
+	private IDataSet dataSet;
+	private DatabaseOperation setUpOperation = DatabaseOperation.CLEAN_INSERT;
+
+	/** The data set loaded and committed during the first set up. */
+	private IDataSet committedDataSet = null;
+	/** The underlying connection with the transaction. */
+	private IDatabaseConnection transactionalConnection = null;
+	/** The wrapped transactional connection handed out to users. */
+	private IDatabaseConnection sharedConnection = null;
+	/** Set if data were loaded within the transaction for the current test. */
+	private Savepoint testStart = null;
+
+	/**
+	 * @param actualTester (required) the tester that does the actual work
+	 */
+	public RollbackDatabaseTester(final IDatabaseTester actualTester) {
+		if (actualTester == null) {
+			throw new IllegalArgumentException("The argument IDatabaseTester actualTester may not be null");
+		}
+		this.actualTester = actualTester;
+	}
+
+	/**
+	 * Load the data set during the first invocation and start a transaction,
+	 * afterwards roll back the changes of the previous test unless it has been
+	 * torn down; if the data set differs from the original one then load it
+	 * within the transaction.
+	 */
+	public void onSetup() throws Exception {	// NOPMD
+		if (committedDataSet == null) {
+			actualTester.setSetUpOperation(setUpOperation);
+			actualTester.setDataSet(dataSet);
+			actualTester.onSetup();
+			committedDataSet = dataSet;
+		}
+
+		if (sharedConnection == null) {
+			beginTransaction();
+		} else {
+			rollback();
+		}
+
+		if (dataSet != committedDataSet) {
+			LOG.debug("onSetup: Loading a different data set within the transaction");
+			setUpOperation.execute(transactionalConnection, dataSet);
+			testStart = transactionalConnection.getConnection().setSavepoint();
+		}
+	}
+
+	/**
+	 * Roll back all changes done since the data set has been loaded and close
+	 * the transactional connection so that it doesn't keep any locks.
+	 */
+	public void onTearDown() throws Exception {	// NOPMD
+		if (sharedConnection == null) {
+			return;
+		}
+
+		final IDatabaseConnection connection = transactionalConnection;
+		transactionalConnection = null;
+		sharedConnection = null;
+		testStart = null;
+		try {
+			connection.getConnection().rollback();
+			connection.getConnection().setAutoCommit(true);
+		} finally {
+			actualTester.closeConnection(connection);
+		}
+	}
+
+	private void beginTransaction() throws Exception {	// NOPMD
+		transactionalConnection = actualTester.getConnection();
+		final Connection jdbcConnection = transactionalConnection.getConnection();
+		jdbcConnection.setAutoCommit(false);
+
+		final Connection guardedConnection = (Connection) Proxy.newProxyInstance(
+				Connection.class.getClassLoader()
+				, new Class[]{ Connection.class }
+				, new TransactionGuard(jdbcConnection));
+
+		sharedConnection = new DatabaseConnection(guardedConnection, transactionalConnection.getSchema());
+		DbUnitUtils.copyConfig(transactionalConnection.getConfig(), sharedConnection.getConfig());
+	}
+
+	private void rollback() throws SQLException {
+		testStart = null;
+		transactionalConnection.getConnection().rollback();
+	}
+
+	/**
+	 * Prevents the code under test from ending the transaction or closing the connection.
+	 */
+	private final class TransactionGuard implements InvocationHandler {
+
+		private final Connection connection;
+
+		TransactionGuard(final Connection connection) {
+			this.connection = connection;
+		}
+
+		public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+			final String name = method.getName();
+
+			if ("close".equals(name) || "commit".equals(name) || "setAutoCommit".equals(name)) {
+				LOG.debug("TransactionGuard: Ignoring {}() on the shared transactional connection", name);
+				return null;
+			} else if ("isClosed".equals(name)) {
+				return Boolean.FALSE;
+			} else if ("rollback".equals(name) && (args == null || args.length == 0)) {
+				if (testStart == null) {
+					connection.rollback();
+				} else {
+					connection.rollback(testStart);
+				}
+				return null;
+			} else if ("equals".equals(name)) {
+				return Boolean.valueOf(proxy == args[0]);
+			} else if ("hashCode".equals(name)) {
+				return new Integer(System.identityHashCode(proxy));
+			}
+
+			try {
+				return method.invoke(connection, args);
+			} catch (InvocationTargetException e) {
+				throw e.getTargetException();
+			}
+		}
+	}
+
+	// ####################################################### INTERFACE METHODS
+
+	/** Returns the shared transactional connection once the data has been set up. */
+	public IDatabaseConnection getConnection() throws Exception {	// NOPMD
+		if (sharedConnection == null) {
+			return actualTester.getConnection();
+		}
+		return sharedConnection;
+	}
+
+	/** The shared connection is never closed, others are closed by the actual tester. */
+	public void closeConnection(final IDatabaseConnection connection) throws Exception {	// NOPMD
+		if (connection != sharedConnection) {
+			actualTester.closeConnection(connection);
+		}
+	}
+
+	public IDataSet getDataSet() {
+		return dataSet;
+	}
+
+	public void setDataSet(final IDataSet dataSet) {
+		this.dataSet = dataSet;
+	}
+
+	public void setSetUpOperation(final DatabaseOperation setUpOperation) {
+		this.setUpOperation = setUpOperation;
+	}
+
+	/** Ignored, the tear down is always a rollback. */
+	public void setTearDownOperation(final DatabaseOperation tearDownOperation) {
+		LOG.debug("setTearDownOperation: ignored, tear down does always rollback");
+	}
+
+	/**
+	 * @deprecated since 2.4.3 Should not be used anymore.
+	 */
+	public void setSchema(final String schema) {
+		actualTester.setSchema(schema);
+	}
+
+	public void setOperationListener(final IOperationListener operationListener) {
+		actualTester.setOperationListener(operationListener);
+	}
+
+	public String toString() {
+		return "RollbackDatabaseTester(" + actualTester + ")";
+	}
+
+}
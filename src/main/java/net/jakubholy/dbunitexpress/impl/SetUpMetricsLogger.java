@@ -0,0 +1,30 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.impl;
+
+import net.jakubholy.dbunitexpress.ISetUpListener;
+import net.jakubholy.dbunitexpress.SetUpMetrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logs a summary of each set up's timings at the INFO level.
+ *
+ * @see net.jakubholy.dbunitexpress.EmbeddedDbTester#LOG_SET_UP_METRICS_PROPERTY
+ * @since 1.3.1
+ */
+public class SetUpMetricsLogger implements ISetUpListener {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SetUpMetricsLogger.class);
+
+	public void setUpFinished(final SetUpMetrics metrics) {
+		LOG.info("setUpFinished: {}", metrics);
+	}
+
+}
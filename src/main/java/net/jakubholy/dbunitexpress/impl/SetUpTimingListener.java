@@ -0,0 +1,64 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.impl;
+
+import net.jakubholy.dbunitexpress.SetUpMetrics;
+
+import org.dbunit.DefaultOperationListener;
+import org.dbunit.IOperationListener;
+import org.dbunit.database.IDatabaseConnection;
+
+/**
+ * The operation listener of the DbUnit tester wrapped by the EmbeddedDbTester:
+ * records how long DbUnit took to obtain the set up's connection as the
+ * {@link SetUpMetrics#CONNECTION connection phase} and passes all events on
+ * to the listener set via the EmbeddedDbTester's setOperationListener or,
+ * by default, to DbUnit's DefaultOperationListener, which closes the connection.
+ *
+ * @see net.jakubholy.dbunitexpress.operation.MeasuredOperation
+ * @since 1.3.1
+ */
+public class SetUpTimingListener implements IOperationListener {
+
+	private IOperationListener delegate = new DefaultOperationListener();
+	/** Null unless a set up is being measured */
+	private SetUpMetrics metrics;
+	private long start;
+
+	/** @param delegate (optional) null for DbUnit's default listener */
+	public void setDelegate(final IOperationListener delegate) {
+		this.delegate = (delegate == null)? new DefaultOperationListener() : delegate;
+	}
+
+	/** Start measuring the connection phase, just before DbUnit's set up is started. */
+	public void startTiming(final SetUpMetrics metrics) {
+		this.metrics = metrics;
+		this.start = System.currentTimeMillis();
+	}
+
+	/** Stop measuring, after the set up has finished or failed. */
+	public void stopTiming() {
+		this.metrics = null;
+	}
+
+	public void connectionRetrieved(final IDatabaseConnection connection) {
+		if (metrics != null) {
+			metrics.addPhase(SetUpMetrics.CONNECTION, System.currentTimeMillis() - start);
+		}
+		delegate.connectionRetrieved(connection);
+	}
+
+	public void operationSetUpFinished(final IDatabaseConnection connection) {
+		delegate.operationSetUpFinished(connection);
+	}
+
+	public void operationTearDownFinished(final IDatabaseConnection connection) {
+		delegate.operationTearDownFinished(connection);
+	}
+
+}
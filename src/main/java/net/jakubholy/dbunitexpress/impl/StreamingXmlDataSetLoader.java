@@ -0,0 +1,179 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.dbunit.DatabaseUnitRuntimeException;
+import org.dbunit.IDatabaseTester;
+import org.dbunit.dataset.DataSetException;
+import org.dbunit.dataset.DefaultDataSet;
+import org.dbunit.dataset.DefaultTable;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.dataset.ITableMetaData;
+import org.dbunit.dataset.stream.DefaultConsumer;
+import org.dbunit.dataset.stream.StreamingDataSet;
+import org.dbunit.dataset.xml.XmlDataSet;
+import org.dbunit.dataset.xml.XmlProducer;
+import org.dbunit.operation.DatabaseOperation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.InputSource;
+
+/**
+ * Loads a {@link XmlDataSet} file into the database without ever holding
+ * all its rows in memory: the rows are fed from the XML parser directly
+ * to the insert operation via DbUnit's {@link StreamingDataSet}.
+ * <p>
+ * A streamed data set can only be read once and only forwards while
+ * {@link DatabaseOperation#CLEAN_INSERT} needs to clean the tables in the
+ * reverse order first. Therefore CLEAN_INSERT is executed in two passes:
+ * the first pass reads only the table names and columns and deletes the
+ * tables' content, the second one streams the rows into them.
+ * Operations that only need a single forward pass (INSERT, UPDATE,
+ * REFRESH) are executed directly on the streamed data.
+ *
+ * @since 1.3.1
+ */
+public class StreamingXmlDataSetLoader {
+
+	private static final Logger LOG = LoggerFactory.getLogger(StreamingXmlDataSetLoader.class);
+
+	private final URL dataSetUrl;
+
+	/**
+	 * @param dataSetUrl (required) a file in the {@link XmlDataSet} format
+	 */
+	public StreamingXmlDataSetLoader(final URL dataSetUrl) {
+		if (dataSetUrl == null) {
+			throw new IllegalArgumentException("The argument URL dataSetUrl may not be null");
+		}
+		this.dataSetUrl = dataSetUrl;
+	}
+
+	/**
+	 * Load the data into the database using the given tester.
+	 * Notice that the tester's data set and set up operation are modified.
+	 *
+	 * @param databaseTester (required) the tester to use for executing the operations
+	 * @param setUpOperation (required) CLEAN_INSERT or an operation supporting
+	 * 	streamed data sets (INSERT, UPDATE, REFRESH)
+	 * @throws IllegalArgumentException If the operation cannot work with a streamed data set
+	 * @throws Exception thrown by {@link IDatabaseTester#onSetup()}
+	 */
+	public void load(final IDatabaseTester databaseTester, final DatabaseOperation setUpOperation) throws Exception {	// NOPMD
+		LOG.debug("load({}): entry with the operation {}", dataSetUrl, setUpOperation);
+
+		if (!isSupported(setUpOperation)) {
+			throw new IllegalArgumentException("The set up operation " + setUpOperation +
+					" isn't supported with a streamed data set, which can be only iterated once" +
+					" and only forwards; use CLEAN_INSERT, INSERT, UPDATE, or REFRESH");
+		}
+
+		DatabaseOperation rowsOperation = setUpOperation;
+
+		if (setUpOperation == DatabaseOperation.CLEAN_INSERT) {
+			// 1st pass: clean, with the tables' metadata only
+			databaseTester.setSetUpOperation(DatabaseOperation.DELETE_ALL);
+			databaseTester.setDataSet(readTablesWithoutRows());
+			databaseTester.onSetup();
+			rowsOperation = DatabaseOperation.INSERT;
+		}
+
+		// 2nd pass: stream the rows
+		final InputStream xmlStream = openStream();
+		try {
+			databaseTester.setSetUpOperation(rowsOperation);
+			databaseTester.setDataSet(new StreamingDataSet(new XmlProducer(new InputSource(xmlStream))));
+			databaseTester.onSetup();
+		} finally {
+			try {
+				xmlStream.close();
+			} catch (IOException e) {
+				LOG.debug("load: Failed to close the stream of " + dataSetUrl, e);
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the operation can be executed by {@link #load(IDatabaseTester, DatabaseOperation)},
+	 * i.e. if it is CLEAN_INSERT or needs only a single forward pass over the data.
+	 */
+	public static boolean isSupported(final DatabaseOperation setUpOperation) {
+		return setUpOperation == DatabaseOperation.CLEAN_INSERT
+			|| setUpOperation == DatabaseOperation.INSERT
+			|| setUpOperation == DatabaseOperation.UPDATE
+			|| setUpOperation == DatabaseOperation.REFRESH;
+	}
+
+	/**
+	 * Read the whole data set into memory, for the rare cases when the rows are
+	 * needed outside of {@link #load(IDatabaseTester, DatabaseOperation)}.
+	 * @throws DataSetException If the file isn't a valid XML data set
+	 * @throws DatabaseUnitRuntimeException If the file cannot be read
+	 */
+	public IDataSet readFully() throws DataSetException, DatabaseUnitRuntimeException {
+		final InputStream xmlStream = openStream();
+		try {
+			return new XmlDataSet(xmlStream);
+		} finally {
+			try {
+				xmlStream.close();
+			} catch (IOException e) {
+				LOG.debug("readFully: Failed to close the stream of " + dataSetUrl, e);
+			}
+		}
+	}
+
+	/**
+	 * Read the data set's tables without their rows, keeping memory consumption low.
+	 * @return a data set with all the tables, empty
+	 * @throws DataSetException If the file isn't a valid XML data set
+	 */
+	public IDataSet readTablesWithoutRows() throws DataSetException {
+		final DefaultDataSet tables = new DefaultDataSet();
+		final Set tableNames = new HashSet();
+		final InputStream xmlStream = openStream();
+		try {
+			final XmlProducer producer = new XmlProducer(new InputSource(xmlStream));
+			producer.setConsumer(new DefaultConsumer() {
+				public void startTable(final ITableMetaData metaData) throws DataSetException {
+					// A table may be listed repeatedly, DefaultDataSet doesn't permit that
+					if (tableNames.add(metaData.getTableName().toUpperCase())) {
+						tables.addTable(new DefaultTable(metaData));
+					}
+				}
+			});
+			producer.produce();
+		} finally {
+			try {
+				xmlStream.close();
+			} catch (IOException e) {
+				LOG.debug("readTablesWithoutRows: Failed to close the stream of " + dataSetUrl, e);
+			}
+		}
+		return tables;
+	}
+
+	private InputStream openStream() throws DatabaseUnitRuntimeException {
+		try {
+			return dataSetUrl.openStream();
+		} catch (IOException e) {
+			throw new DatabaseUnitRuntimeException("Failed to read the data set " + dataSetUrl, e);
+		}
+	}
+
+	public String toString() {
+		return "StreamingXmlDataSetLoader(" + dataSetUrl + ")";
+	}
+
+}
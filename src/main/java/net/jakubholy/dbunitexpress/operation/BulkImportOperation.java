@@ -0,0 +1,232 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.operation;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.CallableStatement;
+import java.sql.SQLException;
+
+import net.jakubholy.dbunitexpress.util.DbUnitUtils;
+
+import org.dbunit.DatabaseUnitException;
+import org.dbunit.database.IDatabaseConnection;
+import org.dbunit.dataset.Column;
+import org.dbunit.dataset.DefaultDataSet;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.dataset.ITable;
+import org.dbunit.dataset.ITableIterator;
+import org.dbunit.dataset.ITableMetaData;
+import org.dbunit.dataset.datatype.BytesDataType;
+import org.dbunit.dataset.datatype.DataType;
+import org.dbunit.operation.AbstractOperation;
+import org.dbunit.operation.DatabaseOperation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A CLEAN_INSERT that loads the tables with many rows via Derby's bulk import
+ * instead of inserting the rows one by one through JDBC: it writes the rows
+ * into a temporary CSV file and calls SYSCS_UTIL.SYSCS_IMPORT_DATA, which
+ * skips most of the per-row overhead and is much faster for huge tables.
+ * Tables with fewer rows than the threshold are inserted as usual.
+ * <p>
+ * If the database isn't Derby then it is a plain CLEAN_INSERT.
+ * <p>
+ * To be used via {@link net.jakubholy.dbunitexpress.EmbeddedDbTester#setSetUpOperation(DatabaseOperation)},
+ * the property dbunit-express.setUpOperation={@value DatabaseOperationFactory#BULK_IMPORT}
+ * or dbunit-express.bulkImportThreshold, which also makes replaceDatabase use it.
+ *
+ * <h4>Limitations</h4>
+ * <ul>
+ * 	<li>Missing values (columns not specified for a row) are imported as NULL
+ * 		instead of the column's default value.
+ * 	<li>Tables with binary columns are always inserted via JDBC.
+ * 	<li>It cannot be used with streamed data sets.
+ * </ul>
+ *
+ * @since 1.3.1
+ */
+public class BulkImportOperation extends AbstractOperation {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BulkImportOperation.class);
+
+	/** The default minimal number of rows of a table to import it in bulk. */
+	public static final int DEFAULT_ROW_THRESHOLD = 10000;
+
+	private static final String IMPORT_SQL = "CALL SYSCS_UTIL.SYSCS_IMPORT_DATA(?, ?, ?, null, ?, null, null, 'UTF-8', 0)";
+
+	private static final char CHARACTER_DELIMITER = '"';
+
+	private final int rowThreshold;
+
+	/** Import tables with at least {@value #DEFAULT_ROW_THRESHOLD} rows. */
+	public BulkImportOperation() {
+		this(DEFAULT_ROW_THRESHOLD);
+	}
+
+	/**
+	 * @param rowThreshold (&gt; 0) tables with at least so many rows are imported in bulk
+	 */
+	public BulkImportOperation(final int rowThreshold) {
+		if (rowThreshold <= 0) {
+			throw new IllegalArgumentException("The row threshold must be positive, is: " + rowThreshold);
+		}
+		this.rowThreshold = rowThreshold;
+	}
+
+	public void execute(final IDatabaseConnection connection, final IDataSet dataSet)
+			throws DatabaseUnitException, SQLException {
+
+		if (!DbUnitUtils.isDerby(connection.getConnection())) {
+			LOG.debug("execute: Not a Derby database, using CLEAN_INSERT");
+			DatabaseOperation.CLEAN_INSERT.execute(connection, dataSet);
+			return;
+		}
+
+		DatabaseOperation.DELETE_ALL.execute(connection, dataSet);
+
+		final IDataSet databaseDataSet = connection.createDataSet();
+		final String defaultSchema = DerbyTrackingSupport.getDefaultSchema(connection);
+
+		for (final ITableIterator iterator = dataSet.iterator(); iterator.next();) {
+			final ITable table = iterator.getTable();
+			final String tableName = table.getTableMetaData().getTableName();
+			final Column[] columns = getDatabaseColumns(table.getTableMetaData()
+					, databaseDataSet.getTableMetaData(tableName));
+
+			if (table.getRowCount() >= rowThreshold && !hasBinaryColumn(columns)) {
+				importTable(connection, DerbyTrackingSupport.qualify(tableName, defaultSchema), table, columns);
+			} else {
+				DatabaseOperation.INSERT.execute(connection, new DefaultDataSet(table));
+			}
+		}
+	}
+
+	/** Returns the data set's columns with the DB's names and types. */
+	private static Column[] getDatabaseColumns(final ITableMetaData dataSetMetaData
+			, final ITableMetaData databaseMetaData) throws DatabaseUnitException {
+		final Column[] dataSetColumns = dataSetMetaData.getColumns();
+		final Column[] databaseColumns = databaseMetaData.getColumns();
+		final Column[] columns = new Column[dataSetColumns.length];
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = databaseColumns[databaseMetaData.getColumnIndex(dataSetColumns[i].getColumnName())];
+		}
+		return columns;
+	}
+
+	private static boolean hasBinaryColumn(final Column[] columns) {
+		for (int i = 0; i < columns.length; i++) {
+			if (columns[i].getDataType() instanceof BytesDataType) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void importTable(final IDatabaseConnection connection, final String qualifiedTableName
+			, final ITable table, final Column[] columns) throws DatabaseUnitException, SQLException {
+
+		final long start = System.currentTimeMillis();
+		final File csvFile = writeCsvFile(table, columns);
+		try {
+			final int schemaEnd = qualifiedTableName.indexOf('.');
+			final StringBuffer insertColumns = new StringBuffer();
+			for (int i = 0; i < columns.length; i++) {
+				insertColumns.append((i == 0)? "" : ",").append(columns[i].getColumnName());
+			}
+
+			final CallableStatement statement = connection.getConnection().prepareCall(IMPORT_SQL);
+			try {
+				statement.setString(1, qualifiedTableName.substring(0, schemaEnd));
+				statement.setString(2, qualifiedTableName.substring(schemaEnd + 1));
+				statement.setString(3, insertColumns.toString());
+				statement.setString(4, csvFile.getAbsolutePath());
+				statement.execute();
+			} finally {
+				statement.close();
+			}
+		} finally {
+			if (!csvFile.delete()) {
+				LOG.warn("importTable: Failed to delete the temporary file " + csvFile);
+			}
+		}
+
+		LOG.info("importTable: Imported " + table.getRowCount() + " rows into " + qualifiedTableName +
+				" in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Write the rows into a CSV file in Derby's import format: an unquoted empty
+	 * field is NULL, all other values are quoted.
+	 */
+	private File writeCsvFile(final ITable table, final Column[] columns) throws DatabaseUnitException {
+		final File csvFile;
+		try {
+			csvFile = File.createTempFile("dbunit-express-import-", ".csv");
+		} catch (IOException e) {
+			throw new DatabaseUnitException("Failed to create a temporary file for import", e);
+		}
+
+		boolean written = false;
+		try {
+			final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csvFile), "UTF-8"));
+			try {
+				final int rowCount = table.getRowCount();
+				for (int row = 0; row < rowCount; row++) {
+					for (int i = 0; i < columns.length; i++) {
+						if (i > 0) {
+							writer.write(',');
+						}
+						final Object value = table.getValue(row, columns[i].getColumnName());
+						if (value != null && value != ITable.NO_VALUE) {
+							writeQuoted(writer, DataType.asString(columns[i].getDataType().typeCast(value)));
+						}
+					}
+					writer.write('\n');
+				}
+			} finally {
+				writer.close();
+			}
+			written = true;
+			return csvFile;
+		} catch (IOException e) {
+			throw new DatabaseUnitException("Failed to write the rows of " +
+					table.getTableMetaData().getTableName() + " into the temporary file " + csvFile, e);
+		} finally {
+			if (!written) {
+				csvFile.delete();	// NOPMD
+			}
+		}
+	}
+
+	private static void writeQuoted(final Writer writer, final String value) throws IOException {
+		writer.write(CHARACTER_DELIMITER);
+		for (int i = 0; i < value.length(); i++) {
+			final char character = value.charAt(i);
+			if (character == CHARACTER_DELIMITER) {
+				writer.write(CHARACTER_DELIMITER);
+			}
+			writer.write(character);
+		}
+		writer.write(CHARACTER_DELIMITER);
+	}
+
+	public int getRowThreshold() {
+		return rowThreshold;
+	}
+
+	public String toString() {
+		return "BulkImportOperation(rowThreshold=" + rowThreshold + ")";
+	}
+
+}
@@ -0,0 +1,91 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.operation;
+
+import org.dbunit.operation.DatabaseOperation;
+
+/**
+ * Translates the name of a set up operation, as used e.g. in the
+ * dbunit-express.properties, into the operation itself.
+ * Supports DbUnit's standard operations and those of DbUnit Express.
+ *
+ * @since 1.3.1
+ */
+public final class DatabaseOperationFactory {
+
+	/** The default: delete all rows of the data set's tables and insert the data. */
+	public static final String CLEAN_INSERT = "CLEAN_INSERT";
+
+	/** See {@link SnapshotRestoreOperation}. */
+	public static final String SNAPSHOT_RESTORE = "SNAPSHOT_RESTORE";
+
+	/** See {@link DirtyTablesRefreshOperation}. */
+	public static final String DIRTY_TABLES = "DIRTY_TABLES";
+
+	/** See {@link UndoLogResetOperation}. */
+	public static final String UNDO_LOG = "UNDO_LOG";
+
+	/** See {@link SmartRefreshOperation}. */
+	public static final String SMART_REFRESH = "SMART_REFRESH";
+
+	/** See {@link BulkImportOperation}, with the default row threshold. */
+	public static final String BULK_IMPORT = "BULK_IMPORT";
+
+	/** CLEAN_INSERT cleaning via TRUNCATE, see {@link TruncateTablesOperation}. */
+	public static final String TRUNCATE_INSERT = "TRUNCATE_INSERT";
+
+	private DatabaseOperationFactory() {}
+
+	/**
+	 * Returns the operation with the given name.
+	 * @param name (required) one of the constants of this class or the name of
+	 * 	a constant of {@link DatabaseOperation} such as INSERT, REFRESH; case-insensitive
+	 * @return the operation (never null)
+	 * @throws IllegalArgumentException If there is no such operation
+	 */
+	public static DatabaseOperation getOperation(final String name) throws IllegalArgumentException {
+		if (name == null) {
+			throw new IllegalArgumentException("The argument String name may not be null");
+		}
+
+		final String normalizedName = name.trim().toUpperCase();
+
+		if (CLEAN_INSERT.equals(normalizedName)) {
+			return DatabaseOperation.CLEAN_INSERT;
+		} else if (SNAPSHOT_RESTORE.equals(normalizedName)) {
+			return new SnapshotRestoreOperation();
+		} else if (DIRTY_TABLES.equals(normalizedName)) {
+			return new DirtyTablesRefreshOperation();
+		} else if (UNDO_LOG.equals(normalizedName)) {
+			return new UndoLogResetOperation();
+		} else if (SMART_REFRESH.equals(normalizedName)) {
+			return new SmartRefreshOperation();
+		} else if (BULK_IMPORT.equals(normalizedName)) {
+			return new BulkImportOperation();
+		} else if (TRUNCATE_INSERT.equals(normalizedName)) {
+			return TruncateTablesOperation.TRUNCATE_INSERT;
+		} else if ("INSERT".equals(normalizedName)) {
+			return DatabaseOperation.INSERT;
+		} else if ("REFRESH".equals(normalizedName)) {
+			return DatabaseOperation.REFRESH;
+		} else if ("UPDATE".equals(normalizedName)) {
+			return DatabaseOperation.UPDATE;
+		} else if ("DELETE_ALL".equals(normalizedName)) {
+			return DatabaseOperation.DELETE_ALL;
+		} else if ("NONE".equals(normalizedName)) {
+			return DatabaseOperation.NONE;
+		} else {
+			throw new IllegalArgumentException("Unknown set up operation '" + name +
+					"'; supported are: " + CLEAN_INSERT + ", " + SNAPSHOT_RESTORE +
+					", " + DIRTY_TABLES + ", " + UNDO_LOG + ", " + SMART_REFRESH + ", " + BULK_IMPORT +
+					", " + TRUNCATE_INSERT +
+					", INSERT, REFRESH, UPDATE, DELETE_ALL, NONE");
+		}
+	}
+
+}
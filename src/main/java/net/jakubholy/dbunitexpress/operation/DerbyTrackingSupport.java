@@ -0,0 +1,128 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.operation;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.dbunit.database.IDatabaseConnection;
+import org.dbunit.dataset.DataSetException;
+import org.dbunit.dataset.IDataSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Helpers shared by the operations that track changes via Derby triggers.
+ *
+ * @since 1.3.1
+ */
+final class DerbyTrackingSupport {
+
+	private static final Logger LOG = LoggerFactory.getLogger(DerbyTrackingSupport.class);
+
+	/** The schema for our own tracking objects (tables, sequences). */
+	static final String SCHEMA = "DBUNIT_EXPRESS";
+
+	private static final int MAX_IDENTIFIER_LENGTH = 128;
+
+	/** Derby's SQLState for "object already exists in schema" (tables, triggers) */
+	private static final String SQLSTATE_OBJECT_EXISTS = "X0Y32";
+	/** Derby's SQLState for "object already exists" (schemas, sequences) */
+	private static final String SQLSTATE_SCHEMA_EXISTS = "X0Y68";
+
+	private DerbyTrackingSupport() {}
+
+	/** Execute the DDL unless it fails because the object already exists. */
+	static void executeUnlessExists(final Statement statement, final String sql) throws SQLException {
+		try {
+			statement.executeUpdate(sql);
+		} catch (SQLException e) {
+			if (SQLSTATE_OBJECT_EXISTS.equals(e.getSQLState())
+					|| SQLSTATE_SCHEMA_EXISTS.equals(e.getSQLState())) {
+				LOG.debug("executeUnlessExists: Already exists: {}", sql);
+			} else {
+				throw e;
+			}
+		}
+	}
+
+	/** Execute the DDL ignoring any failure, e.g. dropping an object that may not exist. */
+	static void executeIgnoringFailure(final Statement statement, final String sql) {
+		try {
+			statement.executeUpdate(sql);
+		} catch (SQLException e) {
+			LOG.debug("executeIgnoringFailure: Failed, ignoring: " + sql + ": " + e.getMessage());
+		}
+	}
+
+	/** Returns the schema of unqualified table names, upper-case. */
+	static String getDefaultSchema(final IDatabaseConnection connection) throws SQLException {
+		if (connection.getSchema() != null) {
+			return connection.getSchema().toUpperCase();
+		}
+		final Statement statement = connection.getConnection().createStatement();
+		try {
+			final ResultSet schema = statement.executeQuery("VALUES CURRENT SCHEMA");
+			schema.next();
+			final String result = schema.getString(1);
+			schema.close();
+			return result;
+		} finally {
+			statement.close();
+		}
+	}
+
+	/** Returns the upper-case "SCHEMA.TABLE" for the given, possibly unqualified, name. */
+	static String qualify(final String tableName, final String defaultSchema) {
+		final String upperCaseName = tableName.toUpperCase();
+		return (upperCaseName.indexOf('.') >= 0)? upperCaseName : defaultSchema + "." + upperCaseName;
+	}
+
+	/**
+	 * Returns true if a DDL creating objects in the given schemas may affect
+	 * the data set's tables: if a table is in one of them or unqualified or
+	 * if the schemas aren't known.
+	 * @param schemas (required) upper-case names, empty if not known
+	 */
+	static boolean isAffected(final IDataSet dataSet, final String[] schemas) {
+		if (schemas.length == 0) {
+			return true;
+		}
+		final Set affectedSchemas = new HashSet(Arrays.asList(schemas));
+		try {
+			final String[] tableNames = dataSet.getTableNames();
+			for (int i = 0; i < tableNames.length; i++) {
+				final int schemaEnd = tableNames[i].indexOf('.');
+				if (schemaEnd < 0 || affectedSchemas.contains(tableNames[i].substring(0, schemaEnd).toUpperCase())) {
+					return true;
+				}
+			}
+			return false;
+		} catch (DataSetException e) {
+			LOG.debug("isAffected: Failed to read the table names, assuming affected: " + e);
+			return true;
+		}
+	}
+
+	/** Returns the name truncated to the maximal length of a Derby identifier. */
+	static String toIdentifier(final String name) {
+		return (name.length() > MAX_IDENTIFIER_LENGTH)? name.substring(0, MAX_IDENTIFIER_LENGTH) : name;
+	}
+
+	static void commitIfNecessary(final Connection connection) throws SQLException {
+		if (!connection.getAutoCommit()) {
+			connection.commit();
+		}
+	}
+
+}
@@ -0,0 +1,260 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.operation;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.jakubholy.dbunitexpress.util.DbUnitUtils;
+
+import org.dbunit.DatabaseUnitException;
+import org.dbunit.database.IDatabaseConnection;
+import org.dbunit.dataset.FilteredDataSet;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.operation.DatabaseOperation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A set up operation that cleans and re-inserts only the tables that have
+ * been modified since the last set up (plus the tables referencing them via
+ * foreign keys) instead of all the tables of the data set.
+ * <p>
+ * The first execution does a CLEAN_INSERT and installs on each table of the
+ * data set Derby triggers that record any INSERT, UPDATE or DELETE in the
+ * marker table {@value #MARKER_TABLE}. Subsequent executions with the same
+ * data set only reload the recorded tables.
+ * <p>
+ * To be used via {@link net.jakubholy.dbunitexpress.EmbeddedDbTester#setSetUpOperation(DatabaseOperation)}
+ * or by setting the property dbunit-express.setUpOperation to
+ * {@value DatabaseOperationFactory#DIRTY_TABLES}.
+ *
+ * <h4>Limitations</h4>
+ * <ul>
+ * 	<li>Works only with Derby, for other databases it just does CLEAN_INSERT.
+ * 	<li>As {@link SnapshotRestoreOperation}, it relies on the data set instance
+ * 		being the same for the same file; any other data set causes a full CLEAN_INSERT.
+ * 	<li>Changes that don't fire triggers (e.g. the import procedures) aren't
+ * 		detected; Derby also refuses TRUNCATE TABLE on the tracked tables.
+ * 	<li>The triggers stay in the database; they are removed only by re-creating
+ * 		the tables, e.g. by the {@link net.jakubholy.dbunitexpress.DatabaseCreator}.
+ * 	<li>Table names are treated as case-insensitive (i.e. not quoted).
+ * </ul>
+ *
+ * @since 1.3.1
+ */
+public class DirtyTablesRefreshOperation extends DatabaseOperation {
+
+	private static final Logger LOG = LoggerFactory.getLogger(DirtyTablesRefreshOperation.class);
+
+	/** The table where the triggers record the names of the modified tables. */
+	public static final String MARKER_TABLE = DerbyTrackingSupport.SCHEMA + ".DIRTY_TABLES";
+
+	private static final String TRIGGER_PREFIX = "DBX_DIRTY_";
+	private static final String[] TRIGGERED_OPERATIONS = new String[]{ "INSERT", "UPDATE", "DELETE" };
+
+	/** The data sets being tracked, shared among all instances: Map&lt;String dbUrl, IDataSet&gt;. */
+	private static final Map trackedDataSets = new HashMap();
+
+	public void execute(final IDatabaseConnection connection, final IDataSet dataSet)
+			throws DatabaseUnitException, SQLException {
+
+		final Connection jdbcConnection = connection.getConnection();
+
+		if (!DbUnitUtils.isDerby(jdbcConnection)) {
+			LOG.debug("execute: Not a Derby database, falling back to CLEAN_INSERT");
+			DatabaseOperation.CLEAN_INSERT.execute(connection, dataSet);
+			return;
+		}
+
+		final String dbUrl = jdbcConnection.getMetaData().getURL();
+
+		final IDataSet trackedDataSet;
+		synchronized (trackedDataSets) {
+			trackedDataSet = (IDataSet) trackedDataSets.get(dbUrl);
+		}
+
+		if (trackedDataSet == dataSet) {
+			reloadDirtyTables(connection, dataSet);
+		} else {
+			DatabaseOperation.CLEAN_INSERT.execute(connection, dataSet);
+			installTracking(connection, dataSet);
+			synchronized (trackedDataSets) {
+				trackedDataSets.put(dbUrl, dataSet);
+			}
+		}
+	}
+
+	private void reloadDirtyTables(final IDatabaseConnection connection, final IDataSet dataSet)
+			throws DatabaseUnitException, SQLException {
+
+		final Set dirtyTables = readDirtyTables(connection.getConnection());
+		if (dirtyTables.isEmpty()) {
+			LOG.debug("reloadDirtyTables: No table modified since the last set up, nothing to do");
+			return;
+		}
+
+		final String defaultSchema = DerbyTrackingSupport.getDefaultSchema(connection);
+		final String[] tableNames = dataSet.getTableNames();
+
+		final Set dataSetTables = new HashSet();
+		for (int i = 0; i < tableNames.length; i++) {
+			dataSetTables.add(DerbyTrackingSupport.qualify(tableNames[i], defaultSchema));
+		}
+
+		final Set tablesToReload = addDependentTables(connection.getConnection(), dirtyTables, dataSetTables);
+
+		// Keep the data set's order so that the parents are inserted first
+		final List reloadedNames = new ArrayList();
+		for (int i = 0; i < tableNames.length; i++) {
+			if (tablesToReload.contains(DerbyTrackingSupport.qualify(tableNames[i], defaultSchema))) {
+				reloadedNames.add(tableNames[i]);
+			}
+		}
+
+		if (!reloadedNames.isEmpty()) {
+			DatabaseOperation.CLEAN_INSERT.execute(connection, new FilteredDataSet(
+					(String[]) reloadedNames.toArray(new String[reloadedNames.size()]), dataSet));
+		}
+		clearMarkers(connection.getConnection());
+
+		LOG.info("reloadDirtyTables: Reloaded " + reloadedNames.size() + " of " +
+				tableNames.length + " tables: " + reloadedNames);
+	}
+
+	/**
+	 * Add to the dirty tables all tables of the data set that reference them,
+	 * directly or indirectly; they must be cleaned too to be able to delete
+	 * the dirty ones.
+	 * @return the dirty tables and their dependants that are in the data set
+	 */
+	private Set addDependentTables(final Connection connection, final Set dirtyTables, final Set dataSetTables)
+			throws SQLException {
+
+		final ForeignKeyGraph foreignKeys = ForeignKeyGraph.getInstance(connection);
+		final Set result = new HashSet();
+		final LinkedList toProcess = new LinkedList(dirtyTables);
+
+		while (!toProcess.isEmpty()) {
+			final String table = (String) toProcess.removeFirst();
+			if (!dataSetTables.contains(table) || !result.add(table)) {
+				continue;
+			}
+			toProcess.addAll(foreignKeys.getReferencingTables(connection, table));
+		}
+
+		return result;
+	}
+
+	private Set readDirtyTables(final Connection connection) throws SQLException {
+		final Set dirtyTables = new HashSet();
+		final Statement statement = connection.createStatement();
+		try {
+			final ResultSet rows = statement.executeQuery("SELECT DISTINCT TABLE_NAME FROM " + MARKER_TABLE);
+			while (rows.next()) {
+				dirtyTables.add(rows.getString(1));
+			}
+			rows.close();
+		} finally {
+			statement.close();
+		}
+		return dirtyTables;
+	}
+
+	private void clearMarkers(final Connection connection) throws SQLException {
+		final Statement statement = connection.createStatement();
+		try {
+			statement.executeUpdate("DELETE FROM " + MARKER_TABLE);
+		} finally {
+			statement.close();
+		}
+		DerbyTrackingSupport.commitIfNecessary(connection);
+	}
+
+	/**
+	 * Create the marker table and the triggers on all the data set's tables
+	 * unless they already exist (e.g. from a previous run).
+	 */
+	private void installTracking(final IDatabaseConnection connection, final IDataSet dataSet)
+			throws DatabaseUnitException, SQLException {
+
+		final String defaultSchema = DerbyTrackingSupport.getDefaultSchema(connection);
+		final String[] tableNames = dataSet.getTableNames();
+		final Statement statement = connection.getConnection().createStatement();
+		try {
+			DerbyTrackingSupport.executeUnlessExists(statement, "CREATE SCHEMA " + DerbyTrackingSupport.SCHEMA);
+			DerbyTrackingSupport.executeUnlessExists(statement, "CREATE TABLE " + MARKER_TABLE + " (TABLE_NAME VARCHAR(257) NOT NULL)");
+
+			for (int i = 0; i < tableNames.length; i++) {
+				final String table = DerbyTrackingSupport.qualify(tableNames[i], defaultSchema);
+				final String schema = table.substring(0, table.indexOf('.'));
+				final String unqualifiedName = table.substring(schema.length() + 1);
+
+				for (int op = 0; op < TRIGGERED_OPERATIONS.length; op++) {
+					final String triggerName = DerbyTrackingSupport.toIdentifier(
+							TRIGGER_PREFIX + TRIGGERED_OPERATIONS[op].charAt(0) + "_" + unqualifiedName);
+					DerbyTrackingSupport.executeUnlessExists(statement, "CREATE TRIGGER " + schema + "." + triggerName +
+							" AFTER " + TRIGGERED_OPERATIONS[op] + " ON " + table +
+							" FOR EACH STATEMENT INSERT INTO " + MARKER_TABLE +
+							" (TABLE_NAME) VALUES ('" + table + "')");
+				}
+			}
+		} finally {
+			statement.close();
+		}
+
+		clearMarkers(connection.getConnection());
+		LOG.info("installTracking: Tracking modifications of the " + tableNames.length + " tables of the data set");
+	}
+
+	/**
+	 * Forget the data set tracked in the database if the DDL creating objects
+	 * in the given schemas may have affected its tables (and their triggers).
+	 * @param dbUrl (required) the JDBC URL of the database, with or without
+	 * 	connection attributes
+	 * @param schemas (required) upper-case schemas changed, empty if not known
+	 */
+	public static void resetTracking(final String dbUrl, final String[] schemas) {
+		final String baseUrl = DbUnitUtils.toBaseUrl(dbUrl);
+		synchronized (trackedDataSets) {
+			for (final Iterator iterator = trackedDataSets.entrySet().iterator(); iterator.hasNext();) {
+				final Map.Entry tracked = (Map.Entry) iterator.next();
+				if (baseUrl.equals(DbUnitUtils.toBaseUrl((String) tracked.getKey()))
+						&& DerbyTrackingSupport.isAffected((IDataSet) tracked.getValue(), schemas)) {
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forget the tracked data sets so that the next execution will do a full
+	 * CLEAN_INSERT and re-install the triggers. Necessary e.g. when the
+	 * database schema changes.
+	 */
+	public static void resetTracking() {
+		synchronized (trackedDataSets) {
+			trackedDataSets.clear();
+		}
+	}
+
+	public String toString() {
+		return "DirtyTablesRefreshOperation";
+	}
+
+}
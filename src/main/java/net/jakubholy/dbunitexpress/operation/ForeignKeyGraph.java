@@ -0,0 +1,259 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.operation;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.jakubholy.dbunitexpress.util.DbUnitUtils;
+import net.jakubholy.dbunitexpress.util.MetadataSnapshot;
+
+import org.dbunit.database.IDatabaseConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The foreign key dependencies between tables, used to order the tables for
+ * cleaning (referencing tables first) and inserting (referenced tables first).
+ * <p>
+ * The graph is cached per database URL so that the metadata isn't read again
+ * for every set up. For Derby, all foreign keys are taken from the
+ * {@link MetadataSnapshot}, which reads them by a single query, and the cached
+ * graph is reused as long as the snapshot is current, i.e. until a schema
+ * change is detected after {@link MetadataSnapshot#checkForChangesOnNextUse()}. For other
+ * databases the dependants of each table are read via JDBC metadata when
+ * first needed and cached until {@link #invalidateAll()}, which is called
+ * e.g. by the DatabaseCreator when it executes a DDL.
+ * <p>
+ * Table names are qualified, i.e. "SCHEMA.TABLE", and upper-case in Derby.
+ *
+ * @since 1.3.1
+ */
+public final class ForeignKeyGraph {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ForeignKeyGraph.class);
+
+	/** Map&lt;String dbUrl, ForeignKeyGraph&gt; */
+	private static final Map graphs = new HashMap();
+
+	/** The snapshot the graph has been built from. */
+	private final MetadataSnapshot snapshot;
+	/** True if all dependencies have been loaded, false if loaded lazily per table. */
+	private final boolean complete;
+	/** Map&lt;String table, Set&lt;String&gt; tables referencing it&gt; */
+	private final Map referencingTables = new HashMap();
+
+	private ForeignKeyGraph(final MetadataSnapshot snapshot) {
+		this.snapshot = snapshot;
+		this.complete = snapshot.getForeignKeys() != null;
+	}
+
+	/**
+	 * Returns the cached graph for the connection's database, loading it if
+	 * not cached yet or if the schema has changed (Derby only).
+	 */
+	public static ForeignKeyGraph getInstance(final Connection connection) throws SQLException {
+		final String dbUrl = connection.getMetaData().getURL();
+		final MetadataSnapshot currentSnapshot = MetadataSnapshot.getInstance(connection);
+
+		synchronized (graphs) {
+			ForeignKeyGraph graph = (ForeignKeyGraph) graphs.get(dbUrl);
+			if (graph != null && graph.snapshot == currentSnapshot) {
+				return graph;
+			}
+
+			graph = new ForeignKeyGraph(currentSnapshot);
+			if (graph.complete) {
+				graph.addForeignKeys(currentSnapshot.getForeignKeys());
+			}
+			graphs.put(dbUrl, graph);
+			return graph;
+		}
+	}
+
+	/**
+	 * Forget the cached graph of the database because its schema has changed.
+	 * @param dbUrl (required) the JDBC URL of the database, with or without
+	 * 	connection attributes
+	 */
+	public static void invalidate(final String dbUrl) {
+		synchronized (graphs) {
+			DbUnitUtils.removeDatabase(graphs, dbUrl);
+		}
+	}
+
+	/** Forget all cached graphs, e.g. because the schema has changed. */
+	public static void invalidateAll() {
+		synchronized (graphs) {
+			graphs.clear();
+		}
+	}
+
+	/** @param foreignKeys List&lt;String[] {referenced table, referencing table}&gt; */
+	private void addForeignKeys(final List foreignKeys) {
+		for (final Iterator iterator = foreignKeys.iterator(); iterator.hasNext();) {
+			final String[] foreignKey = (String[]) iterator.next();
+			addDependency(foreignKey[0], foreignKey[1]);
+		}
+		LOG.debug("addForeignKeys: Loaded the dependencies {}", referencingTables);
+	}
+
+	private void addDependency(final String referencedTable, final String referencingTable) {
+		Set referencing = (Set) referencingTables.get(referencedTable);
+		if (referencing == null) {
+			referencing = new HashSet();
+			referencingTables.put(referencedTable, referencing);
+		}
+		referencing.add(referencingTable);
+	}
+
+	/**
+	 * Returns the tables with a foreign key referencing the given one,
+	 * including the table itself if it references itself.
+	 * @param connection (required) used to read the dependencies if not known yet
+	 * @param table (required) qualified table name
+	 * @return unmodifiable set of qualified table names, possibly empty
+	 */
+	public synchronized Set getReferencingTables(final Connection connection, final String table) throws SQLException {
+		if (!complete && !referencingTables.containsKey(table)) {
+			final Set referencing = new HashSet();
+			final int dot = table.indexOf('.');
+			final ResultSet dependants = connection.getMetaData().getExportedKeys(null
+					, (dot < 0)? null : table.substring(0, dot), table.substring(dot + 1));
+			try {
+				while (dependants.next()) {
+					referencing.add(dependants.getString("FKTABLE_SCHEM") + "." +
+							dependants.getString("FKTABLE_NAME"));
+				}
+			} finally {
+				dependants.close();
+			}
+			referencingTables.put(table, referencing);
+		}
+
+		final Set referencing = (Set) referencingTables.get(table);
+		return (referencing == null)? Collections.EMPTY_SET : Collections.unmodifiableSet(referencing);
+	}
+
+	/** Returns true if any table, including the table itself, has a foreign key referencing it. */
+	public boolean isReferenced(final Connection connection, final String table) throws SQLException {
+		return !getReferencingTables(connection, table).isEmpty();
+	}
+
+	/**
+	 * Topologically sort the tables so that each comes before the tables it
+	 * references, i.e. the order for deleting their rows. Self-references are
+	 * ignored. Tables in a dependency cycle cannot be ordered; they are
+	 * logged and put at the end sorted by name, so that the result is the same
+	 * in every run.
+	 * @param tables (required) qualified table names
+	 * @return List&lt;String&gt; of the tables
+	 */
+	public List sortReferencingFirst(final Connection connection, final Collection tables) throws SQLException {
+		// Map<String table, Set<String> tables in the collection it references>
+		final Map referencedTables = new HashMap();
+		// Map<String table, int[] number of tables in the collection referencing it>
+		final Map referencingCounts = new HashMap();
+		for (final Iterator iterator = tables.iterator(); iterator.hasNext();) {
+			final String table = (String) iterator.next();
+			referencedTables.put(table, new HashSet());
+			referencingCounts.put(table, new int[1]);
+		}
+
+		for (final Iterator iterator = tables.iterator(); iterator.hasNext();) {
+			final String table = (String) iterator.next();
+			for (final Iterator referencing = getReferencingTables(connection, table).iterator(); referencing.hasNext();) {
+				final String referencingTable = (String) referencing.next();
+				if (!referencingTable.equals(table) && referencedTables.containsKey(referencingTable)
+						&& ((Set) referencedTables.get(referencingTable)).add(table)) {
+					((int[]) referencingCounts.get(table))[0]++;
+				}
+			}
+		}
+
+		final List sorted = new ArrayList(tables.size());
+		final LinkedList ready = new LinkedList();
+		for (final Iterator iterator = tables.iterator(); iterator.hasNext();) {
+			final String table = (String) iterator.next();
+			if (((int[]) referencingCounts.get(table))[0] == 0) {
+				ready.add(table);
+			}
+		}
+
+		while (!ready.isEmpty()) {
+			final String table = (String) ready.removeFirst();
+			sorted.add(table);
+			for (final Iterator iterator = ((Set) referencedTables.get(table)).iterator(); iterator.hasNext();) {
+				final String referencedTable = (String) iterator.next();
+				if (--((int[]) referencingCounts.get(referencedTable))[0] == 0) {
+					ready.add(referencedTable);
+				}
+			}
+		}
+
+		if (sorted.size() < tables.size()) {
+			final List cyclic = new ArrayList(tables);
+			cyclic.removeAll(sorted);
+			Collections.sort(cyclic);
+			LOG.warn("sortReferencingFirst: The tables " + cyclic + " have cyclic foreign key " +
+					"dependencies and thus cannot be ordered, deleting from them may fail");
+			sorted.addAll(cyclic);
+		}
+
+		return sorted;
+	}
+
+	/**
+	 * The reverse of {@link #sortReferencingFirst(Connection, Collection)},
+	 * i.e. the order for inserting the tables' rows.
+	 */
+	public List sortReferencedFirst(final Connection connection, final Collection tables) throws SQLException {
+		final List sorted = sortReferencingFirst(connection, tables);
+		Collections.reverse(sorted);
+		return sorted;
+	}
+
+	/**
+	 * Qualify the table names as expected by the graph.
+	 * @return Map&lt;String qualified name, String name as given&gt;
+	 */
+	static Map qualifyAll(final IDatabaseConnection connection, final String[] tableNames
+			, final boolean derby) throws SQLException {
+		final String defaultSchema = derby? DerbyTrackingSupport.getDefaultSchema(connection) : connection.getSchema();
+		final Map tables = new LinkedHashMap();	// keep the order of the names given
+		for (int i = 0; i < tableNames.length; i++) {
+			tables.put(qualify(tableNames[i], defaultSchema, derby), tableNames[i]);
+		}
+		return tables;
+	}
+
+	private static String qualify(final String tableName, final String defaultSchema, final boolean derby) {
+		if (derby) {
+			return DerbyTrackingSupport.qualify(tableName, defaultSchema);
+		}
+		return (tableName.indexOf('.') >= 0 || defaultSchema == null)? tableName : defaultSchema + "." + tableName;
+	}
+
+	public String toString() {
+		return "ForeignKeyGraph(" + (complete? "complete" : "lazy") + ", " + referencingTables.size() +
+				" referenced tables)";
+	}
+
+}
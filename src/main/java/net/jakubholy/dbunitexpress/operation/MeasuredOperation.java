@@ -0,0 +1,87 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.operation;
+
+import java.sql.SQLException;
+
+import net.jakubholy.dbunitexpress.SetUpMetrics;
+
+import org.dbunit.DatabaseUnitException;
+import org.dbunit.database.IDatabaseConnection;
+import org.dbunit.dataset.DefaultDataSet;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.dataset.ITable;
+import org.dbunit.dataset.ITableIterator;
+import org.dbunit.operation.AbstractOperation;
+import org.dbunit.operation.DatabaseOperation;
+
+/**
+ * Executes the given set up operation recording its timings into
+ * {@link SetUpMetrics}. DbUnit's CLEAN_INSERT is executed as DELETE_ALL
+ * followed by an INSERT of each table separately so that the clean and insert
+ * phases and the time of each table are known; any other operation is recorded
+ * as a whole as the load phase, without table timings.
+ * <p>
+ * The connection phase is measured by the operation listener,
+ * {@link net.jakubholy.dbunitexpress.impl.SetUpTimingListener}. DbUnit's
+ * listener only reports when the connection has been obtained and the
+ * operation has finished, so the split into phases and tables needs this wrapper.
+ *
+ * @see net.jakubholy.dbunitexpress.impl.SetUpTimingListener
+ * @see net.jakubholy.dbunitexpress.EmbeddedDbTester#addSetUpListener(net.jakubholy.dbunitexpress.ISetUpListener)
+ * @since 1.3.1
+ */
+public class MeasuredOperation extends AbstractOperation {
+
+	private final DatabaseOperation operation;
+	private final SetUpMetrics metrics;
+
+	/**
+	 * @param operation (required) the operation to execute
+	 * @param metrics (required) where to record the timings
+	 */
+	public MeasuredOperation(final DatabaseOperation operation, final SetUpMetrics metrics) {
+		if (operation == null || metrics == null) {
+			throw new IllegalArgumentException("The arguments operation and metrics may not be null");
+		}
+		this.operation = operation;
+		this.metrics = metrics;
+	}
+
+	public void execute(final IDatabaseConnection connection, final IDataSet dataSet)
+			throws DatabaseUnitException, SQLException {
+
+		long phaseStart = System.currentTimeMillis();
+
+		if (operation != DatabaseOperation.CLEAN_INSERT) {
+			operation.execute(connection, dataSet);
+			metrics.addPhase(SetUpMetrics.LOAD, System.currentTimeMillis() - phaseStart);
+			return;
+		}
+
+		metrics.setTablesMeasured(true);
+		DatabaseOperation.DELETE_ALL.execute(connection, dataSet);
+		final long insertStart = System.currentTimeMillis();
+		metrics.addPhase(SetUpMetrics.CLEAN, insertStart - phaseStart);
+
+		final ITableIterator tables = dataSet.iterator();
+		while (tables.next()) {
+			final ITable table = tables.getTable();
+			phaseStart = System.currentTimeMillis();
+			DatabaseOperation.INSERT.execute(connection, new DefaultDataSet(table));
+			metrics.addTable(table.getTableMetaData().getTableName(), table.getRowCount()
+					, System.currentTimeMillis() - phaseStart);
+		}
+		metrics.addPhase(SetUpMetrics.INSERT, System.currentTimeMillis() - insertStart);
+	}
+
+	public String toString() {
+		return "MeasuredOperation(" + operation + ")";
+	}
+
+}
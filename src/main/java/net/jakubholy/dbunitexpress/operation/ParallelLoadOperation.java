@@ -0,0 +1,330 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.operation;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import net.jakubholy.dbunitexpress.util.DbUnitUtils;
+
+import org.dbunit.DatabaseUnitException;
+import org.dbunit.IDatabaseTester;
+import org.dbunit.database.IDatabaseConnection;
+import org.dbunit.dataset.DefaultDataSet;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.dataset.ITable;
+import org.dbunit.operation.AbstractOperation;
+import org.dbunit.operation.DatabaseOperation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A CLEAN_INSERT that processes independent tables concurrently: the data set's
+ * tables are grouped by their depth in the foreign key graph (level 0 references
+ * no other table of the data set, level n references a table of level n-1) and
+ * the tables of a level are processed in parallel on a small pool of connections,
+ * waiting for the whole level to finish before starting the next one. The rows
+ * are deleted level by level from the deepest one and then inserted from level 0.
+ * <p>
+ * The connections are obtained from the given tester, the first one is
+ * the connection passed to {@link #execute(IDatabaseConnection, IDataSet)}, used
+ * by the calling thread. The others are used by daemon threads that are
+ * started when first needed and shared by all instances.
+ * All connections must be in the auto-commit mode so that the rows of one
+ * level are visible to the others when the next one is processed.
+ * <p>
+ * To be used via {@link net.jakubholy.dbunitexpress.EmbeddedDbTester#setSetUpParallelism(int)}
+ * or the property dbunit-express.setUpParallelism.
+ *
+ * @see ForeignKeyGraph
+ * @since 1.3.1
+ */
+public class ParallelLoadOperation extends AbstractOperation {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ParallelLoadOperation.class);
+
+	private final IDatabaseTester connectionSource;
+	private final int parallelism;
+	private final DatabaseOperation deleteOperation;
+	private final DatabaseOperation insertOperation;
+
+	/**
+	 * @param connectionSource (required) provides the additional connections
+	 * @param parallelism (&gt; 0) the maximal number of connections used concurrently
+	 */
+	public ParallelLoadOperation(final IDatabaseTester connectionSource, final int parallelism) {
+		this(connectionSource, parallelism, DatabaseOperation.DELETE_ALL, DatabaseOperation.INSERT);
+	}
+
+	/** For tests: replace the operations executed for each table. */
+	ParallelLoadOperation(final IDatabaseTester connectionSource, final int parallelism
+			, final DatabaseOperation deleteOperation, final DatabaseOperation insertOperation) {
+		if (connectionSource == null) {
+			throw new IllegalArgumentException("The argument IDatabaseTester connectionSource may not be null");
+		}
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("The parallelism must be positive, is: " + parallelism);
+		}
+		this.connectionSource = connectionSource;
+		this.parallelism = parallelism;
+		this.deleteOperation = deleteOperation;
+		this.insertOperation = insertOperation;
+	}
+
+	public void execute(final IDatabaseConnection connection, final IDataSet dataSet)
+			throws DatabaseUnitException, SQLException {
+
+		final long start = System.currentTimeMillis();
+		final List levels = groupByLevel(connection, dataSet);
+
+		int maxLevelSize = 0;
+		for (final Iterator iterator = levels.iterator(); iterator.hasNext();) {
+			maxLevelSize = Math.max(maxLevelSize, ((List) iterator.next()).size());
+		}
+
+		final IDatabaseConnection[] connections = new IDatabaseConnection[
+				Math.max(1, Math.min(parallelism, maxLevelSize))];
+		connections[0] = connection;
+		try {
+			for (int i = 1; i < connections.length; i++) {
+				connections[i] = connectionSource.getConnection();
+			}
+
+			for (int level = levels.size() - 1; level >= 0; level--) {
+				executeConcurrently(deleteOperation, (List) levels.get(level), connections);
+			}
+			for (int level = 0; level < levels.size(); level++) {
+				executeConcurrently(insertOperation, (List) levels.get(level), connections);
+			}
+		} catch (DatabaseUnitException e) {
+			throw e;
+		} catch (SQLException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new DatabaseUnitException("Failed to open a connection for the parallel load", e);
+		} finally {
+			for (int i = 1; i < connections.length; i++) {
+				if (connections[i] != null) {
+					connections[i].close();
+				}
+			}
+		}
+
+		LOG.info("execute: Loaded " + levels.size() + " levels of tables with " + connections.length +
+				" connections in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Group the data set's tables by their depth in the foreign key graph.
+	 * Tables in a cycle are assigned a level as if the cycle was broken at
+	 * an arbitrary point.
+	 * @return List&lt;List&lt;ITable&gt;&gt; the levels
+	 */
+	List groupByLevel(final IDatabaseConnection connection, final IDataSet dataSet)
+			throws DatabaseUnitException, SQLException {
+
+		final Connection jdbcConnection = connection.getConnection();
+		final Map qualifiedNames = ForeignKeyGraph.qualifyAll(connection, dataSet.getTableNames()
+				, DbUnitUtils.isDerby(jdbcConnection));
+
+		// Map<String qualified name, ITable>
+		final Map tables = new HashMap();
+		for (final Iterator iterator = qualifiedNames.entrySet().iterator(); iterator.hasNext();) {
+			final Map.Entry entry = (Map.Entry) iterator.next();
+			tables.put(entry.getKey(), dataSet.getTable((String) entry.getValue()));
+		}
+
+		final ForeignKeyGraph foreignKeys = ForeignKeyGraph.getInstance(jdbcConnection);
+		final List sorted = foreignKeys.sortReferencedFirst(jdbcConnection, tables.keySet());
+
+		// Map<String qualified name, Integer level>
+		final Map tableLevels = new HashMap();
+		final List levels = new ArrayList();
+		for (final Iterator iterator = sorted.iterator(); iterator.hasNext();) {
+			final String table = (String) iterator.next();
+			final Integer level = (Integer) tableLevels.get(table);
+			final int tableLevel = (level == null)? 0 : level.intValue();
+			tableLevels.put(table, new Integer(tableLevel));
+
+			// The referencing tables come later in the sorted list
+			for (final Iterator referencing = foreignKeys.getReferencingTables(jdbcConnection, table).iterator()
+					; referencing.hasNext();) {
+				final String referencingTable = (String) referencing.next();
+				final Integer referencingLevel = (Integer) tableLevels.get(referencingTable);
+				if (!referencingTable.equals(table) && tables.containsKey(referencingTable)
+						&& (referencingLevel == null || referencingLevel.intValue() <= tableLevel)) {
+					tableLevels.put(referencingTable, new Integer(tableLevel + 1));
+				}
+			}
+
+			while (levels.size() <= tableLevel) {
+				levels.add(new ArrayList());
+			}
+			((List) levels.get(tableLevel)).add(tables.get(table));
+		}
+
+		return levels;
+	}
+
+	/**
+	 * Execute the operation for each of the tables using up to all the
+	 * connections concurrently; returns when all have finished.
+	 */
+	private void executeConcurrently(final DatabaseOperation operation, final List tables
+			, final IDatabaseConnection[] connections) throws DatabaseUnitException, SQLException {
+
+		final LinkedList remainingTables = new LinkedList(tables);
+		final int workerCount = Math.min(connections.length, tables.size());
+		if (workerCount <= 1) {
+			new Worker(operation, remainingTables, connections[0], null).execute();
+			return;
+		}
+
+		final int[] runningWorkers = new int[]{ workerCount - 1 };
+		final Worker[] workers = new Worker[workerCount];
+		for (int i = 1; i < workerCount; i++) {
+			workers[i] = new Worker(operation, remainingTables, connections[i], runningWorkers);
+		}
+		WorkerThreads.execute(workers, 1, workerCount - 1);
+
+		// The calling thread does its share on the connection it has passed in
+		workers[0] = new Worker(operation, remainingTables, connections[0], null);
+		workers[0].run();
+
+		synchronized (runningWorkers) {
+			while (runningWorkers[0] > 0) {
+				try {
+					runningWorkers.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new DatabaseUnitException("Interrupted while waiting for the parallel load", e);
+				}
+			}
+		}
+
+		for (int i = 0; i < workerCount; i++) {
+			workers[i].rethrowFailure();
+		}
+	}
+
+	/**
+	 * The JVM-wide daemon threads that run the workers; started lazily, when
+	 * more workers are to run at once than there are threads, and never stopped.
+	 */
+	private static final class WorkerThreads {
+
+		/** Runnables waiting for a thread, guarded by itself. */
+		private static final LinkedList queue = new LinkedList();
+		private static int threadCount = 0;
+
+		static void execute(final Runnable[] tasks, final int from, final int count) {
+			synchronized (queue) {
+				for (int i = from; i < from + count; i++) {
+					queue.add(tasks[i]);
+				}
+				while (threadCount < count) {
+					final Thread thread = new Thread(new Runnable() {
+						public void run() {
+							runTasks();
+						}
+					}, "dbunit-express-loader-" + threadCount);
+					thread.setDaemon(true);
+					thread.start();
+					threadCount++;
+				}
+				queue.notifyAll();
+			}
+		}
+
+		private static void runTasks() {
+			while (true) {
+				final Runnable task;
+				synchronized (queue) {
+					while (queue.isEmpty()) {
+						try {
+							queue.wait();
+						} catch (InterruptedException e) {
+							LOG.debug("runTasks: Interrupted while idle, ignoring it");
+						}
+					}
+					task = (Runnable) queue.removeFirst();
+				}
+				task.run();
+			}
+		}
+	}
+
+	/** Executes the operation for the tables taken from the shared list until it's empty. */
+	private static final class Worker implements Runnable {
+
+		private final DatabaseOperation operation;
+		private final LinkedList remainingTables;
+		private final IDatabaseConnection connection;
+		/** The counter of the running workers to decrement and notify when done, if any. */
+		private final int[] runningWorkers;
+		private Throwable failure;
+
+		Worker(final DatabaseOperation operation, final LinkedList remainingTables
+				, final IDatabaseConnection connection, final int[] runningWorkers) {
+			this.operation = operation;
+			this.remainingTables = remainingTables;
+			this.connection = connection;
+			this.runningWorkers = runningWorkers;
+		}
+
+		public void run() {
+			try {
+				execute();
+			} catch (Throwable e) {	// NOPMD - must be reported to the waiting thread
+				failure = e;
+			} finally {
+				if (runningWorkers != null) {
+					synchronized (runningWorkers) {
+						runningWorkers[0]--;
+						runningWorkers.notifyAll();
+					}
+				}
+			}
+		}
+
+		void execute() throws DatabaseUnitException, SQLException {
+			ITable table;
+			while ((table = nextTable()) != null) {
+				operation.execute(connection, new DefaultDataSet(table));
+			}
+		}
+
+		private ITable nextTable() {
+			synchronized (remainingTables) {
+				return remainingTables.isEmpty()? null : (ITable) remainingTables.removeFirst();
+			}
+		}
+
+		/** Called after the worker has finished; the wait for it makes the failure visible. */
+		void rethrowFailure() throws DatabaseUnitException, SQLException {
+			if (failure instanceof DatabaseUnitException) {
+				throw (DatabaseUnitException) failure;
+			} else if (failure instanceof SQLException) {
+				throw (SQLException) failure;
+			} else if (failure != null) {
+				throw new DatabaseUnitException("The parallel load has failed", failure);
+			}
+		}
+	}
+
+	public String toString() {
+		return "ParallelLoadOperation(parallelism=" + parallelism + ")";
+	}
+
+}
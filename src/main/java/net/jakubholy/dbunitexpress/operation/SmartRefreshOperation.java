@@ -0,0 +1,385 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.operation;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+
+import org.dbunit.DatabaseUnitException;
+import org.dbunit.database.IDatabaseConnection;
+import org.dbunit.dataset.Column;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.dataset.ITable;
+import org.dbunit.dataset.ITableIterator;
+import org.dbunit.dataset.ITableMetaData;
+import org.dbunit.dataset.datatype.TypeCastException;
+import org.dbunit.operation.AbstractOperation;
+import org.dbunit.operation.DatabaseOperation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An operation that makes the database content equal to the data set by
+ * writing only the rows that differ: it reads the current rows of each table,
+ * matches them with the data set's rows by their primary key (via a hash map)
+ * and issues only the necessary INSERTs, UPDATEs and DELETEs as batched
+ * statements. When consecutive tests use nearly identical data sets or
+ * modify only a few rows, this is much cheaper than CLEAN_INSERT.
+ * <p>
+ * To be used via {@link net.jakubholy.dbunitexpress.EmbeddedDbTester#setSetUpOperation(DatabaseOperation)},
+ * the property dbunit-express.setUpOperation={@value DatabaseOperationFactory#SMART_REFRESH}
+ * or for {@link net.jakubholy.dbunitexpress.IEnhancedDatabaseTester#replaceDatabase(IDataSet)}
+ * via {@link net.jakubholy.dbunitexpress.IEnhancedDatabaseTester#setReplaceOperation(DatabaseOperation)}.
+ *
+ * <h4>Limitations</h4>
+ * <ul>
+ * 	<li>The tables of the data set must be ordered parents first, as for CLEAN_INSERT.
+ * 	<li>Columns that are not in the data set are neither compared nor reset.
+ * 	<li>Tables without a primary key are cleaned and inserted fully.
+ * 	<li>If applying the changes fails (e.g. because an updated row changes its
+ * 		reference from a deleted row to a new one) then it falls back to CLEAN_INSERT.
+ * </ul>
+ *
+ * @since 1.3.1
+ */
+public class SmartRefreshOperation extends AbstractOperation {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SmartRefreshOperation.class);
+
+	/** The differences between a table in the DB and in the data set. */
+	private static final class TableDiff {
+		final String table;
+		/** The data set's columns with the DB's types */
+		final Column[] columns;
+		/** Indices of the primary key columns within the columns; empty if no PK */
+		final int[] keyIndices;
+		/** List&lt;Object[] row values&gt; */
+		final List inserts = new ArrayList();
+		/** List&lt;Object[] row values&gt; */
+		final List updates = new ArrayList();
+		/** List&lt;Object[] row values, only the keys are set&gt; */
+		final List deletes = new ArrayList();
+
+		TableDiff(final String table, final Column[] columns, final int[] keyIndices) {
+			this.table = table;
+			this.columns = columns;
+			this.keyIndices = keyIndices;
+		}
+
+		boolean hasPrimaryKey() {
+			return keyIndices.length > 0;
+		}
+	}
+
+	public void execute(final IDatabaseConnection connection, final IDataSet dataSet)
+			throws DatabaseUnitException, SQLException {
+
+		final long start = System.currentTimeMillis();
+		final List diffs = computeDiffs(connection, dataSet);
+		final Connection jdbcConnection = connection.getConnection();
+
+		try {
+			applyDiffs(connection, diffs);
+		} catch (SQLException e) {
+			LOG.warn("execute: Applying the differences failed, falling back to CLEAN_INSERT; cause: " + e);
+			if (!jdbcConnection.getAutoCommit()) {
+				jdbcConnection.rollback();
+			}
+			DatabaseOperation.CLEAN_INSERT.execute(connection, dataSet);
+			return;
+		}
+
+		int inserts = 0, updates = 0, deletes = 0;	// NOPMD
+		for (final Iterator iterator = diffs.iterator(); iterator.hasNext();) {
+			final TableDiff diff = (TableDiff) iterator.next();
+			inserts += diff.inserts.size();
+			updates += diff.updates.size();
+			deletes += diff.deletes.size();
+		}
+		LOG.info("execute: Refreshed " + diffs.size() + " tables with " + inserts + " inserts, " +
+				updates + " updates and " + deletes + " deletes in " +
+				(System.currentTimeMillis() - start) + " ms");
+	}
+
+	private List computeDiffs(final IDatabaseConnection connection, final IDataSet dataSet)
+			throws DatabaseUnitException, SQLException {
+
+		final IDataSet databaseDataSet = connection.createDataSet();
+		final List diffs = new ArrayList();
+
+		for (final ITableIterator iterator = dataSet.iterator(); iterator.next();) {
+			final ITable table = iterator.getTable();
+			final Column[] dataSetColumns = table.getTableMetaData().getColumns();
+
+			// Use the database table name and types, see DbUnit's operations
+			final ITableMetaData databaseMetaData = databaseDataSet.getTableMetaData(
+					table.getTableMetaData().getTableName());
+			final Column[] databaseColumns = databaseMetaData.getColumns();
+			final Column[] columns = new Column[dataSetColumns.length];
+			for (int i = 0; i < columns.length; i++) {
+				columns[i] = databaseColumns[databaseMetaData.getColumnIndex(dataSetColumns[i].getColumnName())];
+			}
+
+			final TableDiff diff = new TableDiff(
+					getQualifiedName(connection.getSchema(), databaseMetaData.getTableName(), connection)
+					, columns
+					, findKeyIndices(columns, databaseMetaData.getPrimaryKeys()));
+			addRows(diff, table, connection);
+			diffs.add(diff);
+		}
+
+		return diffs;
+	}
+
+	/** @return the indices of the keys or an empty array if any of them isn't among the columns */
+	private static int[] findKeyIndices(final Column[] columns, final Column[] keys) {
+		final int[] keyIndices = new int[(keys == null)? 0 : keys.length];
+		for (int k = 0; k < keyIndices.length; k++) {
+			keyIndices[k] = -1;
+			for (int i = 0; i < columns.length; i++) {
+				if (columns[i].getColumnName().equalsIgnoreCase(keys[k].getColumnName())) {
+					keyIndices[k] = i;
+				}
+			}
+			if (keyIndices[k] < 0) {
+				LOG.debug("findKeyIndices: The key {} isn't in the data set, cannot compare rows", keys[k]);
+				return new int[0];
+			}
+		}
+		return keyIndices;
+	}
+
+	/** Find the rows to insert, update and delete. */
+	private void addRows(final TableDiff diff, final ITable table, final IDatabaseConnection connection)
+			throws DatabaseUnitException, SQLException {
+
+		final int rowCount = table.getRowCount();
+
+		if (!diff.hasPrimaryKey()) {
+			// All current rows are deleted in applyDiffs
+			for (int row = 0; row < rowCount; row++) {
+				diff.inserts.add(getRow(table, row, diff.columns));
+			}
+			return;
+		}
+
+		// Map<List key, Object[] row values>
+		final Map expectedRows = new HashMap(rowCount * 2);
+		for (int row = 0; row < rowCount; row++) {
+			final Object[] values = getRow(table, row, diff.columns);
+			expectedRows.put(createKey(diff, values), values);
+		}
+
+		final Statement statement = connection.getConnection().createStatement();
+		try {
+			final ResultSet rows = statement.executeQuery("SELECT " +
+					joinColumnNames(diff.columns, ", ", "", connection) + " FROM " + diff.table);
+			while (rows.next()) {
+				final Object[] currentValues = new Object[diff.columns.length];
+				for (int i = 0; i < currentValues.length; i++) {
+					currentValues[i] = diff.columns[i].getDataType().typeCast(rows.getObject(i + 1));
+				}
+
+				final Object[] expectedValues = (Object[]) expectedRows.remove(createKey(diff, currentValues));
+				if (expectedValues == null) {
+					diff.deletes.add(currentValues);
+				} else if (!isEqual(diff.columns, currentValues, expectedValues)) {
+					diff.updates.add(expectedValues);
+				}
+			}
+			rows.close();
+		} finally {
+			statement.close();
+		}
+
+		// Keep the data set's order of the new rows
+		for (int row = 0; row < rowCount; row++) {
+			final Object[] values = getRow(table, row, diff.columns);
+			if (expectedRows.containsKey(createKey(diff, values))) {
+				diff.inserts.add(values);
+			}
+		}
+	}
+
+	private static Object[] getRow(final ITable table, final int row, final Column[] columns)
+			throws DatabaseUnitException {
+		final Object[] values = new Object[columns.length];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = columns[i].getDataType().typeCast(table.getValue(row, columns[i].getColumnName()));
+		}
+		return values;
+	}
+
+	private static List createKey(final TableDiff diff, final Object[] values) {
+		final Object[] key = new Object[diff.keyIndices.length];
+		for (int i = 0; i < key.length; i++) {
+			key[i] = toKeyValue(values[diff.keyIndices[i]]);
+		}
+		return Arrays.asList(key);
+	}
+
+	/** Arrays have identity equals/hashCode so binary keys are compared as hex strings. */
+	private static Object toKeyValue(final Object value) {
+		if (!(value instanceof byte[])) {
+			return value;
+		}
+		final byte[] bytes = (byte[]) value;
+		final StringBuffer hex = new StringBuffer(bytes.length * 2 + 2).append("0x");
+		for (int i = 0; i < bytes.length; i++) {
+			hex.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16))
+				.append(Character.forDigit(bytes[i] & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	private static boolean isEqual(final Column[] columns, final Object[] current, final Object[] expected)
+			throws TypeCastException {
+		for (int i = 0; i < columns.length; i++) {
+			if (columns[i].getDataType().compare(current[i], expected[i]) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Delete the old rows (children first), update the changed ones and
+	 * insert the new ones (parents first) so that a row that moved to another
+	 * key doesn't clash on a unique column with its old version.
+	 */
+	private void applyDiffs(final IDatabaseConnection connection, final List diffs) throws SQLException {
+		final Connection jdbcConnection = connection.getConnection();
+		final Statement statement = jdbcConnection.createStatement();
+		try {
+			for (final ListIterator iterator = diffs.listIterator(diffs.size()); iterator.hasPrevious();) {
+				final TableDiff diff = (TableDiff) iterator.previous();
+				if (!diff.hasPrimaryKey()) {
+					statement.addBatch("DELETE FROM " + diff.table);
+				}
+			}
+			statement.executeBatch();
+		} finally {
+			statement.close();
+		}
+
+		for (final ListIterator iterator = diffs.listIterator(diffs.size()); iterator.hasPrevious();) {
+			final TableDiff diff = (TableDiff) iterator.previous();
+			if (!diff.deletes.isEmpty()) {
+				executeBatch(jdbcConnection, "DELETE FROM " + diff.table +
+						" WHERE " + joinColumnNames(keyColumns(diff), " AND ", " = ?", connection)
+						, diff.columns, diff.keyIndices, diff.deletes);
+			}
+		}
+
+		for (final Iterator iterator = diffs.iterator(); iterator.hasNext();) {
+			final TableDiff diff = (TableDiff) iterator.next();
+			if (!diff.updates.isEmpty()) {
+				final int[] parameters = new int[diff.columns.length + diff.keyIndices.length];
+				System.arraycopy(allIndices(diff.columns.length), 0, parameters, 0, diff.columns.length);
+				System.arraycopy(diff.keyIndices, 0, parameters, diff.columns.length, diff.keyIndices.length);
+
+				executeBatch(jdbcConnection, "UPDATE " + diff.table + " SET " +
+						joinColumnNames(diff.columns, ", ", " = ?", connection) +
+						" WHERE " + joinColumnNames(keyColumns(diff), " AND ", " = ?", connection)
+						, diff.columns, parameters, diff.updates);
+			}
+		}
+
+		for (final Iterator iterator = diffs.iterator(); iterator.hasNext();) {
+			final TableDiff diff = (TableDiff) iterator.next();
+			if (!diff.inserts.isEmpty()) {
+				executeBatch(jdbcConnection, "INSERT INTO " + diff.table + " (" +
+						joinColumnNames(diff.columns, ", ", "", connection) + ") VALUES (" +
+						join(diff.columns.length, "?", ", ") + ")"
+						, diff.columns, allIndices(diff.columns.length), diff.inserts);
+			}
+		}
+	}
+
+	/**
+	 * @param parameters the indices of the columns/values to set as the statement's parameters
+	 * @param rows List&lt;Object[] row values&gt;
+	 */
+	private static void executeBatch(final Connection connection, final String sql
+			, final Column[] columns, final int[] parameters, final List rows) throws SQLException {
+		LOG.debug("executeBatch: {} rows for {}", new Integer(rows.size()), sql);
+		final PreparedStatement statement = connection.prepareStatement(sql);
+		try {
+			for (final Iterator iterator = rows.iterator(); iterator.hasNext();) {
+				final Object[] values = (Object[]) iterator.next();
+				for (int i = 0; i < parameters.length; i++) {
+					final Column column = columns[parameters[i]];
+					try {
+						column.getDataType().setSqlValue(values[parameters[i]], i + 1, statement);
+					} catch (TypeCastException e) {
+						throw new SQLException("Failed to set the value of the column " +
+								column.getColumnName() + " in " + sql + ": " + e);
+					}
+				}
+				statement.addBatch();
+			}
+			statement.executeBatch();
+		} finally {
+			statement.close();
+		}
+	}
+
+	private static Column[] keyColumns(final TableDiff diff) {
+		final Column[] keys = new Column[diff.keyIndices.length];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = diff.columns[diff.keyIndices[i]];
+		}
+		return keys;
+	}
+
+	private static int[] allIndices(final int count) {
+		final int[] indices = new int[count];
+		for (int i = 0; i < count; i++) {
+			indices[i] = i;
+		}
+		return indices;
+	}
+
+	private String joinColumnNames(final Column[] columns, final String separator, final String suffix
+			, final IDatabaseConnection connection) {
+		final StringBuffer result = new StringBuffer();
+		for (int i = 0; i < columns.length; i++) {
+			if (i > 0) {
+				result.append(separator);
+			}
+			result.append(getQualifiedName(null, columns[i].getColumnName(), connection)).append(suffix);
+		}
+		return result.toString();
+	}
+
+	private static String join(final int count, final String value, final String separator) {
+		final StringBuffer result = new StringBuffer();
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				result.append(separator);
+			}
+			result.append(value);
+		}
+		return result.toString();
+	}
+
+	public String toString() {
+		return "SmartRefreshOperation";
+	}
+
+}
@@ -0,0 +1,297 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.operation;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import net.jakubholy.dbunitexpress.impl.ConnectionPool;
+import net.jakubholy.dbunitexpress.util.DbUnitUtils;
+
+import org.dbunit.DatabaseUnitException;
+import org.dbunit.DatabaseUnitRuntimeException;
+import org.dbunit.database.IDatabaseConnection;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.operation.DatabaseOperation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A set up operation that loads the data set via CLEAN_INSERT only the first
+ * time, takes a snapshot (a Derby backup) of the database afterwards and
+ * later re-creates the database from the snapshot instead of cleaning and
+ * inserting the data again. The cost of a test thus doesn't grow with the
+ * size of its data set.
+ * <p>
+ * To be used via {@link net.jakubholy.dbunitexpress.EmbeddedDbTester#setSetUpOperation(DatabaseOperation)}
+ * or by setting the property dbunit-express.setUpOperation to
+ * {@value DatabaseOperationFactory#SNAPSHOT_RESTORE}.
+ *
+ * <h4>Limitations</h4>
+ * <ul>
+ * 	<li>Works only with Derby, for other databases it just does CLEAN_INSERT.
+ * 	<li>The snapshot is bound to the data set instance, which is the same
+ * 		as long as it is loaded from the same file via
+ * 		{@link net.jakubholy.dbunitexpress.EmbeddedDbTester#setDataSet(String)}
+ * 		(see {@link net.jakubholy.dbunitexpress.util.DataSetCache}). Any other
+ * 		data set causes a new CLEAN_INSERT and a new snapshot.
+ * 	<li>The whole database is restored, not only the data set's tables, and
+ * 		all connections open to it are closed by the restore. The connections
+ * 		pooled by the tester are discarded and the one used for the set up is
+ * 		re-opened, but connections held e.g. by the code under test are broken.
+ * 	<li>Inside of a transaction (i.e. with auto-commit off, as with the
+ * 		rollback isolation) it just does CLEAN_INSERT because a restore would
+ * 		end the transaction.
+ * 	<li>Restore isn't free (typically tens of ms) so it pays off only for
+ * 		large data sets; the log reports the restore time next to the time
+ * 		of the initial CLEAN_INSERT so that you can compare them.
+ * </ul>
+ *
+ * @since 1.3.1
+ */
+public class SnapshotRestoreOperation extends DatabaseOperation {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SnapshotRestoreOperation.class);
+
+	/** The state is shared among all instances: Map&lt;String dbUrl, Snapshot&gt;. */
+	private static final Map snapshots = new HashMap();
+
+	/** Map&lt;String dbUrl, Object lock&gt; so that a database isn't restored by two threads at once. */
+	private static final Map databaseLocks = new HashMap();
+
+	private static Thread cleanupHook = null;
+
+	/** A backup of the database with a particular data set loaded. */
+	private static final class Snapshot {
+		final IDataSet dataSet;
+		final File backupDir;
+		final File databaseBackup;
+		final long cleanInsertMillis;
+		long restoreCount = 0;
+		long restoreMillisTotal = 0;
+
+		Snapshot(final IDataSet dataSet, final File backupDir, final File databaseBackup, final long cleanInsertMillis) {
+			this.dataSet = dataSet;
+			this.backupDir = backupDir;
+			this.databaseBackup = databaseBackup;
+			this.cleanInsertMillis = cleanInsertMillis;
+		}
+	}
+
+	public void execute(final IDatabaseConnection connection, final IDataSet dataSet)
+			throws DatabaseUnitException, SQLException {
+
+		final Connection jdbcConnection = connection.getConnection();
+
+		if (!DbUnitUtils.isDerby(jdbcConnection)) {
+			LOG.debug("execute: Not a Derby database, falling back to CLEAN_INSERT");
+			DatabaseOperation.CLEAN_INSERT.execute(connection, dataSet);
+			return;
+		}
+
+		if (!jdbcConnection.getAutoCommit()) {
+			LOG.debug("execute: Within a transaction, which a restore would break; falling back to CLEAN_INSERT");
+			DatabaseOperation.CLEAN_INSERT.execute(connection, dataSet);
+			return;
+		}
+
+		final String dbUrl = DbUnitUtils.toBaseUrl(jdbcConnection.getMetaData().getURL());
+
+		synchronized (getDatabaseLock(dbUrl)) {
+			Snapshot snapshot;
+			synchronized (snapshots) {
+				snapshot = (Snapshot) snapshots.get(dbUrl);
+			}
+
+			if (snapshot != null && snapshot.dataSet == dataSet) {
+				restore(dbUrl, snapshot, connection);
+			} else {
+				if (snapshot != null) {
+					LOG.info("execute: The data set has changed, taking a new snapshot of {}", dbUrl);
+				}
+				takeSnapshot(dbUrl, connection, dataSet);
+			}
+		}
+	}
+
+	private static Object getDatabaseLock(final String dbUrl) {
+		synchronized (databaseLocks) {
+			Object lock = databaseLocks.get(dbUrl);
+			if (lock == null) {
+				lock = new Object();
+				databaseLocks.put(dbUrl, lock);
+			}
+			return lock;
+		}
+	}
+
+	private void takeSnapshot(final String dbUrl, final IDatabaseConnection connection, final IDataSet dataSet)
+			throws DatabaseUnitException, SQLException {
+
+		final long start = System.currentTimeMillis();
+		DatabaseOperation.CLEAN_INSERT.execute(connection, dataSet);
+		final long cleanInsertMillis = System.currentTimeMillis() - start;
+
+		final Connection jdbcConnection = connection.getConnection();
+		if (!jdbcConnection.getAutoCommit()) {
+			jdbcConnection.commit();
+		}
+
+		final File backupDir = createTempDir();
+		final CallableStatement backup = jdbcConnection.prepareCall("CALL SYSCS_UTIL.SYSCS_BACKUP_DATABASE(?)");
+		try {
+			backup.setString(1, backupDir.getAbsolutePath());
+			backup.execute();
+		} finally {
+			backup.close();
+		}
+
+		// Derby stores the backup in a subdirectory named after the database
+		final File[] backupContent = backupDir.listFiles();
+		if (backupContent == null || backupContent.length != 1) {
+			throw new DatabaseUnitRuntimeException("Unexpected content of the Derby backup directory " +
+					backupDir + ", expected exactly one database folder");
+		}
+
+		final Snapshot snapshot = new Snapshot(dataSet, backupDir, backupContent[0], cleanInsertMillis);
+		synchronized (snapshots) {
+			final Snapshot previous = (Snapshot) snapshots.put(dbUrl, snapshot);
+			if (previous != null) {
+				deleteRecursively(previous.backupDir);
+			}
+			registerCleanupHook();
+		}
+
+		LOG.info("takeSnapshot: Snapshot of " + dbUrl + " taken in " +
+				(System.currentTimeMillis() - start - cleanInsertMillis) +
+				" ms (CLEAN_INSERT took " + cleanInsertMillis + " ms)");
+	}
+
+	private void restore(final String dbUrl, final Snapshot snapshot, final IDatabaseConnection connection)
+			throws SQLException {
+		final long start = System.currentTimeMillis();
+
+		// The shut down closes all connections, the pooled ones mustn't be handed out anymore
+		ConnectionPool.invalidateConnections(dbUrl);
+
+		// Drop/shut down the current database; Derby signals success by an exception
+		final String closeAttribute = dbUrl.startsWith("jdbc:derby:memory:")? ";drop=true" : ";shutdown=true";
+		try {
+			DriverManager.getConnection(dbUrl + closeAttribute);
+		} catch (SQLException expected) {
+			LOG.debug("restore: Database closed: {}", expected.getMessage());
+		}
+
+		final Connection restored = DriverManager.getConnection(dbUrl +
+				";restoreFrom=" + snapshot.databaseBackup.getAbsolutePath());
+		restored.close();
+
+		if (!ConnectionPool.reconnect(connection)) {
+			LOG.debug("restore: The connection {} isn't pooled and has been closed by the restore", connection);
+		}
+
+		final long restoreMillis = System.currentTimeMillis() - start;
+		synchronized (snapshots) {
+			snapshot.restoreCount++;
+			snapshot.restoreMillisTotal += restoreMillis;
+		}
+
+		LOG.info("restore: Restored the snapshot of " + dbUrl + " in " + restoreMillis +
+				" ms (avg. " + (snapshot.restoreMillisTotal / snapshot.restoreCount) +
+				" ms over " + snapshot.restoreCount + " restores) while CLEAN_INSERT took " +
+				snapshot.cleanInsertMillis + " ms");
+	}
+
+	/**
+	 * Forget the snapshot of the database so that the next execution will load
+	 * the data via CLEAN_INSERT and take a new one. Necessary when its schema
+	 * changes. Waits for a restore of the database in progress to finish.
+	 * @param dbUrl (required) the JDBC URL of the database, with or without
+	 * 	connection attributes
+	 */
+	public static void discardSnapshot(final String dbUrl) {
+		final String baseUrl = DbUnitUtils.toBaseUrl(dbUrl);
+		synchronized (getDatabaseLock(baseUrl)) {
+			synchronized (snapshots) {
+				final Snapshot snapshot = (Snapshot) snapshots.remove(baseUrl);
+				if (snapshot != null) {
+					deleteRecursively(snapshot.backupDir);
+				}
+			}
+		}
+	}
+
+	/** Returns true if there is a snapshot of the database (for tests). */
+	static boolean hasSnapshot(final String dbUrl) {
+		synchronized (snapshots) {
+			return snapshots.containsKey(DbUnitUtils.toBaseUrl(dbUrl));
+		}
+	}
+
+	/**
+	 * Forget all snapshots so that the next execution will load the data
+	 * via CLEAN_INSERT and take a new one.
+	 * @see #discardSnapshot(String)
+	 */
+	public static void discardSnapshots() {
+		synchronized (snapshots) {
+			for (final Iterator iterator = snapshots.values().iterator(); iterator.hasNext();) {
+				deleteRecursively(((Snapshot) iterator.next()).backupDir);
+			}
+			snapshots.clear();
+		}
+	}
+
+	private static File createTempDir() {
+		try {
+			final File dir = File.createTempFile("dbunit-express-snapshot", "");
+			if (!dir.delete() || !dir.mkdir()) {
+				throw new IOException("Failed to turn the file " + dir + " into a directory");
+			}
+			return dir;
+		} catch (IOException e) {
+			throw new DatabaseUnitRuntimeException("Failed to create a directory for the DB snapshot", e);
+		}
+	}
+
+	private static void deleteRecursively(final File file) {
+		final File[] children = file.listFiles();
+		if (children != null) {
+			for (int i = 0; i < children.length; i++) {
+				deleteRecursively(children[i]);
+			}
+		}
+		if (!file.delete()) {
+			LOG.debug("deleteRecursively: Failed to delete {}", file);
+		}
+	}
+
+	/** Remove the backups when the JVM exits; must be called with the snapshots lock held. */
+	private static void registerCleanupHook() {
+		if (cleanupHook == null) {
+			cleanupHook = new Thread("dbunit-express snapshot cleanup") {
+				public void run() {
+					discardSnapshots();
+				}
+			};
+			Runtime.getRuntime().addShutdownHook(cleanupHook);
+		}
+	}
+
+	public String toString() {
+		return "SnapshotRestoreOperation";
+	}
+
+}
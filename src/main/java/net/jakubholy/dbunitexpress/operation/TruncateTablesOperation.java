@@ -0,0 +1,252 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.operation;
+
+import java.sql.BatchUpdateException;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import net.jakubholy.dbunitexpress.util.DbUnitUtils;
+
+import org.dbunit.DatabaseUnitException;
+import org.dbunit.database.IDatabaseConnection;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.operation.AbstractOperation;
+import org.dbunit.operation.DatabaseOperation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Removes all rows from the data set's tables via TRUNCATE TABLE, which
+ * doesn't log the individual rows and is thus much faster than the
+ * DELETE FROM used by CLEAN_INSERT for big tables.
+ * <p>
+ * The tables are cleaned in the order given by the foreign keys, referencing
+ * tables first, see {@link ForeignKeyGraph}. Derby refuses to truncate a table referenced by a foreign key
+ * (even from an empty table) so such tables are cleaned via DELETE FROM, as are
+ * tables where TRUNCATE fails for another reason (e.g. a DELETE trigger or a
+ * database not supporting it). In Derby, identity columns are reset to their
+ * start value. All the statements are sent to the database in a single batch.
+ * <p>
+ * {@link #TRUNCATE_INSERT} restarts the identity columns after the largest
+ * inserted value instead so that generated values don't clash with the data set's.
+ * As Derby records such a restart value as the new start value, the original
+ * start value is kept in a database property, from which clearTables restarts
+ * the column.
+ * <p>
+ * Use {@link #TRUNCATE_INSERT} as a faster CLEAN_INSERT or
+ * {@link #clearTables(IDatabaseConnection, String[])} directly.
+ *
+ * @see net.jakubholy.dbunitexpress.IEnhancedDatabaseTester#clearTables(String[])
+ * @since 1.3.1
+ */
+public class TruncateTablesOperation extends AbstractOperation {
+
+	private static final Logger LOG = LoggerFactory.getLogger(TruncateTablesOperation.class);
+
+	/** CLEAN_INSERT using TRUNCATE for the clean phase. */
+	public static final DatabaseOperation TRUNCATE_INSERT = new TruncateInsertOperation();
+
+	private static final String IDENTITY_COLUMNS_SQL =
+		"SELECT s.SCHEMANAME, t.TABLENAME, c.COLUMNNAME, c.AUTOINCREMENTSTART, t.TABLEID" +
+		" FROM SYS.SYSCOLUMNS c JOIN SYS.SYSTABLES t ON c.REFERENCEID = t.TABLEID" +
+		" JOIN SYS.SYSSCHEMAS s ON t.SCHEMAID = s.SCHEMAID" +
+		" WHERE c.AUTOINCREMENTSTART IS NOT NULL";
+
+	/**
+	 * Prefix of the Derby database property with the original start value of
+	 * an identity column, followed by the table id and the column name.
+	 */
+	private static final String ORIGINAL_START_PROPERTY_PREFIX = "dbunit-express.identityStart.";
+
+	/** Clean, insert and restart the identity columns after the inserted values. */
+	private static final class TruncateInsertOperation extends AbstractOperation {
+
+		private final TruncateTablesOperation truncateOperation = new TruncateTablesOperation();
+
+		public void execute(final IDatabaseConnection connection, final IDataSet dataSet)
+				throws DatabaseUnitException, SQLException {
+			final String[] tableNames = dataSet.getTableNames();
+			truncateOperation.clearTables(connection, tableNames);
+			DatabaseOperation.INSERT.execute(connection, dataSet);
+			truncateOperation.restartIdentityColumns(connection, tableNames, true);
+		}
+
+		public String toString() {
+			return DatabaseOperationFactory.TRUNCATE_INSERT;
+		}
+	}
+
+	public void execute(final IDatabaseConnection connection, final IDataSet dataSet)
+			throws DatabaseUnitException, SQLException {
+		clearTables(connection, dataSet.getTableNames());
+	}
+
+	/**
+	 * Remove all rows from the given tables.
+	 * @param connection (required)
+	 * @param tableNames (required) qualified (schema.table) or unqualified table names, in any order
+	 * @throws SQLException If a table cannot be cleaned, e.g. because
+	 * 	a table not being cleaned references it
+	 */
+	public void clearTables(final IDatabaseConnection connection, final String[] tableNames) throws SQLException {
+		final Connection jdbcConnection = connection.getConnection();
+		final boolean derby = DbUnitUtils.isDerby(jdbcConnection);
+		final Map tables = ForeignKeyGraph.qualifyAll(connection, tableNames, derby);
+
+		final ForeignKeyGraph foreignKeys = ForeignKeyGraph.getInstance(jdbcConnection);
+		final List orderedTables = foreignKeys.sortReferencingFirst(jdbcConnection, tables.keySet());
+
+		final List statements = new ArrayList();
+		for (final Iterator iterator = orderedTables.iterator(); iterator.hasNext();) {
+			final String table = (String) iterator.next();
+			final String tableName = (String) tables.get(table);
+			statements.add((foreignKeys.isReferenced(jdbcConnection, table)? "DELETE FROM " : "TRUNCATE TABLE ")
+					+ tableName);
+		}
+		if (derby) {
+			addIdentityRestarts(jdbcConnection, tables, false, statements);
+		}
+
+		executeAll(jdbcConnection, statements);
+		LOG.debug("clearTables: Executed {}", statements);
+	}
+
+	/**
+	 * Restart the identity columns of the tables (Derby only).
+	 * @param afterCurrentValues if true then restart after the largest value
+	 * 	in the column, otherwise with the start value of the identity
+	 */
+	void restartIdentityColumns(final IDatabaseConnection connection, final String[] tableNames
+			, final boolean afterCurrentValues) throws SQLException {
+		final Connection jdbcConnection = connection.getConnection();
+		if (DbUnitUtils.isDerby(jdbcConnection)) {
+			final List statements = new ArrayList();
+			addIdentityRestarts(jdbcConnection, ForeignKeyGraph.qualifyAll(connection, tableNames, true), afterCurrentValues, statements);
+			executeAll(jdbcConnection, statements);
+		}
+	}
+
+	private void addIdentityRestarts(final Connection connection, final Map tables
+			, final boolean afterCurrentValues, final List statements) throws SQLException {
+		final Statement statement = connection.createStatement();
+		try {
+			// List<Object[] {String table, String column, Long start, String original start property}>
+			final List identityColumns = new ArrayList();
+			final ResultSet columns = statement.executeQuery(IDENTITY_COLUMNS_SQL);
+			while (columns.next()) {
+				final String tableName = (String) tables.get(columns.getString(1) + "." + columns.getString(2));
+				if (tableName != null) {
+					identityColumns.add(new Object[]{ tableName, columns.getString(3), new Long(columns.getLong(4))
+							, ORIGINAL_START_PROPERTY_PREFIX + columns.getString(5).trim() + "." + columns.getString(3) });
+				}
+			}
+			columns.close();
+
+			for (final Iterator iterator = identityColumns.iterator(); iterator.hasNext();) {
+				final Object[] identityColumn = (Object[]) iterator.next();
+				long restartValue = getOriginalStart(connection, (String) identityColumn[3]
+						, ((Long) identityColumn[2]).longValue(), afterCurrentValues);
+				if (afterCurrentValues) {
+					final ResultSet max = statement.executeQuery("SELECT MAX(" + identityColumn[1] + ") FROM " +
+							identityColumn[0]);
+					if (max.next() && max.getObject(1) != null) {
+						restartValue = Math.max(restartValue, max.getLong(1) + 1);
+					}
+					max.close();
+				}
+				statements.add("ALTER TABLE " + identityColumn[0] + " ALTER COLUMN " + identityColumn[1] +
+						" RESTART WITH " + restartValue);
+			}
+		} finally {
+			statement.close();
+		}
+	}
+
+	/**
+	 * Returns the start value of the identity column before it has been
+	 * restarted after the inserted values for the first time.
+	 * @param startProperty (required) the database property with the original start value
+	 * @param currentStart the column's current AUTOINCREMENTSTART
+	 * @param remember if true then record the current start as the original one unless
+	 * 	recorded already, because the column is going to be restarted
+	 */
+	private static long getOriginalStart(final Connection connection, final String startProperty
+			, final long currentStart, final boolean remember) throws SQLException {
+		final PreparedStatement getProperty = connection.prepareStatement(
+				"VALUES SYSCS_UTIL.SYSCS_GET_DATABASE_PROPERTY(?)");
+		try {
+			getProperty.setString(1, startProperty);
+			final ResultSet value = getProperty.executeQuery();
+			final String originalStart = value.next()? value.getString(1) : null;
+			value.close();
+			if (originalStart != null) {
+				return Long.parseLong(originalStart);
+			}
+		} finally {
+			getProperty.close();
+		}
+
+		if (remember) {
+			final CallableStatement setProperty = connection.prepareCall(
+					"CALL SYSCS_UTIL.SYSCS_SET_DATABASE_PROPERTY(?, ?)");
+			try {
+				setProperty.setString(1, startProperty);
+				setProperty.setString(2, String.valueOf(currentStart));
+				setProperty.execute();
+			} finally {
+				setProperty.close();
+			}
+		}
+		return currentStart;
+	}
+
+	/**
+	 * Execute the statements in a batch; if that fails then execute them one by one,
+	 * replacing a failing TRUNCATE with DELETE.
+	 */
+	private void executeAll(final Connection connection, final List statements) throws SQLException {
+		final Statement statement = connection.createStatement();
+		try {
+			for (final Iterator iterator = statements.iterator(); iterator.hasNext();) {
+				statement.addBatch((String) iterator.next());
+			}
+			try {
+				statement.executeBatch();
+				return;
+			} catch (BatchUpdateException e) {
+				LOG.debug("executeAll: The batch failed, executing the statements one by one; cause: " + e);
+				statement.clearBatch();
+			}
+
+			for (final Iterator iterator = statements.iterator(); iterator.hasNext();) {
+				final String sql = (String) iterator.next();
+				try {
+					statement.executeUpdate(sql);
+				} catch (SQLException e) {
+					if (!sql.startsWith("TRUNCATE TABLE ")) {
+						throw e;
+					}
+					LOG.debug("executeAll: TRUNCATE failed, using DELETE; cause: " + e.getMessage());
+					statement.executeUpdate("DELETE FROM " + sql.substring("TRUNCATE TABLE ".length()));
+				}
+			}
+		} finally {
+			statement.close();
+		}
+	}
+
+}
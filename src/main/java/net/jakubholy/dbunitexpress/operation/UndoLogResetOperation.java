@@ -0,0 +1,478 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.operation;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+
+import net.jakubholy.dbunitexpress.util.DbUnitUtils;
+
+import org.dbunit.DatabaseUnitException;
+import org.dbunit.database.IDatabaseConnection;
+import org.dbunit.dataset.Column;
+import org.dbunit.dataset.FilteredDataSet;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.operation.DatabaseOperation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A set up operation that resets the database by undoing the individual row
+ * changes done since the last set up so that its cost depends on the number
+ * of rows modified by the test and not on the size of the data set.
+ * <p>
+ * The first execution does a CLEAN_INSERT and installs on each table of the
+ * data set Derby row triggers that record into an undo log table (one per data
+ * set table, in the schema {@value DerbyTrackingSupport#SCHEMA}) the first
+ * change of each row: the before-image of an original row that is updated or
+ * deleted or the key of a row that is added (inserted or updated to a new key).
+ * Subsequent executions with the same data set apply the net effect of the undo
+ * log: they restore the original rows, parent tables first, and then delete
+ * the added ones, child tables first.
+ * <p>
+ * To be used via {@link net.jakubholy.dbunitexpress.EmbeddedDbTester#setSetUpOperation(DatabaseOperation)}
+ * or by setting the property dbunit-express.setUpOperation to
+ * {@value DatabaseOperationFactory#UNDO_LOG}.
+ *
+ * <h4>Limitations</h4>
+ * <ul>
+ * 	<li>Works only with Derby, for other databases it just does CLEAN_INSERT.
+ * 	<li>As {@link SnapshotRestoreOperation}, it relies on the data set instance
+ * 		being the same for the same file; any other data set causes a full CLEAN_INSERT.
+ * 	<li>Tables without a primary key (see {@link DbUnitUtils#getPrimaryKeys(IDatabaseConnection, String)})
+ * 		aren't tracked and are reloaded fully during each set up.
+ * 	<li>The tables of the data set must be ordered parents first, as for CLEAN_INSERT.
+ * 	<li>Identity columns GENERATED ALWAYS cannot be restored and identity
+ * 		counters aren't reset.
+ * 	<li>If the undo fails, e.g. due to changes that don't fire triggers, it
+ * 		falls back to CLEAN_INSERT of the whole data set.
+ * 	<li>The triggers and undo log tables stay in the database; the triggers
+ * 		are removed by re-creating the tables, e.g. by the
+ * 		{@link net.jakubholy.dbunitexpress.DatabaseCreator}.
+ * </ul>
+ *
+ * @since 1.3.1
+ */
+public class UndoLogResetOperation extends DatabaseOperation {
+
+	private static final Logger LOG = LoggerFactory.getLogger(UndoLogResetOperation.class);
+
+	private static final String OP_COLUMN = "DBX_UNDO_OP";
+	private static final String TRIGGER_PREFIX = "DBX_UNDO_";
+
+	/** Undo log entry for a row of the data set: restore it. */
+	private static final String OP_ORIGINAL = "O";
+	/** Undo log entry for a row that hasn't been in the data set: delete it. */
+	private static final String OP_ADDED = "A";
+
+	/** The tracking state shared among all instances: Map&lt;String dbUrl, Tracking&gt;. */
+	private static final Map trackings = new HashMap();
+
+	/** The tables of a data set and their undo logs. */
+	private static final class Tracking {
+		final IDataSet dataSet;
+		/** List&lt;TrackedTable&gt; in the data set's order */
+		final List trackedTables = new ArrayList();
+		/** List&lt;String&gt; names of the tables without a PK, in the data set's order */
+		final List untrackedTables = new ArrayList();
+
+		Tracking(final IDataSet dataSet) {
+			this.dataSet = dataSet;
+		}
+	}
+
+	private static final class TrackedTable {
+		final String table;
+		final String undoLogTable;
+		final String[] columns;
+		/** java.sql.Types of the columns, needed to set nulls */
+		final int[] sqlTypes;
+		/** Indices of the primary key columns within the columns */
+		final int[] keyIndices;
+		final String insertSql;
+		final String updateSql;
+		final String deleteSql;
+
+		TrackedTable(final String table, final String undoLogTable, final String[] columns
+				, final int[] sqlTypes, final String[] keyColumns) {
+			this.table = table;
+			this.undoLogTable = undoLogTable;
+			this.columns = columns;
+			this.sqlTypes = sqlTypes;
+			this.keyIndices = new int[keyColumns.length];
+			for (int i = 0; i < keyColumns.length; i++) {
+				keyIndices[i] = indexOf(columns, keyColumns[i]);
+			}
+			final String keyCondition = " WHERE " + join(keyColumns, " = ? AND ") + " = ?";
+			this.insertSql = "INSERT INTO " + table + " (" + join(columns, ", ") + ") VALUES (" +
+					join(fill("?", columns.length), ", ") + ")";
+			this.updateSql = "UPDATE " + table + " SET " + join(columns, " = ?, ") + " = ?" + keyCondition;
+			this.deleteSql = "DELETE FROM " + table + keyCondition;
+		}
+	}
+
+	public void execute(final IDatabaseConnection connection, final IDataSet dataSet)
+			throws DatabaseUnitException, SQLException {
+
+		final Connection jdbcConnection = connection.getConnection();
+
+		if (!DbUnitUtils.isDerby(jdbcConnection)) {
+			LOG.debug("execute: Not a Derby database, falling back to CLEAN_INSERT");
+			DatabaseOperation.CLEAN_INSERT.execute(connection, dataSet);
+			return;
+		}
+
+		final String dbUrl = jdbcConnection.getMetaData().getURL();
+
+		Tracking tracking;
+		synchronized (trackings) {
+			tracking = (Tracking) trackings.get(dbUrl);
+		}
+
+		if (tracking != null && tracking.dataSet == dataSet) {
+			reset(connection, tracking);
+		} else {
+			DatabaseOperation.CLEAN_INSERT.execute(connection, dataSet);
+			tracking = installTracking(connection, dataSet);
+			synchronized (trackings) {
+				trackings.put(dbUrl, tracking);
+			}
+		}
+	}
+
+	private void reset(final IDatabaseConnection connection, final Tracking tracking)
+			throws DatabaseUnitException, SQLException {
+
+		final long start = System.currentTimeMillis();
+		final Connection jdbcConnection = connection.getConnection();
+		final int undoneRows;
+
+		try {
+			undoneRows = applyUndoLogs(jdbcConnection, tracking);
+		} catch (SQLException e) {
+			LOG.warn("reset: Applying the undo log failed, falling back to CLEAN_INSERT; cause: " + e);
+			if (!jdbcConnection.getAutoCommit()) {
+				jdbcConnection.rollback();
+			}
+			DatabaseOperation.CLEAN_INSERT.execute(connection, tracking.dataSet);
+			clearUndoLogs(jdbcConnection, tracking);
+			return;
+		}
+
+		if (!tracking.untrackedTables.isEmpty()) {
+			DatabaseOperation.CLEAN_INSERT.execute(connection, new FilteredDataSet(
+					(String[]) tracking.untrackedTables.toArray(new String[tracking.untrackedTables.size()])
+					, tracking.dataSet));
+		}
+
+		// The undo itself has fired the triggers too
+		clearUndoLogs(jdbcConnection, tracking);
+
+		LOG.info("reset: Undone changes of " + undoneRows + " rows in " +
+				(System.currentTimeMillis() - start) + " ms" +
+				(tracking.untrackedTables.isEmpty()? "" : ", reloaded the tables without a PK " +
+						tracking.untrackedTables));
+	}
+
+	/**
+	 * Restore the original rows, parents first, then delete the added ones, children first.
+	 * @return the number of rows restored or deleted
+	 */
+	private int applyUndoLogs(final Connection connection, final Tracking tracking) throws SQLException {
+		// Map<TrackedTable, List<Object[] row values>>
+		final Map addedRows = new HashMap();
+		int undoneRows = 0;
+
+		for (final Iterator iterator = tracking.trackedTables.iterator(); iterator.hasNext();) {
+			final TrackedTable table = (TrackedTable) iterator.next();
+			final List originalRows = new ArrayList();
+			final List added = new ArrayList();
+			readUndoLog(connection, table, originalRows, added);
+
+			restoreRows(connection, table, originalRows);
+			addedRows.put(table, added);
+			undoneRows += originalRows.size() + added.size();
+		}
+
+		for (final ListIterator iterator = tracking.trackedTables.listIterator(tracking.trackedTables.size());
+				iterator.hasPrevious();) {
+			final TrackedTable table = (TrackedTable) iterator.previous();
+			deleteRows(connection, table, (List) addedRows.get(table));
+		}
+
+		return undoneRows;
+	}
+
+	private void readUndoLog(final Connection connection, final TrackedTable table
+			, final List originalRows, final List addedRows) throws SQLException {
+		final Statement statement = connection.createStatement();
+		try {
+			final ResultSet rows = statement.executeQuery("SELECT * FROM " + table.undoLogTable);
+			while (rows.next()) {
+				final Object[] values = new Object[table.columns.length];
+				for (int i = 0; i < values.length; i++) {
+					values[i] = rows.getObject(table.columns[i]);
+				}
+				if (OP_ORIGINAL.equals(rows.getString(OP_COLUMN))) {
+					originalRows.add(values);
+				} else {
+					addedRows.add(values);
+				}
+			}
+			rows.close();
+		} finally {
+			statement.close();
+		}
+	}
+
+	/** Update the row to its original values or insert it if it has been deleted. */
+	private void restoreRows(final Connection connection, final TrackedTable table, final List rows)
+			throws SQLException {
+		if (rows.isEmpty()) {
+			return;
+		}
+
+		final PreparedStatement update = connection.prepareStatement(table.updateSql);
+		final PreparedStatement insert = connection.prepareStatement(table.insertSql);
+		try {
+			for (final Iterator iterator = rows.iterator(); iterator.hasNext();) {
+				final Object[] values = (Object[]) iterator.next();
+				setValues(update, table, values);
+				for (int i = 0; i < table.keyIndices.length; i++) {
+					update.setObject(values.length + i + 1, values[table.keyIndices[i]]);
+				}
+				if (update.executeUpdate() == 0) {
+					setValues(insert, table, values);
+					insert.addBatch();
+				}
+			}
+			insert.executeBatch();
+		} finally {
+			update.close();
+			insert.close();
+		}
+	}
+
+	private void deleteRows(final Connection connection, final TrackedTable table, final List rows)
+			throws SQLException {
+		if (rows.isEmpty()) {
+			return;
+		}
+
+		final PreparedStatement delete = connection.prepareStatement(table.deleteSql);
+		try {
+			for (final Iterator iterator = rows.iterator(); iterator.hasNext();) {
+				final Object[] values = (Object[]) iterator.next();
+				for (int i = 0; i < table.keyIndices.length; i++) {
+					delete.setObject(i + 1, values[table.keyIndices[i]]);
+				}
+				delete.addBatch();
+			}
+			delete.executeBatch();
+		} finally {
+			delete.close();
+		}
+	}
+
+	private static void setValues(final PreparedStatement statement, final TrackedTable table, final Object[] values)
+			throws SQLException {
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] == null) {
+				statement.setNull(i + 1, table.sqlTypes[i]);
+			} else {
+				statement.setObject(i + 1, values[i]);
+			}
+		}
+	}
+
+	private void clearUndoLogs(final Connection connection, final Tracking tracking) throws SQLException {
+		final Statement statement = connection.createStatement();
+		try {
+			for (final Iterator iterator = tracking.trackedTables.iterator(); iterator.hasNext();) {
+				statement.executeUpdate("DELETE FROM " + ((TrackedTable) iterator.next()).undoLogTable);
+			}
+		} finally {
+			statement.close();
+		}
+		DerbyTrackingSupport.commitIfNecessary(connection);
+	}
+
+	/**
+	 * (Re)create the undo log tables and triggers for all the data set's tables
+	 * having a primary key.
+	 */
+	private Tracking installTracking(final IDatabaseConnection connection, final IDataSet dataSet)
+			throws DatabaseUnitException, SQLException {
+
+		final Tracking tracking = new Tracking(dataSet);
+		final String defaultSchema = DerbyTrackingSupport.getDefaultSchema(connection);
+		final String[] tableNames = dataSet.getTableNames();
+
+		final Statement statement = connection.getConnection().createStatement();
+		try {
+			DerbyTrackingSupport.executeUnlessExists(statement, "CREATE SCHEMA " + DerbyTrackingSupport.SCHEMA);
+
+			for (int i = 0; i < tableNames.length; i++) {
+				final Column[] keys = DbUnitUtils.getPrimaryKeys(connection, tableNames[i]);
+				if (keys.length == 0) {
+					LOG.info("installTracking: The table " + tableNames[i] + " has no primary key, " +
+							"it will be always reloaded fully");
+					tracking.untrackedTables.add(tableNames[i]);
+				} else {
+					tracking.trackedTables.add(installTableTracking(statement, connection
+							, DerbyTrackingSupport.qualify(tableNames[i], defaultSchema), tableNames[i], keys));
+				}
+			}
+		} finally {
+			statement.close();
+		}
+
+		clearUndoLogs(connection.getConnection(), tracking);
+		LOG.info("installTracking: Tracking row changes of " + tracking.trackedTables.size() +
+				" of the " + tableNames.length + " tables of the data set");
+		return tracking;
+	}
+
+	private TrackedTable installTableTracking(final Statement statement, final IDatabaseConnection connection
+			, final String table, final String dataSetTableName, final Column[] keys)
+			throws DatabaseUnitException, SQLException {
+
+		final String schema = table.substring(0, table.indexOf('.'));
+		final String unqualifiedName = table.substring(schema.length() + 1);
+		final String undoLogName = DerbyTrackingSupport.toIdentifier("UNDO_" + schema + "_" + unqualifiedName);
+		final String undoLogTable = DerbyTrackingSupport.SCHEMA + "." + undoLogName;
+
+		final Column[] tableColumns = connection.createDataSet().getTableMetaData(dataSetTableName).getColumns();
+		final String[] columns = new String[tableColumns.length];
+		final int[] sqlTypes = new int[tableColumns.length];
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = tableColumns[i].getColumnName().toUpperCase();
+			sqlTypes[i] = tableColumns[i].getDataType().getSqlType();
+		}
+		final String[] keyColumns = new String[keys.length];
+		for (int i = 0; i < keyColumns.length; i++) {
+			keyColumns[i] = keys[i].getColumnName().toUpperCase();
+		}
+
+		// Re-create the log, the table might have changed since it was created
+		DerbyTrackingSupport.executeIgnoringFailure(statement, "DROP TABLE " + undoLogTable);
+		statement.executeUpdate("CREATE TABLE " + undoLogTable + " AS SELECT * FROM " + table + " WITH NO DATA");
+		statement.executeUpdate("ALTER TABLE " + undoLogTable + " ADD COLUMN " + OP_COLUMN + " CHAR(1)");
+		statement.executeUpdate("CREATE INDEX " + DerbyTrackingSupport.SCHEMA + "." +
+				DerbyTrackingSupport.toIdentifier("IX_" + undoLogName) +
+				" ON " + undoLogTable + " (" + join(keyColumns, ", ") + ")");
+
+		// Only the first change of a row is logged. For UPDATE the old image must
+		// be logged first, the new one is only logged if the key has changed.
+		// (Derby 10.10 fails on NEXT VALUE FOR in these triggers so we cannot
+		// keep a complete, ordered log of the changes.)
+		final String[][] triggers = new String[][] {
+				{ "I", "INSERT", "NEW", OP_ADDED }
+				, { "D", "DELETE", "OLD", OP_ORIGINAL }
+				, { "UO", "UPDATE", "OLD", OP_ORIGINAL }
+				, { "UN", "UPDATE", "NEW", OP_ADDED }
+		};
+		final String logColumns = OP_COLUMN + ", " + join(columns, ", ");
+
+		for (int i = 0; i < triggers.length; i++) {
+			final String triggerName = schema + "." + DerbyTrackingSupport.toIdentifier(
+					TRIGGER_PREFIX + triggers[i][0] + "_" + unqualifiedName);
+			final String row = triggers[i][2] + "_ROW";
+
+			final StringBuffer notYetLogged = new StringBuffer();
+			for (int k = 0; k < keyColumns.length; k++) {
+				notYetLogged.append((k == 0)? "" : " AND ")
+					.append(keyColumns[k]).append(" = ").append(row).append('.').append(keyColumns[k]);
+			}
+
+			DerbyTrackingSupport.executeIgnoringFailure(statement, "DROP TRIGGER " + triggerName);
+			statement.executeUpdate("CREATE TRIGGER " + triggerName +
+					" AFTER " + triggers[i][1] + " ON " + table +
+					" REFERENCING " + triggers[i][2] + " AS " + row + " FOR EACH ROW" +
+					" INSERT INTO " + undoLogTable + " (" + logColumns + ")" +
+					" SELECT '" + triggers[i][3] + "', " + row + "." + join(columns, ", " + row + ".") +
+					" FROM SYSIBM.SYSDUMMY1 WHERE NOT EXISTS (SELECT 1 FROM " + undoLogTable +
+					" WHERE " + notYetLogged + ")");
+		}
+
+		return new TrackedTable(table, undoLogTable, columns, sqlTypes, keyColumns);
+	}
+
+	private static String join(final String[] parts, final String separator) {
+		final StringBuffer result = new StringBuffer();
+		for (int i = 0; i < parts.length; i++) {
+			if (i > 0) {
+				result.append(separator);
+			}
+			result.append(parts[i]);
+		}
+		return result.toString();
+	}
+
+	private static String[] fill(final String value, final int count) {
+		final String[] result = new String[count];
+		for (int i = 0; i < count; i++) {
+			result[i] = value;
+		}
+		return result;
+	}
+
+	private static int indexOf(final String[] values, final String value) {
+		for (int i = 0; i < values.length; i++) {
+			if (values[i].equals(value)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("No '" + value + "' among the columns");
+	}
+
+	/**
+	 * Forget the data set tracked in the database if the DDL creating objects
+	 * in the given schemas may have affected its tables (and their triggers).
+	 * @param dbUrl (required) the JDBC URL of the database, with or without
+	 * 	connection attributes
+	 * @param schemas (required) upper-case schemas changed, empty if not known
+	 */
+	public static void resetTracking(final String dbUrl, final String[] schemas) {
+		final String baseUrl = DbUnitUtils.toBaseUrl(dbUrl);
+		synchronized (trackings) {
+			for (final Iterator iterator = trackings.entrySet().iterator(); iterator.hasNext();) {
+				final Map.Entry tracked = (Map.Entry) iterator.next();
+				if (baseUrl.equals(DbUnitUtils.toBaseUrl((String) tracked.getKey()))
+						&& DerbyTrackingSupport.isAffected(((Tracking) tracked.getValue()).dataSet, schemas)) {
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forget the tracked data sets so that the next execution will do a full
+	 * CLEAN_INSERT and re-install the triggers. Necessary e.g. when the
+	 * database schema changes.
+	 */
+	public static void resetTracking() {
+		synchronized (trackings) {
+			trackings.clear();
+		}
+	}
+
+	public String toString() {
+		return "UndoLogResetOperation";
+	}
+
+}
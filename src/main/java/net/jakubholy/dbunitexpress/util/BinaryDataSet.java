@@ -0,0 +1,320 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.dbunit.DatabaseUnitRuntimeException;
+import org.dbunit.dataset.AbstractDataSet;
+import org.dbunit.dataset.AbstractTable;
+import org.dbunit.dataset.Column;
+import org.dbunit.dataset.DataSetException;
+import org.dbunit.dataset.DefaultTableIterator;
+import org.dbunit.dataset.DefaultTableMetaData;
+import org.dbunit.dataset.ITable;
+import org.dbunit.dataset.ITableIterator;
+import org.dbunit.dataset.ITableMetaData;
+import org.dbunit.dataset.datatype.DataType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A read-only data set stored in the compact binary format produced by the
+ * {@link BinaryDataSetConverter} from a {@link org.dbunit.dataset.xml.XmlDataSet XmlDataSet}
+ * file. Loading it requires no parsing: the file is memory-mapped, only the
+ * small table directory is read upfront and the values are decoded when
+ * requested. Thus it is much faster to load than the XML.
+ * <p>
+ * The values are returned as Strings (or null/{@link ITable#NO_VALUE}) exactly
+ * as by the XmlDataSet it was converted from and the columns' type is
+ * {@link DataType#UNKNOWN}; it is thus a drop-in replacement of the XML.
+ * <p>
+ * The {@link net.jakubholy.dbunitexpress.EmbeddedDbTester#createDataSetFromFile(String)}
+ * uses the binary file automatically if it is stored next to the XML file,
+ * see {@link #findBinaryFile(URL)}.
+ *
+ * <h4>Format</h4>
+ * All numbers are big-endian.
+ * <pre>
+ * int magic, int version
+ * int stringCount, int[stringCount] offsets of the strings,
+ * 	{int byteLength, byte[byteLength] UTF-8} for each string
+ * int tableCount, for each table:
+ * 	int nameIndex, int columnCount, {int nameIndex, byte type} for each column,
+ * 	int rowCount, int offset of the rows
+ * rows of fixed width, for each value either:
+ * 	{@link #TYPE_STRING}: int index into the strings ({@link #NULL_INDEX}, {@link #NO_VALUE_INDEX})
+ * 	{@link #TYPE_LONG}: long value ({@link #NULL_LONG})
+ * </pre>
+ * All names and string values are stored only once in the strings
+ * dictionary. Columns whose values are all integers are stored as longs.
+ *
+ * @since 1.3.1
+ */
+public class BinaryDataSet extends AbstractDataSet {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BinaryDataSet.class);
+
+	/** The extension of a binary data set file, appended to the name of the XML file. */
+	public static final String FILE_EXTENSION = ".bin";
+
+	static final int MAGIC = 0x44425844;	// "DBXD"
+	static final int VERSION = 1;
+
+	static final byte TYPE_STRING = 1;
+	static final byte TYPE_LONG = 2;
+
+	static final int NULL_INDEX = -1;
+	static final int NO_VALUE_INDEX = -2;
+	static final long NULL_LONG = Long.MIN_VALUE;
+
+	private final ByteBuffer content;
+	/** Offsets of the dictionary strings in the content. */
+	private final int[] stringOffsets;
+	/** Decoded dictionary strings, filled lazily. */
+	private final String[] strings;
+	private final ITable[] tables;
+
+	/**
+	 * Read a data set from the content of a binary data set file.
+	 * @param content (required) the file's content, e.g. a mapped file;
+	 * 	its position and limit are not used
+	 * @throws DataSetException If the content isn't a valid binary data set
+	 */
+	public BinaryDataSet(final ByteBuffer content) throws DataSetException {
+		if (content == null) {
+			throw new IllegalArgumentException("The argument ByteBuffer content may not be null");
+		}
+		this.content = content;
+
+		if (content.capacity() < 8 || content.getInt(0) != MAGIC) {
+			throw new DataSetException("The content isn't a binary data set (wrong magic number)");
+		}
+		if (content.getInt(4) != VERSION) {
+			throw new DataSetException("Unsupported version " + content.getInt(4) +
+					" of the binary data set, supported is " + VERSION + "; regenerate it via BinaryDataSetConverter");
+		}
+
+		try {
+			final int stringCount = content.getInt(8);
+			stringOffsets = new int[stringCount];
+			strings = new String[stringCount];
+			int position = 12;
+			for (int i = 0; i < stringCount; i++, position += 4) {
+				stringOffsets[i] = content.getInt(position);
+			}
+
+			position = (stringCount == 0)? position : stringOffsets[stringCount - 1] + 4 +
+				content.getInt(stringOffsets[stringCount - 1]);
+			final int tableCount = content.getInt(position);
+			position += 4;
+			tables = new ITable[tableCount];
+			for (int i = 0; i < tableCount; i++) {
+				final String tableName = getString(content.getInt(position));
+				final int columnCount = content.getInt(position + 4);
+				position += 8;
+
+				final Column[] columns = new Column[columnCount];
+				final byte[] types = new byte[columnCount];
+				for (int column = 0; column < columnCount; column++, position += 5) {
+					columns[column] = new Column(getString(content.getInt(position)), DataType.UNKNOWN);
+					types[column] = content.get(position + 4);
+				}
+
+				final int rowCount = content.getInt(position);
+				final int rowsOffset = content.getInt(position + 4);
+				position += 8;
+				tables[i] = new BinaryTable(new DefaultTableMetaData(tableName, columns), types, rowCount, rowsOffset);
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new DataSetException("The binary data set is truncated or corrupted", e);
+		}
+	}
+
+	/**
+	 * Load the binary data set, memory-mapping it if it is a file.
+	 * @param binaryFile (required) URL of a binary data set file
+	 * @throws DataSetException If it isn't a valid binary data set
+	 * @throws DatabaseUnitRuntimeException If the file cannot be read
+	 */
+	public static BinaryDataSet load(final URL binaryFile) throws DataSetException, DatabaseUnitRuntimeException {
+		try {
+			if ("file".equals(binaryFile.getProtocol())) {
+				return new BinaryDataSet(map(new File(binaryFile.toURI())));
+			} else {
+				// E.g. a resource inside a jar - cannot be mapped
+				return new BinaryDataSet(ByteBuffer.wrap(readFully(binaryFile)));
+			}
+		} catch (IOException e) {
+			throw new DatabaseUnitRuntimeException("Failed to read the binary data set " + binaryFile, e);
+		} catch (URISyntaxException e) {
+			throw new DatabaseUnitRuntimeException("Failed to read the binary data set " + binaryFile, e);
+		}
+	}
+
+	private static ByteBuffer map(final File file) throws IOException {
+		final RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			// The mapping stays valid after the file is closed
+			final FileChannel channel = input.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			input.close();
+		}
+	}
+
+	private static byte[] readFully(final URL url) throws IOException {
+		final InputStream in = url.openStream();
+		try {
+			final ByteArrayOutputStream content = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				content.write(buffer, 0, read);
+			}
+			return content.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Find the binary data set converted from the given XML data set, i.e. the
+	 * file of the same name plus {@link #FILE_EXTENSION} in the same location.
+	 * A binary file older than the XML one is ignored (with a warning) so that
+	 * changes to the XML are never lost.
+	 * @param xmlFile (required) URL of a XmlDataSet file
+	 * @return URL of the up-to-date binary file or null if there is none
+	 */
+	public static URL findBinaryFile(final URL xmlFile) {
+		final URL binaryFile;
+		try {
+			binaryFile = new URL(xmlFile.toExternalForm() + FILE_EXTENSION);
+		} catch (MalformedURLException e) {
+			return null;
+		}
+
+		final long binaryLastModified = DataSetCache.getLastModified(binaryFile);
+		if (binaryLastModified <= 0 && !exists(binaryFile)) {
+			return null;
+		}
+
+		final long xmlLastModified = DataSetCache.getLastModified(xmlFile);
+		if (xmlLastModified > binaryLastModified && binaryLastModified > 0) {
+			LOG.warn("findBinaryFile: Ignoring the binary data set " + binaryFile + " because the XML " +
+					"is newer; regenerate it via BinaryDataSetConverter");
+			return null;
+		}
+		return binaryFile;
+	}
+
+	private static boolean exists(final URL url) {
+		if ("file".equals(url.getProtocol())) {
+			return false;	// an existing file would have a last modified time
+		}
+		try {
+			url.openStream().close();
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/** Returns the dictionary string, decoding it when first needed. */
+	private String getString(final int index) throws DataSetException {
+		String result = strings[index];
+		if (result == null) {
+			final int offset = stringOffsets[index];
+			final byte[] utf8 = new byte[content.getInt(offset)];
+			for (int i = 0; i < utf8.length; i++) {
+				utf8[i] = content.get(offset + 4 + i);
+			}
+			try {
+				result = new String(utf8, "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new DataSetException(e);	// cannot happen, UTF-8 is always supported
+			}
+			// Strings are immutable so a concurrent decoding of the same one does no harm
+			strings[index] = result;
+		}
+		return result;
+	}
+
+	protected ITableIterator createIterator(final boolean reversed) throws DataSetException {
+		return new DefaultTableIterator(tables, reversed);
+	}
+
+	/** A table whose values are decoded from the rows in the content when requested. */
+	private final class BinaryTable extends AbstractTable {
+
+		private final ITableMetaData metaData;
+		private final byte[] types;
+		/** The offset of each column's value in a row. */
+		private final int[] columnOffsets;
+		private final int rowWidth;
+		private final int rowCount;
+		private final int rowsOffset;
+
+		BinaryTable(final ITableMetaData metaData, final byte[] types, final int rowCount, final int rowsOffset) {
+			this.metaData = metaData;
+			this.types = types;
+			this.rowCount = rowCount;
+			this.rowsOffset = rowsOffset;
+
+			columnOffsets = new int[types.length];
+			int width = 0;
+			for (int i = 0; i < types.length; i++) {
+				columnOffsets[i] = width;
+				width += (types[i] == TYPE_LONG)? 8 : 4;
+			}
+			rowWidth = width;
+		}
+
+		public ITableMetaData getTableMetaData() {
+			return metaData;
+		}
+
+		public int getRowCount() {
+			return rowCount;
+		}
+
+		public Object getValue(final int row, final String columnName) throws DataSetException {
+			assertValidRowIndex(row);
+			final int column = getColumnIndex(columnName);
+			final int offset = rowsOffset + row * rowWidth + columnOffsets[column];
+
+			if (types[column] == TYPE_LONG) {
+				final long value = content.getLong(offset);
+				return (value == NULL_LONG)? null : Long.toString(value);
+			}
+
+			final int index = content.getInt(offset);
+			if (index == NULL_INDEX) {
+				return null;
+			} else if (index == NO_VALUE_INDEX) {
+				return ITable.NO_VALUE;
+			}
+			return getString(index);
+		}
+
+		public String toString() {
+			return "BinaryTable(" + metaData.getTableName() + ", " + rowCount + " rows)";
+		}
+	}
+
+}
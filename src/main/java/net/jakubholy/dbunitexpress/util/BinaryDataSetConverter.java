@@ -0,0 +1,244 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dbunit.dataset.Column;
+import org.dbunit.dataset.DataSetException;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.dataset.ITable;
+import org.dbunit.dataset.datatype.DataType;
+import org.dbunit.dataset.xml.XmlDataSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Converts {@link XmlDataSet} files into the {@link BinaryDataSet} format,
+ * which is loaded much faster. Run it as a java console application with
+ * the XML files to convert as the arguments; the binary file is written next
+ * to each of them, named as the XML file plus {@value BinaryDataSet#FILE_EXTENSION}.
+ * <p>
+ * Remember to run it again whenever you change the XML; an outdated binary
+ * file is ignored.
+ *
+ * @since 1.3.1
+ */
+public class BinaryDataSetConverter {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BinaryDataSetConverter.class);
+
+	/** The strings dictionary, i.e. Map&lt;String, Integer index&gt; and List&lt;String&gt; in the index order. */
+	private final Map stringIndices = new HashMap();
+	private final List strings = new ArrayList();
+
+	/**
+	 * Convert the given XML data set files.
+	 * @param args paths of XmlDataSet files
+	 */
+	public static void main(String[] args) throws Exception {	// NOPMD
+		if (args.length == 0) {
+			System.err.println("Usage: java " + BinaryDataSetConverter.class.getName() +
+					" <XmlDataSet file> [<XmlDataSet file> ...]");
+			System.exit(1);
+		}
+		for (int i = 0; i < args.length; i++) {
+			final File xmlFile = new File(args[i]);
+			convert(xmlFile, new File(xmlFile.getPath() + BinaryDataSet.FILE_EXTENSION));
+		}
+	} /* main */
+
+	/**
+	 * Convert the XML data set file into a binary one.
+	 * @param xmlFile (required) a file in the XmlDataSet format
+	 * @param binaryFile (required) where to write the binary data set, overwritten if it exists
+	 */
+	public static void convert(final File xmlFile, final File binaryFile) throws DataSetException, IOException {
+		final long start = System.currentTimeMillis();
+		final InputStream xml = new FileInputStream(xmlFile);
+		final IDataSet dataSet;
+		try {
+			dataSet = new XmlDataSet(xml);
+		} finally {
+			xml.close();
+		}
+
+		final OutputStream out = new BufferedOutputStream(new FileOutputStream(binaryFile));
+		try {
+			new BinaryDataSetConverter().write(dataSet, out);
+		} finally {
+			out.close();
+		}
+		LOG.info("convert: Converted " + xmlFile + " into " + binaryFile + " (" + binaryFile.length() +
+				" bytes) in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Write the data set in the binary format.
+	 * @param dataSet (required) a data set of String values, such as XmlDataSet;
+	 * 	other values are stored as their {@link DataType#asString(Object) String form}
+	 * @param out (required) the stream to write to; not closed
+	 */
+	public void write(final IDataSet dataSet, final OutputStream out) throws DataSetException, IOException {
+		final ITable[] tables = dataSet.getTables();
+		final byte[][] columnTypes = new byte[tables.length][];
+
+		// Build the dictionary and choose the column types first because the
+		// directory must contain the offset of the rows
+		int directorySize = 4;
+		long rowsSize = 0;
+		for (int i = 0; i < tables.length; i++) {
+			final ITable table = tables[i];
+			final Column[] columns = table.getTableMetaData().getColumns();
+			indexOf(table.getTableMetaData().getTableName());
+			columnTypes[i] = new byte[columns.length];
+			int rowWidth = 0;
+			for (int column = 0; column < columns.length; column++) {
+				indexOf(columns[column].getColumnName());
+				columnTypes[i][column] = chooseType(table, columns[column].getColumnName());
+				rowWidth += (columnTypes[i][column] == BinaryDataSet.TYPE_LONG)? 8 : 4;
+			}
+			directorySize += 8 + 5 * columns.length + 8;
+			rowsSize += (long) rowWidth * table.getRowCount();
+		}
+
+		final byte[][] encodedStrings = new byte[strings.size()][];
+		for (int i = 0; i < encodedStrings.length; i++) {
+			encodedStrings[i] = ((String) strings.get(i)).getBytes("UTF-8");
+		}
+
+		final DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(BinaryDataSet.MAGIC);
+		data.writeInt(BinaryDataSet.VERSION);
+
+		data.writeInt(encodedStrings.length);
+		int offset = 12 + 4 * encodedStrings.length;
+		for (int i = 0; i < encodedStrings.length; i++) {
+			data.writeInt(offset);
+			offset += 4 + encodedStrings[i].length;
+		}
+		for (int i = 0; i < encodedStrings.length; i++) {
+			data.writeInt(encodedStrings[i].length);
+			data.write(encodedStrings[i]);
+		}
+
+		if ((long) offset + directorySize + rowsSize > Integer.MAX_VALUE) {
+			throw new DataSetException("The data set is too large for the binary format (max. 2GB)");
+		}
+
+		data.writeInt(tables.length);
+		int rowsOffset = offset + directorySize;
+		for (int i = 0; i < tables.length; i++) {
+			final Column[] columns = tables[i].getTableMetaData().getColumns();
+			data.writeInt(indexOf(tables[i].getTableMetaData().getTableName()));
+			data.writeInt(columns.length);
+			int rowWidth = 0;
+			for (int column = 0; column < columns.length; column++) {
+				data.writeInt(indexOf(columns[column].getColumnName()));
+				data.writeByte(columnTypes[i][column]);
+				rowWidth += (columnTypes[i][column] == BinaryDataSet.TYPE_LONG)? 8 : 4;
+			}
+			data.writeInt(tables[i].getRowCount());
+			data.writeInt(rowsOffset);
+			rowsOffset += rowWidth * tables[i].getRowCount();
+		}
+
+		for (int i = 0; i < tables.length; i++) {
+			writeRows(tables[i], columnTypes[i], data);
+		}
+		data.flush();
+	}
+
+	private void writeRows(final ITable table, final byte[] types, final DataOutputStream data)
+			throws DataSetException, IOException {
+		final Column[] columns = table.getTableMetaData().getColumns();
+		final int rowCount = table.getRowCount();
+		for (int row = 0; row < rowCount; row++) {
+			for (int column = 0; column < columns.length; column++) {
+				final Object value = table.getValue(row, columns[column].getColumnName());
+				if (types[column] == BinaryDataSet.TYPE_LONG) {
+					data.writeLong((value == null)? BinaryDataSet.NULL_LONG : Long.parseLong((String) value));
+				} else if (value == null) {
+					data.writeInt(BinaryDataSet.NULL_INDEX);
+				} else if (value == ITable.NO_VALUE) {
+					data.writeInt(BinaryDataSet.NO_VALUE_INDEX);
+				} else {
+					data.writeInt(indexOf(toString(value)));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Store the column as longs if all its values are integers whose String
+	 * form is restored exactly (e.g. no leading zeros), otherwise as strings
+	 * (and add the values to the dictionary).
+	 */
+	private byte chooseType(final ITable table, final String columnName) throws DataSetException {
+		final int rowCount = table.getRowCount();
+		boolean allLongs = rowCount > 0;
+		for (int row = 0; row < rowCount && allLongs; row++) {
+			final Object value = table.getValue(row, columnName);
+			allLongs = (value == null) || isCanonicalLong(value);
+		}
+		if (allLongs) {
+			return BinaryDataSet.TYPE_LONG;
+		}
+
+		for (int row = 0; row < rowCount; row++) {
+			final Object value = table.getValue(row, columnName);
+			if (value != null && value != ITable.NO_VALUE) {
+				indexOf(toString(value));
+			}
+		}
+		return BinaryDataSet.TYPE_STRING;
+	}
+
+	private static boolean isCanonicalLong(final Object value) {
+		if (!(value instanceof String)) {
+			return false;
+		}
+		try {
+			final long number = Long.parseLong((String) value);
+			return number != BinaryDataSet.NULL_LONG && Long.toString(number).equals(value);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private static String toString(final Object value) throws DataSetException {
+		return (value instanceof String)? (String) value : DataType.asString(value);
+	}
+
+	/** Returns the string's index in the dictionary, adding it if not there yet. */
+	private int indexOf(final String string) {
+		Integer index = (Integer) stringIndices.get(string);
+		if (index == null) {
+			index = new Integer(strings.size());
+			stringIndices.put(string, index);
+			strings.add(string);
+		}
+		return index.intValue();
+	}
+
+	public String toString() {
+		return "BinaryDataSetConverter(" + strings.size() + " strings)";
+	}
+
+}
@@ -0,0 +1,129 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Names of the classes on the current call stack.
+ * <p>
+ * On Java 9+ the stack is walked via <code>java.lang.StackWalker</code>, which
+ * doesn't need to build a stack trace element with the file name and line number
+ * for every frame. As this library still runs on Java 1.4, the walker is only
+ * accessed via reflection; on older JVMs the stack trace of a new exception is used.
+ *
+ * @since 1.3.1
+ */
+public final class CallStack {
+
+	private static final Logger LOG = LoggerFactory.getLogger(CallStack.class);
+
+	/** StackWalker.getInstance() or null if not available (Java &lt; 9). */
+	private static final Object STACK_WALKER;
+	/** StackWalker.walk(Function) */
+	private static final Method WALK;
+	/** java.util.function.Function */
+	private static final Class FUNCTION;
+	/** BaseStream.iterator() */
+	private static final Method ITERATOR;
+	/** StackWalker.StackFrame.getClassName() */
+	private static final Method GET_CLASS_NAME;
+
+	static {
+		Object walker = null;
+		Method walk = null;
+		Class function = null;
+		Method iterator = null;
+		Method getClassName = null;
+		try {
+			final Class walkerClass = Class.forName("java.lang.StackWalker");
+			function = Class.forName("java.util.function.Function");
+			walk = walkerClass.getMethod("walk", new Class[]{ function });
+			iterator = Class.forName("java.util.stream.BaseStream").getMethod("iterator", new Class[0]);
+			getClassName = Class.forName("java.lang.StackWalker$StackFrame")
+					.getMethod("getClassName", new Class[0]);
+			walker = walkerClass.getMethod("getInstance", new Class[0]).invoke(null, new Object[0]);
+		} catch (ClassNotFoundException e) {
+			LOG.debug("StackWalker not available, falling back to Throwable.getStackTrace()");
+		} catch (Exception e) {
+			LOG.warn("Failed to access StackWalker, falling back to Throwable.getStackTrace()", e);
+			walker = null;
+		}
+		STACK_WALKER = walker;
+		WALK = walk;
+		FUNCTION = function;
+		ITERATOR = iterator;
+		GET_CLASS_NAME = getClassName;
+	}
+
+	private CallStack() {}
+
+	/**
+	 * Returns the names of the classes on the call stack of the current thread,
+	 * starting with the caller of this method. A class is listed once for each
+	 * of its frames.
+	 * @return a non-null list of class names
+	 */
+	public static List getClassNames() {
+		if (STACK_WALKER != null) {
+			try {
+				return walk();
+			} catch (Exception e) {
+				LOG.warn("getClassNames: StackWalker failed, falling back to Throwable.getStackTrace()", e);
+			}
+		}
+
+		final StackTraceElement[] stack = new Throwable().getStackTrace();
+		final List classNames = new ArrayList(stack.length);
+		for (int i = 1; i < stack.length; i++) {	// skip this method
+			classNames.add(stack[i].getClassName());
+		}
+		return classNames;
+	}
+
+	private static List walk() throws Exception {
+		final List classNames = new ArrayList();
+		final Object collector = Proxy.newProxyInstance(CallStack.class.getClassLoader()
+				, new Class[]{ FUNCTION }
+				, new InvocationHandler() {
+					public Object invoke(final Object proxy, final Method method, final Object[] args)
+							throws Throwable {
+						if (!"apply".equals(method.getName())) {
+							throw new UnsupportedOperationException(method.getName());
+						}
+						for (final Iterator frames = (Iterator) ITERATOR.invoke(args[0], new Object[0]);
+								frames.hasNext();) {
+							classNames.add(GET_CLASS_NAME.invoke(frames.next(), new Object[0]));
+						}
+						return null;
+					}
+				});
+		WALK.invoke(STACK_WALKER, new Object[]{ collector });
+
+		// The frames of the walk itself up to and including this class
+		int firstCaller = 0;
+		while (firstCaller < classNames.size()
+				&& !CallStack.class.getName().equals(classNames.get(firstCaller))) {
+			++firstCaller;
+		}
+		while (firstCaller < classNames.size()
+				&& CallStack.class.getName().equals(classNames.get(firstCaller))) {
+			++firstCaller;
+		}
+		return new ArrayList(classNames.subList(firstCaller, classNames.size()));
+	}
+
+}
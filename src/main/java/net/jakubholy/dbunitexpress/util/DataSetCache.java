@@ -0,0 +1,351 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.dbunit.DatabaseUnitRuntimeException;
+import org.dbunit.dataset.CompositeDataSet;
+import org.dbunit.dataset.CompositeTable;
+import org.dbunit.dataset.DataSetException;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.dataset.ITable;
+import org.dbunit.dataset.xml.XmlDataSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * JVM-wide cache of parsed data set files so that the same XML isn't parsed
+ * again for every test method (under JUnit 3 a new tester is created for
+ * each of them).
+ * <p>
+ * Entries are keyed by the resolved URL of the file plus its last modification
+ * time or, if the time isn't available (e.g. some exotic URL protocols), by
+ * a checksum of its content. So a modified file is always parsed again.
+ * Resources inside jars are considered immutable and are never checked for
+ * modifications. Concurrent requests for the same, not yet cached data set
+ * wait for a single parse of it.
+ * The cache is bounded, the least recently used entries are evicted first.
+ * <p>
+ * The data sets handed out are read-only views of the parsed data - neither
+ * they nor their tables have any methods for modifying the data and thus it
+ * is safe to share them among testers and threads.
+ *
+ * @see #getSharedInstance()
+ * @see #getXmlDataSet(URL)
+ *
+ * @since 1.3.1
+ */
+public final class DataSetCache {
+
+	private static final Logger LOG = LoggerFactory.getLogger(DataSetCache.class);
+
+	/** How many data sets we keep by default, see {@link #setMaxSize(int)}. */
+	public static final int DEFAULT_MAX_SIZE = 16;
+
+	private static final DataSetCache sharedInstance = new DataSetCache(DEFAULT_MAX_SIZE);
+
+	/** Map&lt;String key, IDataSet&gt; in the access order, i.e. LRU first. */
+	private final LinkedHashMap entries = new LinkedHashMap(DEFAULT_MAX_SIZE, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(final Map.Entry eldest) {
+			if (size() > maxSize) {
+				evictionCount++;
+				LOG.debug("removeEldestEntry: evicting the data set {}", eldest.getKey());
+				return true;
+			}
+			return false;
+		}
+	};
+
+	/** Map&lt;String key, Object lock&gt; of the data sets being loaded right now. */
+	private final Map loadLocks = new HashMap();
+
+	private int maxSize;
+	private long hitCount = 0;
+	private long missCount = 0;
+	private long evictionCount = 0;
+
+	/**
+	 * Create a new, independent cache. Normally you want to use the
+	 * {@link #getSharedInstance() shared one} instead.
+	 * @param maxSize max number of data sets to keep; 0 disables caching
+	 */
+	public DataSetCache(final int maxSize) {
+		setMaxSize(maxSize);
+	}
+
+	/** Returns the JVM-wide cache used by the {@link net.jakubholy.dbunitexpress.EmbeddedDbTester}. */
+	public static DataSetCache getSharedInstance() {
+		return sharedInstance;
+	}
+
+	/**
+	 * Returns the read-only data set parsed from the given XmlDataSet file,
+	 * either from the cache or parsing it now (and caching it).
+	 * @param dataSetUrl (required) URL of a file in the {@link XmlDataSet} format
+	 * @return a read-only data set (never null)
+	 * @throws DataSetException If the file isn't a valid XML data set
+	 * @throws DatabaseUnitRuntimeException If the file cannot be read
+	 */
+	public IDataSet getXmlDataSet(final URL dataSetUrl) throws DataSetException, DatabaseUnitRuntimeException {
+		if (dataSetUrl == null) {
+			throw new IllegalArgumentException("The argument URL dataSetUrl may not be null");
+		}
+		return getDataSet(dataSetUrl, false);
+	}
+
+	/**
+	 * Returns the data set loaded from the given {@link BinaryDataSet} file,
+	 * either from the cache or loading it now (and caching it).
+	 * @param dataSetUrl (required) URL of a file in the {@link BinaryDataSet} format
+	 * @return a read-only data set (never null)
+	 * @throws DataSetException If the file isn't a valid binary data set
+	 * @throws DatabaseUnitRuntimeException If the file cannot be read
+	 *
+	 * @see BinaryDataSet#findBinaryFile(URL)
+	 */
+	public IDataSet getBinaryDataSet(final URL dataSetUrl) throws DataSetException, DatabaseUnitRuntimeException {
+		if (dataSetUrl == null) {
+			throw new IllegalArgumentException("The argument URL dataSetUrl may not be null");
+		}
+		return getDataSet(dataSetUrl, true);
+	}
+
+	private IDataSet getDataSet(final URL dataSetUrl, final boolean binary)
+			throws DataSetException, DatabaseUnitRuntimeException {
+
+		byte[] content = null;
+		String key;
+
+		if (isImmutable(dataSetUrl)) {
+			key = dataSetUrl.toExternalForm();
+		} else {
+			final long lastModified = getLastModified(dataSetUrl);
+			if (lastModified > 0) {
+				key = dataSetUrl.toExternalForm() + "@" + lastModified;
+			} else {
+				content = readFully(dataSetUrl);
+				final CRC32 checksum = new CRC32();
+				checksum.update(content);
+				key = dataSetUrl.toExternalForm() + "#" + checksum.getValue();
+			}
+		}
+
+		final Object keyLock;
+		synchronized (this) {
+			final IDataSet cached = lookup(key);
+			if (cached != null) {
+				return cached;
+			}
+			Object existingLock = loadLocks.get(key);
+			if (existingLock == null) {
+				existingLock = new Object();
+				loadLocks.put(key, existingLock);
+			}
+			keyLock = existingLock;
+		}
+
+		// Only one thread loads a particular data set, others wait for it;
+		// different data sets are loaded in parallel
+		synchronized (keyLock) {
+			try {
+				synchronized (this) {
+					final IDataSet cached = lookup(key);
+					if (cached != null) {
+						return cached;
+					}
+					missCount++;
+				}
+				return cache(key, load(dataSetUrl, content, binary));
+			} finally {
+				synchronized (this) {
+					if (loadLocks.get(key) == keyLock) {
+						loadLocks.remove(key);
+					}
+				}
+			}
+		}
+	}
+
+	/** Returns the cached data set (counting the hit) or null; call only when holding the lock on this. */
+	private IDataSet lookup(final String key) {
+		final IDataSet cached = (IDataSet) entries.get(key);
+		if (cached != null) {
+			hitCount++;
+			LOG.debug("getDataSet: cache hit for {}", key);
+		}
+		return cached;
+	}
+
+	private static IDataSet load(final URL dataSetUrl, final byte[] content, final boolean binary)
+			throws DataSetException, DatabaseUnitRuntimeException {
+		if (binary) {
+			// Already read-only and cheap to load - mapped, not parsed
+			final IDataSet result = BinaryDataSet.load(dataSetUrl);
+			result.getTableNames(); // force the lazy initialization of the table map now
+			return result;
+		}
+
+		final InputStream dataSetStream = (content == null)
+			? openStream(dataSetUrl)
+			: new ByteArrayInputStream(content);
+		try {
+			return toReadOnlyDataSet(new XmlDataSet(dataSetStream));
+		} finally {
+			try {
+				dataSetStream.close();
+			} catch (IOException e) {
+				LOG.debug("getDataSet: Failed to close the stream of " + dataSetUrl, e);
+			}
+		}
+	}
+
+	private synchronized IDataSet cache(final String key, final IDataSet dataSet) {
+		if (maxSize > 0) {
+			entries.put(key, dataSet);
+		}
+		return dataSet;
+	}
+
+	/**
+	 * Create a read-only copy of the data set, fully initialized so that
+	 * it can be safely shared among threads.
+	 */
+	private static IDataSet toReadOnlyDataSet(final IDataSet dataSet) throws DataSetException {
+		final ITable[] tables = dataSet.getTables();
+		final ITable[] readOnlyTables = new ITable[tables.length];
+		for (int i = 0; i < tables.length; i++) {
+			// CompositeTable only delegates reads to the wrapped table
+			readOnlyTables[i] = new CompositeTable(tables[i].getTableMetaData(), tables[i]);
+		}
+
+		final IDataSet result = new CompositeDataSet(readOnlyTables);
+		result.getTableNames(); // force the lazy initialization of the table map now
+		return result;
+	}
+
+	/**
+	 * Resources packaged in a jar can't change while the JVM runs (at least not
+	 * in any way we'd support) so checking their staleness - which requires
+	 * opening the jar entry - would cost about as much as parsing them.
+	 */
+	static boolean isImmutable(final URL url) {
+		return "jar".equals(url.getProtocol());
+	}
+
+	/** Returns the last modification time of the URL's resource or 0 if unknown. */
+	static long getLastModified(final URL url) {
+		if ("file".equals(url.getProtocol())) {
+			try {
+				return new File(url.toURI()).lastModified();
+			} catch (URISyntaxException e) {
+				return 0;
+			}
+		}
+		try {
+			final URLConnection connection = url.openConnection();
+			final long lastModified = connection.getLastModified();
+			// The connection was opened only for the header => release the resource (e.g. a jar file)
+			connection.getInputStream().close();
+			return lastModified;
+		} catch (IOException e) {
+			LOG.debug("getLastModified: Failed to get the time for " + url, e);
+			return 0;
+		}
+	}
+
+	private static InputStream openStream(final URL url) throws DatabaseUnitRuntimeException {
+		try {
+			return url.openStream();
+		} catch (IOException e) {
+			throw new DatabaseUnitRuntimeException("Failed to read the data set " + url, e);
+		}
+	}
+
+	private static byte[] readFully(final URL url) throws DatabaseUnitRuntimeException {
+		final InputStream in = openStream(url);
+		try {
+			final ByteArrayOutputStream content = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				content.write(buffer, 0, read);
+			}
+			return content.toByteArray();
+		} catch (IOException e) {
+			throw new DatabaseUnitRuntimeException("Failed to read the data set " + url, e);
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+				LOG.debug("readFully: Failed to close the stream of " + url, e);
+			}
+		}
+	}
+
+	/**
+	 * Set the max. number of data sets to keep; the least recently used ones
+	 * are evicted when it is exceeded. Use 0 to disable caching.
+	 */
+	public synchronized void setMaxSize(final int maxSize) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("The maxSize may not be negative, is: " + maxSize);
+		}
+		this.maxSize = maxSize;
+		while (entries.size() > maxSize) {
+			entries.remove(entries.keySet().iterator().next());
+			evictionCount++;
+		}
+	}
+
+	public synchronized int getMaxSize() {
+		return maxSize;
+	}
+
+	/** Remove all cached data sets (the statistics are kept). */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/** Number of data sets currently cached. */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	public synchronized String toString() {
+		return "DataSetCache(size=" + entries.size() + "/" + maxSize +
+			", hits=" + hitCount + ", misses=" + missCount +
+			", evictions=" + evictionCount + ")";
+	}
+
+}
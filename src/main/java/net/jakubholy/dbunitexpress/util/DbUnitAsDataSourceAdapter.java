@@ -8,6 +8,10 @@
 package net.jakubholy.dbunitexpress.util;
 
 import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.SQLException;
 
@@ -22,6 +26,16 @@ import org.dbunit.IDatabaseTester;
  * Mostly useful for testing classes that access DB via DataSource
  * and not directly via a Connection, for example Spring's JdbcTemplate and
  * friends.
+ * <p>
+ * Closing a connection obtained from the data source closes the connection
+ * of the tester, which is returned to the
+ * {@link net.jakubholy.dbunitexpress.impl.ConnectionPool} when using the
+ * EmbeddedDbTester with pooling enabled (the default) and thus many
+ * connections can be obtained cheaply. Since 1.3.1 the data source also
+ * keeps statistics of its connections - how long it takes to obtain them
+ * and how many have been open at the same time - to help find code under
+ * test that opens too many connections or forgets to close them - and may
+ * record the statements executed, see {@link SqlTrace}.
  *
  * @since 1.1.0
  */
@@ -29,12 +43,32 @@ public class DbUnitAsDataSourceAdapter implements javax.sql.DataSource {
 
 	private final IDatabaseTester databaseTester;	// NOPMD
 
+	/** Null if the statements aren't traced. */
+	private final SqlTrace sqlTrace;
+
+	private long connectionCount = 0;
+	private long totalAcquisitionMillis = 0;
+	private long maxAcquisitionMillis = 0;
+	private int openCount = 0;
+	private int peakOpenCount = 0;
+
 	/**
 	 * @param databaseTester (required) supplied by the actually running
 	 * {@link DBTestCase}
 	 */
 	public DbUnitAsDataSourceAdapter(final IDatabaseTester databaseTester) {
+		this(databaseTester, null);
+	}
+
+	/**
+	 * @param databaseTester (required) supplied by the actually running
+	 * {@link DBTestCase}
+	 * @param sqlTrace (optional) records the statements executed via the connections
+	 * @since 1.3.1
+	 */
+	public DbUnitAsDataSourceAdapter(final IDatabaseTester databaseTester, final SqlTrace sqlTrace) {
 		this.databaseTester = databaseTester;
+		this.sqlTrace = sqlTrace;
 	}
 
 
@@ -45,15 +79,128 @@ public class DbUnitAsDataSourceAdapter implements javax.sql.DataSource {
 					"necessary to create connections.");
 		}
 
+		final long start = System.currentTimeMillis();
+		final Connection connection;
 		try {
-			return databaseTester.getConnection().getConnection();
+			connection = databaseTester.getConnection().getConnection();
 		} catch (Exception e) {
 			final String msg = "Failed to obtain a connection from " +
 			"the DbUnit's DatabaseTester " + databaseTester;
 			throw new SQLException(msg + ": " + e);
 		}
+
+		final long acquisitionMillis = System.currentTimeMillis() - start;
+		synchronized (this) {
+			connectionCount++;
+			totalAcquisitionMillis += acquisitionMillis;
+			maxAcquisitionMillis = Math.max(maxAcquisitionMillis, acquisitionMillis);
+			peakOpenCount = Math.max(peakOpenCount, ++openCount);
+		}
+		return (Connection) Proxy.newProxyInstance(
+				Connection.class.getClassLoader()
+				, new Class[]{ Connection.class }
+				, new ClosingHandler((sqlTrace == null)? connection : sqlTrace.wrap(connection)));
 	} /* getConnection */
 
+	/** Counts the connection as closed when closed the first time. */
+	private final class ClosingHandler implements InvocationHandler {
+
+		private final Connection connection;
+		private boolean closed = false;
+
+		ClosingHandler(final Connection connection) {
+			this.connection = connection;
+		}
+
+		public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+			final String name = method.getName();
+			if ("close".equals(name) && !closed) {
+				closed = true;
+				synchronized (DbUnitAsDataSourceAdapter.this) {
+					openCount--;
+				}
+			} else if ("equals".equals(name)) {
+				return Boolean.valueOf(proxy == args[0]);
+			} else if ("hashCode".equals(name)) {
+				return new Integer(System.identityHashCode(proxy));
+			}
+
+			try {
+				return method.invoke(connection, args);
+			} catch (InvocationTargetException e) {
+				throw e.getTargetException();
+			}
+		}
+	}
+
+	// ############################################################################# statistics
+
+	/**
+	 * Number of connections obtained from this data source.
+	 * @since 1.3.1
+	 */
+	public synchronized long getConnectionCount() {
+		return connectionCount;
+	}
+
+	/**
+	 * Total time spent obtaining the connections, in ms.
+	 * @since 1.3.1
+	 */
+	public synchronized long getTotalAcquisitionMillis() {
+		return totalAcquisitionMillis;
+	}
+
+	/**
+	 * The longest time spent obtaining a connection, in ms.
+	 * @since 1.3.1
+	 */
+	public synchronized long getMaxAcquisitionMillis() {
+		return maxAcquisitionMillis;
+	}
+
+	/**
+	 * Number of connections obtained and not closed yet.
+	 * @since 1.3.1
+	 */
+	public synchronized int getOpenConnectionCount() {
+		return openCount;
+	}
+
+	/**
+	 * The max. number of connections that have been open at the same time.
+	 * @since 1.3.1
+	 */
+	public synchronized int getPeakOpenConnectionCount() {
+		return peakOpenCount;
+	}
+
+	/**
+	 * Returns the trace of the statements executed via the connections or null if not traced.
+	 * @since 1.3.1
+	 */
+	public SqlTrace getSqlTrace() {
+		return sqlTrace;
+	}
+
+	/**
+	 * Reset the statistics, e.g. before a test; the peak is set to the
+	 * number of the currently open connections.
+	 * @since 1.3.1
+	 */
+	public synchronized void resetStatistics() {
+		connectionCount = 0;
+		totalAcquisitionMillis = 0;
+		maxAcquisitionMillis = 0;
+		peakOpenCount = openCount;
+	}
+
+	public synchronized String toString() {
+		return "DbUnitAsDataSourceAdapter(" + connectionCount + " connections obtained in " +
+				totalAcquisitionMillis + " ms (max. " + maxAcquisitionMillis + " ms), " +
+				openCount + " open, peak " + peakOpenCount + ")";
+	}
+
 
 	// ############################################################################# no op methods
 
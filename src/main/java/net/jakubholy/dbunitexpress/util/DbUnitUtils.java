@@ -7,10 +7,14 @@
 
 package net.jakubholy.dbunitexpress.util;
 
+import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 
+import org.dbunit.database.DatabaseConfig;
 import org.dbunit.database.IDatabaseConnection;
 import org.dbunit.dataset.Column;
 import org.dbunit.dataset.DataSetException;
@@ -144,20 +148,81 @@ final public class DbUnitUtils {
 	 * 	it must be fully qualified ("schema.table")
 	 * @return the table's primary keys or an empty array, if none defined
 	 * @throws SQLException See {@link IDatabaseConnection#createDataSet()}
+	 * @see MetadataSnapshot
 	 * @throws DataSetException See {@link IDataSet#getTableMetaData(String)} and
 	 * 	{@link ITableMetaData#getPrimaryKeys()}
 	 */
 	public static Column[] getPrimaryKeys(final IDatabaseConnection connection, final String tableName)
 			throws DataSetException, SQLException {
-		// DatabaseDataSet returns the DatabaseTableMetaData whose
+		// The shared snapshot has the keys read in bulk; if it doesn't know the table
+		// then DatabaseDataSet returns the DatabaseTableMetaData whose
 		// .getPrimaryKeys() uses the java.sql.DatabaseMetaData to fetch
 		// the actual keys as opposed to a ResultSetTableMetaData, which is
 		// created with keys=new Column[0]
-		final ITableMetaData tableMetaData = connection
-			.createDataSet()
-			.getTableMetaData(tableName);
+		ITableMetaData tableMetaData = MetadataSnapshot.getInstance(connection.getConnection())
+			.getTableMetaData(connection, tableName);
+		if (tableMetaData == null) {
+			tableMetaData = connection
+				.createDataSet()
+				.getTableMetaData(tableName);
+		}
 		final Column[] keys = tableMetaData.getPrimaryKeys();
 		return (keys == null)? new Column[0] : keys;
 	}
 
+	/**
+	 * Returns true if the connection is to a Derby database.
+	 * @param connection (required)
+	 * @throws SQLException Failure to access the connection's metadata
+	 */
+	public static boolean isDerby(final Connection connection) throws SQLException {
+		final String dbName = connection.getMetaData().getDatabaseProductName();
+		return dbName != null && dbName.toLowerCase().indexOf("derby") >= 0;
+	}
+
+	/**
+	 * Remove the connection attributes (;create=true etc.) from a JDBC URL.
+	 * @param url (required)
+	 */
+	public static String toBaseUrl(final String url) {
+		final int attributesStart = url.indexOf(';');
+		return (attributesStart >= 0)? url.substring(0, attributesStart) : url;
+	}
+
+	/**
+	 * Remove the entries of the database from a map keyed by JDBC URLs,
+	 * which may differ in their connection attributes.
+	 * @param byUrl (required) Map&lt;String JDBC URL, ?&gt;
+	 * @param dbUrl (required) the JDBC URL of the database, with or without
+	 * 	connection attributes
+	 */
+	public static void removeDatabase(final Map byUrl, final String dbUrl) {
+		final String baseUrl = toBaseUrl(dbUrl);
+		for (final Iterator iterator = byUrl.keySet().iterator(); iterator.hasNext();) {
+			if (baseUrl.equals(toBaseUrl((String) iterator.next()))) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Copy all the features and properties set in one connection's
+	 * configuration to another's.
+	 * @param source (required)
+	 * @param target (required)
+	 */
+	public static void copyConfig(final DatabaseConfig source, final DatabaseConfig target) {
+		for (int i = 0; i < DatabaseConfig.ALL_FEATURES.length; i++) {
+			final String feature = DatabaseConfig.ALL_FEATURES[i];
+			target.setFeature(feature, source.getFeature(feature));
+		}
+		for (int i = 0; i < DatabaseConfig.ALL_PROPERTIES.length; i++) {
+			final String property = DatabaseConfig.ALL_PROPERTIES[i].getProperty();
+			final Object value = source.getProperty(property);
+			if (value != null) {
+				target.setProperty(property, value);
+			}
+		}
+	}
+
 }
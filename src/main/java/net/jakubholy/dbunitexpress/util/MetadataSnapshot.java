@@ -0,0 +1,492 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.util;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.dbunit.database.DatabaseConfig;
+import org.dbunit.database.DatabaseDataSet;
+import org.dbunit.database.IDatabaseConnection;
+import org.dbunit.dataset.Column;
+import org.dbunit.dataset.DataSetException;
+import org.dbunit.dataset.DefaultTableMetaData;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.dataset.ITable;
+import org.dbunit.dataset.ITableIterator;
+import org.dbunit.dataset.ITableMetaData;
+import org.dbunit.dataset.datatype.IDataTypeFactory;
+import org.dbunit.util.SQLHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A snapshot of the database's table metadata - tables, their columns with
+ * types, primary keys and foreign keys - shared by all testers and operations
+ * working with the same database URL so that the metadata isn't read again
+ * table by table for every set up, as DbUnit's DatabaseDataSet does.
+ * <p>
+ * The tables and columns of a schema are read together by a single metadata
+ * query when a table of the schema is first requested. For Derby, all primary
+ * and foreign keys are read upfront from the system catalog and the snapshot
+ * is replaced when the schema's fingerprint, derived from the IDs of the
+ * tables and constraints and the number of columns, has changed. The fingerprint
+ * is only checked on the first use after {@link #checkForChangesOnNextUse()},
+ * which is called at the start of every set up. For other
+ * databases the primary keys are read per table when first needed and the
+ * snapshot is kept until {@link #invalidateAll()}, which is called e.g. by
+ * the DatabaseCreator when it executes a DDL.
+ * <p>
+ * Only qualified table names ("schema.table") are resolved, case-insensitively.
+ * {@link #createDataSet(IDatabaseConnection)} serves the metadata to DbUnit's
+ * operations.
+ *
+ * @since 1.3.1
+ */
+public final class MetadataSnapshot {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MetadataSnapshot.class);
+
+	private static final String DERBY_COLUMNS_FINGERPRINT_SQL =
+		"SELECT t.TABLEID, c.COLUMNNAME, c.COLUMNDATATYPE" +
+		" FROM SYS.SYSTABLES t JOIN SYS.SYSCOLUMNS c ON c.REFERENCEID = t.TABLEID" +
+		" WHERE t.TABLETYPE = 'T' ORDER BY t.TABLEID, c.COLUMNNUMBER";
+
+	private static final String DERBY_CONSTRAINTS_FINGERPRINT_SQL =
+		"SELECT CONSTRAINTID FROM SYS.SYSCONSTRAINTS ORDER BY 1";
+
+	private static final String DERBY_PRIMARY_KEYS_SQL =
+		"SELECT s.SCHEMANAME, t.TABLENAME, g.DESCRIPTOR" +
+		" FROM SYS.SYSCONSTRAINTS c" +
+		" JOIN SYS.SYSKEYS k ON c.CONSTRAINTID = k.CONSTRAINTID" +
+		" JOIN SYS.SYSCONGLOMERATES g ON k.CONGLOMERATEID = g.CONGLOMERATEID" +
+		" JOIN SYS.SYSTABLES t ON c.TABLEID = t.TABLEID" +
+		" JOIN SYS.SYSSCHEMAS s ON t.SCHEMAID = s.SCHEMAID" +
+		" WHERE c.TYPE = 'P'";
+
+	private static final String DERBY_FOREIGN_KEYS_SQL =
+		"SELECT fs.SCHEMANAME, ft.TABLENAME, ps.SCHEMANAME, pt.TABLENAME" +
+		" FROM SYS.SYSFOREIGNKEYS fk" +
+		" JOIN SYS.SYSCONSTRAINTS fc ON fk.CONSTRAINTID = fc.CONSTRAINTID" +
+		" JOIN SYS.SYSTABLES ft ON fc.TABLEID = ft.TABLEID" +
+		" JOIN SYS.SYSSCHEMAS fs ON ft.SCHEMAID = fs.SCHEMAID" +
+		" JOIN SYS.SYSCONSTRAINTS pc ON fk.KEYCONSTRAINTID = pc.CONSTRAINTID" +
+		" JOIN SYS.SYSTABLES pt ON pc.TABLEID = pt.TABLEID" +
+		" JOIN SYS.SYSSCHEMAS ps ON pt.SCHEMAID = ps.SCHEMAID";
+
+	private static final String[] TABLE_TYPES = new String[]{ "TABLE" };
+
+	/** Map&lt;String dbUrl, MetadataSnapshot&gt; */
+	private static final Map snapshots = new HashMap();
+
+	/** Null if not known (non-Derby) */
+	private final String fingerprint;
+	/** Map&lt;String SCHEMA.TABLE, int[] primary key column positions&gt;; null if read per table. */
+	private final Map primaryKeyPositions;
+	/** List&lt;String[] {referenced table, referencing table}&gt;; null if not known. */
+	private final List foreignKeys;
+
+	/** Check the fingerprint when next requested; guarded by {@link #snapshots}. */
+	private boolean checkPending;
+
+	/** Upper-case names of the schemas whose tables have been read. */
+	private final Set loadedSchemas = new HashSet();
+	/** Map&lt;String SCHEMA.TABLE upper-case, ITableMetaData&gt; */
+	private final Map tables = new HashMap();
+	/** The class of the data type factory used for the columns; null until the first schema is read. */
+	private Class dataTypeFactoryClass;
+
+	private MetadataSnapshot(final String fingerprint, final Map primaryKeyPositions, final List foreignKeys) {
+		this.fingerprint = fingerprint;
+		this.primaryKeyPositions = primaryKeyPositions;
+		this.foreignKeys = foreignKeys;
+	}
+
+	/**
+	 * Returns the shared snapshot for the connection's database, loading it if
+	 * not loaded yet or if the schema has changed since {@link #checkForChangesOnNextUse()}
+	 * (Derby only).
+	 */
+	public static MetadataSnapshot getInstance(final Connection connection) throws SQLException {
+		final String dbUrl = connection.getMetaData().getURL();
+		synchronized (snapshots) {
+			final MetadataSnapshot snapshot = (MetadataSnapshot) snapshots.get(dbUrl);
+			if (snapshot != null && !snapshot.checkPending) {
+				return snapshot;
+			}
+		}
+
+		final boolean derby = DbUnitUtils.isDerby(connection);
+		final String currentFingerprint = derby? readDerbyFingerprint(connection) : null;
+
+		synchronized (snapshots) {
+			MetadataSnapshot snapshot = (MetadataSnapshot) snapshots.get(dbUrl);
+			if (snapshot != null && (!derby || currentFingerprint.equals(snapshot.fingerprint))) {
+				snapshot.checkPending = false;
+				return snapshot;
+			}
+
+			if (derby) {
+				snapshot = new MetadataSnapshot(currentFingerprint
+						, readDerbyPrimaryKeys(connection), readDerbyForeignKeys(connection));
+			} else {
+				snapshot = new MetadataSnapshot(null, null, null);
+			}
+			snapshots.put(dbUrl, snapshot);
+			LOG.debug("getInstance: Loaded a new snapshot of {}", dbUrl);
+			return snapshot;
+		}
+	}
+
+	/**
+	 * Have the snapshots checked for schema changes (Derby only) when next requested,
+	 * e.g. at the start of a set up because the test may have executed a DDL since
+	 * the last one. Cheaper than {@link #invalidateAll()} if nothing has changed.
+	 */
+	public static void checkForChangesOnNextUse() {
+		synchronized (snapshots) {
+			for (final Iterator iterator = snapshots.values().iterator(); iterator.hasNext();) {
+				((MetadataSnapshot) iterator.next()).checkPending = true;
+			}
+		}
+	}
+
+	/**
+	 * Forget the snapshot of the database because its schema has changed.
+	 * @param dbUrl (required) the JDBC URL of the database, with or without
+	 * 	connection attributes
+	 */
+	public static void invalidate(final String dbUrl) {
+		synchronized (snapshots) {
+			DbUnitUtils.removeDatabase(snapshots, dbUrl);
+		}
+	}
+
+	/** Forget all snapshots, e.g. because the schema has changed. */
+	public static void invalidateAll() {
+		synchronized (snapshots) {
+			snapshots.clear();
+		}
+	}
+
+	/**
+	 * The ids of the tables with a checksum of their column names and types
+	 * and the ids of the constraints; a table is re-created with a new id.
+	 */
+	private static String readDerbyFingerprint(final Connection connection) throws SQLException {
+		final StringBuffer ids = new StringBuffer();
+		final Statement statement = connection.createStatement();
+		try {
+			final ResultSet columns = statement.executeQuery(DERBY_COLUMNS_FINGERPRINT_SQL);
+			final CRC32 tableColumns = new CRC32();
+			String tableId = null;
+			while (columns.next()) {
+				if (!columns.getString(1).equals(tableId)) {
+					if (tableId != null) {
+						ids.append(tableId).append(':').append(tableColumns.getValue()).append(',');
+					}
+					tableId = columns.getString(1);
+					tableColumns.reset();
+				}
+				tableColumns.update((columns.getString(2) + " " + columns.getString(3) + ";").getBytes());
+			}
+			if (tableId != null) {
+				ids.append(tableId).append(':').append(tableColumns.getValue()).append(',');
+			}
+			columns.close();
+
+			final ResultSet constraints = statement.executeQuery(DERBY_CONSTRAINTS_FINGERPRINT_SQL);
+			while (constraints.next()) {
+				ids.append(constraints.getString(1)).append(',');
+			}
+			constraints.close();
+		} finally {
+			statement.close();
+		}
+		return ids.toString();
+	}
+
+	private static Map readDerbyPrimaryKeys(final Connection connection) throws SQLException {
+		final Map primaryKeys = new HashMap();
+		final Statement statement = connection.createStatement();
+		try {
+			final ResultSet rows = statement.executeQuery(DERBY_PRIMARY_KEYS_SQL);
+			while (rows.next()) {
+				primaryKeys.put(rows.getString(1) + "." + rows.getString(2), parseColumnPositions(rows.getString(3)));
+			}
+			rows.close();
+		} finally {
+			statement.close();
+		}
+		return primaryKeys;
+	}
+
+	/** Parse the 1-based column positions from an index descriptor such as "UNIQUE BTREE (3, 1)". */
+	private static int[] parseColumnPositions(final String indexDescriptor) {
+		final String positions = indexDescriptor.substring(indexDescriptor.indexOf('(') + 1
+				, indexDescriptor.lastIndexOf(')'));
+		final StringTokenizer tokenizer = new StringTokenizer(positions, ", ");
+		final int[] result = new int[tokenizer.countTokens()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = Integer.parseInt(tokenizer.nextToken());
+		}
+		return result;
+	}
+
+	private static List readDerbyForeignKeys(final Connection connection) throws SQLException {
+		final List foreignKeys = new ArrayList();
+		final Statement statement = connection.createStatement();
+		try {
+			final ResultSet rows = statement.executeQuery(DERBY_FOREIGN_KEYS_SQL);
+			while (rows.next()) {
+				foreignKeys.add(new String[]{ rows.getString(3) + "." + rows.getString(4)
+						, rows.getString(1) + "." + rows.getString(2) });
+			}
+			rows.close();
+		} finally {
+			statement.close();
+		}
+		return Collections.unmodifiableList(foreignKeys);
+	}
+
+	/**
+	 * Returns all the foreign keys of the database if they have been read
+	 * in bulk (Derby only).
+	 * @return List&lt;String[] {referenced table, referencing table}&gt; of
+	 * 	qualified table names or null if not known
+	 */
+	public List getForeignKeys() {
+		return foreignKeys;
+	}
+
+	/**
+	 * Returns the metadata of the given table including its primary keys,
+	 * with the columns' data types created by the connection's data type factory.
+	 * @param connection (required) used to read the metadata if not read yet
+	 * @param tableName (required) qualified table name in any case
+	 * @return the metadata or null if the table isn't known (e.g. unqualified,
+	 * 	not existing, created after the schema has been read) or the connection
+	 * 	uses another data type factory than the one the snapshot has been created with
+	 */
+	public synchronized ITableMetaData getTableMetaData(final IDatabaseConnection connection, final String tableName)
+			throws SQLException, DataSetException {
+		final int dot = tableName.indexOf('.');
+		if (dot < 0) {
+			return null;
+		}
+
+		final IDataTypeFactory dataTypeFactory = (IDataTypeFactory) connection.getConfig().getProperty(
+				DatabaseConfig.PROPERTY_DATATYPE_FACTORY);
+		if (dataTypeFactoryClass != null && dataTypeFactoryClass != dataTypeFactory.getClass()) {
+			return null;
+		}
+
+		final String schema = tableName.substring(0, dot).toUpperCase();
+		if (!loadedSchemas.contains(schema)) {
+			loadSchema(connection, tableName.substring(0, dot), dataTypeFactory);
+			dataTypeFactoryClass = dataTypeFactory.getClass();
+			loadedSchemas.add(schema);
+		}
+		return (ITableMetaData) tables.get(tableName.toUpperCase());
+	}
+
+	/** Read all tables of the schema and their columns. */
+	private void loadSchema(final IDatabaseConnection connection, final String schemaName
+			, final IDataTypeFactory dataTypeFactory) throws SQLException, DataSetException {
+
+		final long start = System.currentTimeMillis();
+		final Connection jdbcConnection = connection.getConnection();
+		final DatabaseMetaData databaseMetaData = jdbcConnection.getMetaData();
+		final String schema = SQLHelper.correctCase(schemaName, jdbcConnection);
+		final boolean datatypeWarning = connection.getConfig().getFeature(DatabaseConfig.FEATURE_DATATYPE_WARNING);
+
+		final Set tableNames = new HashSet();
+		final ResultSet tableRows = databaseMetaData.getTables(null, schema, "%", TABLE_TYPES);
+		try {
+			while (tableRows.next()) {
+				if (schema.equals(tableRows.getString(2))) {
+					tableNames.add(tableRows.getString(3));
+				}
+			}
+		} finally {
+			tableRows.close();
+		}
+
+		// Map<String table, SortedMap<Integer position, Column>>
+		final Map columnsByTable = new HashMap();
+		final ResultSet columnRows = databaseMetaData.getColumns(null, schema, "%", "%");
+		try {
+			while (columnRows.next()) {
+				final String table = columnRows.getString(3);
+				if (!schema.equals(columnRows.getString(2)) || !tableNames.contains(table)) {
+					continue;
+				}
+				final Column column = SQLHelper.createColumn(columnRows, dataTypeFactory, datatypeWarning);
+				if (column != null) {
+					Map columns = (Map) columnsByTable.get(table);
+					if (columns == null) {
+						columns = new TreeMap();
+						columnsByTable.put(table, columns);
+					}
+					columns.put(new Integer(columnRows.getInt(17)), column);
+				}
+			}
+		} finally {
+			columnRows.close();
+		}
+
+		for (final Iterator iterator = columnsByTable.entrySet().iterator(); iterator.hasNext();) {
+			final Map.Entry entry = (Map.Entry) iterator.next();
+			final String qualifiedName = schema + "." + entry.getKey();
+			final Map columns = (Map) entry.getValue();
+			tables.put(qualifiedName.toUpperCase(), new DefaultTableMetaData(qualifiedName
+					, (Column[]) columns.values().toArray(new Column[columns.size()])
+					, getPrimaryKeys(databaseMetaData, schema, (String) entry.getKey(), columns)));
+		}
+
+		LOG.debug("loadSchema: Read " + columnsByTable.size() + " tables of " + schema + " in " +
+				(System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * @param columns SortedMap&lt;Integer position, Column&gt;
+	 */
+	private Column[] getPrimaryKeys(final DatabaseMetaData databaseMetaData, final String schema
+			, final String table, final Map columns) throws SQLException {
+		final List keys = new ArrayList();
+		if (primaryKeyPositions != null) {
+			final int[] positions = (int[]) primaryKeyPositions.get(schema + "." + table);
+			for (int i = 0; positions != null && i < positions.length; i++) {
+				final Object column = columns.get(new Integer(positions[i]));
+				if (column != null) {
+					keys.add(column);
+				}
+			}
+		} else {
+			// Map<Short key sequence, Column>
+			final Map keysBySequence = new TreeMap();
+			final ResultSet keyRows = databaseMetaData.getPrimaryKeys(null, schema, table);
+			try {
+				while (keyRows.next()) {
+					final String columnName = keyRows.getString(4);
+					for (final Iterator iterator = columns.values().iterator(); iterator.hasNext();) {
+						final Column column = (Column) iterator.next();
+						if (column.getColumnName().equals(columnName)) {
+							keysBySequence.put(new Short(keyRows.getShort(5)), column);
+						}
+					}
+				}
+			} finally {
+				keyRows.close();
+			}
+			keys.addAll(keysBySequence.values());
+		}
+		return (Column[]) keys.toArray(new Column[keys.size()]);
+	}
+
+	/**
+	 * Returns a data set of the connection's database that serves the table
+	 * metadata from the current snapshot and anything else, and tables not in
+	 * the snapshot, from DbUnit's DatabaseDataSet. It is meant to be used as
+	 * the result of the connection's createDataSet() for the duration of one
+	 * use of the connection. Unless the connection uses qualified table names,
+	 * case-insensitively and without a primary key filter, the DatabaseDataSet
+	 * is used for everything.
+	 */
+	public static IDataSet createDataSet(final IDatabaseConnection connection) throws SQLException {
+		final DatabaseConfig config = connection.getConfig();
+		final boolean caseSensitive = config.getFeature(DatabaseConfig.FEATURE_CASE_SENSITIVE_TABLE_NAMES);
+		if (caseSensitive || !config.getFeature(DatabaseConfig.FEATURE_QUALIFIED_TABLE_NAMES)
+				|| config.getProperty(DatabaseConfig.PROPERTY_PRIMARY_KEY_FILTER) != null) {
+			return new DatabaseDataSet(connection, caseSensitive);
+		}
+		return new SnapshotDataSet(connection, getInstance(connection.getConnection()));
+	}
+
+	/** Serves the metadata from the snapshot, delegates the rest to a DatabaseDataSet. */
+	private static final class SnapshotDataSet implements IDataSet {
+
+		private final IDatabaseConnection connection;
+		private final MetadataSnapshot snapshot;
+		private IDataSet databaseDataSet;
+
+		SnapshotDataSet(final IDatabaseConnection connection, final MetadataSnapshot snapshot) {
+			this.connection = connection;
+			this.snapshot = snapshot;
+		}
+
+		private IDataSet getDatabaseDataSet() throws DataSetException {
+			if (databaseDataSet == null) {
+				try {
+					databaseDataSet = new DatabaseDataSet(connection, false);
+				} catch (SQLException e) {
+					throw new DataSetException(e);
+				}
+			}
+			return databaseDataSet;
+		}
+
+		public ITableMetaData getTableMetaData(final String tableName) throws DataSetException {
+			final ITableMetaData metaData;
+			try {
+				metaData = snapshot.getTableMetaData(connection, tableName);
+			} catch (SQLException e) {
+				throw new DataSetException(e);
+			}
+			return (metaData == null)? getDatabaseDataSet().getTableMetaData(tableName) : metaData;
+		}
+
+		public String[] getTableNames() throws DataSetException {
+			return getDatabaseDataSet().getTableNames();
+		}
+
+		public ITable getTable(final String tableName) throws DataSetException {
+			return getDatabaseDataSet().getTable(tableName);
+		}
+
+		public ITable[] getTables() throws DataSetException {
+			return getDatabaseDataSet().getTables();
+		}
+
+		public ITableIterator iterator() throws DataSetException {
+			return getDatabaseDataSet().iterator();
+		}
+
+		public ITableIterator reverseIterator() throws DataSetException {
+			return getDatabaseDataSet().reverseIterator();
+		}
+
+		public boolean isCaseSensitiveTableNames() {
+			return false;
+		}
+
+		public String toString() {
+			return "SnapshotDataSet(" + snapshot + ")";
+		}
+	}
+
+	public String toString() {
+		return "MetadataSnapshot(" + (fingerprint == null? "until invalidated" : "fingerprinted") + ", " +
+				tables.size() + " tables of the schemas " + loadedSchemas + ")";
+	}
+
+}
@@ -0,0 +1,186 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.AssertionFailedError;
+import net.jakubholy.dbunitexpress.util.SqlTrace.TracedStatement;
+
+/**
+ * Finds "N+1 queries" in a {@link SqlTrace}: the same query executed
+ * again and again with different values, typically once per row of a
+ * previous query by an ORM's lazy loading, where a join or an IN would do.
+ * <p>
+ * Queries are the same if their SQL is the same once normalized: literals
+ * are replaced with ?, IN lists with a single ?, whitespace and case are
+ * ignored. The values are the parameters of a prepared statement together
+ * with the literals. A query is reported if it has been executed with at
+ * least <em>threshold</em> different values. Only SELECTs are checked.
+ *
+ * @see net.jakubholy.dbunitexpress.EmbeddedDbTester#N_PLUS_ONE_THRESHOLD_PROPERTY
+ * @since 1.3.1
+ */
+public class NPlusOneDetector {
+
+	private static final Pattern LITERAL = Pattern.compile("'(?:[^']|'')*'|\\b\\d+(?:\\.\\d+)?\\b");
+	private static final Pattern IN_LIST = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\)");
+	private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+	private final int threshold;
+
+	/**
+	 * @param threshold (&gt; 1) the number of different values from which on
+	 * 	a repeated query is reported
+	 */
+	public NPlusOneDetector(final int threshold) {
+		if (threshold < 2) {
+			throw new IllegalArgumentException("The threshold must be at least 2, is: " + threshold);
+		}
+		this.threshold = threshold;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Returns List&lt;{@link RepeatedQuery}&gt; of the queries in the trace
+	 * executed with at least the threshold different values, the most
+	 * frequent first; empty if none.
+	 */
+	public List detect(final SqlTrace trace) {
+		/* Map<String normalized SQL, RepeatedQuery> */
+		final Map queries = new LinkedHashMap();
+		for (final Iterator iterator = trace.getStatements().iterator(); iterator.hasNext();) {
+			final TracedStatement statement = (TracedStatement) iterator.next();
+			if (!"SELECT".equals(statement.getType())) {
+				continue;
+			}
+			final List values = new ArrayList(statement.getParameters());
+			final String normalizedSql = normalizeSql(statement.getSql(), values);
+			RepeatedQuery query = (RepeatedQuery) queries.get(normalizedSql);
+			if (query == null) {
+				query = new RepeatedQuery(normalizedSql);
+				queries.put(normalizedSql, query);
+			}
+			query.add(values, statement.getMillis());
+		}
+
+		final List repeated = new ArrayList();
+		for (final Iterator iterator = queries.values().iterator(); iterator.hasNext();) {
+			final RepeatedQuery query = (RepeatedQuery) iterator.next();
+			if (query.getDistinctValueCount() >= threshold) {
+				repeated.add(query);
+			}
+		}
+		Collections.sort(repeated, new Comparator() {
+			public int compare(final Object first, final Object second) {
+				return ((RepeatedQuery) second).getExecutionCount() - ((RepeatedQuery) first).getExecutionCount();
+			}
+		});
+		return repeated;
+	}
+
+	/**
+	 * Fail if there is any N+1 query in the trace.
+	 * @throws AssertionFailedError describing the repeated queries
+	 */
+	public void assertNone(final SqlTrace trace) throws AssertionFailedError {
+		final List repeated = detect(trace);
+		if (!repeated.isEmpty()) {
+			throw new AssertionFailedError(describe(repeated));
+		}
+	}
+
+	/** A report of the repeated queries returned by {@link #detect(SqlTrace)}. */
+	public String describe(final List repeated) {
+		final StringBuffer report = new StringBuffer().append(repeated.size())
+				.append(" N+1 queries executed with ").append(threshold).append(" or more different values:");
+		for (final Iterator iterator = repeated.iterator(); iterator.hasNext();) {
+			report.append("\n  ").append(iterator.next());
+		}
+		return report.toString();
+	}
+
+	/**
+	 * Returns the SQL with its literals replaced by ?, IN lists of ? by a
+	 * single one, lower-case with single spaces.
+	 * @param sql (required)
+	 * @param values (optional) where to append the literals replaced, as Strings
+	 */
+	static String normalizeSql(final String sql, final List values) {
+		final Matcher literals = LITERAL.matcher(sql);
+		final StringBuffer withoutLiterals = new StringBuffer(sql.length());
+		while (literals.find()) {
+			if (values != null) {
+				values.add(literals.group());
+			}
+			literals.appendReplacement(withoutLiterals, "?");
+		}
+		literals.appendTail(withoutLiterals);
+
+		final String withSingleInValue = IN_LIST.matcher(withoutLiterals).replaceAll("(?)");
+		return WHITESPACE.matcher(withSingleInValue).replaceAll(" ").trim().toLowerCase();
+	}
+
+	/** A query executed repeatedly. */
+	public static final class RepeatedQuery {
+
+		private final String normalizedSql;
+		private int executionCount = 0;
+		private long totalMillis = 0;
+		/** Set&lt;List values&gt; */
+		private final Set distinctValues = new HashSet();
+
+		RepeatedQuery(final String normalizedSql) {
+			this.normalizedSql = normalizedSql;
+		}
+
+		void add(final List values, final long millis) {
+			executionCount++;
+			totalMillis += millis;
+			distinctValues.add(values);
+		}
+
+		/** The SQL normalized as described in the class' JavaDoc. */
+		public String getNormalizedSql() {
+			return normalizedSql;
+		}
+
+		public int getExecutionCount() {
+			return executionCount;
+		}
+
+		/** The number of different sets of values the query has been executed with. */
+		public int getDistinctValueCount() {
+			return distinctValues.size();
+		}
+
+		/** The time of all the executions, ms. */
+		public long getTotalMillis() {
+			return totalMillis;
+		}
+
+		public String toString() {
+			return executionCount + "x (" + distinctValues.size() + " different values, " +
+					totalMillis + " ms): " + normalizedSql;
+		}
+	}
+
+}
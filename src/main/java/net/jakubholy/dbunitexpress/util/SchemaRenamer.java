@@ -0,0 +1,179 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.util;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.dbunit.dataset.CompositeTable;
+import org.dbunit.dataset.DataSetException;
+import org.dbunit.dataset.DefaultDataSet;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.dataset.ITable;
+
+/**
+ * Renames a set of schemas by appending a suffix to their names, in SQL
+ * and in the table names of data sets, so that each parallel worker can
+ * have its own copy of the schemas in one database.
+ * <p>
+ * The SQL is rewritten textually: a schema name is replaced where it
+ * qualifies a name ("schema.table") or follows the keyword SCHEMA (as in
+ * CREATE SCHEMA). Quoted identifiers are not supported and a column qualified
+ * by a table alias that equals a schema name would be renamed too.
+ *
+ * @see net.jakubholy.dbunitexpress.EmbeddedDbTester#PER_THREAD_SCHEMAS_PROPERTY
+ * @since 1.3.1
+ */
+public class SchemaRenamer {
+
+	private static final Pattern CREATED_SCHEMA = Pattern.compile(
+			"\\bcreate\\s+schema\\s+(\\w+)", Pattern.CASE_INSENSITIVE);
+
+	/** The qualifier of the first qualified name in a CREATE statement, e.g. CREATE TABLE s.t */
+	private static final Pattern CREATED_OBJECT_SCHEMA = Pattern.compile(
+			"\\bcreate\\s+(?:\\w+\\s+)*?(\\w+)\\s*\\.\\s*\\w", Pattern.CASE_INSENSITIVE);
+
+	/** Map&lt;String SCHEMA, String renamed SCHEMA&gt;, upper-case */
+	private final Map renamedSchemas = new HashMap();
+
+	/** Null if there are no schemas to rename. */
+	private final Pattern afterSchemaKeyword;
+	private final Pattern qualifier;
+
+	/** Map&lt;IDataSet original, IDataSet renamed&gt; */
+	private final Map renamedDataSets = Collections.synchronizedMap(new WeakHashMap());
+
+	/**
+	 * @param schemas (required) names of the schemas to rename, in any case
+	 * @param suffix (required) appended to the renamed schemas' names
+	 */
+	public SchemaRenamer(final String[] schemas, final String suffix) {
+		final StringBuffer alternatives = new StringBuffer();
+		for (int i = 0; i < schemas.length; i++) {
+			final String schema = schemas[i].toUpperCase();
+			renamedSchemas.put(schema, schema + suffix.toUpperCase());
+			alternatives.append((i == 0)? "" : "|").append(schema);
+		}
+
+		if (schemas.length == 0) {
+			afterSchemaKeyword = null;
+			qualifier = null;
+		} else {
+			afterSchemaKeyword = Pattern.compile("(\\bschema\\s+)(" + alternatives + ")\\b"
+					, Pattern.CASE_INSENSITIVE);
+			qualifier = Pattern.compile("\\b(" + alternatives + ")\\b(?=\\s*\\.)"
+					, Pattern.CASE_INSENSITIVE);
+		}
+	}
+
+	/**
+	 * Find the schemas used by the DDL: those created by CREATE SCHEMA and
+	 * the qualifiers of the objects created by other CREATE statements.
+	 * @return upper-case schema names in the order of appearance
+	 */
+	public static String[] findSchemas(final String ddl) {
+		final Set schemas = new LinkedHashSet();
+		final Matcher createdSchema = CREATED_SCHEMA.matcher(ddl);
+		while (createdSchema.find()) {
+			schemas.add(createdSchema.group(1).toUpperCase());
+		}
+		final Matcher createdObject = CREATED_OBJECT_SCHEMA.matcher(ddl);
+		while (createdObject.find()) {
+			schemas.add(createdObject.group(1).toUpperCase());
+		}
+		return (String[]) schemas.toArray(new String[schemas.size()]);
+	}
+
+	/**
+	 * Returns the new name of the schema or the name itself if not renamed.
+	 * @param schema (required) in any case
+	 */
+	public String renameSchema(final String schema) {
+		final String renamed = (String) renamedSchemas.get(schema.toUpperCase());
+		return (renamed == null)? schema : renamed;
+	}
+
+	/**
+	 * Returns the table name with the schema renamed.
+	 * @param tableName (required) "schema.table"; returned as-is if not qualified
+	 */
+	public String renameTable(final String tableName) {
+		final int dot = tableName.indexOf('.');
+		if (dot < 0) {
+			return tableName;
+		}
+		final String renamed = (String) renamedSchemas.get(tableName.substring(0, dot).toUpperCase());
+		return (renamed == null)? tableName : renamed + tableName.substring(dot);
+	}
+
+	/** Returns the SQL with the schemas renamed. */
+	public String rewriteSql(final String sql) {
+		if (qualifier == null) {
+			return sql;
+		}
+
+		final Matcher keywordMatcher = afterSchemaKeyword.matcher(sql);
+		final StringBuffer withSchemasRenamed = new StringBuffer(sql.length() + 64);
+		while (keywordMatcher.find()) {
+			keywordMatcher.appendReplacement(withSchemasRenamed
+					, keywordMatcher.group(1) + renameSchema(keywordMatcher.group(2)));
+		}
+		keywordMatcher.appendTail(withSchemasRenamed);
+
+		final Matcher qualifierMatcher = qualifier.matcher(withSchemasRenamed);
+		final StringBuffer result = new StringBuffer(withSchemasRenamed.length());
+		while (qualifierMatcher.find()) {
+			qualifierMatcher.appendReplacement(result, renameSchema(qualifierMatcher.group(1)));
+		}
+		qualifierMatcher.appendTail(result);
+		return result.toString();
+	}
+
+	/**
+	 * Returns a data set with the same tables, only named with the schemas renamed.
+	 * The result is cached for the given data set as long as it is in use.
+	 * @param dataSet (required) its tables are read into memory
+	 */
+	public IDataSet renameTables(final IDataSet dataSet) throws DataSetException {
+		IDataSet renamed = (IDataSet) renamedDataSets.get(dataSet);
+		if (renamed == null) {
+			final ITable[] tables = dataSet.getTables();
+			final ITable[] renamedTables = new ITable[tables.length];
+			for (int i = 0; i < tables.length; i++) {
+				renamedTables[i] = new CompositeTable(
+						renameTable(tables[i].getTableMetaData().getTableName()), tables[i]);
+			}
+			renamed = new DefaultDataSet(renamedTables, dataSet.isCaseSensitiveTableNames());
+			renamedDataSets.put(dataSet, renamed);
+		}
+		return renamed;
+	}
+
+	/** Returns the new names of the renamed schemas. */
+	public String[] getRenamedSchemas() {
+		return (String[]) renamedSchemas.values().toArray(new String[renamedSchemas.size()]);
+	}
+
+	public String toString() {
+		final StringBuffer mapping = new StringBuffer();
+		for (final Iterator iterator = renamedSchemas.entrySet().iterator(); iterator.hasNext();) {
+			final Map.Entry entry = (Map.Entry) iterator.next();
+			mapping.append((mapping.length() == 0)? "" : ", ").append(entry.getKey()).append("->")
+				.append(entry.getValue());
+		}
+		return "SchemaRenamer(" + mapping + ")";
+	}
+
+}
@@ -0,0 +1,349 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import junit.framework.AssertionFailedError;
+import net.jakubholy.dbunitexpress.assertion.ValueChecker;
+
+/**
+ * Records the SQL statements executed via the connections it has
+ * {@link #wrap(Connection) wrapped} - with their parameters, duration and
+ * the number of rows affected - so that tests can check how many statements
+ * the code under test executes, e.g. to catch a DAO that suddenly runs a
+ * query per row.
+ *
+ * <h4>Example</h4>
+ * <pre><code>
+ * new MyDao(testDb.getDataSource()).findAll();
+ * testDb.getSqlTrace().assertStatementCount(CountChecker.atMost(3));
+ * testDb.getSqlTrace().assertStatementCount("SELECT", "my_schema.my_table", CountChecker.exactly(1));
+ * </code></pre>
+ * A statement executed in a batch is recorded as one statement per its
+ * parameters/SQL, each with an equal share of the batch's duration. The
+ * table of a statement is found textually in its SQL, see
+ * {@link TracedStatement#refersToTable(String)}.
+ *
+ * @see net.jakubholy.dbunitexpress.IEnhancedDatabaseTester#getSqlTrace()
+ * @see net.jakubholy.dbunitexpress.assertion.CountChecker
+ * @since 1.3.1
+ */
+public class SqlTrace {
+
+	/** List&lt;TracedStatement&gt; */
+	private final List statements = new ArrayList();
+
+	/**
+	 * Returns a connection that records the statements executed via it into this trace.
+	 * @param connection (required) the connection to delegate to
+	 */
+	public Connection wrap(final Connection connection) {
+		return (Connection) Proxy.newProxyInstance(
+				Connection.class.getClassLoader()
+				, new Class[]{ Connection.class }
+				, new TracingConnectionHandler(connection));
+	}
+
+	synchronized void add(final TracedStatement statement) {
+		statements.add(statement);
+	}
+
+	/** Returns List&lt;{@link TracedStatement}&gt; in the order of execution. */
+	public synchronized List getStatements() {
+		return Collections.unmodifiableList(new ArrayList(statements));
+	}
+
+	/** The number of statements executed. */
+	public synchronized int getStatementCount() {
+		return statements.size();
+	}
+
+	/**
+	 * The number of statements of the given type that refer to the table.
+	 * @param type (optional) the first keyword of the SQL such as SELECT, in any case; null for any
+	 * @param tableName (optional) [schema.]table, see {@link TracedStatement#refersToTable(String)}; null for any
+	 */
+	public synchronized int getStatementCount(final String type, final String tableName) {
+		int count = 0;
+		for (final Iterator iterator = statements.iterator(); iterator.hasNext();) {
+			final TracedStatement statement = (TracedStatement) iterator.next();
+			if ((type == null || type.equalsIgnoreCase(statement.getType()))
+					&& (tableName == null || statement.refersToTable(tableName))) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Check the number of executed statements.
+	 * @param expectedCount (required) e.g. CountChecker.atMost(3)
+	 * @throws AssertionFailedError listing the statements if not as expected
+	 * @see net.jakubholy.dbunitexpress.assertion.CountChecker
+	 */
+	public void assertStatementCount(final ValueChecker expectedCount) throws AssertionFailedError {
+		assertStatementCount(null, null, expectedCount);
+	}
+
+	/**
+	 * Check the number of executed statements of the given type referring to the table.
+	 * @param type (optional) see {@link #getStatementCount(String, String)}
+	 * @param tableName (optional) see {@link #getStatementCount(String, String)}
+	 * @param expectedCount (required) e.g. CountChecker.atMost(3)
+	 * @throws AssertionFailedError listing the statements if not as expected
+	 */
+	public void assertStatementCount(final String type, final String tableName, final ValueChecker expectedCount)
+			throws AssertionFailedError {
+		final int count = getStatementCount(type, tableName);
+		try {
+			expectedCount.assertAcceptable(new Integer(count));
+		} catch (AssertionFailedError e) {
+			throw new AssertionFailedError("Unexpected number of " + ((type == null)? "" : type + " ") +
+					"statements" + ((tableName == null)? "" : " on " + tableName) + ": " +
+					e.getMessage() + "; executed: " + this);
+		}
+	}
+
+	/** Forget the statements recorded so far, e.g. before the tested call. */
+	public synchronized void reset() {
+		statements.clear();
+	}
+
+	public synchronized String toString() {
+		final StringBuffer description = new StringBuffer(statements.size() + " statements");
+		for (final Iterator iterator = statements.iterator(); iterator.hasNext();) {
+			description.append("\n  ").append(iterator.next());
+		}
+		return description.toString();
+	}
+
+	/** One executed SQL statement. */
+	public static final class TracedStatement {
+
+		private final String sql;
+		private final List parameters;
+		private final long millis;
+		private final int rowsAffected;
+		private final String type;
+
+		TracedStatement(final String sql, final List parameters, final long millis, final int rowsAffected) {
+			this.sql = sql;
+			this.parameters = Collections.unmodifiableList(parameters);
+			this.millis = millis;
+			this.rowsAffected = rowsAffected;
+			final String trimmed = sql.trim();
+			int keywordEnd = 0;
+			while (keywordEnd < trimmed.length() && Character.isLetter(trimmed.charAt(keywordEnd))) {
+				keywordEnd++;
+			}
+			this.type = trimmed.substring(0, keywordEnd).toUpperCase();
+		}
+
+		public String getSql() {
+			return sql;
+		}
+
+		/** The parameters of a prepared statement in the order of their indices; null for unset ones. */
+		public List getParameters() {
+			return parameters;
+		}
+
+		/** How long the execution took, ms. */
+		public long getMillis() {
+			return millis;
+		}
+
+		/** The number of rows inserted, updated or deleted; -1 for queries or if unknown. */
+		public int getRowsAffected() {
+			return rowsAffected;
+		}
+
+		/** The first keyword of the SQL, upper-case, e.g. SELECT. */
+		public String getType() {
+			return type;
+		}
+
+		/**
+		 * True if the table's name appears in the SQL as a whole word; an
+		 * unqualified name also matches qualified occurrences. A column with
+		 * the name of the table matches too.
+		 * @param tableName (required) [schema.]table, in any case
+		 */
+		public boolean refersToTable(final String tableName) {
+			final StringBuffer quotedName = new StringBuffer();
+			for (int i = 0; i < tableName.length(); i++) {
+				final char character = tableName.charAt(i);
+				quotedName.append(Character.isLetterOrDigit(character)? "" : "\\").append(character);
+			}
+			final String qualifier = (tableName.indexOf('.') < 0)? "(?:\\w+\\.)?" : "";
+			return Pattern.compile("(?<![\\w.])" + qualifier + quotedName + "(?!\\w)", Pattern.CASE_INSENSITIVE)
+					.matcher(sql).find();
+		}
+
+		public String toString() {
+			return sql + (parameters.isEmpty()? "" : " " + parameters) + " (" + millis + " ms" +
+					((rowsAffected < 0)? "" : ", " + rowsAffected + " rows") + ")";
+		}
+	}
+
+	// ############################################################################# proxies
+
+	/** Wraps the statements created by the connection. */
+	private final class TracingConnectionHandler implements InvocationHandler {
+
+		private final Connection connection;
+
+		TracingConnectionHandler(final Connection connection) {
+			this.connection = connection;
+		}
+
+		public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+			final String name = method.getName();
+			if ("equals".equals(name)) {
+				return Boolean.valueOf(proxy == args[0]);
+			} else if ("hashCode".equals(name)) {
+				return new Integer(System.identityHashCode(proxy));
+			}
+
+			final Object result;
+			try {
+				result = method.invoke(connection, args);
+			} catch (InvocationTargetException e) {
+				throw e.getTargetException();
+			}
+
+			if (result instanceof Statement) {
+				final String sql = ("prepareStatement".equals(name) || "prepareCall".equals(name))?
+						(String) args[0] : null;
+				final Class statementInterface = (result instanceof CallableStatement)? CallableStatement.class
+						: ((result instanceof PreparedStatement)? PreparedStatement.class : Statement.class);
+				return Proxy.newProxyInstance(
+						Connection.class.getClassLoader()
+						, new Class[]{ statementInterface }
+						, new TracingStatementHandler((Statement) result, sql, proxy));
+			}
+			return result;
+		}
+	}
+
+	/** Records the executions of the statement. */
+	private final class TracingStatementHandler implements InvocationHandler {
+
+		private final Statement statement;
+		/** Null unless prepared. */
+		private final String preparedSql;
+		private final Object connectionProxy;
+
+		/** Map&lt;Integer index, Object value&gt; of the current parameters */
+		private final Map parameters = new TreeMap();
+		/** List&lt;String sql or List parameters&gt; added to the batch */
+		private final List batch = new ArrayList();
+
+		TracingStatementHandler(final Statement statement, final String preparedSql, final Object connectionProxy) {
+			this.statement = statement;
+			this.preparedSql = preparedSql;
+			this.connectionProxy = connectionProxy;
+		}
+
+		public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+			final String name = method.getName();
+			if ("equals".equals(name)) {
+				return Boolean.valueOf(proxy == args[0]);
+			} else if ("hashCode".equals(name)) {
+				return new Integer(System.identityHashCode(proxy));
+			} else if ("getConnection".equals(name)) {
+				return connectionProxy;
+			}
+
+			recordParameter(name, args);
+			final long start = System.currentTimeMillis();
+			final Object result;
+			try {
+				result = method.invoke(statement, args);
+			} catch (InvocationTargetException e) {
+				if (name.startsWith("execute")) {
+					record(name, args, System.currentTimeMillis() - start, null);
+				}
+				throw e.getTargetException();
+			}
+			if (name.startsWith("execute")) {
+				record(name, args, System.currentTimeMillis() - start, result);
+			}
+			return result;
+		}
+
+		private void recordParameter(final String name, final Object[] args) {
+			if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer
+					&& statement instanceof PreparedStatement && preparedSql != null) {
+				parameters.put(args[0], "setNull".equals(name)? null : args[1]);
+			} else if ("clearParameters".equals(name)) {
+				parameters.clear();
+			} else if ("addBatch".equals(name)) {
+				batch.add((args == null || args.length == 0)? (Object) getParameterList() : args[0]);
+			} else if ("clearBatch".equals(name)) {
+				batch.clear();
+			}
+		}
+
+		private void record(final String name, final Object[] args, final long millis, final Object result)
+				throws Throwable {
+			if ("executeBatch".equals(name)) {
+				final int[] updateCounts = (result instanceof int[])? (int[]) result : null;
+				for (int i = 0; i < batch.size(); i++) {
+					final Object entry = batch.get(i);
+					final int rows = (updateCounts != null && i < updateCounts.length)? updateCounts[i] : -1;
+					add(new TracedStatement((entry instanceof String)? (String) entry : preparedSql
+							, (entry instanceof List)? (List) entry : Collections.EMPTY_LIST
+							, millis / batch.size(), (rows < 0)? -1 : rows));
+				}
+				batch.clear();
+				return;
+			}
+
+			final boolean prepared = (args == null || args.length == 0 || !(args[0] instanceof String));
+			final String sql = prepared? preparedSql : (String) args[0];
+			int rowsAffected = -1;
+			if (result instanceof Integer) {
+				rowsAffected = ((Integer) result).intValue();
+			} else if (Boolean.FALSE.equals(result)) {
+				rowsAffected = statement.getUpdateCount();
+			}
+			add(new TracedStatement(sql, prepared? getParameterList() : Collections.EMPTY_LIST
+					, millis, rowsAffected));
+		}
+
+		/** The current parameters by their index, null for unset ones. */
+		private List getParameterList() {
+			final List parameterList = new ArrayList();
+			for (final Iterator iterator = parameters.entrySet().iterator(); iterator.hasNext();) {
+				final Map.Entry parameter = (Map.Entry) iterator.next();
+				while (parameterList.size() < ((Integer) parameter.getKey()).intValue() - 1) {
+					parameterList.add(null);
+				}
+				parameterList.add(parameter.getValue());
+			}
+			return parameterList;
+		}
+	}
+
+}
@@ -181,6 +181,66 @@ public class DatabaseCreatorTest extends TestCase {
         assertTableCreated(inMemoryEmbeddedDb, "new_custom_table2");
     }
 
+    public void test_initializes_db_once_from_parallel_threads() throws Exception {
+
+        LOG.info("RUNNING TEST test_initializes_db_once_from_parallel_threads");
+
+        final Throwable[] failures = new Throwable[4];
+        final Thread[] threads = new Thread[failures.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int threadIdx = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        DatabaseCreator.initializeTestDbOnce(EmbeddedDbTester.withPropertiesFile(
+                                "dbex-derby_in_memory-auto_init.properties", null));
+                    } catch (Throwable e) {
+                        failures[threadIdx] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            if (failures[i] != null) {
+                throw new RuntimeException("Thread " + i + " failed", failures[i]);
+            }
+        }
+
+        assertTableCreated(EmbeddedDbTester.withPropertiesFile("dbex-derby_in_memory-auto_init.properties", null)
+                , "my_test_schema.my_test_table");
+        assertNull("In-memory DBs shall not be marked as initialized"
+                , DatabaseCreator.readInitializedMarker("jdbc:derby:memory:autoInitDb"));
+    }
+
+    public void test_marks_persistent_db_as_initialized() throws Exception {
+
+        LOG.info("RUNNING TEST test_marks_persistent_db_as_initialized");
+
+        final EmbeddedDbTester embeddedDb = new EmbeddedDbTester();
+        final String url = embeddedDb.resolveConnectionProperty(PropertiesBasedJdbcDatabaseTester.DBUNIT_CONNECTION_URL);
+        DatabaseCreator.forgetInitialization(url);
+        assertNull(DatabaseCreator.readInitializedMarker(url));
+
+        DatabaseCreator.initializeTestDbOnce(embeddedDb);
+
+        assertNotNull("The DDL checksum shall be recorded", DatabaseCreator.readInitializedMarker(url));
+        assertTrue("The marker shall be stored in the database directory", new File(
+                DatabaseCreator.getDerbyDatabaseDirectory(url), DatabaseCreator.INITIALIZED_MARKER_FILE_NAME).isFile());
+    }
+
+    public void test_resolves_derby_database_directory() throws Exception {
+        final File expected = new File(System.getProperty("derby.system.home", System.getProperty("user.dir"))
+                , "testData/testDB").getAbsoluteFile();
+        assertEquals(expected, DatabaseCreator.getDerbyDatabaseDirectory("jdbc:derby:testData/testDB;create=true"));
+        assertEquals(expected, DatabaseCreator.getDerbyDatabaseDirectory(
+                "jdbc:derby:directory:" + expected.getPath()));
+        assertNull(DatabaseCreator.getDerbyDatabaseDirectory("jdbc:derby:memory:testDB"));
+        assertNull(DatabaseCreator.getDerbyDatabaseDirectory("jdbc:derby://localhost:1527/testDB"));
+        assertNull(DatabaseCreator.getDerbyDatabaseDirectory("jdbc:hsqldb:file:testDB"));
+    }
+
     //############################################################################
 
     private void assertTableCreated(EmbeddedDbTester embeddedDb, String tableName) {
@@ -0,0 +1,491 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress;
+
+import java.io.File;
+import java.io.StringReader;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+import net.jakubholy.dbunitexpress.assertion.RowComparator;
+import net.jakubholy.dbunitexpress.impl.ConnectionPool;
+import net.jakubholy.dbunitexpress.impl.SetUpMetricsLogger;
+
+import org.dbunit.DatabaseUnitRuntimeException;
+import org.dbunit.DefaultOperationListener;
+import org.dbunit.PropertiesBasedJdbcDatabaseTester;
+import org.dbunit.database.IDatabaseConnection;
+import org.dbunit.dataset.DataSetException;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.dataset.xml.FlatXmlDataSetBuilder;
+import org.dbunit.operation.DatabaseOperation;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+
+/**
+ * Tests of the optional modes of the {@link EmbeddedDbTester}.
+ */
+public class EmbeddedDbTesterTest extends TestCase {
+
+	private static final String TEST_TABLE = "my_test_schema.my_test_table";
+
+	private final EmbeddedDbTester testDb = new EmbeddedDbTester();
+
+	public void testStreamedDataSetReplacesTableContent() throws Exception {
+		testDb.setDataSet("data-enhancedTester-replacement.xml");
+		testDb.onSetup();
+
+		testDb.setStreamedDataSet("data-enhancedTester-initial.xml");
+		testDb.onSetup();
+
+		assertInitialData();
+	}
+
+	public void testStreamedDataSetRejectsUnsupportedOperation() throws Exception {
+		testDb.setStreamedDataSet("data-enhancedTester-initial.xml");
+		testDb.setSetUpOperation(DatabaseOperation.DELETE);
+
+		try {
+			testDb.onSetup();
+			fail("DELETE needs to iterate the data set backwards, which a stream cannot do");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().indexOf("isn't supported") >= 0);
+		}
+	}
+
+	public void testStreamedDataSetReturnedFullyRead() throws Exception {
+		testDb.setStreamedDataSet("data-enhancedTester-initial.xml");
+
+		final IDataSet dataSet = testDb.getDataSet();
+
+		assertEquals(3, dataSet.getTable(TEST_TABLE).getRowCount());
+		assertEquals("may be read repeatedly", 3, dataSet.getTable(TEST_TABLE).getRowCount());
+	}
+
+	public void testRollbackIsolationUndoesChanges() throws Exception {
+		testDb.setRollbackIsolation(true);
+		testDb.setDataSet("data-enhancedTester-initial.xml");
+		testDb.onSetup();
+
+		final Connection connection = testDb.getSqlConnection();
+		connection.createStatement().executeUpdate("delete from " + TEST_TABLE + " where id = 1");
+		connection.commit();	// ignored
+		connection.close();		// ignored
+		testDb.getDataSource().getConnection().createStatement()
+			.executeUpdate("insert into " + TEST_TABLE + " (id) values (4)");
+		createTestTableChecker().assertRowCount(3);
+
+		testDb.onTearDown();
+
+		assertInitialData();
+	}
+
+	public void testRollbackIsolationRejectsStreamedDataSet() throws Exception {
+		testDb.setRollbackIsolation(true);
+		try {
+			testDb.setStreamedDataSet("data-enhancedTester-initial.xml");
+			fail("Streamed data sets are always re-loaded and thus the rollback isolation would save nothing");
+		} catch (DatabaseUnitRuntimeException expected) {}
+
+		testDb.setRollbackIsolation(false);
+		testDb.setStreamedDataSet("data-enhancedTester-initial.xml");
+		try {
+			testDb.setRollbackIsolation(true);
+			fail("The rollback isolation may not be enabled in the streaming mode");
+		} catch (DatabaseUnitRuntimeException expected) {}
+	}
+
+	public void testRollbackIsolationUnderRuleReleasesTransaction() throws Exception {
+		final Result result = JUnitCore.runClasses(RollbackIsolationRuleTests.class);
+
+		assertEquals(2, result.getRunCount());
+		assertTrue("Failures: " + result.getFailures(), result.wasSuccessful());
+	}
+
+	/** Both tests change the same table, the second one would block on the first one's locks. */
+	public static class RollbackIsolationRuleTests {
+
+		@Rule
+		public EmbeddedDbTesterRule testDb = new EmbeddedDbTesterRule("data-enhancedTester-initial.xml");
+
+		public RollbackIsolationRuleTests() {
+			testDb.setRollbackIsolation(true);
+		}
+
+		@Test
+		public void deletesRow() throws Exception {
+			testDb.createCheckerForSelect("select id from " + TEST_TABLE).assertRowCount(3);
+			testDb.getSqlConnection().createStatement().executeUpdate("delete from " + TEST_TABLE + " where id = 1");
+		}
+
+		@Test
+		public void updatesRow() throws Exception {
+			testDb.createCheckerForSelect("select id from " + TEST_TABLE).assertRowCount(3);
+			testDb.getSqlConnection().createStatement().executeUpdate("update " + TEST_TABLE + " set id = 5 where id = 1");
+		}
+	}
+
+	public void testRollbackIsolationLoadsOtherDataSetInTransaction() throws Exception {
+		testDb.setRollbackIsolation(true);
+		testDb.setDataSet("data-enhancedTester-initial.xml");
+		testDb.onSetup();
+
+		testDb.getEnhancedTester().replaceDatabase(
+				testDb.createDataSetFromFile("data-enhancedTester-replacement.xml"));
+		createTestTableChecker().assertRowCount(2);
+
+		testDb.onTearDown();
+		testDb.onSetup();
+
+		assertInitialData();
+	}
+
+	public void testConnectionPoolConfiguredOnlyOnCreation() throws Exception {
+		final String url = "jdbc:derby:memory:poolSettingsTest;create=true";
+		final EmbeddedDbTester firstTester = new EmbeddedDbTester();
+		firstTester.setConnectionProperty(PropertiesBasedJdbcDatabaseTester.DBUNIT_CONNECTION_URL, url);
+		firstTester.setConnectionProperty(EmbeddedDbTester.CONNECTION_POOL_SIZE_PROPERTY, "3");
+		final ConnectionPool pool = firstTester.getConnectionPool();
+
+		final EmbeddedDbTester otherTester = new EmbeddedDbTester();
+		otherTester.setConnectionProperty(PropertiesBasedJdbcDatabaseTester.DBUNIT_CONNECTION_URL, url);
+		otherTester.setConnectionProperty(EmbeddedDbTester.CONNECTION_POOL_SIZE_PROPERTY, "5");
+
+		assertSame(pool, otherTester.getConnectionPool());
+		assertEquals("The settings of the shared pool may not change", 3, pool.getMaxIdle());
+	}
+
+	public void testConnectionPoolPerPassword() throws Exception {
+		final String url = "jdbc:derby:memory:poolPasswordTest;create=true";
+		final EmbeddedDbTester firstTester = new EmbeddedDbTester();
+		firstTester.setConnectionProperty(PropertiesBasedJdbcDatabaseTester.DBUNIT_CONNECTION_URL, url);
+
+		final EmbeddedDbTester otherTester = new EmbeddedDbTester();
+		otherTester.setConnectionProperty(PropertiesBasedJdbcDatabaseTester.DBUNIT_CONNECTION_URL, url);
+		otherTester.setConnectionProperty(PropertiesBasedJdbcDatabaseTester.DBUNIT_PASSWORD, "another password");
+
+		assertNotSame("Connections authenticated by another password may not be shared"
+				, firstTester.getConnectionPool(), otherTester.getConnectionPool());
+	}
+
+	public void testInvalidNumericPropertyNamed() throws Exception {
+		testDb.setConnectionProperty(EmbeddedDbTester.CONNECTION_POOL_SIZE_PROPERTY, "ten");
+		try {
+			testDb.getConnectionPool();
+			fail("The pool size isn't a number");
+		} catch (IllegalArgumentException expected) {
+			assertTrue(expected.getMessage(), expected.getMessage().indexOf(
+					EmbeddedDbTester.CONNECTION_POOL_SIZE_PROPERTY) >= 0);
+		}
+	}
+
+	public void testFailedBatchReportsFailingRow() throws Exception {
+		testDb.setDataSet(new FlatXmlDataSetBuilder().build(new StringReader("<dataset>" +
+				"<" + TEST_TABLE + " id='1' some_text='first'/>" +
+				"<" + TEST_TABLE + " id='1' some_text='duplicate'/>" +
+				"</dataset>")));
+		try {
+			testDb.onSetup();
+			fail("Inserting a duplicate primary key should have failed");
+		} catch (Exception e) {
+			final StringBuffer messages = new StringBuffer();
+			for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+				messages.append(cause.getMessage()).append('\n');
+			}
+			assertTrue("The failing row should be reported, got: " + messages
+					, messages.indexOf("[1, duplicate]") >= 0);
+		}
+	}
+
+	public void testConfigFileLookupCachedUntilCleared() throws Exception {
+		final File classpathFolder = File.createTempFile("dbunit-express-cp-", "");
+		assertTrue(classpathFolder.delete() && classpathFolder.mkdir());
+		final File resource = new File(classpathFolder, "cached-lookup-test.xml");
+		final ClassLoader originalClassLoader = Thread.currentThread().getContextClassLoader();
+		Thread.currentThread().setContextClassLoader(new URLClassLoader(
+				new URL[]{ classpathFolder.toURI().toURL() }, originalClassLoader));
+		try {
+			try {
+				EmbeddedDbTester.findConfigFile(resource.getName());
+				fail("The file doesn't exist yet");
+			} catch (DatabaseUnitRuntimeException expected) {}
+
+			assertTrue(resource.createNewFile());
+			try {
+				EmbeddedDbTester.findConfigFile(resource.getName());
+				fail("The failed lookup should have been cached");
+			} catch (DatabaseUnitRuntimeException expected) {}
+
+			EmbeddedDbTester.clearConfigFileCache();
+			assertEquals(resource.toURI().toURL().getPath()
+					, EmbeddedDbTester.findConfigFile(resource.getName()).getPath());
+		} finally {
+			Thread.currentThread().setContextClassLoader(originalClassLoader);
+			EmbeddedDbTester.clearConfigFileCache();
+			resource.delete();
+			classpathFolder.delete();
+		}
+	}
+
+	public void testPerThreadDatabasesAreIsolated() throws Exception {
+		final String[] urls = new String[2];
+		final Throwable[] failures = new Throwable[2];
+		final Thread[] threads = new Thread[2];
+		for (int i = 0; i < threads.length; i++) {
+			final int threadIdx = i;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						final EmbeddedDbTester threadDb = EmbeddedDbTester.withPropertiesFile(
+								"dbex-derby_per_thread.properties", "data-enhancedTester-initial.xml");
+						threadDb.onSetup();
+						final Connection connection = threadDb.getSqlConnection();
+						urls[threadIdx] = connection.getMetaData().getURL();
+						connection.createStatement().executeUpdate("delete from " + TEST_TABLE +
+								" where id <= " + (threadIdx + 1));
+						connection.close();
+						threadDb.createCheckerForSelect("select id from " + TEST_TABLE)
+							.assertRowCount(2 - threadIdx);
+					} catch (Throwable e) {
+						failures[threadIdx] = e;
+					}
+				}
+			};
+			threads[i].start();
+		}
+
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].join();
+			if (failures[i] != null) {
+				throw new RuntimeException("Thread " + i + " failed", failures[i]);
+			}
+		}
+		assertTrue("Each thread shall use its own in-memory database: " + urls[0] + ", " + urls[1]
+				, urls[0].startsWith("jdbc:derby:memory:perThreadDb-") && !urls[0].equals(urls[1]));
+	}
+
+	public void testPerThreadSchemasAreIsolated() throws Exception {
+		testDb.setDataSet("data-enhancedTester-initial.xml");
+		testDb.onSetup();
+
+		final String[] schemas = new String[2];
+		final Throwable[] failures = new Throwable[2];
+		final Thread[] threads = new Thread[2];
+		for (int i = 0; i < threads.length; i++) {
+			final int threadIdx = i;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						final EmbeddedDbTester threadDb = EmbeddedDbTester.withPropertiesFile(
+								"dbex-derby_per_thread_schemas.properties", "data-enhancedTester-initial.xml");
+						threadDb.onSetup();
+						schemas[threadIdx] = threadDb.getWorkerSchemaName("my_test_schema");
+						final Connection connection = threadDb.getSqlConnection();
+						connection.createStatement().executeUpdate("delete from " + schemas[threadIdx] +
+								".my_test_table where id <= " + (threadIdx + 1));
+						connection.close();
+						threadDb.createCheckerForSelect("select id from " + TEST_TABLE)
+							.assertRowCount(2 - threadIdx);
+					} catch (Throwable e) {
+						failures[threadIdx] = e;
+					}
+				}
+			};
+			threads[i].start();
+		}
+
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].join();
+			if (failures[i] != null) {
+				throw new RuntimeException("Thread " + i + " failed", failures[i]);
+			}
+		}
+		assertTrue("Each thread shall use its own schema: " + schemas[0] + ", " + schemas[1]
+				, schemas[0].startsWith("MY_TEST_SCHEMA_W") && !schemas[0].equals(schemas[1]));
+		assertInitialData();	// the original schema is untouched
+	}
+
+	public void testPerThreadDatabaseCreatedWithTesterSettings() throws Exception {
+		final String[] owner = new String[1];
+		final Throwable[] failure = new Throwable[1];
+		final Thread thread = new Thread() {
+			public void run() {
+				try {
+					final EmbeddedDbTester threadDb = EmbeddedDbTester.withPropertiesFile(
+							"dbex-derby_per_thread.properties", "data-enhancedTester-initial.xml");
+					threadDb.setConnectionProperty(PropertiesBasedJdbcDatabaseTester.DBUNIT_USERNAME, "owner_test");
+					threadDb.onSetup();
+					final Connection connection = threadDb.getSqlConnection();
+					final ResultSet rows = connection.createStatement().executeQuery(
+							"select AUTHORIZATIONID from SYS.SYSSCHEMAS where SCHEMANAME = 'SYS'");
+					rows.next();
+					owner[0] = rows.getString(1);
+					connection.close();
+				} catch (Throwable e) {
+					failure[0] = e;
+				}
+			}
+		};
+		thread.start();
+		thread.join();
+		if (failure[0] != null) {
+			throw new RuntimeException("The thread failed", failure[0]);
+		}
+		assertEquals("The database shall be created by the tester's user", "OWNER_TEST", owner[0]);
+	}
+
+	public void testSetUpMetricsReportedToListeners() throws Exception {
+		final List reported = new ArrayList();
+		testDb.addSetUpListener(new ISetUpListener() {
+			public void setUpFinished(final SetUpMetrics metrics) {
+				reported.add(metrics);
+			}
+		});
+		testDb.setDataSet("data-enhancedTester-initial.xml");
+		testDb.onSetup();
+		testDb.onSetup();
+
+		assertEquals(2, reported.size());
+		final SetUpMetrics first = (SetUpMetrics) reported.get(0);
+		assertTrue("Phases: " + first.getPhases(), first.getPhases().keySet().containsAll(Arrays.asList(
+				new String[] {SetUpMetrics.CONFIG_LOAD, SetUpMetrics.DATA_SET, SetUpMetrics.CONNECTION
+						, SetUpMetrics.CLEAN, SetUpMetrics.INSERT})));
+		assertTrue(first.isTablesMeasured());
+		assertEquals(1, first.getTables().size());
+		final SetUpMetrics.TableLoad tableLoad = (SetUpMetrics.TableLoad) first.getTables().get(0);
+		assertEquals(TEST_TABLE, tableLoad.getTableName().toLowerCase());
+		assertEquals(3, tableLoad.getRowCount());
+
+		final SetUpMetrics second = testDb.getLastSetUpMetrics();
+		assertSame(reported.get(1), second);
+		assertFalse("The config is loaded only once", second.getPhases().containsKey(SetUpMetrics.CONFIG_LOAD));
+		assertInitialData();
+	}
+
+	public void testSetUpMetricsOfOtherOperationReportedAsLoad() throws Exception {
+		testDb.addSetUpListener(new SetUpMetricsLogger());
+		testDb.setSetUpOperation(DatabaseOperation.REFRESH);
+		testDb.setDataSet("data-enhancedTester-initial.xml");
+		testDb.onSetup();
+
+		final SetUpMetrics metrics = testDb.getLastSetUpMetrics();
+		assertTrue("Phases: " + metrics.getPhases(), metrics.getPhases().containsKey(SetUpMetrics.LOAD));
+		assertFalse(metrics.getPhases().containsKey(SetUpMetrics.INSERT));
+		assertTrue(metrics.getTables().isEmpty());
+		assertFalse(metrics.isTablesMeasured());
+		assertTrue(metrics.toString(), metrics.toString().indexOf("tables: n/a") >= 0);
+	}
+
+	public void testSetUpMetricsKeepUserOperationListener() throws Exception {
+		final List events = new ArrayList();
+		testDb.setOperationListener(new DefaultOperationListener() {
+			public void connectionRetrieved(final IDatabaseConnection connection) {
+				events.add("connectionRetrieved");
+				super.connectionRetrieved(connection);
+			}
+			public void operationSetUpFinished(final IDatabaseConnection connection) {
+				events.add("operationSetUpFinished");
+				super.operationSetUpFinished(connection);
+			}
+		});
+		testDb.addSetUpListener(new SetUpMetricsLogger());
+		testDb.setDataSet("data-enhancedTester-initial.xml");
+		testDb.onSetup();
+
+		assertEquals(Arrays.asList(new String[]{ "connectionRetrieved", "operationSetUpFinished" }), events);
+		assertTrue(testDb.getLastSetUpMetrics().getPhases().containsKey(SetUpMetrics.CONNECTION));
+		assertInitialData();
+	}
+
+	public void testNPlusOneQueriesFailTestWhenConfigured() throws Exception {
+		final EmbeddedDbTester nPlusOneDb = EmbeddedDbTester.withPropertiesFile(
+				"dbex-derby_n_plus_one.properties", "data-enhancedTester-initial.xml");
+		nPlusOneDb.onSetup();
+
+		final Connection connection = nPlusOneDb.getDataSource().getConnection();
+		final PreparedStatement select = connection.prepareStatement(
+				"select some_text from " + TEST_TABLE + " where id = ?");
+		for (int id = 1; id <= 3; id++) {
+			select.setInt(1, id);
+			select.executeQuery().close();
+		}
+		connection.close();
+
+		try {
+			nPlusOneDb.checkNPlusOneQueries("SomeTest#testLazyLoading");
+			fail("The query executed for each id shall fail the test");
+		} catch (AssertionFailedError expected) {
+			assertTrue(expected.getMessage(), expected.getMessage().startsWith("SomeTest#testLazyLoading"));
+		}
+		nPlusOneDb.assertNoNPlusOneQueries(4);
+
+		nPlusOneDb.onSetup();
+		nPlusOneDb.checkNPlusOneQueries("SomeTest#testAfterSetUp");
+	}
+
+	public void testFoundConfigFileCachedPerCallers() throws Exception {
+		final File classpathFolder = File.createTempFile("dbunit-express-cp-", "");
+		assertTrue(classpathFolder.delete() && classpathFolder.mkdir());
+		final File resource = new File(classpathFolder, "cached-found-test.xml");
+		assertTrue(resource.createNewFile());
+		final ClassLoader originalClassLoader = Thread.currentThread().getContextClassLoader();
+		Thread.currentThread().setContextClassLoader(new URLClassLoader(
+				new URL[]{ classpathFolder.toURI().toURL() }, originalClassLoader));
+		try {
+			final URL found = EmbeddedDbTester.findConfigFile(resource.getName());
+
+			assertTrue(resource.delete());
+			assertSame("Found files are cached for the same callers"
+					, found, EmbeddedDbTester.findConfigFile(resource.getName()));
+		} finally {
+			Thread.currentThread().setContextClassLoader(originalClassLoader);
+			EmbeddedDbTester.clearConfigFileCache();
+			resource.delete();
+			classpathFolder.delete();
+		}
+	}
+
+	public void testSameNamedConfigFilesFoundInCallersPackages() throws Exception {
+		final String fileName = "package-lookup-test.xml";
+		try {
+			final URL inUtil = EmbeddedDbTester.findOnClasspath(fileName, fileName
+					, Arrays.asList(new String[]{ "net.jakubholy.dbunitexpress.util.DbUnitUtilsTest" }));
+			final URL inAssertion = EmbeddedDbTester.findOnClasspath(fileName, fileName
+					, Arrays.asList(new String[]{ "net.jakubholy.dbunitexpress.assertion.RowComparatorTest" }));
+
+			assertTrue(inUtil.getPath(), inUtil.getPath().endsWith("/dbunitexpress/util/" + fileName));
+			assertTrue("Not the file cached for the other package: " + inAssertion.getPath()
+					, inAssertion.getPath().endsWith("/dbunitexpress/assertion/" + fileName));
+		} finally {
+			EmbeddedDbTester.clearConfigFileCache();
+		}
+	}
+
+	private void assertInitialData() throws DataSetException {
+		createTestTableChecker().assertRowCount(3)
+			.assertNext("1", "original row 1")
+			.assertNext("2", "original row 2")
+			.assertNext("3", (String) null);
+	}
+
+	private RowComparator createTestTableChecker() {
+		return testDb.createCheckerForSelect(
+				"select id, some_text from " + TEST_TABLE + " order by id");
+	}
+
+}
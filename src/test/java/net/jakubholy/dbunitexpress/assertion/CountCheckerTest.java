@@ -0,0 +1,37 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.assertion;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+public class CountCheckerTest extends TestCase {
+
+	public void testBounds() throws Exception {
+		CountChecker.atMost(3).assertAcceptable(new Integer(3));
+		CountChecker.atLeast(3).assertAcceptable(new Long(4));
+		CountChecker.exactly(0).assertAcceptable(new Integer(0));
+		CountChecker.between(1, 2).assertAcceptable(new Integer(2));
+
+		assertRejected(CountChecker.atMost(3), 4);
+		assertRejected(CountChecker.atLeast(3), 2);
+		assertRejected(CountChecker.exactly(0), 1);
+		assertRejected(CountChecker.between(1, 2), 0);
+	}
+
+	private static void assertRejected(final CountChecker checker, final int count) {
+		try {
+			checker.assertAcceptable(new Integer(count));
+		} catch (AssertionFailedError expected) {
+			assertTrue(expected.getMessage(), expected.getMessage().indexOf(checker.toString()) > 0);
+			return;
+		}
+		fail(count + " shall not be a count " + checker);
+	}
+
+}
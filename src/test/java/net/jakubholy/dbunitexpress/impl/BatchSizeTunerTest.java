@@ -0,0 +1,60 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.impl;
+
+import junit.framework.TestCase;
+
+public class BatchSizeTunerTest extends TestCase {
+
+	public void testFixedSizeNeverChanges() throws Exception {
+		final BatchSizeTuner tuner = new BatchSizeTuner(50);
+		recordSample(tuner, 1);
+		assertEquals(50, tuner.getBatchSize());
+		assertTrue(tuner.isConverged());
+	}
+
+	public void testGrowsWhileThroughputImproves() throws Exception {
+		final BatchSizeTuner tuner = new BatchSizeTuner();
+
+		recordSample(tuner, 10);	// 100 rows => 10 ms
+		assertEquals(200, tuner.getBatchSize());
+		recordSample(tuner, 10);	// 200 rows => 10 ms, better
+		assertEquals(400, tuner.getBatchSize());
+		recordSample(tuner, 40);	// 400 rows => 40 ms, worse
+		assertEquals(200, tuner.getBatchSize());
+		assertTrue(tuner.isConverged());
+	}
+
+	public void testShrinksIfGrowingDoesNotHelp() throws Exception {
+		final BatchSizeTuner tuner = new BatchSizeTuner();
+
+		recordSample(tuner, 10);	// 100 rows => 10 ms
+		recordSample(tuner, 40);	// 200 rows => 40 ms, worse
+		assertEquals(50, tuner.getBatchSize());
+		recordSample(tuner, 10);	// 50 rows => 10 ms, worse than 100 rows
+		assertEquals(100, tuner.getBatchSize());
+		assertTrue(tuner.isConverged());
+	}
+
+	public void testPartialBatchesIgnored() throws Exception {
+		final BatchSizeTuner tuner = new BatchSizeTuner();
+		for (int i = 0; i < BatchSizeTuner.SAMPLE_ROWS; i++) {
+			tuner.recordBatch(BatchSizeTuner.INITIAL_SIZE - 1, 1);
+		}
+		assertEquals(BatchSizeTuner.INITIAL_SIZE, tuner.getBatchSize());
+	}
+
+	/** Record enough full batches to evaluate the current size. */
+	private void recordSample(final BatchSizeTuner tuner, final long millisPerBatch) {
+		final int batchSize = tuner.getBatchSize();
+		for (int rows = 0; rows < BatchSizeTuner.SAMPLE_ROWS; rows += batchSize) {
+			tuner.recordBatch(batchSize, millisPerBatch);
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.impl;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import junit.framework.TestCase;
+
+import org.dbunit.database.DatabaseConfig;
+import org.dbunit.database.IDatabaseConnection;
+
+public class ConnectionPoolTest extends TestCase {
+
+	private static final String URL = "jdbc:derby:memory:connectionPoolTest;create=true";
+
+	private int initCount = 0;
+
+	private final ConnectionPool pool = new ConnectionPool(URL, null, null, 1) {
+		protected void initConnection(final IDatabaseConnection connection) {
+			initCount++;
+		}
+	};
+
+	protected void setUp() throws Exception {
+		Class.forName("org.apache.derby.jdbc.EmbeddedDriver");
+	}
+
+	protected void tearDown() throws Exception {
+		pool.close();
+	}
+
+	public void testClosedConnectionReused() throws Exception {
+		final IDatabaseConnection first = pool.getConnection();
+		final Connection firstHandle = first.getConnection();
+		first.close();
+
+		assertTrue("The returned handle shall be closed", firstHandle.isClosed());
+		try {
+			firstHandle.createStatement();
+			fail("A returned handle may not be used anymore");
+		} catch (SQLException expected) {}
+
+		pool.getConnection().getConnection().close();
+
+		assertEquals("created", 1, pool.getCreatedCount());
+		assertEquals("reused", 1, pool.getReusedCount());
+		assertEquals("initialized once per physical connection", 1, initCount);
+		assertEquals("idle", 1, pool.getIdleCount());
+		assertEquals("active", 0, pool.getActiveCount());
+	}
+
+	public void testEachCheckOutGetsOwnConnection() throws Exception {
+		final IDatabaseConnection first = pool.getConnection();
+		first.getConfig().setProperty(DatabaseConfig.FEATURE_QUALIFIED_TABLE_NAMES, Boolean.TRUE);
+		first.close();
+
+		final IDatabaseConnection second = pool.getConnection();
+		try {
+			assertEquals("reused", 1, pool.getReusedCount());
+			assertNotSame(first, second);
+			assertFalse("The configuration may not be shared with a previous user"
+					, second.getConfig().getFeature(DatabaseConfig.FEATURE_QUALIFIED_TABLE_NAMES));
+			try {
+				first.getConnection();
+				fail("A returned connection may not be used anymore");
+			} catch (SQLException expected) {}
+		} finally {
+			second.close();
+		}
+	}
+
+	public void testUncommittedChangesRolledBackOnReturn() throws Exception {
+		final Connection setUp = pool.getConnection().getConnection();
+		setUp.createStatement().execute("CREATE TABLE pooled (id INT)");
+		setUp.close();
+
+		final Connection connection = pool.getConnection().getConnection();
+		connection.setAutoCommit(false);
+		connection.createStatement().execute("INSERT INTO pooled VALUES (1)");
+		connection.close();
+
+		final Connection reused = pool.getConnection().getConnection();
+		try {
+			assertTrue("auto-commit shall be restored", reused.getAutoCommit());
+			final Statement statement = reused.createStatement();
+			final ResultSet count = statement.executeQuery("SELECT COUNT(*) FROM pooled");
+			assertTrue(count.next());
+			assertEquals("The insert shall have been rolled back", 0, count.getInt(1));
+			statement.execute("DROP TABLE pooled");
+		} finally {
+			reused.close();
+		}
+	}
+
+	public void testExtraAndExpiredConnectionsEvicted() throws Exception {
+		final IDatabaseConnection first = pool.getConnection();
+		final IDatabaseConnection second = pool.getConnection();
+		first.close();
+		second.close();
+
+		assertEquals("Only maxIdle connections shall be kept", 1, pool.getIdleCount());
+		assertEquals("evicted extra", 1, pool.getEvictedCount());
+
+		pool.setIdleTimeoutMillis(0);
+		Thread.sleep(5);
+		pool.evictIdleConnections();
+
+		assertEquals("The expired connection shall be evicted", 0, pool.getIdleCount());
+		assertEquals("evicted", 2, pool.getEvictedCount());
+	}
+
+	public void testInvalidConnectionDiscarded() throws Exception {
+		pool.getConnection().close();
+		pool.setValidationQuery("SELECT * FROM no_such_table");
+
+		pool.getConnection().close();
+
+		assertEquals("invalid", 1, pool.getInvalidCount());
+		assertEquals("created", 2, pool.getCreatedCount());
+		assertEquals("reused", 0, pool.getReusedCount());
+	}
+
+	public void testInvalidatedConnectionsNotReused() throws Exception {
+		pool.getConnection().close();	// idle
+		final IDatabaseConnection active = pool.getConnection();
+		pool.getConnection().close();	// a new idle one
+
+		ConnectionPool.invalidateConnections("jdbc:derby:memory:connectionPoolTest");
+
+		assertEquals("idle", 0, pool.getIdleCount());
+		active.close();
+		assertEquals("the connection in use shall be discarded when returned", 0, pool.getIdleCount());
+	}
+
+	public void testReconnectedConnectionReused() throws Exception {
+		final IDatabaseConnection connection = pool.getConnection();
+		pool.invalidate();
+
+		assertTrue(ConnectionPool.reconnect(connection));
+		final Statement statement = connection.getConnection().createStatement();
+		statement.execute("values 1");
+		statement.close();
+		connection.close();
+
+		assertEquals("idle", 1, pool.getIdleCount());
+	}
+
+}
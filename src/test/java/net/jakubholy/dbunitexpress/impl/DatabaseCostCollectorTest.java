@@ -0,0 +1,120 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+public class DatabaseCostCollectorTest extends TestCase {
+
+	private final DatabaseCostCollector collector = new DatabaseCostCollector();
+
+	public void testNothingMeasuredUnlessEnabled() throws Exception {
+		assertNull(collector.start());
+		collector.stop(null, DatabaseCostCollector.SET_UP);
+	}
+
+	public void testNestedMeasurementNotCountedInOuter() throws Exception {
+		collector.setEnabled(true);
+		collector.setCurrentTest("SomeTest#testNested");
+
+		final Object setUp = collector.start();
+		final Object dbCreation = collector.start();
+		Thread.sleep(100);
+		collector.stop(dbCreation, DatabaseCostCollector.DB_CREATION);
+		collector.stop(setUp, DatabaseCostCollector.SET_UP);
+
+		assertTrue(collector.getMillis("SomeTest#testNested", DatabaseCostCollector.DB_CREATION) >= 90);
+		assertTrue(collector.getMillis("SomeTest#testNested", DatabaseCostCollector.SET_UP) < 50);
+	}
+
+	public void testUnregisteredTestIsUnknown() throws Exception {
+		collector.setEnabled(true);
+		final Object timer = collector.start();
+		Thread.sleep(50);
+		collector.stop(timer, DatabaseCostCollector.QUERY);
+
+		assertTrue(collector.getMillis(DatabaseCostCollector.UNKNOWN_TEST, DatabaseCostCollector.QUERY) >= 40);
+	}
+
+	public void testCostsResetWhenTestStartsAgain() throws Exception {
+		collector.setBudget("SomeTest#testRerun", 80);
+		measure("SomeTest#testRerun", DatabaseCostCollector.QUERY, 50);
+		measure("SomeTest#testRerun", DatabaseCostCollector.QUERY, 50);
+
+		assertTrue("Only the last run counts", collector.getTotalMillis("SomeTest#testRerun") < 80);
+		collector.assertWithinBudget("SomeTest#testRerun");
+	}
+
+	public void testTestOverBudgetFails() throws Exception {
+		collector.setBudget("SomeTest", 10);
+		collector.setBudget("SomeTest#testGenerous", 10000);
+		measure("SomeTest#testSlow", DatabaseCostCollector.QUERY, 50);
+		measure("SomeTest#testGenerous", DatabaseCostCollector.QUERY, 50);
+
+		try {
+			collector.assertWithinBudget("SomeTest#testSlow");
+			fail("The test is over its class' budget");
+		} catch (AssertionFailedError expected) {}
+		collector.assertWithinBudget("SomeTest#testGenerous");
+		collector.assertWithinBudget("OtherTest#testWithoutBudget");
+	}
+
+	public void testReportSortedMostExpensiveFirst() throws Exception {
+		collector.setBudget("CheapTest", 10000);
+		measure("CheapTest#testCheap", DatabaseCostCollector.QUERY, 0);
+		measure("ExpensiveTest#testExpensive", DatabaseCostCollector.SET_UP, 50);
+
+		final File reportBase = File.createTempFile("dbunit-express-costs-", "");
+		try {
+			collector.writeReport(reportBase.getPath());
+
+			final String json = read(new File(reportBase.getPath() + ".json"));
+			assertTrue(json, json.indexOf("\"ExpensiveTest#testExpensive\"") < json.indexOf("\"CheapTest#testCheap\""));
+			assertTrue(json, json.indexOf("\"testClass\": \"ExpensiveTest\"") > 0);
+			assertTrue(json, json.indexOf("\"queryCount\": 1") > 0);
+			assertTrue(json, json.indexOf("\"budgetMillis\": 10000") > 0);
+
+			final String text = read(new File(reportBase.getPath() + ".txt"));
+			assertTrue(text, text.indexOf("ExpensiveTest#testExpensive") < text.indexOf("CheapTest#testCheap"));
+		} finally {
+			reportBase.delete();
+			new File(reportBase.getPath() + ".json").delete();
+			new File(reportBase.getPath() + ".txt").delete();
+		}
+	}
+
+	private void measure(final String testName, final String category, final long millis) throws InterruptedException {
+		collector.setEnabled(true);
+		collector.startTest(testName);
+		final Object timer = collector.start();
+		Thread.sleep(millis);
+		collector.stop(timer, category);
+		collector.setCurrentTest(null);
+	}
+
+	private static String read(final File file) throws IOException {
+		final BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			final StringBuffer content = new StringBuffer();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				content.append(line).append('\n');
+			}
+			return content.toString();
+		} finally {
+			reader.close();
+		}
+	}
+
+}
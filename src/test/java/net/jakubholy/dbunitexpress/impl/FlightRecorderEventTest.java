@@ -0,0 +1,126 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.impl;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import net.jakubholy.dbunitexpress.EmbeddedDbTester;
+
+/**
+ * The JFR API is only accessed via reflection, as by the tested class; the
+ * tests do nothing without JFR.
+ */
+public class FlightRecorderEventTest extends TestCase {
+
+	private static final Class[] NO_PARAMETERS = new Class[0];
+	private static final Object[] NO_ARGUMENTS = new Object[0];
+
+	public void testNothingEmittedWithoutRecording() throws Exception {
+		assertFalse(FlightRecorderEvent.SET_UP.isEnabled());
+		final Object event = FlightRecorderEvent.SET_UP.begin();
+		assertNull(event);
+		FlightRecorderEvent.SET_UP.commit(event, new Object[] {"ignored", new Integer(1), new Integer(1)});
+	}
+
+	public void testEventsRecordedWhenEnabled() throws Exception {
+		final Class recordingClass;
+		try {
+			recordingClass = Class.forName("jdk.jfr.Recording");
+		} catch (ClassNotFoundException e) {
+			return;	// JFR not available
+		}
+
+		final Object recording = recordingClass.newInstance();
+		final File dump = File.createTempFile("dbunit-express-", ".jfr");
+		try {
+			invoke(recording, "enable", new Class[] {String.class}
+					, new Object[] {FlightRecorderEvent.SET_UP.getName()});
+			invoke(recording, "enable", new Class[] {String.class}
+					, new Object[] {FlightRecorderEvent.ROW_COMPARATOR_QUERY.getName()});
+			invoke(recording, "start", NO_PARAMETERS, NO_ARGUMENTS);
+			assertTrue(FlightRecorderEvent.SET_UP.isEnabled());
+
+			final EmbeddedDbTester testDb = new EmbeddedDbTester();
+			testDb.setDataSet("data-enhancedTester-initial.xml");
+			testDb.onSetup();
+			testDb.createCheckerForSelect("select id from my_test_schema.my_test_table").assertRowCount(3);
+
+			invoke(recording, "stop", NO_PARAMETERS, NO_ARGUMENTS);
+			assertFalse("The cached state shall be updated when the recording stops"
+					, FlightRecorderEvent.SET_UP.isEnabled());
+			final Object path = invoke(dump, "toPath", NO_PARAMETERS, NO_ARGUMENTS);
+			final Class pathClass = Class.forName("java.nio.file.Path");
+			invoke(recording, "dump", new Class[] {pathClass}, new Object[] {path});
+
+			final List events = (List) Class.forName("jdk.jfr.consumer.RecordingFile")
+					.getMethod("readAllEvents", new Class[] {pathClass})
+					.invoke(null, new Object[] {path});
+			final Map eventsByName = new HashMap();
+			for (final Iterator iterator = events.iterator(); iterator.hasNext();) {
+				final Object event = iterator.next();
+				final Object type = invoke(event, "getEventType", NO_PARAMETERS, NO_ARGUMENTS);
+				eventsByName.put(invoke(type, "getName", NO_PARAMETERS, NO_ARGUMENTS), event);
+			}
+
+			final Object setUp = eventsByName.get(FlightRecorderEvent.SET_UP.getName());
+			assertNotNull("Recorded: " + eventsByName.keySet(), setUp);
+			assertEquals("data-enhancedTester-initial.xml", getValue(setUp, "dataSet"));
+			assertEquals(new Integer(1), getValue(setUp, "tableCount"));
+			assertEquals(new Integer(3), getValue(setUp, "rowCount"));
+
+			final Object query = eventsByName.get(FlightRecorderEvent.ROW_COMPARATOR_QUERY.getName());
+			assertNotNull("Recorded: " + eventsByName.keySet(), query);
+			assertEquals("select id from my_test_schema.my_test_table", getValue(query, "sql"));
+			assertEquals(new Integer(3), getValue(query, "rowCount"));
+		} finally {
+			invoke(recording, "close", NO_PARAMETERS, NO_ARGUMENTS);
+			dump.delete();
+		}
+	}
+
+	public void testLongSqlTruncated() throws Exception {
+		final StringBuffer sql = new StringBuffer();
+		while (sql.length() <= FlightRecorderEvent.MAX_SQL_LENGTH) {
+			sql.append("select 1 from sysibm.sysdummy1;");
+		}
+		final String truncated = FlightRecorderEvent.truncateSql(sql.toString());
+		assertEquals(FlightRecorderEvent.MAX_SQL_LENGTH, truncated.length());
+		assertTrue(truncated.endsWith("..."));
+		assertEquals("select 1", FlightRecorderEvent.truncateSql("select 1"));
+	}
+
+	private static Object getValue(final Object recordedEvent, final String field) throws Exception {	// NOPMD
+		return invoke(recordedEvent, "getValue", new Class[] {String.class}, new Object[] {field});
+	}
+
+	private static Object invoke(final Object target, final String method, final Class[] types
+			, final Object[] args) throws Exception {	// NOPMD
+		return findPublicMethod(target.getClass(), method, types).invoke(target, args);
+	}
+
+	/** Find the method in the nearest public class so that it can be invoked. */
+	private static java.lang.reflect.Method findPublicMethod(final Class type, final String method
+			, final Class[] types) throws NoSuchMethodException {
+		for (Class current = type; current != null; current = current.getSuperclass()) {
+			if (java.lang.reflect.Modifier.isPublic(current.getModifiers())) {
+				try {
+					return current.getMethod(method, types);
+				} catch (NoSuchMethodException e) {
+					break;
+				}
+			}
+		}
+		return type.getMethod(method, types);
+	}
+
+}
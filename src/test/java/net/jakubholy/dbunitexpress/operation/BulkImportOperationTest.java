@@ -0,0 +1,79 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.operation;
+
+import junit.framework.TestCase;
+import net.jakubholy.dbunitexpress.EmbeddedDbTester;
+import net.jakubholy.dbunitexpress.test.DatabaseUtils;
+
+/**
+ * The threshold is 3 rows so that the parent table is imported and the
+ * child table is inserted.
+ */
+public class BulkImportOperationTest extends TestCase {
+
+	private static final String PARENT = "my_test_schema.bi_parent";
+	private static final String CHILD = "my_test_schema.bi_child";
+
+	private static final String DATA_SET =
+		"<dataset>" +
+		"<" + PARENT + " id='1' text='plain' created='2011-10-01 12:30:00.0'/>" +
+		"<" + PARENT + " id='2' text='with &quot;quotes&quot;, comma'/>" +
+		"<" + PARENT + " id='3' text=''/>" +
+		"<" + PARENT + " id='4'/>" +
+		"<" + CHILD + " id='10' parent_id='1'/>" +
+		"</dataset>";
+
+	private final EmbeddedDbTester testDb = new EmbeddedDbTester();
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		dropTables();
+		DatabaseUtils.execute(testDb, "create table " + PARENT + " (id int primary key, text varchar(50), created timestamp)");
+		DatabaseUtils.execute(testDb, "create table " + CHILD + " (id int primary key, parent_id int references " + PARENT + "(id))");
+
+		testDb.setDataSet(DatabaseUtils.createDataSet(DATA_SET));
+		testDb.setSetUpOperation(new BulkImportOperation(3));
+	}
+
+	protected void tearDown() throws Exception {
+		dropTables();
+		super.tearDown();
+	}
+
+	public void testImportsAllValues() throws Exception {
+		testDb.onSetup();
+
+		testDb.createCheckerForSelect("select id, text, created from " + PARENT + " order by id")
+			.assertRowCount(4)
+			.assertNext(new String[]{"1", "plain", "2011-10-01 12:30:00.0"})
+			.assertNext(new String[]{"2", "with \"quotes\", comma", null})
+			.assertNext(new String[]{"3", "", null})
+			.assertNext(new String[]{"4", null, null});
+		testDb.createCheckerForSelect("select id, parent_id from " + CHILD)
+			.assertRowCount(1)
+			.assertNext(new String[]{"10", "1"});
+	}
+
+	public void testReplacesExistingRows() throws Exception {
+		testDb.onSetup();
+		DatabaseUtils.execute(testDb, "update " + PARENT + " set text = 'changed' where id = 1");
+		DatabaseUtils.execute(testDb, "insert into " + PARENT + " (id) values (5)");
+
+		testDb.onSetup();
+
+		testDb.createCheckerForSelect("select id, text from " + PARENT + " order by id")
+			.assertRowCount(4)
+			.assertNext(new String[]{"1", "plain"});
+	}
+
+	private void dropTables() throws Exception {
+		DatabaseUtils.dropTables(testDb, new String[]{ CHILD, PARENT });
+	}
+
+}
@@ -0,0 +1,94 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.operation;
+
+import junit.framework.TestCase;
+import net.jakubholy.dbunitexpress.EmbeddedDbTester;
+import net.jakubholy.dbunitexpress.test.DatabaseUtils;
+
+/**
+ * To detect whether a table has been reloaded we modify it and remove its
+ * record from the marker table; thus it won't be reloaded unless it is
+ * a dependant of another modified table.
+ */
+public class DirtyTablesRefreshOperationTest extends TestCase {
+
+	private static final String PARENT = "my_test_schema.dx_parent";
+	private static final String CHILD = "my_test_schema.dx_child";
+	private static final String OTHER = "my_test_schema.dx_other";
+
+	private static final String DATA_SET =
+		"<dataset>" +
+		"<" + PARENT + " id='1' name='parent 1'/>" +
+		"<" + CHILD + " id='10' parent_id='1'/>" +
+		"<" + OTHER + " id='100'/>" +
+		"</dataset>";
+
+	private final EmbeddedDbTester testDb = new EmbeddedDbTester();
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		dropTables();
+		DatabaseUtils.execute(testDb, "create table " + PARENT + " (id int primary key, name varchar(50))");
+		DatabaseUtils.execute(testDb, "create table " + CHILD + " (id int primary key, parent_id int references " + PARENT + "(id))");
+		DatabaseUtils.execute(testDb, "create table " + OTHER + " (id int primary key)");
+
+		testDb.setDataSet(DatabaseUtils.createDataSet(DATA_SET));
+		testDb.setSetUpOperation(DatabaseOperationFactory.getOperation(DatabaseOperationFactory.DIRTY_TABLES));
+		testDb.onSetup(); // full load, installs the triggers
+	}
+
+	protected void tearDown() throws Exception {
+		DirtyTablesRefreshOperation.resetTracking();
+		dropTables();
+		super.tearDown();
+	}
+
+	public void testOnlyModifiedTableReloaded() throws Exception {
+		DatabaseUtils.execute(testDb, "delete from " + CHILD);
+		deleteUntracked(OTHER);
+
+		testDb.onSetup();
+
+		testDb.createCheckerForSelect("select parent_id from " + CHILD)
+			.assertRowCount(1)
+			.assertNext(new String[]{"1"});
+		testDb.createCheckerForSelect("select * from " + OTHER).assertRowCount(0);
+	}
+
+	public void testDependentTablesReloadedWithModifiedParent() throws Exception {
+		DatabaseUtils.execute(testDb, "update " + PARENT + " set name = 'changed'");
+		deleteUntracked(CHILD);
+
+		testDb.onSetup();
+
+		testDb.createCheckerForSelect("select name from " + PARENT)
+			.assertRowCount(1)
+			.assertNext(new String[]{"parent 1"});
+		testDb.createCheckerForSelect("select * from " + CHILD).assertRowCount(1);
+	}
+
+	public void testNothingReloadedWithoutModifications() throws Exception {
+		deleteUntracked(OTHER);
+
+		testDb.onSetup();
+
+		testDb.createCheckerForSelect("select * from " + OTHER).assertRowCount(0);
+	}
+
+	private void deleteUntracked(final String table) throws Exception {
+		DatabaseUtils.execute(testDb, "delete from " + table);
+		DatabaseUtils.execute(testDb, "delete from " + DirtyTablesRefreshOperation.MARKER_TABLE +
+				" where table_name = '" + table.toUpperCase() + "'");
+	}
+
+	private void dropTables() throws Exception {
+		DatabaseUtils.dropTables(testDb, new String[]{ CHILD, PARENT, OTHER });
+	}
+
+}
@@ -0,0 +1,95 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.operation;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.jakubholy.dbunitexpress.EmbeddedDbTester;
+import net.jakubholy.dbunitexpress.test.DatabaseUtils;
+import net.jakubholy.dbunitexpress.util.MetadataSnapshot;
+
+/**
+ * The tables form the chain GRANDCHILD -&gt; CHILD -&gt; PARENT.
+ */
+public class ForeignKeyGraphTest extends TestCase {
+
+	private static final String PARENT = "MY_TEST_SCHEMA.FK_PARENT";
+	private static final String CHILD = "MY_TEST_SCHEMA.FK_CHILD";
+	private static final String GRANDCHILD = "MY_TEST_SCHEMA.FK_GRANDCHILD";
+
+	private final EmbeddedDbTester testDb = new EmbeddedDbTester();
+	private Connection connection;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		connection = testDb.getSqlConnection();
+		dropTables();
+		DatabaseUtils.execute(connection, "create table " + PARENT + " (id int primary key)");
+		DatabaseUtils.execute(connection, "create table " + CHILD + " (id int primary key, parent_id int references " + PARENT + "(id))");
+		DatabaseUtils.execute(connection, "create table " + GRANDCHILD + " (id int primary key, child_id int references " + CHILD + "(id))");
+		MetadataSnapshot.checkForChangesOnNextUse();
+	}
+
+	protected void tearDown() throws Exception {
+		dropTables();
+		connection.close();
+		super.tearDown();
+	}
+
+	public void testSortsInDependencyOrder() throws Exception {
+		final ForeignKeyGraph graph = ForeignKeyGraph.getInstance(connection);
+		final List tables = Arrays.asList(new String[]{ PARENT, GRANDCHILD, CHILD });
+
+		assertEquals(Arrays.asList(new String[]{ GRANDCHILD, CHILD, PARENT })
+				, graph.sortReferencingFirst(connection, tables));
+		assertEquals(Arrays.asList(new String[]{ PARENT, CHILD, GRANDCHILD })
+				, graph.sortReferencedFirst(connection, tables));
+		assertTrue(graph.isReferenced(connection, CHILD));
+		assertFalse(graph.isReferenced(connection, GRANDCHILD));
+	}
+
+	public void testCachedUntilForeignKeysChange() throws Exception {
+		final ForeignKeyGraph graph = ForeignKeyGraph.getInstance(connection);
+		assertSame(graph, ForeignKeyGraph.getInstance(connection));
+
+		DatabaseUtils.execute(connection, "alter table " + PARENT + " add column grandchild_id int");
+		DatabaseUtils.execute(connection, "alter table " + PARENT + " add constraint fk_cycle foreign key (grandchild_id) references " +
+				GRANDCHILD + "(id)");
+		assertSame("Not checked for changes until told to", graph, ForeignKeyGraph.getInstance(connection));
+		MetadataSnapshot.checkForChangesOnNextUse();
+
+		final ForeignKeyGraph changedGraph = ForeignKeyGraph.getInstance(connection);
+		assertNotSame(graph, changedGraph);
+		assertTrue(changedGraph.isReferenced(connection, GRANDCHILD));
+
+		// The cycle cannot be sorted, all tables are kept and ordered by name
+		assertEquals(Arrays.asList(new String[]{ CHILD, GRANDCHILD, PARENT })
+				, changedGraph.sortReferencingFirst(connection
+						, Arrays.asList(new String[]{ PARENT, GRANDCHILD, CHILD })));
+	}
+
+	public void testInvalidateAll() throws Exception {
+		final ForeignKeyGraph graph = ForeignKeyGraph.getInstance(connection);
+		ForeignKeyGraph.invalidateAll();
+		assertNotSame(graph, ForeignKeyGraph.getInstance(connection));
+	}
+
+	private void dropTables() throws Exception {
+		try {
+			DatabaseUtils.execute(connection, "alter table " + PARENT + " drop constraint fk_cycle");
+		} catch (SQLException e) {
+			// doesn't exist
+		}
+		DatabaseUtils.dropTables(testDb, new String[]{ GRANDCHILD, CHILD, PARENT });
+	}
+
+}
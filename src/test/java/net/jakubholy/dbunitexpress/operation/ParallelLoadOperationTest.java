@@ -0,0 +1,194 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.operation;
+
+import java.io.StringReader;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import net.jakubholy.dbunitexpress.EmbeddedDbTester;
+import net.jakubholy.dbunitexpress.test.DatabaseUtils;
+
+import org.dbunit.DatabaseUnitException;
+import org.dbunit.database.IDatabaseConnection;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.dataset.ITable;
+import org.dbunit.dataset.xml.FlatXmlDataSetBuilder;
+import org.dbunit.operation.DatabaseOperation;
+
+/**
+ * Two independent children at level 1 and a grandchild referencing both at level 2;
+ * the data set lists the tables in the wrong order on purpose.
+ */
+public class ParallelLoadOperationTest extends TestCase {
+
+	private static final String PARENT = "my_test_schema.pl_parent";
+	private static final String CHILD_A = "my_test_schema.pl_child_a";
+	private static final String CHILD_B = "my_test_schema.pl_child_b";
+	private static final String GRANDCHILD = "my_test_schema.pl_grandchild";
+
+	private final EmbeddedDbTester testDb = new EmbeddedDbTester();
+	private IDataSet dataSet;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		dropTables();
+		DatabaseUtils.execute(testDb, "create table " + PARENT + " (id int primary key)");
+		DatabaseUtils.execute(testDb, "create table " + CHILD_A + " (id int primary key, parent_id int references " + PARENT + "(id))");
+		DatabaseUtils.execute(testDb, "create table " + CHILD_B + " (id int primary key, parent_id int references " + PARENT + "(id))");
+		DatabaseUtils.execute(testDb, "create table " + GRANDCHILD + " (id int primary key" +
+				", a_id int references " + CHILD_A + "(id), b_id int references " + CHILD_B + "(id))");
+
+		dataSet = new FlatXmlDataSetBuilder().build(new StringReader("<dataset>" +
+				"<" + GRANDCHILD + " id='100' a_id='10' b_id='20'/>" +
+				"<" + CHILD_B + " id='20' parent_id='1'/>" +
+				"<" + CHILD_A + " id='10' parent_id='1'/>" +
+				"<" + CHILD_A + " id='11' parent_id='1'/>" +
+				"<" + PARENT + " id='1'/>" +
+				"</dataset>"));
+		testDb.setDataSet(dataSet);
+		testDb.setSetUpParallelism(3);
+	}
+
+	protected void tearDown() throws Exception {
+		dropTables();
+		super.tearDown();
+	}
+
+	public void testLoadsAllLevels() throws Exception {
+		testDb.onSetup();
+		DatabaseUtils.execute(testDb, "insert into " + PARENT + " (id) values (2)");
+		DatabaseUtils.execute(testDb, "insert into " + CHILD_B + " (id, parent_id) values (21, 2)");
+		DatabaseUtils.execute(testDb, "insert into " + GRANDCHILD + " (id, a_id, b_id) values (101, 11, 21)");
+
+		testDb.onSetup();
+
+		testDb.createCheckerForSelect("select id from " + PARENT).assertRowCount(1);
+		testDb.createCheckerForSelect("select id from " + CHILD_A).assertRowCount(2);
+		testDb.createCheckerForSelect("select id from " + CHILD_B).assertRowCount(1);
+		testDb.createCheckerForSelect("select id, a_id, b_id from " + GRANDCHILD)
+			.assertRowCount(1)
+			.assertNext(new String[]{"100", "10", "20"});
+	}
+
+	public void testGroupsTablesByForeignKeyLevel() throws Exception {
+		final IDatabaseConnection connection = testDb.getConnection();
+		try {
+			final List levels = new ParallelLoadOperation(testDb, 3).groupByLevel(connection, dataSet);
+
+			assertEquals(3, levels.size());
+			assertEquals(tableSet(new String[]{ PARENT }), tableSet((List) levels.get(0)));
+			assertEquals(tableSet(new String[]{ CHILD_A, CHILD_B }), tableSet((List) levels.get(1)));
+			assertEquals(tableSet(new String[]{ GRANDCHILD }), tableSet((List) levels.get(2)));
+		} finally {
+			connection.close();
+		}
+	}
+
+	public void testDeletesReferencingFirstInsertsReferencedFirst() throws Exception {
+		final List events = Collections.synchronizedList(new ArrayList());
+		final Set childConnections = Collections.synchronizedSet(new HashSet());
+		execute(events, childConnections);
+
+		assertBefore(events, "delete " + GRANDCHILD, "delete " + CHILD_A);
+		assertBefore(events, "delete " + GRANDCHILD, "delete " + CHILD_B);
+		assertBefore(events, "delete " + CHILD_A, "delete " + PARENT);
+		assertBefore(events, "delete " + CHILD_B, "delete " + PARENT);
+		assertBefore(events, "insert " + PARENT, "insert " + CHILD_A);
+		assertBefore(events, "insert " + PARENT, "insert " + CHILD_B);
+		assertBefore(events, "insert " + CHILD_A, "insert " + GRANDCHILD);
+		assertBefore(events, "insert " + CHILD_B, "insert " + GRANDCHILD);
+	}
+
+	public void testLoadsIndependentTablesViaMoreConnections() throws Exception {
+		final Set childConnections = Collections.synchronizedSet(new HashSet());
+		execute(Collections.synchronizedList(new ArrayList()), childConnections);
+
+		assertEquals("The independent children shall be inserted via different connections"
+				, 2, childConnections.size());
+	}
+
+	private void execute(final List events, final Set childConnections) throws Exception {
+		final IDatabaseConnection connection = testDb.getConnection();
+		try {
+			new ParallelLoadOperation(testDb, 3
+					, new RecordingOperation("delete", DatabaseOperation.DELETE_ALL, events, null)
+					, new RecordingOperation("insert", DatabaseOperation.INSERT, events, childConnections))
+				.execute(connection, dataSet);
+		} finally {
+			connection.close();
+		}
+	}
+
+	private static void assertBefore(final List events, final String first, final String second) {
+		final int firstIndex = events.indexOf(first.toUpperCase());
+		final int secondIndex = events.indexOf(second.toUpperCase());
+		assertTrue(first + " shall happen before " + second + " in " + events
+				, firstIndex >= 0 && secondIndex >= 0 && firstIndex < secondIndex);
+	}
+
+	private static Set tableSet(final String[] tables) {
+		final Set result = new HashSet();
+		for (String table : tables) {
+			result.add(table.toUpperCase());
+		}
+		return result;
+	}
+
+	private static Set tableSet(final List tables) {
+		final Set result = new HashSet();
+		for (Object table : tables) {
+			result.add(((ITable) table).getTableMetaData().getTableName().toUpperCase());
+		}
+		return result;
+	}
+
+	/** Records "&lt;name&gt; &lt;TABLE&gt;" once the delegate has finished with the table. */
+	private static final class RecordingOperation extends DatabaseOperation {
+
+		private final String name;
+		private final DatabaseOperation delegate;
+		private final List events;
+		/** Connections used for the child tables; null not to record them */
+		private final Set childConnections;
+
+		RecordingOperation(final String name, final DatabaseOperation delegate, final List events
+				, final Set childConnections) {
+			this.name = name;
+			this.delegate = delegate;
+			this.events = events;
+			this.childConnections = childConnections;
+		}
+
+		public void execute(final IDatabaseConnection connection, final IDataSet dataSet)
+				throws DatabaseUnitException, SQLException {
+			final String table = dataSet.getTableNames()[0].toUpperCase();
+			if (childConnections != null
+					&& (table.equals(CHILD_A.toUpperCase()) || table.equals(CHILD_B.toUpperCase()))) {
+				childConnections.add(connection);
+				try {
+					Thread.sleep(200); // so that another worker takes the other child
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			delegate.execute(connection, dataSet);
+			events.add((name + " " + table).toUpperCase());
+		}
+	}
+
+	private void dropTables() throws Exception {
+		DatabaseUtils.dropTables(testDb, new String[]{ GRANDCHILD, CHILD_A, CHILD_B, PARENT });
+	}
+
+}
@@ -0,0 +1,125 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.operation;
+
+import junit.framework.TestCase;
+import net.jakubholy.dbunitexpress.EmbeddedDbTester;
+import net.jakubholy.dbunitexpress.test.DatabaseUtils;
+
+/**
+ * The column "touched" isn't in the data sets and thus only rows that
+ * have been re-inserted have it null.
+ */
+public class SmartRefreshOperationTest extends TestCase {
+
+	private static final String TABLE = "my_test_schema.sr_table";
+	private static final String NO_PK = "my_test_schema.sr_no_pk";
+	private static final String BINARY_PK = "my_test_schema.sr_binary_pk";
+
+	private static final String DATA_SET =
+		"<dataset>" +
+		"<" + TABLE + " id='1' text='one'/>" +
+		"<" + TABLE + " id='2' text='two'/>" +
+		"<" + TABLE + " id='3'/>" +
+		"<" + NO_PK + " text='no pk'/>" +
+		"</dataset>";
+
+	private final EmbeddedDbTester testDb = new EmbeddedDbTester();
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		dropTables();
+		DatabaseUtils.execute(testDb, "create table " + TABLE + " (id int primary key, text varchar(50), touched int)");
+		DatabaseUtils.execute(testDb, "create table " + NO_PK + " (text varchar(50))");
+		DatabaseUtils.execute(testDb, "create table " + BINARY_PK +
+				" (id varchar(4) for bit data primary key, code varchar(10) not null unique, touched int)");
+
+		testDb.setDataSet(DatabaseUtils.createDataSet(DATA_SET));
+		testDb.onSetup();
+		DatabaseUtils.execute(testDb, "update " + TABLE + " set touched = 1");
+
+		testDb.setSetUpOperation(DatabaseOperationFactory.getOperation(DatabaseOperationFactory.SMART_REFRESH));
+	}
+
+	protected void tearDown() throws Exception {
+		dropTables();
+		super.tearDown();
+	}
+
+	public void testOnlyDifferingRowsWritten() throws Exception {
+		DatabaseUtils.execute(testDb, "update " + TABLE + " set text = 'changed' where id = 1");
+		DatabaseUtils.execute(testDb, "delete from " + TABLE + " where id = 2");
+		DatabaseUtils.execute(testDb, "insert into " + TABLE + " (id, text, touched) values (4, 'new', 1)");
+		DatabaseUtils.execute(testDb, "delete from " + NO_PK);
+
+		testDb.onSetup();
+
+		testDb.createCheckerForSelect("select id, text, touched from " + TABLE + " order by id")
+			.assertRowCount(3)
+			.assertNext(new String[]{"1", "one", "1"})
+			.assertNext(new String[]{"2", "two", null})
+			.assertNext(new String[]{"3", null, "1"});
+		testDb.createCheckerForSelect("select text from " + NO_PK)
+			.assertRowCount(1)
+			.assertNext(new String[]{"no pk"});
+	}
+
+	public void testReplaceDatabase() throws Exception {
+		testDb.getEnhancedTester().setReplaceOperation(new SmartRefreshOperation());
+
+		testDb.getEnhancedTester().replaceDatabase(DatabaseUtils.createDataSet("<dataset>" +
+				"<" + TABLE + " id='1' text='one'/>" +
+				"<" + TABLE + " id='3' text='three'/>" +
+				"<" + TABLE + " id='5' text='five'/>" +
+				"</dataset>"));
+
+		testDb.createCheckerForSelect("select id, text, touched from " + TABLE + " order by id")
+			.assertRowCount(3)
+			.assertNext(new String[]{"1", "one", "1"})
+			.assertNext(new String[]{"3", "three", "1"})
+			.assertNext(new String[]{"5", "five", null});
+	}
+
+	public void testBinaryKeysMatched() throws Exception {
+		DatabaseUtils.execute(testDb, "insert into " + BINARY_PK +
+				" (id, code, touched) values (X'0102', 'a', 1), (X'03', 'b', 1)");
+
+		testDb.getEnhancedTester().setReplaceOperation(new SmartRefreshOperation());
+		testDb.getEnhancedTester().replaceDatabase(DatabaseUtils.createDataSet("<dataset>" +
+				"<" + BINARY_PK + " id='AQI=' code='a'/>" +	// 0x0102
+				"<" + BINARY_PK + " id='Aw==' code='b'/>" +	// 0x03
+				"</dataset>"));
+
+		testDb.createCheckerForSelect("select code, touched from " + BINARY_PK + " order by code")
+			.assertRowCount(2)
+			.assertNext(new String[]{"a", "1"})
+			.assertNext(new String[]{"b", "1"});
+	}
+
+	public void testRowMovedToAnotherKey() throws Exception {
+		DatabaseUtils.execute(testDb, "insert into " + BINARY_PK +
+				" (id, code, touched) values (X'01', 'a', 1), (X'02', 'b', 1)");
+
+		testDb.getEnhancedTester().setReplaceOperation(new SmartRefreshOperation());
+		testDb.getEnhancedTester().replaceDatabase(DatabaseUtils.createDataSet("<dataset>" +
+				"<" + BINARY_PK + " id='Ag==' code='b'/>" +	// 0x02, unchanged
+				"<" + BINARY_PK + " id='Aw==' code='a'/>" +	// 0x03, was 0x01
+				"</dataset>"));
+
+		// Deleted before the insert so no unique key conflict and fallback to CLEAN_INSERT
+		testDb.createCheckerForSelect("select code, touched from " + BINARY_PK + " order by code")
+			.assertRowCount(2)
+			.assertNext(new String[]{"a", null})
+			.assertNext(new String[]{"b", "1"});
+	}
+
+	private void dropTables() throws Exception {
+		DatabaseUtils.dropTables(testDb, new String[]{ TABLE, NO_PK, BINARY_PK });
+	}
+
+}
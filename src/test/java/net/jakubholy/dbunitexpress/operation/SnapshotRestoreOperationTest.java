@@ -0,0 +1,117 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.operation;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+
+import junit.framework.TestCase;
+import net.jakubholy.dbunitexpress.DatabaseCreator;
+import net.jakubholy.dbunitexpress.EmbeddedDbTester;
+import net.jakubholy.dbunitexpress.impl.ConnectionPool;
+import net.jakubholy.dbunitexpress.test.DatabaseUtils;
+
+public class SnapshotRestoreOperationTest extends TestCase {
+
+	private static final String TEST_TABLE = "my_test_schema.my_test_table";
+
+	private final EmbeddedDbTester testDb = new EmbeddedDbTester("data-enhancedTester-initial.xml");
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		testDb.setSetUpOperation(DatabaseOperationFactory.getOperation(DatabaseOperationFactory.SNAPSHOT_RESTORE));
+	}
+
+	protected void tearDown() throws Exception {
+		SnapshotRestoreOperation.discardSnapshots();
+		super.tearDown();
+	}
+
+	public void testModifiedDataRestored() throws Exception {
+		testDb.onSetup(); // takes the snapshot
+		testDb.getEnhancedTester().clearTable(TEST_TABLE);
+		testDb.createCheckerForSelect("select * from " + TEST_TABLE).assertRowCount(0);
+
+		testDb.onSetup(); // restores it
+
+		testDb.createCheckerForSelect("select id, some_text from " + TEST_TABLE + " order by id")
+			.assertRowCount(3)
+			.assertNext("1", "original row 1")
+			.assertNext("2", "original row 2")
+			.assertNext("3", (String) null);
+	}
+
+	public void testNewDataSetLoadedFully() throws Exception {
+		testDb.onSetup();
+
+		testDb.setDataSet("data-enhancedTester-replacement.xml");
+		testDb.onSetup();
+
+		testDb.createCheckerForSelect("select id from " + TEST_TABLE + " order by id")
+			.assertRowCount(2)
+			.assertNext(new String[]{"1"})
+			.assertNext(new String[]{"123"});
+	}
+
+	public void testSnapshotKeptOnDdlInOtherDatabase() throws Exception {
+		testDb.onSetup(); // takes the snapshot
+		final DatabaseCreator ddlLoader = new DatabaseCreator().setDdlFile("DatabaseCreatorTest-additional2.ddl");
+		final Connection connection = testDb.getSqlConnection();
+		try {
+			final String dbUrl = connection.getMetaData().getURL();
+			assertTrue(SnapshotRestoreOperation.hasSnapshot(dbUrl));
+
+			final Connection otherDb = DriverManager.getConnection("jdbc:derby:memory:snapshotOtherDdlTest;create=true");
+			try {
+				ddlLoader.doCreateDbSchemaFromDdl(otherDb);
+			} finally {
+				otherDb.close();
+			}
+			assertTrue("A DDL in another database may not discard the snapshot"
+					, SnapshotRestoreOperation.hasSnapshot(dbUrl));
+
+			ddlLoader.doCreateDbSchemaFromDdl(connection);
+			assertFalse("The DDL has changed the database", SnapshotRestoreOperation.hasSnapshot(dbUrl));
+		} finally {
+			DatabaseUtils.execute(connection, "drop table new_custom_table2");
+			connection.close();
+		}
+	}
+
+	public void testPooledConnectionsUsableAfterRestore() throws Exception {
+		testDb.onSetup();
+		final ConnectionPool pool = testDb.getConnectionPool();
+		// Idle connections, one is used for the set up, the other one broken by the restore
+		final Connection first = testDb.getSqlConnection();
+		testDb.getSqlConnection().close();
+		first.close();
+		final long invalidBefore = pool.getInvalidCount();
+
+		testDb.onSetup(); // restores
+
+		assertTrue("The idle connections shall be discarded", pool.getInvalidCount() > invalidBefore);
+		testDb.createCheckerForSelect("select id from " + TEST_TABLE).assertRowCount(3);
+	}
+
+	public void testFallsBackToCleanInsertWithRollbackIsolation() throws Exception {
+		testDb.setRollbackIsolation(true);
+		testDb.onSetup();
+		testDb.onTearDown();
+
+		testDb.setDataSet("data-enhancedTester-replacement.xml");
+		testDb.onSetup(); // within the transaction
+		testDb.createCheckerForSelect("select id from " + TEST_TABLE).assertRowCount(2);
+		testDb.onTearDown();
+
+		testDb.setDataSet("data-enhancedTester-initial.xml");
+		testDb.onSetup();
+		testDb.createCheckerForSelect("select id from " + TEST_TABLE).assertRowCount(3);
+		testDb.onTearDown();
+	}
+
+}
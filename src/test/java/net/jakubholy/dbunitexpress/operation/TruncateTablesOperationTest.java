@@ -0,0 +1,124 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.operation;
+
+import java.io.StringReader;
+import java.sql.SQLException;
+
+import junit.framework.TestCase;
+import net.jakubholy.dbunitexpress.EmbeddedDbTester;
+import net.jakubholy.dbunitexpress.test.DatabaseUtils;
+
+import org.dbunit.dataset.xml.FlatXmlDataSetBuilder;
+
+public class TruncateTablesOperationTest extends TestCase {
+
+	private static final String PARENT = "my_test_schema.tr_parent";
+	private static final String CHILD = "my_test_schema.tr_child";
+
+	private final EmbeddedDbTester testDb = new EmbeddedDbTester();
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		dropTables();
+		DatabaseUtils.execute(testDb, "create table " + PARENT + " (id int generated by default as identity primary key, name varchar(50))");
+		DatabaseUtils.execute(testDb, "create table " + CHILD + " (id int primary key, parent_id int references " + PARENT + "(id))");
+
+		testDb.setDataSet(new FlatXmlDataSetBuilder().build(new StringReader("<dataset>" +
+				"<" + PARENT + " id='1' name='parent 1'/>" +
+				"<" + PARENT + " id='2' name='parent 2'/>" +
+				"<" + CHILD + " id='10' parent_id='1'/>" +
+				"</dataset>")));
+	}
+
+	protected void tearDown() throws Exception {
+		dropTables();
+		super.tearDown();
+	}
+
+	public void testTruncateInsertReplacesData() throws Exception {
+		truncateInsert();
+		DatabaseUtils.execute(testDb, "insert into " + PARENT + " (id, name) values (5, 'added')");
+		DatabaseUtils.execute(testDb, "insert into " + CHILD + " (id, parent_id) values (11, 2)");
+
+		truncateInsert();
+
+		testDb.createCheckerForSelect("select id, name from " + PARENT + " order by id")
+			.assertRowCount(2)
+			.assertNext(new String[]{"1", "parent 1"})
+			.assertNext(new String[]{"2", "parent 2"});
+		testDb.createCheckerForSelect("select id from " + CHILD).assertRowCount(1);
+	}
+
+	public void testTruncateInsertRestartsIdentityAfterData() throws Exception {
+		truncateInsert();
+		DatabaseUtils.execute(testDb, "insert into " + PARENT + " (name) values ('generated')");
+
+		testDb.createCheckerForSelect("select id from " + PARENT + " where name = 'generated'")
+			.assertRowCount(1)
+			.assertNext(new String[]{"3"});
+	}
+
+	public void testClearTablesInAnyOrderResetsIdentity() throws Exception {
+		testDb.onSetup();
+		testDb.getEnhancedTester().clearTables(new String[]{ PARENT, CHILD });
+		testDb.createCheckerForSelect("select * from " + CHILD).assertRowCount(0);
+		DatabaseUtils.execute(testDb, "insert into " + PARENT + " (name) values ('generated 1'), ('generated 2')");
+
+		testDb.getEnhancedTester().clearTables(new String[]{ PARENT });
+
+		DatabaseUtils.execute(testDb, "insert into " + PARENT + " (name) values ('first')");
+		testDb.createCheckerForSelect("select id from " + PARENT)
+			.assertRowCount(1)
+			.assertNext(new String[]{"1"});
+	}
+
+	public void testClearTablesAfterTruncateInsertRestartsWithOriginalStart() throws Exception {
+		truncateInsert();
+		truncateInsert();
+
+		testDb.getEnhancedTester().clearTables(new String[]{ PARENT, CHILD });
+
+		DatabaseUtils.execute(testDb, "insert into " + PARENT + " (name) values ('first')");
+		testDb.createCheckerForSelect("select id from " + PARENT)
+			.assertRowCount(1)
+			.assertNext(new String[]{"1"});
+	}
+
+	public void testClearTableKeepsIdentity() throws Exception {
+		testDb.getEnhancedTester().clearTables(new String[]{ PARENT, CHILD });
+		DatabaseUtils.execute(testDb, "insert into " + PARENT + " (name) values ('generated 1'), ('generated 2')");
+
+		testDb.getEnhancedTester().clearTable(PARENT);
+
+		DatabaseUtils.execute(testDb, "insert into " + PARENT + " (name) values ('next')");
+		testDb.createCheckerForSelect("select id from " + PARENT)
+			.assertRowCount(1)
+			.assertNext(new String[]{"3"});
+	}
+
+	public void testClearTableReferencedFromOtherTableFails() throws Exception {
+		testDb.onSetup();
+		try {
+			testDb.getEnhancedTester().clearTable(PARENT);
+			fail("Should have failed because the child references a parent row");
+		} catch (SQLException e) {
+			assertTrue(e.getMessage(), e.getMessage().indexOf(PARENT) >= 0);
+		}
+	}
+
+	private void truncateInsert() throws Exception {
+		testDb.setSetUpOperation(DatabaseOperationFactory.getOperation(DatabaseOperationFactory.TRUNCATE_INSERT));
+		testDb.onSetup();
+	}
+
+	private void dropTables() throws Exception {
+		DatabaseUtils.dropTables(testDb, new String[]{ CHILD, PARENT });
+	}
+
+}
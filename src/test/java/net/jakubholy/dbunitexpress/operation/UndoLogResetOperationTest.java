@@ -0,0 +1,116 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.operation;
+
+import junit.framework.TestCase;
+import net.jakubholy.dbunitexpress.EmbeddedDbTester;
+import net.jakubholy.dbunitexpress.test.DatabaseUtils;
+
+/**
+ * To detect whether a change has been undone rather than the table reloaded
+ * we remove the change from the undo log.
+ */
+public class UndoLogResetOperationTest extends TestCase {
+
+	private static final String PARENT = "my_test_schema.ux_parent";
+	private static final String CHILD = "my_test_schema.ux_child";
+	private static final String NO_PK = "my_test_schema.ux_no_pk";
+
+	private static final String PARENT_UNDO_LOG = "DBUNIT_EXPRESS.UNDO_MY_TEST_SCHEMA_UX_PARENT";
+	private static final String CHILD_UNDO_LOG = "DBUNIT_EXPRESS.UNDO_MY_TEST_SCHEMA_UX_CHILD";
+
+	private static final String DATA_SET =
+		"<dataset>" +
+		"<" + PARENT + " id='1' name='parent 1'/>" +
+		"<" + PARENT + " id='2'/>" +
+		"<" + CHILD + " id='10' parent_id='1'/>" +
+		"<" + NO_PK + " text='no pk'/>" +
+		"</dataset>";
+
+	private final EmbeddedDbTester testDb = new EmbeddedDbTester();
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		dropTables();
+		DatabaseUtils.execute(testDb, "create table " + PARENT + " (id int primary key, name varchar(50))");
+		DatabaseUtils.execute(testDb, "create table " + CHILD + " (id int primary key, parent_id int references " + PARENT + "(id))");
+		DatabaseUtils.execute(testDb, "create table " + NO_PK + " (text varchar(50))");
+
+		testDb.setDataSet(DatabaseUtils.createDataSet(DATA_SET));
+		testDb.setSetUpOperation(DatabaseOperationFactory.getOperation(DatabaseOperationFactory.UNDO_LOG));
+		testDb.onSetup(); // full load, installs the triggers
+	}
+
+	protected void tearDown() throws Exception {
+		UndoLogResetOperation.resetTracking();
+		dropTables();
+		super.tearDown();
+	}
+
+	public void testInsertsUpdatesAndDeletesUndone() throws Exception {
+		DatabaseUtils.execute(testDb, "delete from " + CHILD);
+		DatabaseUtils.execute(testDb, "update " + PARENT + " set id = 3, name = 'changed' where id = 1");
+		DatabaseUtils.execute(testDb, "update " + PARENT + " set name = 'changed too'");
+		DatabaseUtils.execute(testDb, "delete from " + PARENT + " where id = 2");
+		DatabaseUtils.execute(testDb, "insert into " + PARENT + " (id, name) values (4, 'new')");
+		DatabaseUtils.execute(testDb, "insert into " + CHILD + " (id, parent_id) values (11, 4)");
+
+		testDb.onSetup();
+
+		assertOriginalData();
+	}
+
+	public void testOnlyLoggedChangesUndone() throws Exception {
+		DatabaseUtils.execute(testDb, "update " + PARENT + " set name = 'not logged' where id = 1");
+		DatabaseUtils.execute(testDb, "delete from " + PARENT_UNDO_LOG);
+		DatabaseUtils.execute(testDb, "delete from " + CHILD);
+
+		testDb.onSetup();
+
+		testDb.createCheckerForSelect("select name from " + PARENT + " where id = 1")
+			.assertRowCount(1)
+			.assertNext(new String[]{"not logged"});
+		testDb.createCheckerForSelect("select * from " + CHILD).assertRowCount(1);
+	}
+
+	public void testTableWithoutPrimaryKeyReloaded() throws Exception {
+		DatabaseUtils.execute(testDb, "delete from " + NO_PK);
+
+		testDb.onSetup();
+
+		testDb.createCheckerForSelect("select text from " + NO_PK)
+			.assertRowCount(1)
+			.assertNext(new String[]{"no pk"});
+	}
+
+	public void testFallsBackToCleanInsertIfUndoFails() throws Exception {
+		DatabaseUtils.execute(testDb, "insert into " + PARENT + " (id) values (5)");
+		DatabaseUtils.execute(testDb, "insert into " + CHILD + " (id, parent_id) values (12, 5)");
+		// Forget the child so that deleting the added parent fails
+		DatabaseUtils.execute(testDb, "delete from " + CHILD_UNDO_LOG);
+
+		testDb.onSetup();
+
+		assertOriginalData();
+	}
+
+	private void assertOriginalData() throws Exception {
+		testDb.createCheckerForSelect("select id, name from " + PARENT + " order by id")
+			.assertRowCount(2)
+			.assertNext(new String[]{"1", "parent 1"})
+			.assertNext(new String[]{"2", null});
+		testDb.createCheckerForSelect("select id, parent_id from " + CHILD)
+			.assertRowCount(1)
+			.assertNext(new String[]{"10", "1"});
+	}
+
+	private void dropTables() throws Exception {
+		DatabaseUtils.dropTables(testDb, new String[]{ CHILD, PARENT, NO_PK });
+	}
+
+}
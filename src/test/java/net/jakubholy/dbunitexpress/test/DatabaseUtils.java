@@ -7,9 +7,18 @@
 
 package net.jakubholy.dbunitexpress.test;
 
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import net.jakubholy.dbunitexpress.EmbeddedDbTester;
+
 import org.dbunit.dataset.Column;
 import org.dbunit.dataset.DefaultTable;
+import org.dbunit.dataset.IDataSet;
 import org.dbunit.dataset.datatype.DataType;
+import org.dbunit.dataset.xml.FlatXmlDataSetBuilder;
 
 /**
  * Various utility methods for tables etc used in tests.
@@ -30,4 +39,53 @@ public final class DatabaseUtils {
 		return new DefaultTable("testTable", columns);
 	}
 
+	/**
+	 * Execute the SQL on a new connection of the tester, which is closed afterwards.
+	 */
+	public static void execute(final EmbeddedDbTester testDb, final String sql) throws Exception {
+		final Connection connection = testDb.getSqlConnection();
+		try {
+			execute(connection, sql);
+		} finally {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Execute the SQL on the given connection, which is left open.
+	 */
+	public static void execute(final Connection connection, final String sql) throws SQLException {
+		final Statement statement = connection.createStatement();
+		try {
+			statement.executeUpdate(sql);
+		} finally {
+			statement.close();
+		}
+	}
+
+	/**
+	 * Drop the tables in the given order, ignoring those that don't exist.
+	 */
+	public static void dropTables(final EmbeddedDbTester testDb, final String[] tables) throws Exception {
+		final Connection connection = testDb.getSqlConnection();
+		try {
+			for (int i = 0; i < tables.length; i++) {
+				try {
+					execute(connection, "drop table " + tables[i]);
+				} catch (SQLException e) {
+					// doesn't exist
+				}
+			}
+		} finally {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Creates a data set from a flat XML string such as "&lt;dataset&gt;&lt;my_table id='1'/&gt;&lt;/dataset&gt;".
+	 */
+	public static IDataSet createDataSet(final String flatXml) throws Exception {
+		return new FlatXmlDataSetBuilder().build(new StringReader(flatXml));
+	}
+
 }
@@ -0,0 +1,108 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.dbunit.dataset.Column;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.dataset.ITable;
+import org.dbunit.dataset.xml.XmlDataSet;
+
+public class BinaryDataSetTest extends TestCase {
+
+	private static final String DATA_SET =
+		"<dataset>" +
+		"<table name='my_test_schema.numbers'><column>id</column><column>code</column><column>note</column>" +
+		"<row><value>1</value><value>007</value><value>first \u00e9</value></row>" +
+		"<row><value>-42</value><value>7</value><null/></row>" +
+		"<row><null/><value>x</value><none/></row>" +
+		"</table>" +
+		"<table name='my_test_schema.empty'><column>id</column></table>" +
+		"<table name='my_test_schema.repeated'><column>text</column>" +
+		"<row><value>same</value></row><row><value>same</value></row>" +
+		"</table>" +
+		"</dataset>";
+
+	private File xmlFile;
+	private File binaryFile;
+
+	protected void setUp() throws Exception {
+		xmlFile = File.createTempFile("dbunit-express-test-", ".xml");
+		binaryFile = new File(xmlFile.getPath() + BinaryDataSet.FILE_EXTENSION);
+
+		final Writer writer = new OutputStreamWriter(new FileOutputStream(xmlFile), "UTF-8");
+		try {
+			writer.write(DATA_SET);
+		} finally {
+			writer.close();
+		}
+	}
+
+	protected void tearDown() throws Exception {
+		xmlFile.delete();
+		binaryFile.delete();
+	}
+
+	public void testConvertedDataSetHasSameValuesAsXml() throws Exception {
+		BinaryDataSetConverter.convert(xmlFile, binaryFile);
+
+		final IDataSet xml = new XmlDataSet(xmlFile.toURI().toURL().openStream());
+		final IDataSet binary = BinaryDataSet.load(binaryFile.toURI().toURL());
+
+		assertEquals("table names", Arrays.asList(xml.getTableNames())
+				, Arrays.asList(binary.getTableNames()));
+
+		final ITable[] xmlTables = xml.getTables();
+		for (int i = 0; i < xmlTables.length; i++) {
+			final String tableName = xmlTables[i].getTableMetaData().getTableName();
+			final ITable binaryTable = binary.getTable(tableName);
+			final Column[] columns = xmlTables[i].getTableMetaData().getColumns();
+			assertEquals(tableName + " row count", xmlTables[i].getRowCount(), binaryTable.getRowCount());
+			assertEquals(tableName + " columns", columns.length, binaryTable.getTableMetaData().getColumns().length);
+
+			for (int row = 0; row < xmlTables[i].getRowCount(); row++) {
+				for (int column = 0; column < columns.length; column++) {
+					final String columnName = columns[column].getColumnName();
+					assertEquals(tableName + "[" + row + "]." + columnName
+							, xmlTables[i].getValue(row, columnName), binaryTable.getValue(row, columnName));
+				}
+			}
+		}
+
+		assertSame("<none/> shall be preserved", ITable.NO_VALUE
+				, binary.getTable("my_test_schema.numbers").getValue(2, "note"));
+	}
+
+	public void testBinaryFileFoundOnlyIfUpToDate() throws Exception {
+		assertNull("No binary file yet", BinaryDataSet.findBinaryFile(xmlFile.toURI().toURL()));
+
+		BinaryDataSetConverter.convert(xmlFile, binaryFile);
+		assertEquals("The converted file shall be found", binaryFile.toURI().toURL()
+				, BinaryDataSet.findBinaryFile(xmlFile.toURI().toURL()));
+
+		assertTrue(xmlFile.setLastModified(binaryFile.lastModified() + 10000));
+		assertNull("An outdated binary file shall be ignored", BinaryDataSet.findBinaryFile(xmlFile.toURI().toURL()));
+	}
+
+	public void testCacheServesBinaryDataSet() throws Exception {
+		BinaryDataSetConverter.convert(xmlFile, binaryFile);
+		final DataSetCache cache = new DataSetCache(2);
+
+		final IDataSet first = cache.getBinaryDataSet(binaryFile.toURI().toURL());
+		assertSame(first, cache.getBinaryDataSet(binaryFile.toURI().toURL()));
+		assertEquals("-42", first.getTable("my_test_schema.numbers").getValue(1, "id"));
+	}
+
+}
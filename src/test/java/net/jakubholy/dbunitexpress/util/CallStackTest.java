@@ -0,0 +1,30 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.util;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class CallStackTest extends TestCase {
+
+	public void testStartsWithCaller() throws Exception {
+		final List classNames = new Caller().call();
+
+		assertEquals(Caller.class.getName(), classNames.get(0));
+		assertEquals(CallStackTest.class.getName(), classNames.get(1));
+		assertFalse(classNames.contains(CallStack.class.getName()));
+	}
+
+	private static class Caller {
+		List call() {
+			return CallStack.getClassNames();
+		}
+	}
+
+}
@@ -0,0 +1,116 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import junit.framework.TestCase;
+
+import org.dbunit.dataset.IDataSet;
+
+public class DataSetCacheTest extends TestCase {
+
+	private final URL initialDataSet = getClass().getResource("/data-enhancedTester-initial.xml");
+	private final URL replacementDataSet = getClass().getResource("/data-enhancedTester-replacement.xml");
+
+	public void testSameFileParsedOnlyOnce() throws Exception {
+		final DataSetCache cache = new DataSetCache(2);
+
+		final IDataSet first = cache.getXmlDataSet(initialDataSet);
+		final IDataSet second = cache.getXmlDataSet(initialDataSet);
+
+		assertSame("The cached data set shall be reused", first, second);
+		assertEquals("hits", 1, cache.getHitCount());
+		assertEquals("misses", 1, cache.getMissCount());
+		assertEquals("my_test_schema.my_test_table has 3 rows"
+				, 3, second.getTable("my_test_schema.my_test_table").getRowCount());
+	}
+
+	public void testLeastRecentlyUsedEvicted() throws Exception {
+		final DataSetCache cache = new DataSetCache(1);
+
+		final IDataSet initial = cache.getXmlDataSet(initialDataSet);
+		cache.getXmlDataSet(replacementDataSet);
+
+		assertEquals("size", 1, cache.size());
+		assertEquals("evictions", 1, cache.getEvictionCount());
+		assertNotSame("The evicted data set shall be parsed again"
+				, initial, cache.getXmlDataSet(initialDataSet));
+	}
+
+	public void testDisabledCacheParsesAlways() throws Exception {
+		final DataSetCache cache = new DataSetCache(0);
+
+		assertNotSame(cache.getXmlDataSet(initialDataSet), cache.getXmlDataSet(initialDataSet));
+		assertEquals("size", 0, cache.size());
+	}
+
+	public void testConcurrentMissesParseOnlyOnce() throws Exception {
+		final DataSetCache cache = new DataSetCache(2);
+		final IDataSet[] results = new IDataSet[4];
+		final Thread[] threads = new Thread[results.length];
+		for (int i = 0; i < threads.length; i++) {
+			final int index = i;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						results[index] = cache.getXmlDataSet(initialDataSet);
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals("misses", 1, cache.getMissCount());
+		for (IDataSet result : results) {
+			assertSame("All threads shall get the single parsed data set", results[0], result);
+		}
+	}
+
+	public void testJarResourcesTreatedAsImmutable() throws Exception {
+		final File jar = File.createTempFile("dbunit-express-cache", ".jar");
+		jar.deleteOnExit();
+		final JarOutputStream jarOut = new JarOutputStream(new FileOutputStream(jar));
+		try {
+			jarOut.putNextEntry(new JarEntry("data.xml"));
+			final InputStream in = initialDataSet.openStream();
+			try {
+				final byte[] buffer = new byte[4096];
+				int read;
+				while ((read = in.read(buffer)) >= 0) {
+					jarOut.write(buffer, 0, read);
+				}
+			} finally {
+				in.close();
+			}
+		} finally {
+			jarOut.close();
+		}
+		final URL jarDataSet = new URL("jar:" + jar.toURI().toURL() + "!/data.xml");
+
+		assertTrue(DataSetCache.isImmutable(jarDataSet));
+		assertFalse(DataSetCache.isImmutable(initialDataSet));
+
+		final DataSetCache cache = new DataSetCache(2);
+		assertSame(cache.getXmlDataSet(jarDataSet), cache.getXmlDataSet(jarDataSet));
+		assertEquals("hits", 1, cache.getHitCount());
+	}
+
+}
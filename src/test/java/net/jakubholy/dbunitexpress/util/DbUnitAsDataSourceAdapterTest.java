@@ -0,0 +1,58 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.util;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+
+import junit.framework.TestCase;
+import net.jakubholy.dbunitexpress.EmbeddedDbTester;
+import net.jakubholy.dbunitexpress.impl.ConnectionPool;
+
+public class DbUnitAsDataSourceAdapterTest extends TestCase {
+
+	private final EmbeddedDbTester testDb = new EmbeddedDbTester();
+
+	public void testSameDataSourceReturned() throws Exception {
+		assertSame(testDb.getDataSource(), testDb.getDataSource());
+	}
+
+	public void testCountsOpenConnections() throws Exception {
+		final DbUnitAsDataSourceAdapter dataSource = (DbUnitAsDataSourceAdapter) testDb.getDataSource();
+		dataSource.resetStatistics();
+
+		final Connection first = dataSource.getConnection();
+		final Connection second = dataSource.getConnection();
+		assertEquals("open", 2, dataSource.getOpenConnectionCount());
+		second.close();
+		second.close();
+		assertEquals("closing twice counts once", 1, dataSource.getOpenConnectionCount());
+
+		final Connection third = dataSource.getConnection();
+		final ResultSet one = third.createStatement().executeQuery("values 1");
+		assertTrue("The connection shall work", one.next());
+		third.close();
+		first.close();
+
+		assertEquals("obtained", 3, dataSource.getConnectionCount());
+		assertEquals("peak", 2, dataSource.getPeakOpenConnectionCount());
+		assertEquals("open", 0, dataSource.getOpenConnectionCount());
+		assertTrue(dataSource.getMaxAcquisitionMillis() <= dataSource.getTotalAcquisitionMillis());
+	}
+
+	public void testConnectionsReturnedToPool() throws Exception {
+		final ConnectionPool pool = testDb.getConnectionPool();
+		testDb.getDataSource().getConnection().close();
+		final long reusedBefore = pool.getReusedCount();
+
+		testDb.getDataSource().getConnection().close();
+
+		assertEquals("The closed connection shall be reused", reusedBefore + 1, pool.getReusedCount());
+	}
+
+}
@@ -0,0 +1,162 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.util;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+import net.jakubholy.dbunitexpress.EmbeddedDbTester;
+
+import org.dbunit.database.IDatabaseConnection;
+import org.dbunit.dataset.Column;
+import org.dbunit.dataset.ITableMetaData;
+
+/**
+ * SNAPSHOT_ORDER_LINE has a composite primary key listed in another order
+ * than its columns and a foreign key to SNAPSHOT_ORDER.
+ */
+public class MetadataSnapshotTest extends TestCase {
+
+	private static final String ORDER = "MY_TEST_SCHEMA.SNAPSHOT_ORDER";
+	private static final String LINE = "MY_TEST_SCHEMA.SNAPSHOT_ORDER_LINE";
+
+	private final EmbeddedDbTester testDb = new EmbeddedDbTester();
+	private IDatabaseConnection connection;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		connection = testDb.getConnection();
+		dropTables();
+		execute("create table " + ORDER + " (id int primary key, note varchar(20))");
+		execute("create table " + LINE + " (line_no int not null, amount decimal(10,2), order_id int not null" +
+				" references " + ORDER + "(id), primary key (order_id, line_no))");
+		MetadataSnapshot.checkForChangesOnNextUse();
+	}
+
+	protected void tearDown() throws Exception {
+		dropTables();
+		connection.close();
+		super.tearDown();
+	}
+
+	public void testReadsColumnsAndKeys() throws Exception {
+		final MetadataSnapshot snapshot = MetadataSnapshot.getInstance(connection.getConnection());
+		final ITableMetaData metaData = snapshot.getTableMetaData(connection, LINE.toLowerCase());
+
+		assertNotNull(metaData);
+		assertEquals(LINE, metaData.getTableName());
+		assertColumnNames(new String[]{ "LINE_NO", "AMOUNT", "ORDER_ID" }, metaData.getColumns());
+		assertColumnNames(new String[]{ "ORDER_ID", "LINE_NO" }, metaData.getPrimaryKeys());
+		assertEquals("The column types shall be known", "DECIMAL"
+				, metaData.getColumns()[1].getSqlTypeName().toUpperCase());
+
+		assertTrue("foreign key", containsForeignKey(snapshot, ORDER, LINE));
+		assertNull("unqualified names aren't resolved", snapshot.getTableMetaData(connection, "SNAPSHOT_ORDER"));
+		assertNull("no such table", snapshot.getTableMetaData(connection, "MY_TEST_SCHEMA.NO_SUCH_TABLE"));
+	}
+
+	public void testSharedUntilSchemaChanges() throws Exception {
+		final MetadataSnapshot snapshot = MetadataSnapshot.getInstance(connection.getConnection());
+		final Connection otherConnection = testDb.getSqlConnection();
+		try {
+			assertSame(snapshot, MetadataSnapshot.getInstance(otherConnection));
+		} finally {
+			otherConnection.close();
+		}
+
+		execute("alter table " + ORDER + " add column created date");
+		assertSame("Not checked for changes until told to"
+				, snapshot, MetadataSnapshot.getInstance(connection.getConnection()));
+		MetadataSnapshot.checkForChangesOnNextUse();
+
+		final MetadataSnapshot changedSnapshot = MetadataSnapshot.getInstance(connection.getConnection());
+		assertNotSame(snapshot, changedSnapshot);
+		assertColumnNames(new String[]{ "ID", "NOTE", "CREATED" }
+				, changedSnapshot.getTableMetaData(connection, ORDER).getColumns());
+	}
+
+	public void testColumnRenameAndTypeChangeDetected() throws Exception {
+		final MetadataSnapshot snapshot = MetadataSnapshot.getInstance(connection.getConnection());
+
+		execute("rename column " + ORDER + ".note to remark");
+		MetadataSnapshot.checkForChangesOnNextUse();
+		final MetadataSnapshot renamedSnapshot = MetadataSnapshot.getInstance(connection.getConnection());
+		assertNotSame("A renamed column shall be detected", snapshot, renamedSnapshot);
+		assertColumnNames(new String[]{ "ID", "REMARK" }
+				, renamedSnapshot.getTableMetaData(connection, ORDER).getColumns());
+
+		execute("alter table " + ORDER + " alter column remark set data type varchar(40)");
+		MetadataSnapshot.checkForChangesOnNextUse();
+		assertNotSame("A changed column type shall be detected"
+				, renamedSnapshot, MetadataSnapshot.getInstance(connection.getConnection()));
+	}
+
+	public void testInvalidateAll() throws Exception {
+		final MetadataSnapshot snapshot = MetadataSnapshot.getInstance(connection.getConnection());
+		MetadataSnapshot.invalidateAll();
+		assertNotSame(snapshot, MetadataSnapshot.getInstance(connection.getConnection()));
+	}
+
+	public void testSchemaReadAgainAfterFailure() throws Exception {
+		final MetadataSnapshot snapshot = MetadataSnapshot.getInstance(connection.getConnection());
+		final IDatabaseConnection closedConnection = testDb.getConnection();
+		closedConnection.close();
+		try {
+			snapshot.getTableMetaData(closedConnection, ORDER);
+			fail("The connection is closed");
+		} catch (SQLException expected) {}
+
+		assertNotNull(snapshot.getTableMetaData(connection, ORDER));
+	}
+
+	public void testPrimaryKeysFromSnapshot() throws Exception {
+		assertColumnNames(new String[]{ "ORDER_ID", "LINE_NO" }, DbUnitUtils.getPrimaryKeys(connection, LINE));
+	}
+
+	private static void assertColumnNames(final String[] expected, final Column[] columns) {
+		assertEquals("number of columns", expected.length, columns.length);
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals("column " + i, expected[i], columns[i].getColumnName());
+		}
+	}
+
+	private static boolean containsForeignKey(final MetadataSnapshot snapshot, final String referenced
+			, final String referencing) {
+		for (final Iterator iterator = snapshot.getForeignKeys().iterator(); iterator.hasNext();) {
+			final String[] foreignKey = (String[]) iterator.next();
+			if (foreignKey[0].equals(referenced) && foreignKey[1].equals(referencing)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void dropTables() throws Exception {
+		final String[] tables = new String[]{ LINE, ORDER };
+		for (int i = 0; i < tables.length; i++) {
+			try {
+				execute("drop table " + tables[i]);
+			} catch (SQLException e) {
+				// doesn't exist
+			}
+		}
+	}
+
+	private void execute(final String sql) throws Exception {
+		final Statement statement = connection.getConnection().createStatement();
+		try {
+			statement.executeUpdate(sql);
+		} finally {
+			statement.close();
+		}
+	}
+
+}
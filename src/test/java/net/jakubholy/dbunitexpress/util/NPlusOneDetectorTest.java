@@ -0,0 +1,66 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+import net.jakubholy.dbunitexpress.util.NPlusOneDetector.RepeatedQuery;
+import net.jakubholy.dbunitexpress.util.SqlTrace.TracedStatement;
+
+public class NPlusOneDetectorTest extends TestCase {
+
+	private final SqlTrace trace = new SqlTrace();
+
+	public void testNormalizeSql() throws Exception {
+		final List values = new ArrayList();
+		assertEquals("select * from t1 where name = ? and id in (?) and x = ?"
+				, NPlusOneDetector.normalizeSql("SELECT *\n FROM t1 WHERE name = 'O''Neil' AND id IN (1, 2,3) AND x = ?"
+						, values));
+		assertEquals(Arrays.asList(new Object[] {"'O''Neil'", "1", "2", "3"}), values);
+	}
+
+	public void testQueryWithDifferentValuesDetected() throws Exception {
+		addStatement("select * from address where person_id = ?", new Integer(1));
+		addStatement("select * from address where person_id = ?", new Integer(2));
+		addStatement("select * from address where person_id = 3", null);
+		addStatement("update address set x = ?", new Integer(4));
+
+		final List repeated = new NPlusOneDetector(3).detect(trace);
+		assertEquals(1, repeated.size());
+		final RepeatedQuery query = (RepeatedQuery) repeated.get(0);
+		assertEquals("select * from address where person_id = ?", query.getNormalizedSql());
+		assertEquals(3, query.getExecutionCount());
+		assertEquals(3, query.getDistinctValueCount());
+
+		assertTrue(new NPlusOneDetector(4).detect(trace).isEmpty());
+		try {
+			new NPlusOneDetector(3).assertNone(trace);
+			fail("The repeated query shall be reported");
+		} catch (AssertionFailedError expected) {
+			assertTrue(expected.getMessage(), expected.getMessage().indexOf("person_id") > 0);
+		}
+	}
+
+	public void testQueryWithSameValuesNotDetected() throws Exception {
+		for (int i = 0; i < 5; i++) {
+			addStatement("select * from address where person_id = ?", new Integer(1));
+		}
+		new NPlusOneDetector(2).assertNone(trace);
+	}
+
+	private void addStatement(final String sql, final Object parameter) {
+		trace.add(new TracedStatement(sql, (parameter == null)? Collections.EMPTY_LIST
+				: Collections.singletonList(parameter), 0, -1));
+	}
+
+}
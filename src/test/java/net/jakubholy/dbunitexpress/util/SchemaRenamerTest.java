@@ -0,0 +1,58 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.util;
+
+import java.io.StringReader;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.dataset.xml.FlatXmlDataSetBuilder;
+
+public class SchemaRenamerTest extends TestCase {
+
+	private static final String DDL =
+		"create schema my_schema;\n" +
+		"CREATE TABLE my_schema.parent (id int primary key);\n" +
+		"create table implicit_schema.child (id int, parent_id int references My_Schema.parent(id));\n" +
+		"create index my_index on implicit_schema.child(parent_id)";
+
+	private final SchemaRenamer renamer = new SchemaRenamer(SchemaRenamer.findSchemas(DDL), "_w7");
+
+	public void testFindsCreatedAndQualifyingSchemas() throws Exception {
+		assertEquals(Arrays.asList(new String[]{ "MY_SCHEMA", "IMPLICIT_SCHEMA" })
+				, Arrays.asList(SchemaRenamer.findSchemas(DDL)));
+	}
+
+	public void testRewritesSchemaNamesOnly() throws Exception {
+		assertEquals(
+				"create schema MY_SCHEMA_W7;\n" +
+				"CREATE TABLE MY_SCHEMA_W7.parent (id int primary key);\n" +
+				"create table IMPLICIT_SCHEMA_W7.child (id int, parent_id int references MY_SCHEMA_W7.parent(id));\n" +
+				"create index my_index on IMPLICIT_SCHEMA_W7.child(parent_id)"
+				, renamer.rewriteSql(DDL));
+		assertEquals("select SCHEMANAME from sys.SYSSCHEMAS where SCHEMANAME = 'MY_SCHEMA'"
+				, renamer.rewriteSql("select SCHEMANAME from sys.SYSSCHEMAS where SCHEMANAME = 'MY_SCHEMA'"));
+		assertEquals("select c.id from MY_SCHEMA_W7 . parent p, other_schema.my_schema c"
+				, renamer.rewriteSql("select c.id from my_schema . parent p, other_schema.my_schema c"));
+	}
+
+	public void testRenamesDataSetTables() throws Exception {
+		final IDataSet dataSet = new FlatXmlDataSetBuilder().build(new StringReader("<dataset>" +
+				"<my_schema.parent id='1'/><other.table id='2'/></dataset>"));
+
+		final IDataSet renamed = renamer.renameTables(dataSet);
+
+		assertEquals(Arrays.asList(new String[]{ "MY_SCHEMA_W7.parent", "other.table" })
+				, Arrays.asList(renamed.getTableNames()));
+		assertEquals("1", renamed.getTable("my_schema_w7.parent").getValue(0, "id"));
+		assertSame("cached", renamed, renamer.renameTables(dataSet));
+	}
+
+}
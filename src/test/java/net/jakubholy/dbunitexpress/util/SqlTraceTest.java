@@ -0,0 +1,107 @@
+/*
+ * LICENSED UNDER THE LGPL 2.1,
+ * http://www.gnu.org/licenses/lgpl.html
+ * Also, the author promises to never sue IBM for any use of this file.
+ *
+ */
+
+package net.jakubholy.dbunitexpress.util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+import net.jakubholy.dbunitexpress.EmbeddedDbTester;
+import net.jakubholy.dbunitexpress.assertion.CountChecker;
+import net.jakubholy.dbunitexpress.util.SqlTrace.TracedStatement;
+
+public class SqlTraceTest extends TestCase {
+
+	private static final String TEST_TABLE = "my_test_schema.my_test_table";
+
+	private final EmbeddedDbTester testDb = new EmbeddedDbTester();
+
+	protected void setUp() throws Exception {
+		testDb.setDataSet("data-enhancedTester-initial.xml");
+		testDb.onSetup();
+	}
+
+	public void testRecordsStatementsOfCodeUnderTest() throws Exception {
+		testDb.assertStatementCount(CountChecker.exactly(0));	// the set up isn't recorded
+
+		final Connection connection = testDb.getDataSource().getConnection();
+		try {
+			final PreparedStatement select = connection.prepareStatement(
+					"select some_text from " + TEST_TABLE + " where id = ?");
+			select.setInt(1, 2);
+			final ResultSet rows = select.executeQuery();
+			assertTrue(rows.next());
+			assertEquals("original row 2", rows.getString(1));
+			select.close();
+
+			assertEquals(1, connection.createStatement().executeUpdate(
+					"update " + TEST_TABLE + " set some_text = 'changed' where id = 1"));
+
+			final PreparedStatement insert = connection.prepareStatement(
+					"insert into " + TEST_TABLE + " (id, some_text) values (?, ?)");
+			insert.setInt(1, 10);
+			insert.setString(2, "ten");
+			insert.addBatch();
+			insert.setInt(1, 11);
+			insert.setNull(2, java.sql.Types.VARCHAR);
+			insert.addBatch();
+			insert.executeBatch();
+			insert.close();
+		} finally {
+			connection.close();
+		}
+
+		final SqlTrace trace = testDb.getSqlTrace();
+		assertEquals(trace.toString(), 4, trace.getStatementCount());
+		final TracedStatement select = (TracedStatement) trace.getStatements().get(0);
+		assertEquals("SELECT", select.getType());
+		assertEquals(Collections.singletonList(new Integer(2)), select.getParameters());
+		assertEquals(-1, select.getRowsAffected());
+		final TracedStatement update = (TracedStatement) trace.getStatements().get(1);
+		assertEquals(1, update.getRowsAffected());
+		final TracedStatement secondInsert = (TracedStatement) trace.getStatements().get(3);
+		assertEquals(Arrays.asList(new Object[] {new Integer(11), null}), secondInsert.getParameters());
+
+		testDb.assertStatementCount("SELECT", "my_test_table", CountChecker.exactly(1));
+		testDb.assertStatementCount("insert", TEST_TABLE, CountChecker.exactly(2));
+		testDb.assertStatementCount("SELECT", "my_test_schema.other_table", CountChecker.exactly(0));
+		try {
+			testDb.assertStatementCount(CountChecker.atMost(3));
+			fail("4 statements have been executed");
+		} catch (AssertionFailedError e) {
+			assertTrue(e.getMessage(), e.getMessage().indexOf("update " + TEST_TABLE) > 0);
+		}
+
+		testDb.onSetup();
+		testDb.assertStatementCount(CountChecker.exactly(0));
+	}
+
+	public void testSqlConnectionTraced() throws Exception {
+		final Connection connection = testDb.getSqlConnection();
+		connection.createStatement().execute("delete from " + TEST_TABLE + " where id = 3");
+		connection.close();
+
+		assertEquals(1, ((TracedStatement) testDb.getSqlTrace().getStatements().get(0)).getRowsAffected());
+	}
+
+	public void testRefersToTable() throws Exception {
+		final TracedStatement statement = new TracedStatement(
+				"SELECT * FROM my_schema.person p JOIN address a ON p.id = a.person_id"
+				, Collections.EMPTY_LIST, 0, -1);
+		assertTrue(statement.refersToTable("person"));
+		assertTrue(statement.refersToTable("MY_SCHEMA.PERSON"));
+		assertTrue(statement.refersToTable("address"));
+		assertFalse("qualified by another schema", statement.refersToTable("other.person"));
+		assertFalse("only a part of a name", statement.refersToTable("son"));
+	}
+
+}